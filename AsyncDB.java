@@ -0,0 +1,131 @@
+/*
+ * AsyncDB.java
+ * Runs DBHelper calls on background threads so SQLite never blocks the JavaFX
+ * application thread. Results are handed back on the FX thread via
+ * Platform.runLater.
+ */
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class AsyncDB {
+
+    /** A database call to run off the FX thread. */
+    public interface Query<T> {
+        T run(MoodMusicPlayer.DBHelper db) throws Exception;
+    }
+
+    // Platform threads when virtual threads are unavailable (JDK < 21)
+    private static final int FALLBACK_THREADS = 5;
+
+    private final MoodMusicPlayer.DBHelper db;
+    private final ExecutorService executor;
+    // Most recent request per key; older ones are cancelled or their results dropped
+    private final Map<String, CompletableFuture<?>> latest = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ReadOnlyBooleanWrapper busy = new ReadOnlyBooleanWrapper(false);
+
+    public AsyncDB(MoodMusicPlayer.DBHelper db) {
+        this.db = db;
+        this.executor = newExecutor();
+    }
+
+    /**
+     * Runs the query on the database executor. Callbacks attached to the returned
+     * future run on a background thread; use {@link #run} to get results on the FX thread.
+     */
+    public <T> CompletableFuture<T> submit(Query<T> query) {
+        updateBusy(pending.incrementAndGet());
+        CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                return query.run(db);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+        future.whenComplete((v, err) -> updateBusy(pending.decrementAndGet()));
+        return future;
+    }
+
+    /** Runs the query and delivers the result or failure on the FX thread. */
+    public <T> CompletableFuture<T> run(Query<T> query, Consumer<T> onSuccess, Consumer<Throwable> onError) {
+        CompletableFuture<T> future = submit(query);
+        future.whenComplete((value, err) -> Platform.runLater(() -> deliver(value, err, onSuccess, onError)));
+        return future;
+    }
+
+    /**
+     * Like {@link #run}, but a newer request under the same key supersedes this one:
+     * it is cancelled if it has not started yet, and its result is never delivered.
+     */
+    public <T> CompletableFuture<T> runLatest(String key, Query<T> query, Consumer<T> onSuccess, Consumer<Throwable> onError) {
+        CompletableFuture<T> future = submit(query);
+        CompletableFuture<?> previous = latest.put(key, future);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        future.whenComplete((value, err) -> Platform.runLater(() -> {
+            if (!latest.remove(key, future)) return; // superseded
+            deliver(value, err, onSuccess, onError);
+        }));
+        return future;
+    }
+
+    /** True while any query is queued or running; for loading indicators. */
+    public ReadOnlyBooleanProperty busyProperty() {
+        return busy.getReadOnlyProperty();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static <T> void deliver(T value, Throwable err, Consumer<T> onSuccess, Consumer<Throwable> onError) {
+        if (err == null) {
+            onSuccess.accept(value);
+            return;
+        }
+        Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+        if (cause instanceof CancellationException) return;
+        if (onError != null) {
+            onError.accept(cause);
+        } else {
+            cause.printStackTrace();
+        }
+    }
+
+    private void updateBusy(int count) {
+        boolean now = count > 0;
+        if (Platform.isFxApplicationThread()) {
+            busy.set(now);
+        } else {
+            Platform.runLater(() -> busy.set(pending.get() > 0));
+        }
+    }
+
+    private static ExecutorService newExecutor() {
+        // Prefer one virtual thread per query; the connection pool bounds actual concurrency
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newFixedThreadPool(FALLBACK_THREADS, r -> {
+                Thread t = new Thread(r, "db-worker-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
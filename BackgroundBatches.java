@@ -0,0 +1,94 @@
+/*
+ * BackgroundBatches.java
+ * The loop behind the jobs that work through the library's files in the
+ * background (ContentHasher, MoodAnalyzer). Songs still to do come from the
+ * database in id order, a batch at a time, so a run never holds the whole
+ * library and resumes cleanly after a cancel. Each file in a batch goes to a
+ * small pool of low-priority daemon threads; once the batch is in, its results
+ * are stored together and the next batch is fetched.
+ *
+ * The job decides what to fetch, what to do with one file, and how to count
+ * and store the results. Everything but process() runs on the calling thread.
+ *
+ * No JavaFX here.
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+final class BackgroundBatches {
+
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /** One kind of background work over songs' files, with the state of a single run. */
+    interface Job<R> {
+        /** Up to {@code limit} songs still to do, in id order after {@code afterId}. */
+        List<MoodMusicPlayer.DBHelper.FileRecord> fetch(int afterId, int limit) throws SQLException;
+
+        /** Works on one file on a pool thread; null if it stopped part way and there is nothing to keep. */
+        R process(MoodMusicPlayer.DBHelper.FileRecord file) throws Exception;
+
+        /** Takes one file's result, in batch order. */
+        void done(MoodMusicPlayer.DBHelper.FileRecord file, R result);
+
+        /** Takes what process() threw for one file, in batch order. */
+        void failed(MoodMusicPlayer.DBHelper.FileRecord file, Throwable cause);
+
+        /** Writes what the batch's done() and failed() calls took. */
+        void store() throws SQLException;
+
+        /** Reports the counts so far; the last call has {@code finished} set. */
+        void progress(long elapsedNanos, boolean finished);
+    }
+
+    private BackgroundBatches() {
+    }
+
+    /** Runs the job until nothing is left to fetch or {@code cancelled} says to stop. */
+    static <R> void run(Job<R> job, String threadName, int threads, int batchSize, BooleanSupplier cancelled)
+            throws SQLException, InterruptedException {
+        long start = System.nanoTime();
+        long lastReport = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, threadName);
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        try {
+            int afterId = 0;
+            List<MoodMusicPlayer.DBHelper.FileRecord> batch;
+            while (!cancelled.getAsBoolean() && !(batch = job.fetch(afterId, batchSize)).isEmpty()) {
+                afterId = batch.get(batch.size() - 1).getId();
+                List<Future<R>> futures = new ArrayList<>(batch.size());
+                for (MoodMusicPlayer.DBHelper.FileRecord f : batch) {
+                    futures.add(pool.submit(() -> job.process(f)));
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    try {
+                        R result = futures.get(i).get();
+                        if (result != null) job.done(batch.get(i), result);
+                    } catch (ExecutionException e) {
+                        job.failed(batch.get(i), e.getCause());
+                    }
+                    long now = System.nanoTime();
+                    if (now - lastReport >= PROGRESS_INTERVAL_NANOS) {
+                        job.progress(now - start, false);
+                        lastReport = now;
+                    }
+                }
+                job.store();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        job.progress(System.nanoTime() - start, true);
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * ContentHasher.java
+ * Fills in songs.content_hash in the background so the same audio stored twice,
+ * under two paths or added twice by hand, can be found and merged.
+ *
+ * The hash is SHA-256 over the audio itself: for MP3 files the ID3 tags at either
+ * end are left out, so a retagged copy still matches. Small files are read through
+ * one reusable buffer per thread and large ones are memory-mapped. Only songs with
+ * no hash yet are read; scans clear the hash when a file's size or mtime changes.
+ * Reads can be capped in bytes per second so hashing does not starve playback.
+ *
+ * No JavaFX here: progress goes to a plain listener.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ContentHasher {
+
+    /** Default read cap: well under what a disk delivers, so playback keeps its share. */
+    public static final long DEFAULT_BYTES_PER_SECOND = 32L << 20;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Files with more audio than this are mapped instead of read through the buffer
+    private static final long MAP_THRESHOLD = 16L << 20;
+    private static final long MAP_CHUNK = 64L << 20;
+    // The rate cap is applied per slice, so a mapped chunk does not arrive as one burst
+    private static final int THROTTLE_SLICE = 1 << 20;
+    // Hashes are written a batch of this many songs at a time
+    private static final int BATCH_SIZE = 500;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Told how hashing is going, on the thread that called hashPending(). */
+    public interface Listener {
+        void progress(Progress progress);
+    }
+
+    private final MoodMusicPlayer.DBHelper db;
+    private final int threads;
+    private final long maxBytesPerSecond;
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+    // Earliest time the next slice may be read, shared by all hashing threads
+    private long nextSliceNanos;
+    private volatile boolean cancelled;
+
+    public ContentHasher(MoodMusicPlayer.DBHelper db) {
+        this(db, Math.min(2, Runtime.getRuntime().availableProcessors()), DEFAULT_BYTES_PER_SECOND);
+    }
+
+    /**
+     * @param threads files hashed at once; hashing is mostly waiting on the disk, so a few do
+     * @param maxBytesPerSecond read cap across all threads, or 0 for none
+     */
+    public ContentHasher(MoodMusicPlayer.DBHelper db, int threads, long maxBytesPerSecond) {
+        this.db = db;
+        this.threads = Math.max(1, threads);
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /** Stops at the next slice. Hashes already stored stay; the rest are picked up next time. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Hashes every song that has no content hash yet and blocks until done or cancelled.
+     * Files that cannot be read are skipped and tried again on the next run.
+     */
+    public Progress hashPending(Listener listener) throws SQLException, InterruptedException {
+        HashRun run = new HashRun(listener);
+        BackgroundBatches.run(run, "content-hasher", threads, BATCH_SIZE, this::isCancelled);
+        return run.last;
+    }
+
+    /** Content hash of one file, unthrottled; for checking a file before it is added. */
+    public static String hash(Path file) throws IOException {
+        try {
+            return new ContentHasher(null, 1, 0).hashFile(file, new AtomicLong());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing " + file, e);
+        }
+    }
+
+    /** Hex SHA-256 of the file's audio, or null if cancelled part way. */
+    private String hashFile(Path file, AtomicLong bytes) throws IOException, InterruptedException {
+        MessageDigest md = newDigest();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] range = audioRange(ch, file.getFileName().toString());
+            long pos = range[0];
+            long end = range[1];
+            if (end - pos >= MAP_THRESHOLD) {
+                while (pos < end) {
+                    long chunk = Math.min(MAP_CHUNK, end - pos);
+                    MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, pos, chunk);
+                    for (int off = 0; off < chunk; off += THROTTLE_SLICE) {
+                        if (cancelled) return null;
+                        int len = (int) Math.min(THROTTLE_SLICE, chunk - off);
+                        throttle(len);
+                        ByteBuffer slice = mapped.duplicate();
+                        slice.position(off).limit(off + len);
+                        md.update(slice);
+                        bytes.addAndGet(len);
+                    }
+                    pos += chunk;
+                }
+            } else {
+                ByteBuffer buf = buffers.get();
+                while (pos < end) {
+                    if (cancelled) return null;
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), end - pos));
+                    throttle(buf.remaining());
+                    int n = ch.read(buf, pos);
+                    if (n < 0) break;
+                    md.update(buf.array(), 0, n);
+                    pos += n;
+                    bytes.addAndGet(n);
+                }
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Start and end of the audio in the file. For MP3 an ID3v2 tag at the start and an ID3v1
+     * tag at the end are excluded; other formats keep their metadata inline and are hashed whole.
+     */
+    private long[] audioRange(FileChannel ch, String name) throws IOException {
+        long size = ch.size();
+        long start = 0;
+        long end = size;
+        if (!name.toLowerCase(Locale.ROOT).endsWith(".mp3")) return new long[] {start, end};
+
+        ByteBuffer head = ByteBuffer.allocate(10);
+        if (ch.read(head, 0) == 10 && head.get(0) == 'I' && head.get(1) == 'D' && head.get(2) == '3') {
+            // Syncsafe size: 7 bits per byte, not counting the 10-byte header or a footer
+            int tagSize = (head.get(6) & 0x7f) << 21 | (head.get(7) & 0x7f) << 14
+                    | (head.get(8) & 0x7f) << 7 | head.get(9) & 0x7f;
+            boolean footer = (head.get(5) & 0x10) != 0;
+            start = Math.min(size, 10L + tagSize + (footer ? 10 : 0));
+        }
+        if (end - start >= 128) {
+            ByteBuffer tail = ByteBuffer.allocate(3);
+            if (ch.read(tail, end - 128) == 3 && tail.get(0) == 'T' && tail.get(1) == 'A' && tail.get(2) == 'G') {
+                end -= 128;
+            }
+        }
+        return new long[] {start, end};
+    }
+
+    /** Waits until {@code len} more bytes fit under the read cap. */
+    private void throttle(int len) throws InterruptedException {
+        if (maxBytesPerSecond <= 0) return;
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long slot = Math.max(now, nextSliceNanos);
+            nextSliceNanos = slot + len * 1_000_000_000L / maxBytesPerSecond;
+            wait = slot - now;
+        }
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        char[] out = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            out[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    /** One hashPending() call: the hashes of the current batch and the totals so far. */
+    private final class HashRun implements BackgroundBatches.Job<String> {
+        private final Listener listener;
+        private final AtomicLong bytes = new AtomicLong();
+        private final List<MoodMusicPlayer.DBHelper.FileRecord> hashedFiles = new ArrayList<>();
+        private final List<String> hashes = new ArrayList<>();
+        private long hashed;
+        private long failed;
+        private Progress last;
+
+        HashRun(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public List<MoodMusicPlayer.DBHelper.FileRecord> fetch(int afterId, int limit) throws SQLException {
+            return db.getUnhashedFiles(afterId, limit);
+        }
+
+        @Override
+        public String process(MoodMusicPlayer.DBHelper.FileRecord file) throws IOException, InterruptedException {
+            return hashFile(Paths.get(file.getPath()), bytes);
+        }
+
+        @Override
+        public void done(MoodMusicPlayer.DBHelper.FileRecord file, String hash) {
+            hashedFiles.add(file);
+            hashes.add(hash);
+        }
+
+        @Override
+        public void failed(MoodMusicPlayer.DBHelper.FileRecord file, Throwable cause) {
+            // Missing or unreadable right now; it keeps no hash and is tried again later
+            failed++;
+        }
+
+        @Override
+        public void store() throws SQLException {
+            // Stored only if the file still has the size and mtime it was read at
+            db.setContentHashes(hashedFiles, hashes);
+            hashed += hashedFiles.size();
+            hashedFiles.clear();
+            hashes.clear();
+        }
+
+        @Override
+        public void progress(long elapsedNanos, boolean finished) {
+            last = new Progress(hashed + hashedFiles.size(), failed, bytes.get(), elapsedNanos, finished);
+            listener.progress(last);
+        }
+    }
+
+    /** Counters for a hashing run in progress or finished. */
+    public static final class Progress {
+        private final long filesHashed;
+        private final long failed;
+        private final long bytesRead;
+        private final long elapsedNanos;
+        private final boolean finished;
+
+        Progress(long filesHashed, long failed, long bytesRead, long elapsedNanos, boolean finished) {
+            this.filesHashed = filesHashed;
+            this.failed = failed;
+            this.bytesRead = bytesRead;
+            this.elapsedNanos = elapsedNanos;
+            this.finished = finished;
+        }
+
+        public long getFilesHashed() { return filesHashed; }
+        public long getFailed() { return failed; }
+        public long getBytesRead() { return bytesRead; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        public boolean isFinished() { return finished; }
+
+        public double getMegabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytesRead / 1048576.0 * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            String s = String.format("%,d files hashed (%,.1f MB/s)", filesHashed, getMegabytesPerSecond());
+            return failed == 0 ? s : s + String.format(", %,d unreadable", failed);
+        }
+    }
+}
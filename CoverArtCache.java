@@ -0,0 +1,329 @@
+/*
+ * CoverArtCache.java
+ * Cover thumbnails for the song table, the playlist table and the now-playing bar.
+ *
+ * A song's cover is the picture embedded in its tags (ID3 APIC, MP4 covr; located by
+ * TagReader and read straight from the file) or else a folder.jpg, cover.jpg and the
+ * like next to it. Images are decoded on a small background pool straight to
+ * thumbnail size, so a full-size cover is never held. Rows ask for a cover every time
+ * they are reused; the newest requests are served first and the oldest waiting ones
+ * dropped, so a table scrolled fast only decodes what ends up on screen. Nothing is
+ * decoded on the FX thread: a miss returns null and the row is called back later.
+ *
+ * Decoded thumbnails stay in an LRU bounded by their pixel bytes. Songs in one folder
+ * share its folder image, which is counted once. Songs without art are remembered too,
+ * so they are not looked up again.
+ *
+ * Every method must be called on the FX thread.
+ */
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class CoverArtCache {
+
+    /** Edge of the square thumbnails are decoded to; views scale them down from here. */
+    public static final int THUMBNAIL_SIZE = 64;
+    /** Cache size used by the player, a few thousand thumbnails. */
+    public static final long DEFAULT_MAX_BYTES = 32L << 20;
+
+    // Image files looked for next to a song without embedded art, in this order
+    private static final String[] FOLDER_IMAGES = {"folder.jpg", "cover.jpg", "front.jpg", "folder.png", "cover.png"};
+    // Embedded pictures larger than this are not read
+    private static final int MAX_EMBEDDED_BYTES = 16 << 20;
+    // Requests waiting for the pool beyond this many drop the oldest
+    private static final int MAX_QUEUED = 64;
+    // Charged for remembering that a song has no cover
+    private static final long MISSING_BYTES = 64;
+    // Folder images kept by the loaders, so songs of one folder decode it once
+    private static final int RECENT_FOLDERS = 32;
+
+    private final long maxBytes;
+    // Song path to its thumbnail (null image: no cover), least recently used first
+    private final LinkedHashMap<String, Image> entries = new LinkedHashMap<>(256, 0.75f, true);
+    // How many entries hold each image; an image shared by a folder's songs is counted once
+    private final Map<Image, Integer> holders = new IdentityHashMap<>();
+    // Song path to its load and the rows waiting for it
+    private final Map<String, Pending> waiting = new HashMap<>();
+    private final ThreadPoolExecutor loaders;
+    private final ThreadLocal<TagReader> readers = ThreadLocal.withInitial(TagReader::new);
+    private final Map<String, Image> recentFolders = new LinkedHashMap<String, Image>(RECENT_FOLDERS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            return size() > RECENT_FOLDERS;
+        }
+    };
+    private long residentBytes;
+
+    private long hits;
+    private long misses;
+    private long loaded;
+    private long withoutCover;
+    private long droppedLoads;
+    private long evictions;
+
+    public CoverArtCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        int threads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+        loaders = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new NewestFirstQueue(), r -> {
+            Thread t = new Thread(r, "cover-art");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * The song's thumbnail if it is cached, else null; {@code onLoaded} is then called later
+     * with the image (null if the song has none). Rows must check on callback that they
+     * still show the same song.
+     */
+    public Image get(String path, Consumer<Image> onLoaded) {
+        if (path == null || path.trim().isEmpty()) return null;
+        if (entries.containsKey(path)) {
+            hits++;
+            return entries.get(path);
+        }
+        misses++;
+        Pending pending = waiting.get(path);
+        if (pending == null || pending.load.dropped) {
+            pending = new Pending(new Load(path));
+            waiting.put(path, pending);
+            loaders.execute(pending.load);
+        }
+        pending.rows.add(onLoaded);
+        return null;
+    }
+
+    public Stats getStats() {
+        return new Stats(entries.size(), residentBytes, maxBytes, hits, misses, loaded, withoutCover, droppedLoads, evictions);
+    }
+
+    /** Stops the loaders; images already handed out stay valid. */
+    public void dispose() {
+        loaders.shutdownNow();
+        waiting.clear();
+    }
+
+    private void loadFinished(Load load, Image image) {
+        Pending pending = waiting.get(load.path);
+        if (pending != null && pending.load == load) waiting.remove(load.path);
+        if (image != null) {
+            loaded++;
+        } else {
+            withoutCover++;
+        }
+        put(load.path, image);
+        if (pending != null && pending.load == load) {
+            for (Consumer<Image> row : pending.rows) row.accept(image);
+        }
+    }
+
+    /** Adds an entry, then evicts from the least recently used end until back under the bound. */
+    private void put(String path, Image image) {
+        boolean replaced = entries.containsKey(path);
+        Image old = entries.put(path, image);
+        if (replaced) release(old);
+        hold(image);
+        Iterator<Map.Entry<String, Image>> eldest = entries.entrySet().iterator();
+        while (residentBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Image> e = eldest.next();
+            if (e.getKey().equals(path)) continue;
+            eldest.remove();
+            release(e.getValue());
+            evictions++;
+        }
+    }
+
+    private void hold(Image image) {
+        if (image == null) {
+            residentBytes += MISSING_BYTES;
+        } else if (holders.merge(image, 1, Integer::sum) == 1) {
+            residentBytes += bytes(image);
+        }
+    }
+
+    private void release(Image image) {
+        if (image == null) {
+            residentBytes -= MISSING_BYTES;
+        } else if (holders.merge(image, -1, Integer::sum) == 0) {
+            holders.remove(image);
+            residentBytes -= bytes(image);
+        }
+    }
+
+    private static long bytes(Image image) {
+        // Decoded as 32-bit pixels
+        return (long) Math.ceil(image.getWidth()) * (long) Math.ceil(image.getHeight()) * 4;
+    }
+
+    /** A load in the queue or running, and the rows to call back when it is done. */
+    private static final class Pending {
+        final Load load;
+        final List<Consumer<Image>> rows = new ArrayList<>(2);
+
+        Pending(Load load) {
+            this.load = load;
+        }
+    }
+
+    /** Looks up and decodes one song's cover on a loader thread. */
+    private final class Load implements Runnable {
+        final String path;
+        // Set when pushed out of the queue; a new request for the path then starts another load
+        volatile boolean dropped;
+
+        Load(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void run() {
+            Image image = null;
+            try {
+                image = load(Paths.get(path));
+            } catch (IOException | RuntimeException e) {
+                // Unreadable files and broken pictures show no cover
+            }
+            Image result = image;
+            Platform.runLater(() -> loadFinished(this, result));
+        }
+
+        /** Never started: pushed out of the queue by newer requests. */
+        void drop() {
+            dropped = true;
+            Platform.runLater(() -> {
+                droppedLoads++;
+                // The rows asking for it have been reused by now; a later request starts over
+                Pending pending = waiting.get(path);
+                if (pending != null && pending.load == this) waiting.remove(path);
+            });
+        }
+
+        private Image load(Path file) throws IOException {
+            if (!Files.isRegularFile(file)) return null;
+            long[] at = readers.get().findCover(file);
+            if (at != null && at[1] > 0 && at[1] <= MAX_EMBEDDED_BYTES) {
+                Image embedded = decode(readRange(file, at[0], (int) at[1]));
+                if (embedded != null) return embedded;
+            }
+            Path dir = file.getParent();
+            if (dir == null) return null;
+            for (String name : FOLDER_IMAGES) {
+                Path candidate = dir.resolve(name);
+                String key = candidate.toString().toLowerCase(Locale.ROOT);
+                synchronized (recentFolders) {
+                    if (recentFolders.containsKey(key)) return recentFolders.get(key);
+                }
+                if (!Files.isRegularFile(candidate)) continue;
+                Image image = decode(Files.readAllBytes(candidate));
+                synchronized (recentFolders) {
+                    recentFolders.put(key, image);
+                }
+                return image;
+            }
+            return null;
+        }
+    }
+
+    /** Decodes straight to thumbnail size, keeping the aspect ratio; null if the bytes are no image. */
+    private static Image decode(byte[] bytes) {
+        Image image = new Image(new ByteArrayInputStream(bytes), THUMBNAIL_SIZE, THUMBNAIL_SIZE, true, true);
+        return image.isError() ? null : image;
+    }
+
+    private static byte[] readRange(Path file, long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) throw new IOException("Cover runs past the end of " + file);
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * The pool's queue: newest request first, and at most MAX_QUEUED waiting, so the rows
+     * on screen now are served before the ones scrolled past.
+     */
+    private static final class NewestFirstQueue extends LinkedBlockingDeque<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean offer(Runnable r) {
+            while (size() >= MAX_QUEUED) {
+                Runnable oldest = pollLast();
+                if (oldest instanceof Load) ((Load) oldest).drop();
+            }
+            return offerFirst(r);
+        }
+    }
+
+    /** Cache counters since it was created. */
+    public static final class Stats {
+        private final int entries;
+        private final long residentBytes;
+        private final long maxBytes;
+        private final long hits;
+        private final long misses;
+        private final long loaded;
+        private final long withoutCover;
+        private final long dropped;
+        private final long evictions;
+
+        Stats(int entries, long residentBytes, long maxBytes, long hits, long misses, long loaded,
+              long withoutCover, long dropped, long evictions) {
+            this.entries = entries;
+            this.residentBytes = residentBytes;
+            this.maxBytes = maxBytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.loaded = loaded;
+            this.withoutCover = withoutCover;
+            this.dropped = dropped;
+            this.evictions = evictions;
+        }
+
+        public int getEntries() { return entries; }
+        public long getResidentBytes() { return residentBytes; }
+        public long getMaxBytes() { return maxBytes; }
+        public long getHits() { return hits; }
+        public long getMisses() { return misses; }
+        public long getLoaded() { return loaded; }
+        public long getWithoutCover() { return withoutCover; }
+        public long getDropped() { return dropped; }
+        public long getEvictions() { return evictions; }
+
+        public double getHitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : hits / (double) requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Covers: %.0f%% hits, %d cached in %.1f of %.0f MB (%d decoded, %d without art, %d dropped, %d evicted)",
+                    getHitRate() * 100, entries, residentBytes / 1048576.0, maxBytes / 1048576.0,
+                    loaded, withoutCover, dropped, evictions);
+        }
+    }
+}
@@ -0,0 +1,658 @@
+/*
+ * HttpMediaCache.java
+ * A caching proxy for songs whose path is an http(s) URL. Media is pointed at a
+ * loopback HTTP server instead of the origin; the server answers from a disk cache
+ * and fetches only the byte ranges it does not have yet.
+ *
+ * Each URL's bytes are kept in one sparse data file, in CHUNK-sized pieces, with a
+ * small .meta file recording the URL, length, validator and which chunks are present.
+ * A request for missing chunks fetches a run of them from the origin with a Range
+ * request and passes the bytes on to the player as they arrive, so a slow origin
+ * delays playback by its first bytes, not by the whole file. Chunks already on disk
+ * are sent with FileChannel.transferTo. Two requests needing the same chunk share one
+ * fetch. When the cache outgrows its bound the least recently played URLs are
+ * removed, except those being read.
+ *
+ * Origins without Range support are read from the start and skipped forward;
+ * origins that do not tell the length are streamed through uncached. Cached bytes
+ * are used until an origin response shows a different ETag or Last-Modified.
+ *
+ * No JavaFX here; HttpMediaCacheCheck runs it against a throttled local origin.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class HttpMediaCache implements Closeable {
+
+    /** Cache size used by the player. */
+    public static final long DEFAULT_MAX_BYTES = 512L << 20;
+
+    // Unit of caching: a chunk is on disk completely or not at all
+    static final int CHUNK = 256 * 1024;
+    // Chunks fetched by one origin request at most, so a seek is not held up behind a long read
+    private static final int MAX_RUN_CHUNKS = 16;
+    private static final int COPY_BUFFER = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+    private static final int META_MAGIC = 0x4D4D4843; // "MMHC"
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final Path dir;
+    private final long maxBytes;
+    private final HttpServer server;
+    private final ExecutorService workers;
+    // Key to entry, least recently requested first; guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+
+    private long requests;
+    private long bytesFromCache;
+    private long bytesFromOrigin;
+    private long evictions;
+
+    private HttpMediaCache(Path dir, long maxBytes, HttpServer server, ExecutorService workers) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.server = server;
+        this.workers = workers;
+    }
+
+    /** Loads what is cached in {@code dir} and starts the proxy on a free loopback port. */
+    public static HttpMediaCache start(Path dir, long maxBytes) throws IOException {
+        Files.createDirectories(dir);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        AtomicInteger threadCount = new AtomicInteger();
+        // One thread per open request: each may block on the origin
+        ExecutorService workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "media-proxy-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        HttpMediaCache cache = new HttpMediaCache(dir, maxBytes, server, workers);
+        cache.load();
+        server.createContext("/m/", cache::handle);
+        server.setExecutor(workers);
+        server.start();
+        return cache;
+    }
+
+    /**
+     * The loopback URL Media should open for {@code originUrl}. Only URLs handed out here
+     * are served, so the proxy cannot be used to reach anything else.
+     */
+    public String proxyUrl(String originUrl) {
+        String key = key(originUrl);
+        synchronized (this) {
+            if (!entries.containsKey(key)) entries.put(key, new Entry(key, originUrl));
+        }
+        // Media picks a demuxer by the file name, so the proxy URL ends with the original one
+        String path = originUrl.replaceFirst("[?#].*$", "");
+        String name = path.substring(path.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+        if (name.isEmpty()) name = "media";
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort()
+                + "/m/" + key + "/" + name;
+    }
+
+    public synchronized Stats getStats() {
+        int cached = 0;
+        for (Entry e : entries.values()) {
+            if (e.bytes > 0) cached++;
+        }
+        return new Stats(cached, cachedBytes, maxBytes, requests, bytesFromCache, bytesFromOrigin, evictions);
+    }
+
+    /** Stops the server; requests in progress are cut off. What is cached stays on disk. */
+    @Override
+    public void close() {
+        server.stop(0);
+        workers.shutdownNow();
+        synchronized (this) {
+            for (Entry e : entries.values()) e.closeData();
+        }
+    }
+
+    // ---- serving ----
+
+    private void handle(HttpExchange ex) {
+        try {
+            String method = ex.getRequestMethod();
+            String[] parts = ex.getRequestURI().getPath().split("/");
+            Entry e;
+            synchronized (this) {
+                e = parts.length >= 3 ? entries.get(parts[2]) : null;
+                if (e != null) {
+                    requests++;
+                    e.readers++;
+                }
+            }
+            if (e == null || !("GET".equals(method) || "HEAD".equals(method))) {
+                ex.sendResponseHeaders(e == null ? 404 : 405, -1);
+                return;
+            }
+            try {
+                serve(ex, e, "HEAD".equals(method));
+            } finally {
+                synchronized (this) {
+                    e.readers--;
+                }
+            }
+        } catch (IOException ignored) {
+            // The player closed the connection, typically to seek; nothing to clean up
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void serve(HttpExchange ex, Entry e, boolean head) throws IOException {
+        if (!e.probe()) {
+            passThrough(ex, e, head);
+            return;
+        }
+        long length = e.length;
+        long start = 0;
+        long end = length - 1;
+        boolean partial = false;
+        String range = ex.getRequestHeaders().getFirst("Range");
+        Matcher m = range == null ? null : RANGE.matcher(range.trim());
+        if (m != null && m.lookingAt() && !(m.group(1).isEmpty() && m.group(2).isEmpty())) {
+            partial = true;
+            if (m.group(1).isEmpty()) {
+                // bytes=-n: the last n bytes
+                start = Math.max(0, length - Long.parseLong(m.group(2)));
+            } else {
+                start = Long.parseLong(m.group(1));
+                if (!m.group(2).isEmpty()) end = Math.min(end, Long.parseLong(m.group(2)));
+            }
+            if (start >= length || start > end) {
+                ex.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                ex.sendResponseHeaders(416, -1);
+                return;
+            }
+        }
+        ex.getResponseHeaders().set("Content-Type", e.contentType);
+        ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (partial) ex.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        long count = end - start + 1;
+        if (head) ex.getResponseHeaders().set("Content-Length", Long.toString(count));
+        ex.sendResponseHeaders(partial ? 206 : 200, head ? -1 : count);
+        if (head) return;
+        try (OutputStream out = ex.getResponseBody()) {
+            copyRange(e, start, end, out);
+        }
+    }
+
+    /** Sends [start, end] from disk chunk by chunk, fetching the chunks that are missing. */
+    private void copyRange(Entry e, long start, long end, OutputStream out) throws IOException {
+        WritableByteChannel sink = Channels.newChannel(out);
+        long pos = start;
+        while (pos <= end) {
+            int chunk = (int) (pos / CHUNK);
+            int claimedTo = e.awaitOrClaim(chunk);
+            if (claimedTo < 0) {
+                long to = Math.min(end + 1, e.chunkEnd(chunk));
+                FileChannel data = e.data();
+                for (long at = pos; at < to; ) {
+                    at += data.transferTo(at, to - at, sink);
+                }
+                countFromCache(to - pos);
+                pos = to;
+            } else {
+                pos = fetch(e, chunk, claimedTo, pos, end, out);
+            }
+        }
+    }
+
+    /**
+     * Fetches chunks [from, to) from the origin into the data file, passing the part inside
+     * [pos, end] on to the player as it arrives. Returns the position sent up to. Chunks not
+     * completed are released for another request to fetch.
+     */
+    private long fetch(Entry e, int from, int to, long pos, long end, OutputStream out) throws IOException {
+        long runStart = (long) from * CHUNK;
+        long runEnd = e.chunkEnd(to - 1);
+        int chunk = from;
+        boolean playerGone = false;
+        // Once the player has gone, the chunk in progress is finished and the rest released
+        int lastChunk = to - 1;
+        HttpURLConnection conn = null;
+        try {
+            conn = open(e.url, "GET");
+            conn.setRequestProperty("Range", "bytes=" + runStart + "-" + (runEnd - 1));
+            int status = conn.getResponseCode();
+            if (status != 206 && status != 200) throw new IOException("Origin answered " + status + " for " + e.url);
+            e.checkValidator(conn);
+            InputStream in = conn.getInputStream();
+            if (status == 200) {
+                // No range support: read up to where the run starts
+                long skip = runStart;
+                while (skip > 0) {
+                    long n = in.skip(skip);
+                    if (n <= 0) {
+                        if (in.read() < 0) throw new IOException("Origin ended early: " + e.url);
+                        n = 1;
+                    }
+                    skip -= n;
+                }
+            } else {
+                Matcher m = CONTENT_RANGE.matcher(String.valueOf(conn.getHeaderField("Content-Range")));
+                if (!m.lookingAt() || Long.parseLong(m.group(1)) != runStart) {
+                    throw new IOException("Origin sent the wrong range for " + e.url);
+                }
+            }
+            byte[] buf = new byte[COPY_BUFFER];
+            ByteBuffer wrapped = ByteBuffer.wrap(buf);
+            FileChannel data = e.data();
+            long at = runStart;
+            while (at < runEnd) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, runEnd - at));
+                if (n < 0) throw new IOException("Origin ended early: " + e.url);
+                wrapped.clear().limit(n);
+                for (long w = at; wrapped.hasRemaining(); ) {
+                    w += data.write(wrapped, w);
+                }
+                if (!playerGone) {
+                    long s = Math.max(at, pos);
+                    long t = Math.min(at + n, end + 1);
+                    if (s < t) {
+                        try {
+                            out.write(buf, (int) (s - at), (int) (t - s));
+                            pos = t;
+                        } catch (IOException gone) {
+                            playerGone = true;
+                            lastChunk = chunk;
+                        }
+                    }
+                }
+                at += n;
+                countFromOrigin(n);
+                while (chunk < to && at >= e.chunkEnd(chunk)) {
+                    chunkCompleted(e, chunk++);
+                }
+                if (chunk > lastChunk) break;
+            }
+        } finally {
+            e.release(chunk, to);
+            if (conn != null) conn.disconnect();
+        }
+        if (playerGone) throw new IOException("Player closed the connection");
+        return pos;
+    }
+
+    /** For origins that do not say how long the file is: streamed straight through, not cached. */
+    private void passThrough(HttpExchange ex, Entry e, boolean head) throws IOException {
+        HttpURLConnection conn = open(e.url, "GET");
+        try {
+            int status = conn.getResponseCode();
+            if (status != 200) {
+                ex.sendResponseHeaders(502, -1);
+                return;
+            }
+            String type = conn.getContentType();
+            ex.getResponseHeaders().set("Content-Type", type != null ? type : guessType(e.url));
+            ex.sendResponseHeaders(200, head ? -1 : 0);
+            if (head) return;
+            try (InputStream in = conn.getInputStream(); OutputStream out = ex.getResponseBody()) {
+                byte[] buf = new byte[COPY_BUFFER];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    out.write(buf, 0, n);
+                    countFromOrigin(n);
+                }
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static HttpURLConnection open(String url, String method) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url.replace(" ", "%20")).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        // Byte offsets must match the file, not a compressed transfer of it
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        return conn;
+    }
+
+    // ---- bookkeeping ----
+
+    private void chunkCompleted(Entry e, int chunk) throws IOException {
+        long size = e.complete(chunk);
+        synchronized (this) {
+            cachedBytes += size;
+            evictOver(e);
+        }
+    }
+
+    /**
+     * Empties least recently requested entries not being read until the cache fits. The
+     * entries stay registered, since a player may still hold their URL.
+     */
+    private void evictOver(Entry keep) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (cachedBytes > maxBytes && it.hasNext()) {
+            Entry e = it.next();
+            if (e == keep || e.readers > 0 || e.bytes == 0) continue;
+            cachedBytes -= e.bytes;
+            e.delete();
+            evictions++;
+        }
+    }
+
+    private synchronized void countFromCache(long n) {
+        bytesFromCache += n;
+    }
+
+    private synchronized void countFromOrigin(long n) {
+        bytesFromOrigin += n;
+    }
+
+    /** Reads every .meta file; entries whose data file is gone are dropped. */
+    private void load() throws IOException {
+        List<Entry> found = new ArrayList<>();
+        try (DirectoryStream<Path> metas = Files.newDirectoryStream(dir, "*.meta")) {
+            for (Path meta : metas) {
+                Entry e = readEntry(meta);
+                if (e == null) {
+                    Files.deleteIfExists(meta);
+                } else {
+                    found.add(e);
+                }
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.lastUsed, b.lastUsed));
+        synchronized (this) {
+            for (Entry e : found) {
+                entries.put(e.key, e);
+                cachedBytes += e.bytes;
+            }
+            evictOver(null);
+        }
+    }
+
+    /** An entry from its .meta file, or null if that is unreadable or the data file is gone. */
+    private Entry readEntry(Path meta) {
+        String name = meta.getFileName().toString();
+        String key = name.substring(0, name.length() - ".meta".length());
+        if (!Files.isRegularFile(dir.resolve(key + ".data"))) return null;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(meta))) {
+            if (in.readInt() != META_MAGIC) return null;
+            Entry e = new Entry(key, in.readUTF());
+            if (!key.equals(key(e.url))) return null;
+            e.length = in.readLong();
+            e.contentType = in.readUTF();
+            e.validator = in.readUTF();
+            e.lastUsed = in.readLong();
+            byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            e.present = BitSet.valueOf(bits);
+            for (int c = e.present.nextSetBit(0); c >= 0; c = e.present.nextSetBit(c + 1)) {
+                e.bytes += e.chunkEnd(c) - (long) c * CHUNK;
+            }
+            return e.length > 0 ? e : null;
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static String key(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) sb.append(String.format("%02x", digest[i]));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String guessType(String url) {
+        String lower = url.toLowerCase(Locale.ROOT).replaceFirst("[?#].*$", "");
+        if (lower.endsWith(".mp3")) return "audio/mpeg";
+        if (lower.endsWith(".m4a") || lower.endsWith(".mp4")) return "audio/mp4";
+        if (lower.endsWith(".wav")) return "audio/wav";
+        if (lower.endsWith(".aif") || lower.endsWith(".aiff")) return "audio/aiff";
+        return "application/octet-stream";
+    }
+
+    /** One origin URL: what is known about it and which chunks are on disk. */
+    private final class Entry {
+        final String key;
+        final String url;
+        // Filled in by the first probe, or loaded from the .meta file; guarded by this entry
+        long length = -1;
+        String contentType;
+        String validator = "";
+        BitSet present = new BitSet();
+        final BitSet fetching = new BitSet();
+        long bytes;
+        long lastUsed;
+        // Requests in progress; guarded by the cache
+        int readers;
+        private FileChannel data;
+
+        Entry(String key, String url) {
+            this.key = key;
+            this.url = url;
+        }
+
+        /** Learns the length and type from the origin once. False if the origin does not tell the length. */
+        synchronized boolean probe() throws IOException {
+            lastUsed = System.currentTimeMillis();
+            if (length >= 0) return true;
+            // A one-byte range rather than HEAD, which some origins refuse
+            HttpURLConnection conn = open(url, "GET");
+            conn.setRequestProperty("Range", "bytes=0-0");
+            try {
+                int status = conn.getResponseCode();
+                long len = -1;
+                if (status == 206) {
+                    Matcher m = CONTENT_RANGE.matcher(String.valueOf(conn.getHeaderField("Content-Range")));
+                    if (m.lookingAt() && !"*".equals(m.group(3))) len = Long.parseLong(m.group(3));
+                } else if (status == 200) {
+                    len = conn.getContentLengthLong();
+                }
+                if (len <= 0) return false;
+                length = len;
+                String type = conn.getContentType();
+                contentType = type != null ? type : guessType(url);
+                validator = validatorOf(conn);
+                save();
+                return true;
+            } finally {
+                conn.disconnect();
+            }
+        }
+
+        /**
+         * Returns -1 once {@code chunk} is on disk, waiting while another request fetches it.
+         * Otherwise claims it and the missing chunks after it (up to MAX_RUN_CHUNKS) and
+         * returns the end of the claim; the caller must fetch or release them.
+         */
+        synchronized int awaitOrClaim(int chunk) throws IOException {
+            while (true) {
+                if (present.get(chunk)) return -1;
+                if (!fetching.get(chunk)) {
+                    int chunks = (int) ((length + CHUNK - 1) / CHUNK);
+                    int to = chunk + 1;
+                    while (to < chunks && to - chunk < MAX_RUN_CHUNKS && !present.get(to) && !fetching.get(to)) to++;
+                    fetching.set(chunk, to);
+                    return to;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for " + url, ie);
+                }
+            }
+        }
+
+        /** Marks a fetched chunk present; returns its size. */
+        synchronized long complete(int chunk) throws IOException {
+            long size = chunkEnd(chunk) - (long) chunk * CHUNK;
+            fetching.clear(chunk);
+            present.set(chunk);
+            bytes += size;
+            save();
+            notifyAll();
+            return size;
+        }
+
+        /** Gives back claimed chunks that were not fetched, so a waiting request can try. */
+        synchronized void release(int from, int to) {
+            if (from < to) fetching.clear(from, to);
+            notifyAll();
+        }
+
+        /** Drops what is cached if the origin's copy has changed since. */
+        void checkValidator(HttpURLConnection conn) throws IOException {
+            String now = validatorOf(conn);
+            long dropped = 0;
+            synchronized (this) {
+                if (now.isEmpty() || now.equals(validator)) return;
+                validator = now;
+                // Chunks being fetched now come from the new copy and stay claimed
+                dropped = bytes;
+                present = new BitSet();
+                bytes = 0;
+                save();
+            }
+            synchronized (HttpMediaCache.this) {
+                cachedBytes -= dropped;
+            }
+        }
+
+        long chunkEnd(int chunk) {
+            return Math.min(length, (long) (chunk + 1) * CHUNK);
+        }
+
+        synchronized FileChannel data() throws IOException {
+            if (data == null) {
+                data = FileChannel.open(dir.resolve(key + ".data"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return data;
+        }
+
+        synchronized void closeData() {
+            if (data == null) return;
+            try {
+                data.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            data = null;
+        }
+
+        synchronized void delete() {
+            closeData();
+            try {
+                Files.deleteIfExists(dir.resolve(key + ".meta"));
+                Files.deleteIfExists(dir.resolve(key + ".data"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            length = -1;
+            present = new BitSet();
+            bytes = 0;
+        }
+
+        /** Rewrites the .meta file; written beside it and renamed, so a crash leaves the old one. */
+        private void save() throws IOException {
+            Path meta = dir.resolve(key + ".meta");
+            Path tmp = dir.resolve(key + ".meta.tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                out.writeInt(META_MAGIC);
+                out.writeUTF(url);
+                out.writeLong(length);
+                out.writeUTF(contentType != null ? contentType : guessType(url));
+                out.writeUTF(validator);
+                out.writeLong(lastUsed);
+                byte[] bits = present.toByteArray();
+                out.writeInt(bits.length);
+                out.write(bits);
+            }
+            Files.move(tmp, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static String validatorOf(HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        if (etag != null) return etag;
+        String modified = conn.getHeaderField("Last-Modified");
+        return modified != null ? modified : "";
+    }
+
+    /** Proxy counters since start. */
+    public static final class Stats {
+        private final int entries;
+        private final long cachedBytes;
+        private final long maxBytes;
+        private final long requests;
+        private final long bytesFromCache;
+        private final long bytesFromOrigin;
+        private final long evictions;
+
+        Stats(int entries, long cachedBytes, long maxBytes, long requests, long bytesFromCache, long bytesFromOrigin, long evictions) {
+            this.entries = entries;
+            this.cachedBytes = cachedBytes;
+            this.maxBytes = maxBytes;
+            this.requests = requests;
+            this.bytesFromCache = bytesFromCache;
+            this.bytesFromOrigin = bytesFromOrigin;
+            this.evictions = evictions;
+        }
+
+        public int getEntries() { return entries; }
+        public long getCachedBytes() { return cachedBytes; }
+        public long getMaxBytes() { return maxBytes; }
+        public long getRequests() { return requests; }
+        public long getBytesFromCache() { return bytesFromCache; }
+        public long getBytesFromOrigin() { return bytesFromOrigin; }
+        public long getEvictions() { return evictions; }
+
+        @Override
+        public String toString() {
+            return String.format("Stream cache: %d URLs, %.1f of %.0f MB, %d requests, %.1f MB from cache, %.1f MB fetched, %d evicted",
+                    entries, cachedBytes / 1048576.0, maxBytes / 1048576.0, requests,
+                    bytesFromCache / 1048576.0, bytesFromOrigin / 1048576.0, evictions);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * HttpMediaCacheCheck.java
+ * Plays synthetic tracks through HttpMediaCache from a local origin throttled to a
+ * slow link, and checks what the player gets and what the origin is asked for.
+ *
+ * Each track is read through the proxy cold, then warm, then from its middle; one
+ * track is first read from its middle before anything of it is cached. Every read
+ * must return exactly the origin's bytes. Warm reads, warm seeks and a read after
+ * the cache is reopened must take nothing from the origin, and a cold seek only what
+ * lies after the seek point. Last, a cache with room for fewer than all the tracks
+ * must evict to play them. The timings are printed along the way, so the check
+ * doubles as a benchmark.
+ *
+ *   java -cp out HttpMediaCacheCheck [TRACK_MB] [ORIGIN_MB_PER_SECOND]
+ *
+ * Exits with status 1 if any check fails. No JavaFX is needed.
+ */
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class HttpMediaCacheCheck {
+
+    private static final int TRACKS = 3;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final byte[][] bodies;
+    private int failures;
+
+    private HttpMediaCacheCheck(byte[][] bodies) {
+        this.bodies = bodies;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int trackBytes = (args.length > 0 ? Integer.parseInt(args[0]) : 4) << 20;
+        long bytesPerSecond = (args.length > 1 ? Long.parseLong(args[1]) : 8) << 20;
+        byte[][] bodies = new byte[TRACKS][trackBytes];
+        SplittableRandom random = new SplittableRandom(42);
+        for (byte[] body : bodies) {
+            for (int i = 0; i < body.length; i++) body[i] = (byte) random.nextInt(256);
+        }
+        HttpMediaCacheCheck check = new HttpMediaCacheCheck(bodies);
+        HttpServer origin = throttledOrigin(bodies, bytesPerSecond);
+        Path dir = Files.createTempDirectory("media-cache");
+        try {
+            check.run("http://127.0.0.1:" + origin.getAddress().getPort() + "/t", dir);
+        } finally {
+            origin.stop(0);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f : files) Files.delete(f);
+            }
+            Files.delete(dir);
+        }
+        System.out.println(check.failures == 0 ? "All reads matched the origin" : check.failures + " checks failed");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+
+    private void run(String base, Path dir) throws IOException {
+        int half = bodies[0].length / 2;
+        System.out.println("track\tpass\tfirst byte ms\tfull ms\tfrom origin KB");
+        try (HttpMediaCache cache = HttpMediaCache.start(dir, HttpMediaCache.DEFAULT_MAX_BYTES)) {
+            for (int t = 0; t < TRACKS; t++) {
+                String proxy = cache.proxyUrl(base + t + ".mp3");
+                if (t == TRACKS - 1) {
+                    // A seek into a track never played: only the chunks from there are fetched
+                    read(cache, proxy, t, half, "cold seek", bodies[t].length - half + HttpMediaCache.CHUNK);
+                }
+                read(cache, proxy, t, 0, "cold", Long.MAX_VALUE);
+                read(cache, proxy, t, 0, "warm", 0);
+                read(cache, proxy, t, half, "warm seek", 0);
+            }
+            System.out.println(cache.getStats());
+        }
+        try (HttpMediaCache reopened = HttpMediaCache.start(dir, HttpMediaCache.DEFAULT_MAX_BYTES)) {
+            read(reopened, reopened.proxyUrl(base + "0.mp3"), 0, 0, "reopened", 0);
+            System.out.println(reopened.getStats());
+        }
+        // Room for not quite two tracks: playing the third evicts the least recently played
+        try (HttpMediaCache small = HttpMediaCache.start(dir, bodies[0].length * 7L / 4)) {
+            for (int t = 0; t < TRACKS; t++) read(small, small.proxyUrl(base + t + ".mp3"), t, 0, "small", Long.MAX_VALUE);
+            HttpMediaCache.Stats stats = small.getStats();
+            System.out.println(stats);
+            if (stats.getEvictions() == 0) fail("small cache: nothing evicted");
+            if (stats.getCachedBytes() > stats.getMaxBytes()) fail("small cache: holds " + stats.getCachedBytes() + " bytes");
+        }
+    }
+
+    /**
+     * Reads one track through the proxy from {@code from} to its end, prints the timings and
+     * checks the bytes, and that the origin was asked for at most {@code maxFromOrigin}.
+     */
+    private void read(HttpMediaCache cache, String url, int track, int from, String pass, long maxFromOrigin) {
+        byte[] expected = bodies[track];
+        long originBefore = cache.getStats().getBytesFromOrigin();
+        long start = System.nanoTime();
+        byte[] got = new byte[expected.length - from];
+        int at = 0;
+        long firstByte = 0;
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            if (from > 0) conn.setRequestProperty("Range", "bytes=" + from + "-");
+            try (InputStream in = conn.getInputStream()) {
+                while (at < got.length) {
+                    int n = in.read(got, at, got.length - at);
+                    if (n < 0) break;
+                    if (at == 0) firstByte = System.nanoTime();
+                    at += n;
+                }
+                if (in.read() >= 0) fail(track + " " + pass + ": more bytes than the track has");
+            } finally {
+                conn.disconnect();
+            }
+        } catch (IOException e) {
+            fail(track + " " + pass + ": " + e);
+            return;
+        }
+        long end = System.nanoTime();
+        long fromOrigin = cache.getStats().getBytesFromOrigin() - originBefore;
+        System.out.printf("%d\t%s\t%.1f\t%.1f\t%,d%n", track, pass, (firstByte - start) / 1e6, (end - start) / 1e6,
+                fromOrigin / 1024);
+        if (at != got.length) {
+            fail(track + " " + pass + ": got " + at + " of " + got.length + " bytes");
+        } else if (!Arrays.equals(got, 0, got.length, expected, from, expected.length)) {
+            fail(track + " " + pass + ": bytes differ from the origin's");
+        }
+        if (fromOrigin > maxFromOrigin) {
+            fail(track + " " + pass + ": took " + fromOrigin + " bytes from the origin, expected at most " + maxFromOrigin);
+        }
+    }
+
+    private void fail(String what) {
+        System.out.println("FAIL " + what);
+        failures++;
+    }
+
+    /** Serves /t<i>.mp3 with Range support, sending at most bytesPerSecond per request. */
+    private static HttpServer throttledOrigin(byte[][] bodies, long bytesPerSecond) throws IOException {
+        HttpServer origin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        origin.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "origin");
+            t.setDaemon(true);
+            return t;
+        }));
+        origin.createContext("/", ex -> {
+            try {
+                Matcher name = Pattern.compile("/t(\\d+)\\.mp3").matcher(ex.getRequestURI().getPath());
+                if (!name.matches() || Integer.parseInt(name.group(1)) >= bodies.length) {
+                    ex.sendResponseHeaders(404, -1);
+                    return;
+                }
+                byte[] body = bodies[Integer.parseInt(name.group(1))];
+                long from = 0;
+                long to = body.length - 1;
+                String range = ex.getRequestHeaders().getFirst("Range");
+                Matcher m = range == null ? null : RANGE.matcher(range);
+                ex.getResponseHeaders().set("Content-Type", "audio/mpeg");
+                ex.getResponseHeaders().set("ETag", "\"v1\"");
+                if (m != null && m.matches() && !m.group(1).isEmpty()) {
+                    from = Long.parseLong(m.group(1));
+                    if (!m.group(2).isEmpty()) to = Math.min(to, Long.parseLong(m.group(2)));
+                    ex.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + body.length);
+                    ex.sendResponseHeaders(206, "HEAD".equals(ex.getRequestMethod()) ? -1 : to - from + 1);
+                } else {
+                    ex.sendResponseHeaders(200, "HEAD".equals(ex.getRequestMethod()) ? -1 : body.length);
+                }
+                if ("HEAD".equals(ex.getRequestMethod())) return;
+                // A round trip, then the link's rate in 16 KB pieces
+                Thread.sleep(30);
+                int piece = 16 * 1024;
+                long pieceNanos = piece * 1_000_000_000L / bytesPerSecond;
+                try (OutputStream out = ex.getResponseBody()) {
+                    for (long at = from; at <= to; at += piece) {
+                        out.write(body, (int) at, (int) Math.min(piece, to + 1 - at));
+                        out.flush();
+                        Thread.sleep(pieceNanos / 1_000_000, (int) (pieceNanos % 1_000_000));
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // The proxy hung up
+            } finally {
+                ex.close();
+            }
+        });
+        origin.start();
+        return origin;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * LazySongList.java
+ * A read-only ObservableList for the song table that pulls rows from SQLite a page
+ * at a time, so the table can report hundreds of thousands of rows while only the
+ * pages around the viewport are held in memory.
+ *
+ * Pages load in the background through AsyncDB. Rows that are not loaded yet read
+ * as null (an empty table row) and are replaced once their page arrives.
+ */
+
+import javafx.collections.ObservableListBase;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class LazySongList extends ObservableListBase<MoodMusicPlayer.Song> {
+
+    static final int PAGE_SIZE = 200;
+    // Pages kept in memory; older pages are dropped as the viewport moves on
+    static final int MAX_CACHED_PAGES = 12;
+    private static final int UNKNOWN = -1;
+
+    private final AsyncDB async;
+    private final String mood;
+    private int size;
+
+    // afterId for the first row of each page, learned as pages load (4 bytes per page)
+    private int[] anchors;
+    private final Map<Integer, MoodMusicPlayer.Song[]> pages =
+            new LinkedHashMap<Integer, MoodMusicPlayer.Song[]>(MAX_CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, MoodMusicPlayer.Song[]> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+    private final Set<Integer> loading = new HashSet<>();
+    private int lastPage = -1;
+    // Bumped by update(); loads started before it are stale and dropped
+    private int generation;
+
+    /**
+     * @param mood mood to filter on, or null for the whole library
+     * @param size row count for the filter, from {@link MoodMusicPlayer.DBHelper#countSongs}
+     */
+    public LazySongList(AsyncDB async, String mood, int size) {
+        this.async = async;
+        this.mood = mood;
+        this.size = size;
+        this.anchors = new int[(size + PAGE_SIZE - 1) / PAGE_SIZE];
+        Arrays.fill(anchors, UNKNOWN);
+        if (anchors.length > 0) anchors[0] = 0;
+    }
+
+    @Override
+    public MoodMusicPlayer.Song get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        int page = index / PAGE_SIZE;
+        MoodMusicPlayer.Song[] rows = pages.get(page);
+        if (rows == null) requestPage(page);
+
+        // Read ahead in the direction the viewport is travelling
+        if (page != lastPage) {
+            int ahead = page > lastPage ? page + 1 : page - 1;
+            lastPage = page;
+            if (ahead >= 0 && ahead < anchors.length && !pages.containsKey(ahead)) {
+                requestPage(ahead);
+            }
+        }
+        return rows != null ? rows[index % PAGE_SIZE] : null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public String getMood() {
+        return mood;
+    }
+
+    /**
+     * Takes in songs added or removed since the count was taken, without starting over:
+     * pages that end before the first removed id keep their rows, later pages load again
+     * and the row count changes to the new one. Added songs always get higher ids, so
+     * they only ever show up at the end.
+     *
+     * @param newSize row count for the filter now
+     * @param firstRemovedId lowest id removed, or Integer.MAX_VALUE if none
+     */
+    public void update(int newSize, int firstRemovedId) {
+        // A page is unaffected if the row after it is known and comes before the first removal
+        int unaffected = 0;
+        while (unaffected + 1 < anchors.length && anchors[unaffected + 1] != UNKNOWN
+                && anchors[unaffected + 1] < firstRemovedId) {
+            unaffected++;
+        }
+        int keep = unaffected;
+        int oldSize = size;
+        int[] grown = new int[(newSize + PAGE_SIZE - 1) / PAGE_SIZE];
+        Arrays.fill(grown, UNKNOWN);
+        System.arraycopy(anchors, 0, grown, 0, Math.min(keep + 1, Math.min(anchors.length, grown.length)));
+        if (grown.length > 0) grown[0] = 0;
+        anchors = grown;
+        pages.keySet().removeIf(page -> page >= keep);
+        loading.clear();
+        generation++;
+        size = newSize;
+
+        int common = Math.min(oldSize, newSize);
+        int from = Math.min(keep * PAGE_SIZE, common);
+        beginChange();
+        if (from < common) {
+            nextReplace(from, common, Collections.nCopies(common - from, null));
+        }
+        if (newSize < oldSize) {
+            nextRemove(newSize, Collections.nCopies(oldSize - newSize, null));
+        }
+        if (newSize > oldSize) {
+            nextAdd(oldSize, newSize);
+        }
+        endChange();
+    }
+
+    private void requestPage(int page) {
+        if (!loading.add(page)) return;
+        int knownAnchor = anchors[page];
+        int requested = generation;
+        async.run(db -> {
+            // Jumped past any page we have seen: locate the start once by offset
+            int afterId = knownAnchor != UNKNOWN ? knownAnchor : db.findPageAnchor(mood, page * PAGE_SIZE);
+            return new PageLoad(afterId, db.getSongsPage(mood, afterId, PAGE_SIZE));
+        }, load -> {
+            if (requested == generation) pageLoaded(page, load);
+        }, err -> {
+            if (requested == generation) loading.remove(page);
+            err.printStackTrace();
+        });
+    }
+
+    private void pageLoaded(int page, PageLoad load) {
+        loading.remove(page);
+        anchors[page] = load.afterId;
+        // Rows deleted since the count was taken simply stay as empty rows
+        MoodMusicPlayer.Song[] rows = load.songs.toArray(new MoodMusicPlayer.Song[PAGE_SIZE]);
+        if (load.songs.size() == PAGE_SIZE && page + 1 < anchors.length) {
+            anchors[page + 1] = load.songs.get(PAGE_SIZE - 1).getId();
+        }
+        pages.put(page, rows);
+
+        int from = page * PAGE_SIZE;
+        int to = Math.min(from + PAGE_SIZE, size);
+        beginChange();
+        nextReplace(from, to, Collections.nCopies(to - from, null));
+        endChange();
+    }
+
+    private static final class PageLoad {
+        final int afterId;
+        final List<MoodMusicPlayer.Song> songs;
+
+        PageLoad(int afterId, List<MoodMusicPlayer.Song> songs) {
+            this.afterId = afterId;
+            this.songs = songs;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * LibraryScanner.java
+ * Walks library folders in parallel and brings the songs table in line with
+ * what is on disk: new audio files become songs, changed ones get their new
+ * size and mtime, moved or renamed ones get their new path, and songs whose
+ * file is gone are removed. Files are compared by size and mtime with what the
+ * previous scan stored, so rescanning an unchanged library reads directories
+ * but writes nothing.
+ *
+ * No JavaFX here: progress goes to a plain listener.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LibraryScanner {
+
+    /** Extensions picked up by a scan; the same ones the Add Song dialog offers. */
+    public static final List<String> EXTENSIONS = Arrays.asList(".mp3", ".wav", ".m4a", ".aif", ".aiff");
+    // For files whose tags lack them: the file name stands in for the title
+    static final String DEFAULT_ARTIST = "Unknown Artist";
+    static final String DEFAULT_MOOD = "Calm";
+
+    // Rows per write transaction
+    private static final int BATCH_SIZE = 1000;
+    // Walkers block once this many results wait for the writer, so memory stays flat on a slow disk
+    private static final int QUEUE_CAPACITY = BATCH_SIZE * 4;
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /** Receives progress on the scanning thread; hand it to the UI thread if needed. */
+    public interface Listener {
+        void progress(Progress progress);
+    }
+
+    /**
+     * Held while a scan or a watcher batch diffs folders against the songs table, so a file
+     * seen by both is only ever added once.
+     */
+    static final Object LIBRARY_LOCK = new Object();
+
+    private final MoodMusicPlayer.DBHelper db;
+    private final int parallelism;
+    // Tag readers keep a buffer between files, so each walker thread gets its own
+    private final ThreadLocal<TagReader> tagReaders = ThreadLocal.withInitial(TagReader::new);
+    private volatile boolean cancelled;
+
+    public LibraryScanner(MoodMusicPlayer.DBHelper db) {
+        this(db, Runtime.getRuntime().availableProcessors());
+    }
+
+    public LibraryScanner(MoodMusicPlayer.DBHelper db, int parallelism) {
+        this.db = db;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /** Stops the scan at the next file. Batches already written stay; nothing is removed. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    static boolean isAudioFile(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (String ext : EXTENSIONS) {
+            if (lower.endsWith(ext)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Scans the given folders and blocks until the database matches them or the scan is
+     * cancelled. Songs are removed only after a complete walk, and never under a folder
+     * that could not be read (an unmounted drive is not an empty one).
+     */
+    public Progress scan(List<String> roots, Listener listener) throws SQLException, InterruptedException {
+        synchronized (LIBRARY_LOCK) {
+            return scanLocked(roots, listener);
+        }
+    }
+
+    private Progress scanLocked(List<String> roots, Listener listener) throws SQLException, InterruptedException {
+        long start = System.nanoTime();
+        Scan scan = new Scan();
+        List<Path> walkRoots = normalizeRoots(roots);
+        for (Path root : walkRoots) {
+            scan.known.putAll(db.getKnownFiles(root.toString()));
+        }
+        // A new file that looks like a stored one may be that song moved, which only shows once the walk is done
+        Set<String> knownKeys = new HashSet<>();
+        for (MoodMusicPlayer.DBHelper.FileRecord f : scan.known.values()) {
+            String key = moveKey(f);
+            if (key != null) knownKeys.add(key);
+        }
+        List<MoodMusicPlayer.DBHelper.FileRecord> maybeMoved = new ArrayList<>();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<?>> walks = new ArrayList<>();
+            for (Path root : walkRoots) {
+                if (Files.isDirectory(root)) {
+                    walks.add(pool.submit(new DirectoryTask(scan, root)));
+                } else {
+                    scan.unreadable.add(root.toString());
+                }
+            }
+
+            List<MoodMusicPlayer.DBHelper.FileRecord> added = new ArrayList<>();
+            List<MoodMusicPlayer.DBHelper.FileRecord> changed = new ArrayList<>();
+            long lastReport = 0;
+            while (!allDone(walks) || !scan.results.isEmpty()) {
+                Result r = scan.results.poll(50, TimeUnit.MILLISECONDS);
+                if (r != null) {
+                    if (!r.isNew) {
+                        changed.add(r.file);
+                    } else if (knownKeys.contains(moveKey(r.file))) {
+                        maybeMoved.add(r.file);
+                    } else {
+                        added.add(r.file);
+                    }
+                }
+                // Write when a batch is full, or when the walkers have gone quiet
+                if (added.size() + changed.size() >= BATCH_SIZE || r == null && !(added.isEmpty() && changed.isEmpty())) {
+                    flush(scan, added, changed, new ArrayList<>(), new ArrayList<>());
+                }
+                if (cancelled) break;
+                long now = System.nanoTime();
+                if (now - lastReport >= PROGRESS_INTERVAL_NANOS) {
+                    listener.progress(scan.progress(now - start, false));
+                    lastReport = now;
+                }
+            }
+            if (cancelled) {
+                pool.shutdownNow();
+                // Results still queued are dropped, as are files that may be moves; the next scan finds them again
+                scan.results.clear();
+                maybeMoved.clear();
+            }
+            flush(scan, added, changed, new ArrayList<>(), new ArrayList<>());
+
+            // Whatever is left in known was not found on disk, unless it turns up under a new path;
+            // after a cancelled or partial walk nothing counts as gone
+            List<MoodMusicPlayer.DBHelper.FileRecord> gone = new ArrayList<>();
+            List<MoodMusicPlayer.DBHelper.FileRecord> moved = new ArrayList<>();
+            if (!cancelled && completedNormally(walks)) {
+                for (MoodMusicPlayer.DBHelper.FileRecord f : scan.known.values()) {
+                    if (!underUnreadable(scan, f.getPath())) gone.add(f);
+                }
+                moved = pairMoves(gone, maybeMoved);
+            }
+            // Held-back files that did not pair with a gone song are new after all
+            for (int i = 0; i < maybeMoved.size(); i += BATCH_SIZE) {
+                added.addAll(maybeMoved.subList(i, Math.min(i + BATCH_SIZE, maybeMoved.size())));
+                flush(scan, added, changed, new ArrayList<>(), new ArrayList<>());
+            }
+            for (int i = 0; i < moved.size(); i += BATCH_SIZE) {
+                flush(scan, added, changed, new ArrayList<>(moved.subList(i, Math.min(i + BATCH_SIZE, moved.size()))),
+                        new ArrayList<>());
+            }
+            List<Integer> removed = new ArrayList<>();
+            for (MoodMusicPlayer.DBHelper.FileRecord f : gone) {
+                removed.add(f.getId());
+                if (removed.size() == BATCH_SIZE) flush(scan, added, changed, new ArrayList<>(), removed);
+            }
+            flush(scan, added, changed, new ArrayList<>(), removed);
+        } finally {
+            pool.shutdownNow();
+        }
+        Progress done = scan.progress(System.nanoTime() - start, true);
+        listener.progress(done);
+        return done;
+    }
+
+    private void flush(Scan scan, List<MoodMusicPlayer.DBHelper.FileRecord> added,
+                       List<MoodMusicPlayer.DBHelper.FileRecord> changed, List<MoodMusicPlayer.DBHelper.FileRecord> moved,
+                       List<Integer> removed) throws SQLException {
+        if (added.isEmpty() && changed.isEmpty() && moved.isEmpty() && removed.isEmpty()) return;
+        // Duplicates merged away earlier are skipped, so count what was actually inserted
+        scan.added.addAndGet(db.applyScan(added, changed, moved, removed));
+        scan.changed.addAndGet(changed.size());
+        scan.moved.addAndGet(moved.size());
+        scan.removed.addAndGet(removed.size());
+        added.clear();
+        changed.clear();
+        moved.clear();
+        removed.clear();
+    }
+
+    /**
+     * Pairs songs whose file is gone with new files of the same size and mtime, which a
+     * rename or move keeps, and takes the pairs out of both collections. Each pair comes
+     * back as the old song's id with the new path, to be written as a move so the song
+     * keeps its playlists, play history and edits. A size and mtime shared by more than
+     * one file on either side is ambiguous and left alone: those stay an add and a remove.
+     */
+    static List<MoodMusicPlayer.DBHelper.FileRecord> pairMoves(Collection<MoodMusicPlayer.DBHelper.FileRecord> gone,
+                                                              Collection<MoodMusicPlayer.DBHelper.FileRecord> found) {
+        List<MoodMusicPlayer.DBHelper.FileRecord> moved = new ArrayList<>();
+        if (gone.isEmpty() || found.isEmpty()) return moved;
+        Map<String, MoodMusicPlayer.DBHelper.FileRecord> goneByKey = uniqueByKey(gone);
+        Map<String, MoodMusicPlayer.DBHelper.FileRecord> foundByKey = uniqueByKey(found);
+        Set<MoodMusicPlayer.DBHelper.FileRecord> paired = new HashSet<>();
+        for (Map.Entry<String, MoodMusicPlayer.DBHelper.FileRecord> e : foundByKey.entrySet()) {
+            MoodMusicPlayer.DBHelper.FileRecord old = goneByKey.get(e.getKey());
+            MoodMusicPlayer.DBHelper.FileRecord now = e.getValue();
+            if (old == null || now == null) continue;
+            moved.add(new MoodMusicPlayer.DBHelper.FileRecord(
+                    old.getId(), now.getPath(), now.getSize(), now.getMtime(), null, null, null, now.getDurationMs()));
+            paired.add(old);
+            paired.add(now);
+        }
+        gone.removeIf(paired::contains);
+        found.removeIf(paired::contains);
+        return moved;
+    }
+
+    /** Records by size and mtime, with null for a key more than one record has. */
+    private static Map<String, MoodMusicPlayer.DBHelper.FileRecord> uniqueByKey(
+            Collection<MoodMusicPlayer.DBHelper.FileRecord> records) {
+        Map<String, MoodMusicPlayer.DBHelper.FileRecord> byKey = new HashMap<>();
+        for (MoodMusicPlayer.DBHelper.FileRecord f : records) {
+            String key = moveKey(f);
+            if (key == null) continue;
+            if (byKey.containsKey(key)) {
+                byKey.put(key, null);
+            } else {
+                byKey.put(key, f);
+            }
+        }
+        return byKey;
+    }
+
+    /** What a move keeps of a file; null for songs added by hand, which have no size or mtime. */
+    private static String moveKey(MoodMusicPlayer.DBHelper.FileRecord f) {
+        return f.getSize() < 0 || f.getMtime() < 0 ? null : f.getSize() + ":" + f.getMtime();
+    }
+
+    private static boolean allDone(List<ForkJoinTask<?>> walks) {
+        for (ForkJoinTask<?> w : walks) {
+            if (!w.isDone()) return false;
+        }
+        return true;
+    }
+
+    private static boolean completedNormally(List<ForkJoinTask<?>> walks) {
+        for (ForkJoinTask<?> w : walks) {
+            if (w.isCompletedAbnormally()) return false;
+        }
+        return true;
+    }
+
+    /** Absolute, normalized roots with any folder inside another root dropped, so no file is walked twice. */
+    static List<Path> normalizeRoots(List<String> roots) {
+        List<Path> sorted = new ArrayList<>();
+        for (String r : roots) sorted.add(Paths.get(r).toAbsolutePath().normalize());
+        sorted.sort(null);
+        List<Path> out = new ArrayList<>();
+        for (Path p : sorted) {
+            if (out.isEmpty() || !p.startsWith(out.get(out.size() - 1))) out.add(p);
+        }
+        return out;
+    }
+
+    private static boolean underUnreadable(Scan scan, String path) {
+        for (String dir : scan.unreadable) {
+            if (path.startsWith(dir.endsWith(File.separator) ? dir : dir + File.separator)) return true;
+        }
+        return false;
+    }
+
+    /** State shared by the walkers and the writer for one scan. */
+    private static final class Scan {
+        // Files stored by earlier scans; walkers remove what they find, the rest is gone from disk
+        final Map<String, MoodMusicPlayer.DBHelper.FileRecord> known = new ConcurrentHashMap<>();
+        final BlockingQueue<Result> results = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final ConcurrentLinkedQueue<String> unreadable = new ConcurrentLinkedQueue<>();
+        final AtomicLong seen = new AtomicLong();
+        final AtomicLong added = new AtomicLong();
+        final AtomicLong changed = new AtomicLong();
+        final AtomicLong moved = new AtomicLong();
+        final AtomicLong removed = new AtomicLong();
+
+        Progress progress(long elapsedNanos, boolean finished) {
+            return new Progress(seen.get(), added.get(), changed.get(), moved.get(), removed.get(), unreadable.size(),
+                    elapsedNanos, finished);
+        }
+    }
+
+    private static final class Result {
+        final MoodMusicPlayer.DBHelper.FileRecord file;
+        final boolean isNew;
+
+        Result(MoodMusicPlayer.DBHelper.FileRecord file, boolean isNew) {
+            this.file = file;
+            this.isNew = isNew;
+        }
+    }
+
+    /** Lists one directory, reports its audio files and forks a task per subdirectory. */
+    private final class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Scan scan;
+        private final Path dir;
+
+        DirectoryTask(Scan scan, Path dir) {
+            this.scan = scan;
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (cancelled) return;
+                    // Symlinks are not followed, which also rules out cycles
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        subdirs.add(new DirectoryTask(scan, entry));
+                    } else if (attrs.isRegularFile() && isAudioFile(entry.getFileName().toString())) {
+                        visitFile(entry, attrs);
+                    }
+                }
+            } catch (IOException e) {
+                // Keep the songs under it; the folder may just be unavailable right now
+                scan.unreadable.add(dir.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            invokeAll(subdirs);
+        }
+
+        private void visitFile(Path file, BasicFileAttributes attrs) throws InterruptedException {
+            scan.seen.incrementAndGet();
+            MoodMusicPlayer.DBHelper.FileRecord old = scan.known.remove(file.toString());
+            MoodMusicPlayer.DBHelper.FileRecord record = recordFor(file, attrs, old, tagReaders.get());
+            if (record != null) {
+                scan.results.put(new Result(record, old == null));
+            }
+        }
+    }
+
+    /**
+     * The row to write for a file found on disk, or null if it matches what was stored.
+     * A new file gets its title and artist from its tags (or its name); a changed one only
+     * gets a fresh duration, since title and artist may have been edited in the app.
+     */
+    static MoodMusicPlayer.DBHelper.FileRecord recordFor(Path file, BasicFileAttributes attrs,
+                                                          MoodMusicPlayer.DBHelper.FileRecord old, TagReader reader) {
+        String path = file.toString();
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        if (old == null) {
+            TagReader.Tags tags = readTags(reader, file);
+            String title = tags.getTitle();
+            if (title == null) {
+                String name = file.getFileName().toString();
+                title = name.substring(0, name.lastIndexOf('.'));
+            }
+            String artist = tags.getArtist() != null ? tags.getArtist() : DEFAULT_ARTIST;
+            return new MoodMusicPlayer.DBHelper.FileRecord(
+                    0, path, size, mtime, title, artist, DEFAULT_MOOD, tags.getDurationMs());
+        }
+        if (old.getSize() != size || old.getMtime() != mtime) {
+            return new MoodMusicPlayer.DBHelper.FileRecord(
+                    old.getId(), path, size, mtime, null, null, null, readTags(reader, file).getDurationMs());
+        }
+        return null;
+    }
+
+    /** Tags of a file, or empty tags if it cannot be read; a bad header must not stop the scan. */
+    private static TagReader.Tags readTags(TagReader reader, Path file) {
+        try {
+            return reader.read(file);
+        } catch (IOException | RuntimeException e) {
+            return new TagReader.Tags();
+        }
+    }
+
+    /** Counters for a scan in progress or finished. */
+    public static final class Progress {
+        private final long filesSeen;
+        private final long added;
+        private final long changed;
+        private final long moved;
+        private final long removed;
+        private final int unreadableFolders;
+        private final long elapsedNanos;
+        private final boolean finished;
+
+        Progress(long filesSeen, long added, long changed, long moved, long removed, int unreadableFolders,
+                 long elapsedNanos, boolean finished) {
+            this.filesSeen = filesSeen;
+            this.added = added;
+            this.changed = changed;
+            this.moved = moved;
+            this.removed = removed;
+            this.unreadableFolders = unreadableFolders;
+            this.elapsedNanos = elapsedNanos;
+            this.finished = finished;
+        }
+
+        public long getFilesSeen() { return filesSeen; }
+        public long getAdded() { return added; }
+        public long getChanged() { return changed; }
+        public long getMoved() { return moved; }
+        public long getRemoved() { return removed; }
+        public int getUnreadableFolders() { return unreadableFolders; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        public boolean isFinished() { return finished; }
+
+        public double getFilesPerSecond() {
+            return elapsedNanos == 0 ? 0 : filesSeen * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            String s = String.format("%,d files (%,.0f/s): %,d added, %,d changed, %,d moved, %,d removed",
+                    filesSeen, getFilesPerSecond(), added, changed, moved, removed);
+            return unreadableFolders == 0 ? s : s + String.format(", %d unreadable folders", unreadableFolders);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * LibraryWatcher.java
+ * Keeps the songs table in step with the library folders while the app runs.
+ * Every folder under a library root is registered with a WatchService; events
+ * are collected until the folders have been quiet for a moment, so a large copy
+ * lands as one batch, and only the folders they touched are compared with the
+ * database. The batch is written in a single transaction. A file that left one
+ * place and turned up in another within the batch is a move, and keeps its song.
+ *
+ * When the OS drops events (OVERFLOW) only the folder that overflowed is read
+ * again, along with any subfolder that appeared unnoticed, rather than the
+ * whole library.
+ *
+ * No JavaFX here: changes go to a plain listener on the watcher thread.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class LibraryWatcher implements Closeable {
+
+    // A batch is written once no event has arrived for this long...
+    private static final long QUIET_MILLIS = 500;
+    // ...or after this long, so a copy that runs for minutes still shows up as it goes
+    private static final long MAX_BATCH_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /** Receives each batch after it is written, on the watcher thread. */
+    public interface Listener {
+        void libraryChanged(Change change);
+    }
+
+    private final MoodMusicPlayer.DBHelper db;
+    private final Listener listener;
+    private final WatchService service;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final Set<Path> watched = ConcurrentHashMap.newKeySet();
+    // Only the watcher thread reads tags, so one reader and its buffer do
+    private final TagReader tagReader = new TagReader();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public LibraryWatcher(MoodMusicPlayer.DBHelper db, Listener listener) throws IOException {
+        this.db = db;
+        this.listener = listener;
+        this.service = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this::run, "library-watcher");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Starts watching a library root and every folder under it. Walks the tree, so call it
+     * off the UI thread. A folder that cannot be registered (for instance once the OS limit
+     * on watches is reached) is skipped; the next rescan still picks up its changes.
+     */
+    public void watch(Path root) throws IOException {
+        Path start = root.toAbsolutePath().normalize();
+        if (!Files.isDirectory(start)) return;
+        int failed = registerTree(start);
+        if (failed > 0) {
+            System.err.println("Library watcher: " + failed + " folders under " + start + " could not be watched");
+        }
+    }
+
+    public int getWatchedFolders() {
+        return keys.size();
+    }
+
+    /** Stops the watcher thread. Events not yet written are dropped; the next scan finds them. */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        service.close();
+    }
+
+    private int registerTree(Path start) throws IOException {
+        int[] failed = {0};
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!register(dir)) failed[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return failed[0];
+    }
+
+    private boolean register(Path dir) {
+        try {
+            keys.put(dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+            watched.add(dir);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** How much of a touched folder a batch has to compare; a later event can only widen it. */
+    private enum Depth {
+        // Files directly in the folder
+        FILES,
+        // The folder after an overflow: its files, plus any subfolder we were not yet watching
+        OVERFLOW,
+        // The folder and everything below it, for a folder that just appeared
+        TREE
+    }
+
+    private void run() {
+        Map<Path, Depth> pending = new LinkedHashMap<>();
+        Set<Path> deleted = new HashSet<>();
+        long batchStart = 0;
+        try {
+            while (running) {
+                WatchKey key = pending.isEmpty() && deleted.isEmpty()
+                        ? service.take()
+                        : service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    if (pending.isEmpty() && deleted.isEmpty()) batchStart = System.nanoTime();
+                    collect(key, pending, deleted);
+                    if (System.nanoTime() - batchStart < MAX_BATCH_NANOS) continue;
+                }
+                if (pending.isEmpty() && deleted.isEmpty()) continue;
+                try {
+                    Change change = apply(pending, deleted);
+                    if (!change.isEmpty()) listener.libraryChanged(change);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                pending.clear();
+                deleted.clear();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // close() was called
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void collect(WatchKey key, Map<Path, Depth> pending, Set<Path> deleted) {
+        Path dir = keys.get(key);
+        if (dir != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                WatchEvent.Kind<?> kind = event.kind();
+                if (kind == StandardWatchEventKinds.OVERFLOW) {
+                    // Events for this folder were lost, but its watched subfolders still have their own
+                    widen(pending, dir, Depth.OVERFLOW);
+                    continue;
+                }
+                Path child = dir.resolve((Path) event.context());
+                if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                    // May have been a file or a whole folder; can't tell once it is gone
+                    deleted.add(child);
+                    widen(pending, dir, Depth.FILES);
+                } else if (kind == StandardWatchEventKinds.ENTRY_CREATE
+                        && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    // A folder copied or moved in: watch it before reading it, so nothing slips between
+                    try {
+                        registerTree(child);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    widen(pending, child, Depth.TREE);
+                } else if (LibraryScanner.isAudioFile(child.getFileName().toString())) {
+                    widen(pending, dir, Depth.FILES);
+                }
+            }
+        }
+        if (!key.reset()) {
+            // The folder itself is gone or unmounted
+            keys.remove(key);
+            if (dir != null) watched.remove(dir);
+        }
+    }
+
+    private static void widen(Map<Path, Depth> pending, Path dir, Depth depth) {
+        pending.merge(dir, depth, (a, b) -> a.compareTo(b) >= 0 ? a : b);
+    }
+
+    /** Compares the touched folders with the database and writes the differences in one transaction. */
+    private Change apply(Map<Path, Depth> pending, Set<Path> deleted) throws SQLException {
+        Map<String, MoodMusicPlayer.DBHelper.FileRecord> added = new LinkedHashMap<>();
+        Map<String, MoodMusicPlayer.DBHelper.FileRecord> changed = new LinkedHashMap<>();
+        TreeMap<Integer, MoodMusicPlayer.DBHelper.FileRecord> removed = new TreeMap<>();
+        List<MoodMusicPlayer.DBHelper.FileRecord> moved;
+        int inserted;
+
+        synchronized (LibraryScanner.LIBRARY_LOCK) {
+            for (Path child : deleted) {
+                // A deleted folder takes everything below it; a deleted file is caught by its folder's diff
+                if (Files.notExists(child, LinkOption.NOFOLLOW_LINKS)) {
+                    for (MoodMusicPlayer.DBHelper.FileRecord f : db.getKnownFiles(child.toString()).values()) {
+                        removed.put(f.getId(), f);
+                    }
+                }
+            }
+            for (Map.Entry<Path, Depth> e : pending.entrySet()) {
+                Path dir = e.getKey();
+                if (insideNewTree(dir, pending) || !Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) continue;
+                try {
+                    diff(dir, e.getValue(), added, changed, removed);
+                } catch (IOException ex) {
+                    // Gone or unreadable mid-batch; leave its songs alone
+                    System.err.println("Library watcher: could not read " + dir + ": " + ex.getMessage());
+                }
+            }
+            // A rename or move shows up as a removal and an addition of the same file
+            moved = LibraryScanner.pairMoves(removed.values(), added.values());
+            inserted = db.applyScan(new ArrayList<>(added.values()), new ArrayList<>(changed.values()), moved,
+                    new ArrayList<>(removed.keySet()));
+        }
+        int firstTouched = removed.isEmpty() ? Integer.MAX_VALUE : removed.firstKey();
+        for (MoodMusicPlayer.DBHelper.FileRecord f : moved) firstTouched = Math.min(firstTouched, f.getId());
+        return new Change(inserted, changed.size(), moved.size(), removed.size(), firstTouched);
+    }
+
+    /** True if a folder above this one is read in full anyway. */
+    private static boolean insideNewTree(Path dir, Map<Path, Depth> pending) {
+        for (Path p = dir.getParent(); p != null; p = p.getParent()) {
+            if (pending.get(p) == Depth.TREE) return true;
+        }
+        return false;
+    }
+
+    /** Diffs one folder, to the given depth, against the songs stored under it. */
+    private void diff(Path dir, Depth depth, Map<String, MoodMusicPlayer.DBHelper.FileRecord> added,
+                      Map<String, MoodMusicPlayer.DBHelper.FileRecord> changed,
+                      Map<Integer, MoodMusicPlayer.DBHelper.FileRecord> removed) throws IOException, SQLException {
+        Map<String, MoodMusicPlayer.DBHelper.FileRecord> known = db.getKnownFiles(dir.toString());
+        if (depth == Depth.FILES) {
+            // The stored rows come back for the whole subtree; keep the folder's own files
+            for (Iterator<MoodMusicPlayer.DBHelper.FileRecord> it = known.values().iterator(); it.hasNext(); ) {
+                if (!dir.equals(Paths.get(it.next().getPath()).getParent())) it.remove();
+            }
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (!LibraryScanner.isAudioFile(entry.getFileName().toString())) continue;
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        // Deleted between the listing and now
+                        continue;
+                    }
+                    if (attrs.isRegularFile()) visit(entry, attrs, known, added, changed);
+                }
+            }
+        } else {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path sub, BasicFileAttributes attrs) {
+                    if (depth == Depth.OVERFLOW && !sub.equals(dir)) {
+                        if (watched.contains(sub)) {
+                            // Still watched, so its own events cover it
+                            forget(known, sub);
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        // Created while events were being dropped
+                        register(sub);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && LibraryScanner.isAudioFile(file.getFileName().toString())) {
+                        visit(file, attrs, known, added, changed);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Keep what is stored under a folder we could not read
+                    forget(known, file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        // Whatever is left was not found on disk
+        for (MoodMusicPlayer.DBHelper.FileRecord f : known.values()) {
+            removed.put(f.getId(), f);
+        }
+    }
+
+    private static void forget(Map<String, MoodMusicPlayer.DBHelper.FileRecord> known, Path dir) {
+        String path = dir.toString();
+        String prefix = path + File.separator;
+        known.keySet().removeIf(p -> p.equals(path) || p.startsWith(prefix));
+    }
+
+    private void visit(Path file, BasicFileAttributes attrs, Map<String, MoodMusicPlayer.DBHelper.FileRecord> known,
+                       Map<String, MoodMusicPlayer.DBHelper.FileRecord> added,
+                       Map<String, MoodMusicPlayer.DBHelper.FileRecord> changed) {
+        MoodMusicPlayer.DBHelper.FileRecord old = known.remove(file.toString());
+        MoodMusicPlayer.DBHelper.FileRecord record = LibraryScanner.recordFor(file, attrs, old, tagReader);
+        if (record != null) {
+            (old == null ? added : changed).put(record.getPath(), record);
+        }
+    }
+
+    /** What one batch wrote. */
+    public static final class Change {
+        private final int added;
+        private final int changed;
+        private final int moved;
+        private final int removed;
+        private final int firstRemovedId;
+
+        Change(int added, int changed, int moved, int removed, int firstRemovedId) {
+            this.added = added;
+            this.changed = changed;
+            this.moved = moved;
+            this.removed = removed;
+            this.firstRemovedId = firstRemovedId;
+        }
+
+        public int getAdded() { return added; }
+        public int getChanged() { return changed; }
+        public int getMoved() { return moved; }
+        public int getRemoved() { return removed; }
+
+        /**
+         * Lowest song id this batch removed or gave a new path, or Integer.MAX_VALUE if none.
+         * New songs always get ids above every existing one, so rows before this id are as shown.
+         */
+        public int getFirstRemovedId() { return firstRemovedId; }
+
+        public boolean isEmpty() {
+            return added == 0 && changed == 0 && moved == 0 && removed == 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d added, %,d changed, %,d moved, %,d removed", added, changed, moved, removed);
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * MoodAnalyzer.java
+ * Suggests a mood for a song from its audio. Files are decoded to PCM with
+ * javax.sound.sampled (WAV, AIFF and AU out of the box), mixed down to mono and
+ * measured as they stream in: RMS energy, zero-crossing rate, spectral centroid
+ * from an FFT of overlapping Hann-windowed frames, and tempo from the
+ * autocorrelation of the spectral-flux onset envelope.
+ *
+ * The measurements are stored per song in song_features, so suggestions can be
+ * made again (say after the mood prototypes are tuned) without decoding anything.
+ * Files are analysed in parallel; each thread owns one set of preallocated buffers.
+ *
+ * No JavaFX here: progress goes to a plain listener.
+ */
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public class MoodAnalyzer {
+
+    /** Extensions javax.sound.sampled decodes without extra providers. */
+    public static final List<String> EXTENSIONS = Arrays.asList(".wav", ".aif", ".aiff", ".au");
+
+    // Samples per FFT frame and between frame starts (75% overlap)
+    static final int FRAME = 2048;
+    static final int HOP = 512;
+    // Length of the onset envelope; analysis stops there (about five minutes at 48 kHz)
+    private static final int MAX_HOPS = 28_125;
+    private static final int READ_BUFFER = 64 * 1024;
+    // Compresses magnitudes before taking the flux, so quiet onsets still count
+    private static final float FLUX_GAIN = 100f;
+    private static final double MIN_BPM = 60;
+    private static final double MAX_BPM = 200;
+    // Weighted autocorrelation at the beat lag, relative to the envelope's variance, below which there is no beat
+    private static final double MIN_BEAT_CORRELATION = 0.1;
+    // Songs decoded before their features are written; decoding is slow, so fewer than the hasher's
+    private static final int BATCH_SIZE = 200;
+
+    // A rough centre per mood: tempo (BPM), loudness (dBFS), brightness (log2 of the
+    // centroid in Hz) and zero-crossing rate, with the spread that counts as one step
+    private static final String[] PROTOTYPE_MOODS = {"Energetic", "Happy", "Focus", "Calm", "Sad"};
+    private static final double[][] PROTOTYPES = {
+        {140, -10, log2(3000), 0.10},
+        {118, -13, log2(2400), 0.08},
+        {100, -19, log2(1500), 0.05},
+        {80, -25, log2(1000), 0.03},
+        {70, -20, log2(800), 0.03},
+    };
+    private static final double[] SCALES = {20, 6, 0.75, 0.03};
+    /** The moods suggestions are drawn from. */
+    static final List<String> MOODS = Arrays.asList(PROTOTYPE_MOODS);
+
+    /** Told how analysis is going, on the thread that called analyzePending(). */
+    public interface Listener {
+        void progress(Progress progress);
+    }
+
+    private final MoodMusicPlayer.DBHelper db;
+    private final int threads;
+    private final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+    private volatile boolean cancelled;
+
+    public MoodAnalyzer(MoodMusicPlayer.DBHelper db) {
+        this(db, Runtime.getRuntime().availableProcessors());
+    }
+
+    public MoodAnalyzer(MoodMusicPlayer.DBHelper db, int threads) {
+        this.db = db;
+        this.threads = Math.max(1, threads);
+    }
+
+    /** Stops after the files in progress. Features already stored stay. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public static boolean canAnalyze(String path) {
+        String lower = path.toLowerCase(Locale.ROOT);
+        for (String ext : EXTENSIONS) {
+            if (lower.endsWith(ext)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Analyses every song whose file has no stored features yet and blocks until done or
+     * cancelled. A file that cannot be decoded is recorded as such and not tried again
+     * until it changes; one that cannot be opened is tried again next time.
+     */
+    public Progress analyzePending(Listener listener) throws SQLException, InterruptedException {
+        AnalysisRun run = new AnalysisRun(listener);
+        BackgroundBatches.run(run, "mood-analyzer", threads, BATCH_SIZE, this::isCancelled);
+        return run.last;
+    }
+
+    /** Features of one file; for the Add Song dialog, which has no song id yet. */
+    public static MoodMusicPlayer.DBHelper.AudioFeatures analyze(Path file) throws IOException, UnsupportedAudioFileException {
+        return analyze(file, new Workspace());
+    }
+
+    /**
+     * The mood whose prototype lies nearest to the features. The prototypes are coarse:
+     * a suggestion to confirm, not a verdict.
+     */
+    public static String suggestMood(MoodMusicPlayer.DBHelper.AudioFeatures f) {
+        double[] x = {
+            f.getTempoBpm(),
+            20 * Math.log10(Math.max(f.getRms(), 1e-6)),
+            log2(Math.max(f.getCentroidHz(), 1)),
+            f.getZeroCrossingRate()
+        };
+        String best = null;
+        double bestDistance = Double.MAX_VALUE;
+        for (int m = 0; m < PROTOTYPES.length; m++) {
+            double d = 0;
+            for (int i = 0; i < x.length; i++) {
+                // No tempo found (too short or no clear beat): judge on the rest
+                if (i == 0 && x[0] <= 0) continue;
+                double step = (x[i] - PROTOTYPES[m][i]) / SCALES[i];
+                d += step * step;
+            }
+            if (d < bestDistance) {
+                bestDistance = d;
+                best = PROTOTYPE_MOODS[m];
+            }
+        }
+        return best;
+    }
+
+    /** Features at the centre of a mood's prototype, or null for a mood without one. */
+    static MoodMusicPlayer.DBHelper.AudioFeatures prototype(String mood) {
+        for (int m = 0; m < PROTOTYPE_MOODS.length; m++) {
+            if (PROTOTYPE_MOODS[m].equalsIgnoreCase(mood)) {
+                double[] p = PROTOTYPES[m];
+                return new MoodMusicPlayer.DBHelper.AudioFeatures(Math.pow(10, p[1] / 20), Math.pow(2, p[2]), p[3], p[0], 0);
+            }
+        }
+        return null;
+    }
+
+    private static MoodMusicPlayer.DBHelper.AudioFeatures analyze(Path file, Workspace w)
+            throws IOException, UnsupportedAudioFileException {
+        try (AudioInputStream in = openPcm(file)) {
+            return w.analyze(in);
+        }
+    }
+
+    /**
+     * Opens the file as a PCM stream that {@link #sample} can read: 8 to 32-bit integer or
+     * 32-bit float, converted only when it is something else. The caller closes it.
+     */
+    static AudioInputStream openPcm(Path file) throws IOException, UnsupportedAudioFileException {
+        InputStream raw = new BufferedInputStream(Files.newInputStream(file), READ_BUFFER);
+        try {
+            return pcm(AudioSystem.getAudioInputStream(raw));
+        } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /** One sample at {@code off} scaled to -1..1. */
+    static float sample(byte[] b, int off, int bytes, boolean bigEndian, boolean unsigned, boolean isFloat) {
+        int v = 0;
+        for (int i = 0; i < bytes; i++) {
+            int by = b[off + (bigEndian ? i : bytes - 1 - i)] & 0xff;
+            v = v << 8 | by;
+        }
+        if (isFloat) return Float.intBitsToFloat(v);
+        int shift = 32 - bytes * 8;
+        if (unsigned) {
+            // Offset binary: flip the top bit to make it two's complement
+            v ^= 1 << (bytes * 8 - 1);
+        }
+        // Sign-extend, then scale to -1..1
+        v = v << shift >> shift;
+        return v / (float) (1L << (bytes * 8 - 1));
+    }
+
+    /** The stream as PCM the workspace decodes itself, converting only if it is something else. */
+    private static AudioInputStream pcm(AudioInputStream in) throws UnsupportedAudioFileException {
+        AudioFormat f = in.getFormat();
+        AudioFormat.Encoding enc = f.getEncoding();
+        int bits = f.getSampleSizeInBits();
+        boolean direct = (enc.equals(AudioFormat.Encoding.PCM_SIGNED) || enc.equals(AudioFormat.Encoding.PCM_UNSIGNED))
+                && (bits == 8 || bits == 16 || bits == 24 || bits == 32)
+                || enc.equals(AudioFormat.Encoding.PCM_FLOAT) && bits == 32;
+        if (direct && f.getFrameSize() == bits / 8 * f.getChannels()) return in;
+        AudioFormat target = new AudioFormat(f.getSampleRate(), 16, f.getChannels(), true, false);
+        try {
+            return AudioSystem.getAudioInputStream(target, in);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedAudioFileException("No PCM decoder for " + f);
+        }
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    /** Buffers for analysing one file at a time, allocated once per thread. */
+    private static final class Workspace {
+        final byte[] bytes = new byte[READ_BUFFER];
+        final float[] frame = new float[FRAME];
+        final float[] re = new float[FRAME];
+        final float[] im = new float[FRAME];
+        final float[] window = new float[FRAME];
+        final float[] cos = new float[FRAME / 2];
+        final float[] sin = new float[FRAME / 2];
+        final int[] reversed = new int[FRAME];
+        // Log-compressed magnitudes of the previous frame, for the flux
+        final float[] previous = new float[FRAME / 2 + 1];
+        final float[] onsets = new float[MAX_HOPS];
+
+        // Per-file accumulators
+        double sumSquares;
+        long crossings;
+        long samples;
+        double weightedBins;
+        double magnitudeSum;
+        int hops;
+        int filled;
+        boolean lastNegative;
+
+        Workspace() {
+            for (int i = 0; i < FRAME; i++) {
+                window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / FRAME));
+            }
+            for (int k = 0; k < FRAME / 2; k++) {
+                cos[k] = (float) Math.cos(2 * Math.PI * k / FRAME);
+                sin[k] = (float) Math.sin(2 * Math.PI * k / FRAME);
+            }
+            int bits = Integer.numberOfTrailingZeros(FRAME);
+            for (int i = 0; i < FRAME; i++) {
+                reversed[i] = Integer.reverse(i) >>> (32 - bits);
+            }
+        }
+
+        MoodMusicPlayer.DBHelper.AudioFeatures analyze(AudioInputStream in) throws IOException {
+            AudioFormat f = in.getFormat();
+            int channels = f.getChannels();
+            int frameSize = f.getFrameSize();
+            int sampleBytes = f.getSampleSizeInBits() / 8;
+            boolean bigEndian = f.isBigEndian();
+            boolean isFloat = f.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT);
+            boolean unsigned = f.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED);
+            float sampleRate = f.getSampleRate();
+
+            sumSquares = 0;
+            crossings = 0;
+            samples = 0;
+            weightedBins = 0;
+            magnitudeSum = 0;
+            hops = 0;
+            filled = 0;
+            lastNegative = false;
+            Arrays.fill(previous, 0);
+
+            int usable = bytes.length - bytes.length % frameSize;
+            int carry = 0;
+            while (hops < MAX_HOPS) {
+                int n = in.read(bytes, carry, usable - carry);
+                if (n < 0) break;
+                int total = carry + n;
+                int end = total - total % frameSize;
+                for (int off = 0; off < end && hops < MAX_HOPS; off += frameSize) {
+                    float mono = 0;
+                    for (int c = 0; c < channels; c++) {
+                        mono += sample(bytes, off + c * sampleBytes, sampleBytes, bigEndian, unsigned, isFloat);
+                    }
+                    add(mono / channels);
+                }
+                carry = total - end;
+                System.arraycopy(bytes, end, bytes, 0, carry);
+            }
+
+            double seconds = samples / (double) sampleRate;
+            double rms = samples == 0 ? 0 : Math.sqrt(sumSquares / samples);
+            double zcr = samples < 2 ? 0 : crossings / (double) (samples - 1);
+            double centroid = magnitudeSum == 0 ? 0 : weightedBins / magnitudeSum * sampleRate / FRAME;
+            return new MoodMusicPlayer.DBHelper.AudioFeatures(rms, centroid, zcr, tempo(sampleRate), seconds);
+        }
+
+        private void add(float x) {
+            sumSquares += x * x;
+            boolean negative = x < 0;
+            if (samples > 0 && negative != lastNegative) crossings++;
+            lastNegative = negative;
+            samples++;
+            frame[filled++] = x;
+            if (filled == FRAME) {
+                spectrum();
+                System.arraycopy(frame, HOP, frame, 0, FRAME - HOP);
+                filled = FRAME - HOP;
+            }
+        }
+
+        /** Windows and transforms the current frame, adding to the centroid and the onset envelope. */
+        private void spectrum() {
+            for (int i = 0; i < FRAME; i++) {
+                re[i] = frame[i] * window[i];
+                im[i] = 0;
+            }
+            fft();
+            float flux = 0;
+            for (int k = 0; k <= FRAME / 2; k++) {
+                float m = (float) Math.sqrt(re[k] * re[k] + im[k] * im[k]);
+                weightedBins += (double) k * m;
+                magnitudeSum += m;
+                float compressed = (float) Math.log1p(FLUX_GAIN * m);
+                // Only rising energy marks an onset
+                if (compressed > previous[k]) flux += compressed - previous[k];
+                previous[k] = compressed;
+            }
+            // The first frame rises from silence everywhere; it says nothing about onsets
+            onsets[hops] = hops == 0 ? 0 : flux;
+            hops++;
+        }
+
+        /** In-place iterative radix-2 FFT of re/im. */
+        private void fft() {
+            for (int i = 0; i < FRAME; i++) {
+                int j = reversed[i];
+                if (j > i) {
+                    float t = re[i]; re[i] = re[j]; re[j] = t;
+                    t = im[i]; im[i] = im[j]; im[j] = t;
+                }
+            }
+            for (int size = 2; size <= FRAME; size <<= 1) {
+                int half = size >> 1;
+                int step = FRAME / size;
+                for (int start = 0; start < FRAME; start += size) {
+                    for (int k = 0; k < half; k++) {
+                        float c = cos[k * step];
+                        float s = sin[k * step];
+                        int a = start + k;
+                        int b = a + half;
+                        // Multiply by e^(-i 2 pi k / size)
+                        float tr = re[b] * c + im[b] * s;
+                        float ti = im[b] * c - re[b] * s;
+                        re[b] = re[a] - tr;
+                        im[b] = im[a] - ti;
+                        re[a] += tr;
+                        im[a] += ti;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Beats per minute at the strongest autocorrelation lag of the onset envelope, or 0 if
+         * the audio is too short or has no clear beat. Lags are weighted towards 120 BPM to avoid settling on half
+         * or double the tempo.
+         */
+        private double tempo(float sampleRate) {
+            double hopsPerSecond = sampleRate / HOP;
+            int minLag = (int) Math.floor(hopsPerSecond * 60 / MAX_BPM);
+            int maxLag = (int) Math.ceil(hopsPerSecond * 60 / MIN_BPM);
+            // Need a few beats at the slowest tempo to say anything
+            if (hops < maxLag * 4) return 0;
+
+            double mean = 0;
+            for (int i = 0; i < hops; i++) mean += onsets[i];
+            mean /= hops;
+            double variance = 0;
+            for (int i = 0; i < hops; i++) {
+                onsets[i] -= (float) mean;
+                variance += onsets[i] * onsets[i];
+            }
+            variance /= hops;
+
+            int bestLag = 0;
+            double bestScore = 0;
+            for (int lag = Math.max(1, minLag); lag <= maxLag; lag++) {
+                double sum = 0;
+                for (int i = 0; i + lag < hops; i++) sum += onsets[i] * onsets[i + lag];
+                double bpm = 60 * hopsPerSecond / lag;
+                double octaves = log2(bpm / 120);
+                double score = sum / (hops - lag) * Math.exp(-0.5 * octaves * octaves);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestLag = lag;
+                }
+            }
+            // A steady drone or noise correlates with itself about equally at every lag
+            if (bestLag == 0 || bestScore < MIN_BEAT_CORRELATION * variance) return 0;
+            return 60 * hopsPerSecond / bestLag;
+        }
+    }
+
+    /**
+     * One analyzePending() call. Decoded files go to song_features with their measurements,
+     * undecodable ones with none, and files that could not be opened are left for next time.
+     */
+    private final class AnalysisRun implements BackgroundBatches.Job<MoodMusicPlayer.DBHelper.AudioFeatures> {
+        private final Listener listener;
+        private final List<Integer> ids = new ArrayList<>();
+        private final List<MoodMusicPlayer.DBHelper.AudioFeatures> features = new ArrayList<>();
+        private long analysed;
+        private long failed;
+        private double audioSeconds;
+        private Progress last;
+
+        AnalysisRun(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public List<MoodMusicPlayer.DBHelper.FileRecord> fetch(int afterId, int limit) throws SQLException {
+            return db.getUnanalyzedFiles(afterId, limit);
+        }
+
+        @Override
+        public MoodMusicPlayer.DBHelper.AudioFeatures process(MoodMusicPlayer.DBHelper.FileRecord file)
+                throws IOException, UnsupportedAudioFileException {
+            // Files queued before a cancel are skipped rather than decoded
+            return cancelled ? null : analyze(Paths.get(file.getPath()), workspaces.get());
+        }
+
+        @Override
+        public void done(MoodMusicPlayer.DBHelper.FileRecord file, MoodMusicPlayer.DBHelper.AudioFeatures f) {
+            ids.add(file.getId());
+            features.add(f);
+            analysed++;
+            audioSeconds += f.getSeconds();
+        }
+
+        @Override
+        public void failed(MoodMusicPlayer.DBHelper.FileRecord file, Throwable cause) {
+            failed++;
+            if (cause instanceof UnsupportedAudioFileException) {
+                // Not decodable as it is; remembered so it is not decoded on every run
+                ids.add(file.getId());
+                features.add(null);
+            }
+        }
+
+        @Override
+        public void store() throws SQLException {
+            db.setAudioFeatures(ids, features);
+            ids.clear();
+            features.clear();
+        }
+
+        @Override
+        public void progress(long elapsedNanos, boolean finished) {
+            last = new Progress(analysed, failed, audioSeconds, elapsedNanos, finished);
+            listener.progress(last);
+        }
+    }
+
+    /** Counters for an analysis run in progress or finished. */
+    public static final class Progress {
+        private final long filesAnalysed;
+        private final long failed;
+        private final double audioSeconds;
+        private final long elapsedNanos;
+        private final boolean finished;
+
+        Progress(long filesAnalysed, long failed, double audioSeconds, long elapsedNanos, boolean finished) {
+            this.filesAnalysed = filesAnalysed;
+            this.failed = failed;
+            this.audioSeconds = audioSeconds;
+            this.elapsedNanos = elapsedNanos;
+            this.finished = finished;
+        }
+
+        public long getFilesAnalysed() { return filesAnalysed; }
+        public long getFailed() { return failed; }
+        public double getAudioSeconds() { return audioSeconds; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        public boolean isFinished() { return finished; }
+
+        /** Seconds of audio analysed per second of wall time. */
+        public double getAudioSecondsPerSecond() {
+            return elapsedNanos == 0 ? 0 : audioSeconds * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            String s = String.format("%,d files analysed, %,.0f s of audio (%,.0f× real time)",
+                    filesAnalysed, audioSeconds, getAudioSecondsPerSecond());
+            return failed == 0 ? s : s + String.format(", %,d could not be read", failed);
+        }
+    }
+}
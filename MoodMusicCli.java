@@ -0,0 +1,411 @@
+/*
+ * MoodMusicCli.java
+ * Library maintenance from the command line, for scripts and cron jobs on machines
+ * without a display. It opens the same database as the player through DBHelper and
+ * never touches JavaFX: only the sqlite-jdbc jar is needed on the class path.
+ *
+ *   java -cp out:lib/sqlite-jdbc-3.46.0.0.jar MoodMusicCli [--db FILE] [--json] COMMAND ...
+ *
+ * Rows are written as they are read, tab-separated under a header line, or with
+ * --json as one JSON object per line. Exit status is 0 on success, 1 when a check
+ * finds problems or a command fails, and 2 on a usage error.
+ */
+
+import org.sqlite.SQLiteJDBCLoader;
+import org.sqlite.util.LibraryLoaderUtil;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MoodMusicCli {
+
+    // The player's database, relative to the working directory like the player's
+    private static final String DEFAULT_DB_FILE = "data/moodmusic.db";
+    // Same as the Smart Playlist dialog's "leave out the last songs played"
+    private static final int RECENT_LIMIT = 50;
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+
+    private static final String USAGE = String.join("\n",
+            "Usage: MoodMusicCli [--db FILE] [--json] COMMAND [ARGS]",
+            "",
+            "  list [MOOD]                      every song, or every song of one mood, in id order",
+            "  search QUERY [--mood MOOD] [--limit N]",
+            "                                   title and artist search, best matches first",
+            "  stats                            row counts, sizes and pool counters",
+            "  generate [--tracks N | --minutes N] [--mood NAME=WEIGHT]... [--seed S]",
+            "           [--repeat-artists] [--include-recent] [--save NAME]",
+            "                                   pick a playlist by mood; --save stores it",
+            "  import FILE [NAME]               add an M3U, PLS or XSPF file to playlist NAME",
+            "                                   (default: the file name); unknown files become songs",
+            "  export NAME FILE                 write a playlist as M3U, PLS or XSPF by FILE's extension",
+            "  vacuum                           rewrite the database file without its free pages",
+            "  checkpoint                       copy the WAL into the database file and truncate it",
+            "  integrity                        integrity, foreign key and query plan checks");
+
+    public static void main(String[] args) {
+        String dbFile = DEFAULT_DB_FILE;
+        boolean json = false;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            if (args[i].equals("--json")) {
+                json = true;
+            } else if (args[i].equals("--db") && i + 1 < args.length) {
+                dbFile = args[++i];
+            } else {
+                usage("Unknown option " + args[i]);
+            }
+        }
+        if (i == args.length) usage(null);
+        String command = args[i];
+        List<String> rest = new ArrayList<>(Arrays.asList(args).subList(i + 1, args.length));
+
+        Path dir = Paths.get(dbFile).toAbsolutePath().getParent();
+        if (dir != null) useKeptNativeLibrary(dir.resolve("native"));
+        MoodMusicPlayer.DBHelper db = new MoodMusicPlayer.DBHelper(dbFile);
+        // Each command reads what it needs once; a catalog load would only compete with it
+        db.disableCatalog();
+        int status;
+        try (Rows out = new Rows(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16), json)) {
+            db.initAndSeed();
+            status = run(db, command, rest, out);
+        } catch (SQLException | IOException | RuntimeException e) {
+            System.err.println(command + ": " + e.getMessage());
+            status = 1;
+        } finally {
+            db.close();
+        }
+        System.exit(status);
+    }
+
+    private static int run(MoodMusicPlayer.DBHelper db, String command, List<String> args, Rows out)
+            throws SQLException, IOException {
+        switch (command) {
+            case "list":
+                return list(db, args, out);
+            case "search":
+                return search(db, args, out);
+            case "stats":
+                return stats(db, out);
+            case "generate":
+                return generate(db, args, out);
+            case "import": {
+                if (args.isEmpty() || args.size() > 2) usage("import needs a file and at most a playlist name");
+                Path file = Paths.get(args.get(0));
+                String name = args.size() > 1 ? args.get(1) : file.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+                PlaylistIO.ImportResult r = new PlaylistIO(db).importPlaylist(file, name);
+                out.header("playlist", "entries", "matched", "created", "added");
+                out.row(name, r.getEntries(), r.getMatched(), r.getCreated(), r.getAdded());
+                return 0;
+            }
+            case "export": {
+                if (args.size() != 2) usage("export needs a playlist name and a file");
+                int written = new PlaylistIO(db).exportPlaylist(args.get(0), Paths.get(args.get(1)));
+                out.header("playlist", "songs");
+                out.row(args.get(0), written);
+                return written > 0 ? 0 : 1;
+            }
+            case "vacuum":
+                out.header("freed_bytes");
+                out.row(db.vacuum());
+                return 0;
+            case "checkpoint": {
+                int[] result = db.checkpoint();
+                out.header("busy", "wal_frames", "checkpointed_frames");
+                out.row(result[0] != 0, result[1], result[2]);
+                return result[0] != 0 ? 1 : 0;
+            }
+            case "integrity":
+                return integrity(db, out);
+            default:
+                usage("Unknown command " + command);
+                return 2;
+        }
+    }
+
+    private static int list(MoodMusicPlayer.DBHelper db, List<String> args, Rows out) throws SQLException, IOException {
+        if (args.size() > 1) usage("list takes at most one mood");
+        out.header("id", "title", "artist", "mood", "path");
+        try {
+            // One reused row holder: nothing is kept per song, however large the library
+            db.scanSongs(args.isEmpty() ? null : args.get(0), row -> {
+                try {
+                    out.row(row.getId(), row.getTitle(), row.getArtist(), row.getMood(), row.getPath());
+                } catch (IOException e) {
+                    throw new UncheckedOutput(e);
+                }
+            }, MoodMusicPlayer.DBHelper.Column.ID, MoodMusicPlayer.DBHelper.Column.TITLE,
+                    MoodMusicPlayer.DBHelper.Column.ARTIST, MoodMusicPlayer.DBHelper.Column.MOOD,
+                    MoodMusicPlayer.DBHelper.Column.PATH);
+        } catch (UncheckedOutput e) {
+            throw e.getCause();
+        }
+        return 0;
+    }
+
+    private static int search(MoodMusicPlayer.DBHelper db, List<String> args, Rows out) throws IOException {
+        String mood = option(args, "--mood");
+        String limit = option(args, "--limit");
+        if (args.isEmpty()) usage("search needs a query");
+        out.header("id", "title", "artist", "mood", "path");
+        for (MoodMusicPlayer.Song s : db.searchSongs(String.join(" ", args), mood,
+                limit != null ? parseInt(limit, "--limit") : DEFAULT_SEARCH_LIMIT)) {
+            out.row(s.getId(), s.getTitle(), s.getArtist(), s.getMood(), s.getPath());
+        }
+        return 0;
+    }
+
+    private static int stats(MoodMusicPlayer.DBHelper db, Rows out) throws SQLException, IOException {
+        out.header("name", "value");
+        for (Map.Entry<String, Long> e : db.getLibraryStats().entrySet()) out.row(e.getKey(), e.getValue());
+        for (Map.Entry<String, Long> e : db.getMoodPlayCounts().entrySet()) out.row("plays." + e.getKey(), e.getValue());
+        return 0;
+    }
+
+    private static int generate(MoodMusicPlayer.DBHelper db, List<String> args, Rows out) throws SQLException, IOException {
+        PlaylistGenerator.Constraints c = new PlaylistGenerator.Constraints();
+        String tracks = option(args, "--tracks");
+        String minutes = option(args, "--minutes");
+        String seed = option(args, "--seed");
+        String save = option(args, "--save");
+        boolean includeRecent = flag(args, "--include-recent");
+        c.setDistinctArtists(!flag(args, "--repeat-artists"));
+        for (String weight; (weight = option(args, "--mood")) != null; ) {
+            int eq = weight.lastIndexOf('=');
+            c.setMoodWeight(eq < 0 ? weight : weight.substring(0, eq),
+                    eq < 0 ? 1 : parseDouble(weight.substring(eq + 1), "--mood"));
+        }
+        if (!args.isEmpty()) usage("Unknown argument " + args.get(0));
+        if (tracks != null) c.setTracks(parseInt(tracks, "--tracks"));
+        if (minutes != null) c.setDurationMs(parseInt(minutes, "--minutes") * 60_000L);
+        if (seed == null) {
+            c.setSeed(System.nanoTime());
+        } else {
+            try {
+                c.setSeed(Long.parseLong(seed));
+            } catch (NumberFormatException e) {
+                // Any text works as a seed, as in the Smart Playlist dialog
+                c.setSeed(seed.hashCode());
+            }
+        }
+        if (!includeRecent) c.setExcludedIds(db.getRecentlyPlayedIds(RECENT_LIMIT));
+
+        int[] picked = new PlaylistGenerator(db.loadPlaylistCandidates()).generate(c).getSongIds();
+        if (save != null && picked.length > 0) db.savePlaylist(save, picked);
+
+        // One pass over the library fills in the picked songs, without loading the rest
+        Map<Integer, Integer> order = new HashMap<>(picked.length * 2);
+        for (int i = 0; i < picked.length; i++) order.put(picked[i], i);
+        MoodMusicPlayer.Song[] songs = new MoodMusicPlayer.Song[picked.length];
+        db.scanSongs(null, row -> {
+            Integer at = order.get(row.getId());
+            if (at != null) songs[at] = row.toSong();
+        }, MoodMusicPlayer.DBHelper.Column.ID, MoodMusicPlayer.DBHelper.Column.TITLE,
+                MoodMusicPlayer.DBHelper.Column.ARTIST, MoodMusicPlayer.DBHelper.Column.MOOD,
+                MoodMusicPlayer.DBHelper.Column.PATH);
+        out.header("position", "id", "title", "artist", "mood", "path");
+        for (int i = 0; i < songs.length; i++) {
+            MoodMusicPlayer.Song s = songs[i];
+            if (s != null) out.row(i + 1, s.getId(), s.getTitle(), s.getArtist(), s.getMood(), s.getPath());
+        }
+        return picked.length > 0 ? 0 : 1;
+    }
+
+    private static int integrity(MoodMusicPlayer.DBHelper db, Rows out) throws SQLException, IOException {
+        out.header("check", "problem");
+        int problems = 0;
+        for (String p : db.checkIntegrity()) {
+            out.row("integrity", p);
+            problems++;
+        }
+        try {
+            db.verifyQueryPlans();
+        } catch (IllegalStateException e) {
+            for (String line : e.getMessage().split("\n")) {
+                out.row("query_plan", line);
+                problems++;
+            }
+        }
+        return problems > 0 ? 1 : 0;
+    }
+
+    /**
+     * sqlite-jdbc unpacks its native library to a new temp file on every start, which is
+     * a good part of a short command's run time. Keeps one copy per driver version under
+     * {@code dir} and points the driver at it; if that fails the driver unpacks as usual.
+     */
+    private static void useKeptNativeLibrary(Path dir) {
+        if (System.getProperty("org.sqlite.lib.path") != null) return;
+        try {
+            String name = LibraryLoaderUtil.getNativeLibName();
+            Path kept = dir.resolve(SQLiteJDBCLoader.getVersion()).resolve(name);
+            if (!Files.isRegularFile(kept)) {
+                try (InputStream in = SQLiteJDBCLoader.class.getResourceAsStream(
+                        LibraryLoaderUtil.getNativeLibResourcePath() + "/" + name)) {
+                    if (in == null) return;
+                    Files.createDirectories(kept.getParent());
+                    // Copied beside it and renamed, so a concurrent run never loads half a file
+                    Path tmp = Files.createTempFile(kept.getParent(), name, ".tmp");
+                    Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(tmp, kept, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            System.setProperty("org.sqlite.lib.path", kept.getParent().toString());
+            System.setProperty("org.sqlite.lib.name", name);
+        } catch (IOException | RuntimeException | LinkageError e) {
+            // The driver's own unpacking still works
+        }
+    }
+
+    /** Removes {@code name VALUE} from the arguments and returns the value, or null if absent. */
+    private static String option(List<String> args, String name) {
+        int at = args.indexOf(name);
+        if (at < 0) return null;
+        if (at + 1 == args.size()) usage(name + " needs a value");
+        String value = args.remove(at + 1);
+        args.remove(at);
+        return value;
+    }
+
+    private static boolean flag(List<String> args, String name) {
+        return args.remove(name);
+    }
+
+    private static int parseInt(String value, String option) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            usage(option + " needs a whole number, not " + value);
+            return 0;
+        }
+    }
+
+    private static double parseDouble(String value, String option) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            usage(option + " needs a number, not " + value);
+            return 0;
+        }
+    }
+
+    private static void usage(String problem) {
+        PrintStream err = System.err;
+        if (problem != null) err.println(problem);
+        err.println(USAGE);
+        System.exit(2);
+    }
+
+    /** Carries a write failure out of a row callback. */
+    private static final class UncheckedOutput extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UncheckedOutput(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Writes rows as TSV under a header line, or as JSON lines keyed by the header.
+     * Numbers and booleans are written bare in JSON; everything else as a string.
+     */
+    static final class Rows implements AutoCloseable {
+        private final Writer out;
+        private final boolean json;
+        private String[] columns = new String[0];
+        private final StringBuilder line = new StringBuilder(256);
+
+        Rows(Writer out, boolean json) {
+            this.out = out;
+            this.json = json;
+        }
+
+        void header(String... columns) throws IOException {
+            this.columns = columns;
+            if (json) return;
+            line.setLength(0);
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) line.append('\t');
+                line.append(columns[i]);
+            }
+            out.append(line).append('\n');
+        }
+
+        void row(Object... values) throws IOException {
+            line.setLength(0);
+            if (json) {
+                line.append('{');
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) line.append(',');
+                    quote(columns[i]);
+                    line.append(':');
+                    Object v = values[i];
+                    if (v == null) {
+                        line.append("null");
+                    } else if (v instanceof Number || v instanceof Boolean) {
+                        line.append(v);
+                    } else {
+                        quote(v.toString());
+                    }
+                }
+                line.append('}');
+            } else {
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) line.append('\t');
+                    if (values[i] == null) continue;
+                    // Tabs and line breaks inside a field would split it
+                    String v = values[i].toString();
+                    for (int k = 0; k < v.length(); k++) {
+                        char ch = v.charAt(k);
+                        line.append(ch == '\t' || ch == '\n' || ch == '\r' ? ' ' : ch);
+                    }
+                }
+            }
+            out.append(line).append('\n');
+        }
+
+        private void quote(String s) {
+            line.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                switch (ch) {
+                    case '"': line.append("\\\""); break;
+                    case '\\': line.append("\\\\"); break;
+                    case '\n': line.append("\\n"); break;
+                    case '\r': line.append("\\r"); break;
+                    case '\t': line.append("\\t"); break;
+                    default:
+                        if (ch < 0x20) {
+                            line.append(String.format("\\u%04x", (int) ch));
+                        } else {
+                            line.append(ch);
+                        }
+                }
+            }
+            line.append('"');
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
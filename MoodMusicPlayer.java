@@ -15,6 +15,7 @@
  * To compile/run see the instructions that accompany this file.
  */
 
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -23,27 +24,55 @@ import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.Dragboard;
+import javafx.scene.input.TransferMode;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.stage.Stage;
-import javafx.scene.media.Media;
-import javafx.scene.media.MediaPlayer;
 import javafx.util.Duration;
 import static javafx.beans.binding.Bindings.createBooleanBinding;
 import static javafx.beans.binding.Bindings.when;
 import javafx.scene.Node;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Collection;
 import java.util.Collections;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
 import javafx.stage.Modality;
 import javafx.util.Pair;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import javafx.application.Platform;
 import javafx.util.Pair;
 import javafx.scene.control.PasswordField;
@@ -55,11 +84,27 @@ public class MoodMusicPlayer extends Application {
 
     // DB file
     private static final String DB_FILE = "data/moodmusic.db";
+    private static final String WAVEFORM_CACHE_FILE = "data/waveforms.cache";
+    private static final String STREAM_CACHE_DIR = "data/http-cache";
+    private static final int SEARCH_DEBOUNCE_MS = 250;
+    private static final int SEARCH_LIMIT = 500;
+    // Songs listed by "More Like This"
+    private static final int SIMILAR_LIMIT = 25;
+    private static final int RECENT_LIMIT = 50;
+    // Songs listed by the play-history views
+    private static final int PLAYED_LIMIT = 100;
+    // Cover sizes in table rows and in the now-playing bar
+    private static final int ROW_COVER_SIZE = 28;
+    private static final int BAR_COVER_SIZE = 48;
+    private static final String MOST_PLAYED = "Most Played";
+    private static final String RECENTLY_PLAYED = "Recently Played";
     private DBHelper db;
+    private AsyncDB async;
     
     // User credentials
     private boolean isAdmin;
-    private MediaPlayer mediaPlayer;
+    // Plays the queue, preparing each next track ahead of time, and drives the now-playing bar
+    private PlaybackController playback;
     
     // Mood emojis
     private static final Map<String, String> MOOD_EMOJIS;
@@ -133,26 +178,18 @@ public class MoodMusicPlayer extends Application {
 
         Optional<Pair<String, String>> result = dialog.showAndWait();
 
-        result.ifPresent(usernamePassword -> {
-            try {
-                PreparedStatement ps = db.getConnection().prepareStatement(
-                    "SELECT username, is_admin FROM users WHERE username = ? AND password = ?");
-                ps.setString(1, usernamePassword.getKey());
-                ps.setString(2, usernamePassword.getValue());
-                
-                ResultSet rs = ps.executeQuery();
-                if (rs.next()) {
-                    setUserCredentials(rs.getString("username"), rs.getBoolean("is_admin"));
+        result.ifPresent(usernamePassword -> async.run(
+            db -> db.authenticate(usernamePassword.getKey(), usernamePassword.getValue()),
+            admin -> {
+                if (admin.isPresent()) {
+                    setUserCredentials(usernamePassword.getKey(), admin.get());
                     initializeMainWindow(primaryStage);
                 } else {
                     showAlert("Invalid username or password");
                     showLoginDialog(primaryStage); // Show login dialog again
                 }
-            } catch (SQLException e) {
-                e.printStackTrace();
-                showAlert("Database error: " + e.getMessage());
-            }
-        });
+            },
+            this::showDatabaseError));
 
         // If the user closes the dialog without logging in, exit the application
         if (!result.isPresent()) {
@@ -175,6 +212,7 @@ public class MoodMusicPlayer extends Application {
         HBox center = new HBox(20);
         center.setPadding(new Insets(20));
 
+        covers = new CoverArtCache(CoverArtCache.DEFAULT_MAX_BYTES);
         VBox left = buildLeftPane();
         VBox right = buildRightPane();
 
@@ -189,16 +227,41 @@ public class MoodMusicPlayer extends Application {
         primaryStage.setScene(scene);
         primaryStage.show();
 
+        history = new PlayHistory(db);
+        history.start();
         refreshSongList();
+        sortMoodsByPlays();
+        startLibraryWatcher();
+        startContentHashing();
     }
 
     // UI elements
     private TableView<Song> songTable;
     private TableView<Song> playlistTable;
     private ComboBox<String> moodFilter;
+    private TextField searchField;
     private Label nowPlayingLabel;
     private ObservableList<Song> allSongs;
     private ObservableList<Song> playlistSongs;
+    private Label scanStatus;
+    private Button cancelScan;
+    // Non-null while a library scan runs
+    private LibraryScanner scanner;
+    // Follows the library folders once logged in
+    private LibraryWatcher watcher;
+    // Non-null while songs are being hashed; set the flag to go round again once it finishes
+    private ContentHasher hasher;
+    private boolean rehashRequested;
+    // Non-null while audio is being analysed for mood suggestions
+    private MoodAnalyzer analyzer;
+    // Starts, skips and completions, written to the database in the background
+    private PlayHistory history;
+    // Peaks for the seek bar; null if the cache file could not be opened
+    private WaveformCache waveforms;
+    // Cover thumbnails shared by both tables and the now-playing bar
+    private CoverArtCache covers;
+    // Loopback proxy keeping http songs on disk; null if it could not start
+    private HttpMediaCache streams;
 
     // Colors requested: #000000, #1B263B, #E0E1DD
 
@@ -211,37 +274,17 @@ public class MoodMusicPlayer extends Application {
             parentDir.mkdirs();
         }
         
-        // Initialize database connection
+        // Initialize database connection; all SQL runs on AsyncDB's worker threads
         db = new DBHelper(DB_FILE);
-        db.initAndSeed();
-        
-        // Create default admin user if not exists
-        try {
-            PreparedStatement ps = db.getConnection().prepareStatement(
-                "CREATE TABLE IF NOT EXISTS users (username TEXT PRIMARY KEY, password TEXT NOT NULL, is_admin INTEGER DEFAULT 0)");
-            ps.executeUpdate();
-            
-            // Check if admin user exists
-            ps = db.getConnection().prepareStatement("SELECT COUNT(*) as count FROM users WHERE username = ?");
-            ps.setString(1, "admin");
-            ResultSet rs = ps.executeQuery();
-            if (rs.next() && rs.getInt("count") == 0) {
-                // Create default admin user
-                ps = db.getConnection().prepareStatement("INSERT INTO users (username, password, is_admin) VALUES (?, ?, 1)");
-                ps.setString(1, "admin");
-                ps.setString(2, "admin");
-                ps.executeUpdate();
-            }
-        } catch (SQLException e) {
-            System.err.println("Error creating admin user: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        showLoginDialog(primaryStage);
-        
-        try {
+        async = new AsyncDB(db);
+
+        // The main window is built by initializeMainWindow once the user has logged in
+        async.run(db -> {
             db.initAndSeed();
-        } catch (Exception e) {
+            // Create default admin user if not exists
+            db.ensureDefaultAdmin();
+            return null;
+        }, ignored -> showLoginDialog(primaryStage), e -> {
             System.err.println("Database initialization error: " + e.getMessage());
             e.printStackTrace();
             Alert alert = new Alert(Alert.AlertType.ERROR);
@@ -249,38 +292,8 @@ public class MoodMusicPlayer extends Application {
             alert.setHeaderText("Failed to initialize database");
             alert.setContentText("Please make sure the application has write permissions to: " + DB_FILE);
             alert.showAndWait();
-            return;
-        }
-
-        loadFontIfPresent();
-        primaryStage.setTitle("Mood Music — Minimal Player");
-
-        BorderPane root = new BorderPane();
-        root.setStyle("-fx-background-color: linear-gradient(#000000, #1B263B); padding: 20;");
-
-        // Top: Header
-        HBox header = buildHeader();
-        root.setTop(header);
-
-        // Center: main content split
-        HBox center = new HBox(20);
-        center.setPadding(new Insets(20));
-
-        VBox left = buildLeftPane();
-        VBox right = buildRightPane();
-
-        center.getChildren().addAll(left, right);
-        root.setCenter(center);
-
-        // Bottom: now playing bar
-        HBox bottom = buildNowPlayingBar();
-        root.setBottom(bottom);
-
-        Scene scene = new Scene(root, 1000, 640);
-        primaryStage.setScene(scene);
-        primaryStage.show();
-
-        refreshSongList();
+            Platform.exit();
+        });
     }
 
     private void loadFontIfPresent() {
@@ -302,10 +315,22 @@ public class MoodMusicPlayer extends Application {
         title.setTextFill(Color.web("#E0E1DD"));
         title.setStyle("-fx-font-family: 'Poppins', system; -fx-font-size: 26px; -fx-font-weight: 700;");
 
+        // Hovering the title shows database and cache counters
+        Tooltip stats = new Tooltip();
+        stats.setOnShowing(e -> stats.setText(
+                "Pool: " + db.getPoolStats() + "\nCatalog: " + db.getCatalog().getStats()
+                        + (streams != null ? "\n" + streams.getStats() : "")));
+        title.setTooltip(stats);
+
         Region spacer = new Region();
         HBox.setHgrow(spacer, Priority.ALWAYS);
 
-        header.getChildren().addAll(title, spacer);
+        // Spins while any database query is in flight
+        ProgressIndicator loading = new ProgressIndicator();
+        loading.setPrefSize(22, 22);
+        loading.visibleProperty().bind(async.busyProperty());
+
+        header.getChildren().addAll(title, spacer, loading);
         header.setStyle(makeGlassStyle(12));
         return header;
     }
@@ -320,17 +345,24 @@ public class MoodMusicPlayer extends Application {
 
         moodFilter = new ComboBox<>();
         moodFilter.setPromptText("Filter by mood");
-        moodFilter.getItems().addAll("All", "Happy", "Sad", "Energetic", "Calm", "Focus");
+        moodFilter.getItems().addAll("All", "Happy", "Sad", "Energetic", "Calm", "Focus", MOST_PLAYED, RECENTLY_PLAYED);
         moodFilter.setValue("All");
         moodFilter.valueProperty().addListener((obs, oldv, newv) -> refreshSongList());
 
+        searchField = new TextField();
+        searchField.setPromptText("Search title or artist");
+        // Wait for a pause in typing before querying
+        PauseTransition searchDebounce = new PauseTransition(Duration.millis(SEARCH_DEBOUNCE_MS));
+        searchDebounce.setOnFinished(e -> refreshSongList());
+        searchField.textProperty().addListener((obs, oldv, newv) -> searchDebounce.playFromStart());
+
         Button load = new Button("Refresh");
         load.setOnAction(e -> refreshSongList());
 
         Button addSong = new Button("Add Song");
         addSong.setOnAction(e -> showAddSongDialog());
 
-        controls.getChildren().addAll(moodFilter, load, addSong);
+        controls.getChildren().addAll(moodFilter, searchField, load, addSong);
 
         songTable = new TableView<>();
         songTable.setPlaceholder(new Label("No songs found"));
@@ -350,7 +382,9 @@ public class MoodMusicPlayer extends Application {
         moodCol.setCellValueFactory(new PropertyValueFactory<>("mood"));
         moodCol.setPrefWidth(120);
 
-        songTable.getColumns().addAll(idCol, titleCol, artistCol, moodCol);
+        songTable.getColumns().addAll(idCol, coverColumn(), titleCol, artistCol, moodCol);
+        // The lazy item list is read-only and always in id order
+        songTable.getColumns().forEach(c -> c.setSortable(false));
         // Add action column for edit/delete
         TableColumn<Song, Void> actionCol = new TableColumn<>("Actions");
         actionCol.setPrefWidth(100);
@@ -404,12 +438,18 @@ public class MoodMusicPlayer extends Application {
             // Context menu for right-click
             ContextMenu contextMenu = new ContextMenu();
             MenuItem playItem = new MenuItem("Play");
+            MenuItem similarItem = new MenuItem("More Like This");
             MenuItem editItem = new MenuItem("Edit");
             MenuItem deleteItem = new MenuItem("Delete");
             
             playItem.setOnAction(e -> {
                 Song s = row.getItem();
-                if (s != null) playSong(s);
+                if (s != null) playFrom(songTable, row.getIndex());
+            });
+            
+            similarItem.setOnAction(e -> {
+                Song s = row.getItem();
+                if (s != null) showSimilarSongs(s);
             });
             
             editItem.setOnAction(e -> {
@@ -425,7 +465,7 @@ public class MoodMusicPlayer extends Application {
                 }
             });
             
-            contextMenu.getItems().addAll(playItem, new SeparatorMenuItem(), editItem, deleteItem);
+            contextMenu.getItems().addAll(playItem, similarItem, new SeparatorMenuItem(), editItem, deleteItem);
             
             // Only show edit/delete for admin
             editItem.visibleProperty().bind(createBooleanBinding(() -> isAdmin));
@@ -440,14 +480,54 @@ public class MoodMusicPlayer extends Application {
             // Double-click to play
             row.setOnMouseClicked(evt -> {
                 if (!row.isEmpty() && evt.getClickCount() == 2) {
-                    playSong(row.getItem());
+                    playFrom(songTable, row.getIndex());
                 }
             });
             
             return row;
         });
 
-        left.getChildren().addAll(controls, songTable);
+        // Library scanning: add a folder, or rescan every folder added so far
+        HBox scanControls = new HBox(8);
+        scanControls.setAlignment(Pos.CENTER_LEFT);
+        Button scanFolder = new Button("Scan Folder…");
+        scanFolder.setOnAction(e -> {
+            DirectoryChooser chooser = new DirectoryChooser();
+            chooser.setTitle("Select Music Folder");
+            File dir = chooser.showDialog(scanFolder.getScene().getWindow());
+            if (dir != null) {
+                String root = dir.getAbsolutePath();
+                async.run(db -> {
+                    db.addLibraryRoot(root);
+                    if (watcher != null) watcher.watch(Paths.get(root));
+                    return null;
+                }, ignored -> startLibraryScan(Collections.singletonList(root)), this::showDatabaseError);
+            }
+        });
+        Button rescan = new Button("Rescan Library");
+        rescan.setOnAction(e -> async.run(db -> db.getLibraryRoots(), roots -> {
+            if (roots.isEmpty()) {
+                showAlert("No music folders yet. Use Scan Folder… to add one.");
+            } else {
+                startLibraryScan(roots);
+            }
+        }, this::showDatabaseError));
+        cancelScan = new Button("Cancel");
+        cancelScan.setVisible(false);
+        cancelScan.setOnAction(e -> {
+            if (scanner != null) scanner.cancel();
+        });
+        scanStatus = new Label();
+        scanStatus.setTextFill(Color.web("#E0E1DD"));
+        scanFolder.disableProperty().bind(cancelScan.visibleProperty());
+        rescan.disableProperty().bind(cancelScan.visibleProperty());
+        Button duplicates = new Button("Duplicates…");
+        duplicates.setOnAction(e -> showDuplicatesDialog());
+        Button suggestMoods = new Button("Suggest Moods…");
+        suggestMoods.setOnAction(e -> analyzeMoods());
+        scanControls.getChildren().addAll(scanFolder, rescan, duplicates, suggestMoods, cancelScan, scanStatus);
+
+        left.getChildren().addAll(controls, scanControls, songTable);
         left.setStyle(makeGlassStyle(14));
         left.setPadding(new Insets(16));
         return left;
@@ -467,9 +547,8 @@ public class MoodMusicPlayer extends Application {
         createPlaylist.setOnAction(e -> {
             String name = playlistName.getText().trim();
             if (!name.isEmpty()) {
-                db.createPlaylist(name);
                 playlistName.clear();
-                refreshPlaylistView(null);
+                async.run(db -> db.createPlaylist(name), pid -> refreshPlaylistView(null), this::showDatabaseError);
             }
         });
 
@@ -489,73 +568,124 @@ public class MoodMusicPlayer extends Application {
         pMood.setCellValueFactory(new PropertyValueFactory<>("mood"));
         pMood.setPrefWidth(100);
 
-        playlistTable.getColumns().addAll(pId, pTitle, pMood);
+        playlistTable.getColumns().addAll(pId, coverColumn(), pTitle, pMood);
 
         // Playlist selector
         ComboBox<String> playlistSelector = new ComboBox<>();
         playlistSelector.setPromptText("Select playlist");
         refreshPlaylistView(playlistSelector);
 
+        // Drag rows to reorder; the move is applied to the list at once and stored as one row update
+        playlistTable.setRowFactory(tv -> {
+            TableRow<Song> row = new TableRow<>();
+            row.setOnDragDetected(evt -> {
+                if (row.isEmpty()) return;
+                Dragboard board = row.startDragAndDrop(TransferMode.MOVE);
+                ClipboardContent content = new ClipboardContent();
+                content.putString(Integer.toString(row.getIndex()));
+                board.setContent(content);
+                evt.consume();
+            });
+            row.setOnDragOver(evt -> {
+                if (evt.getGestureSource() instanceof TableRow && ((TableRow<?>) evt.getGestureSource()).getTableView() == playlistTable) {
+                    evt.acceptTransferModes(TransferMode.MOVE);
+                }
+                evt.consume();
+            });
+            row.setOnDragDropped(evt -> {
+                String playlist = playlistSelector.getValue();
+                boolean done = false;
+                if (playlist != null && evt.getDragboard().hasString()) {
+                    int from = Integer.parseInt(evt.getDragboard().getString());
+                    // Dropping on the empty area below the rows moves to the end
+                    int to = row.isEmpty() ? playlistSongs.size() - 1 : row.getIndex();
+                    if (from != to) {
+                        movePlaylistSong(playlist, from, to);
+                        done = true;
+                    }
+                }
+                evt.setDropCompleted(done);
+                evt.consume();
+            });
+            // Double-click plays the playlist from that song on
+            row.setOnMouseClicked(evt -> {
+                if (!row.isEmpty() && evt.getClickCount() == 2) playFrom(playlistTable, row.getIndex());
+            });
+            return row;
+        });
+
         Button addToPlaylist = new Button("Add selected song");
         addToPlaylist.setOnAction(e -> {
             Song s = songTable.getSelectionModel().getSelectedItem();
             String pl = playlistSelector.getValue();
             if (s != null && pl != null) {
-                db.addSongToPlaylistByName(pl, s.getId());
-                refreshPlaylistView(playlistSelector);
+                async.run(db -> {
+                    db.addSongToPlaylistByName(pl, s.getId());
+                    return null;
+                }, ignored -> refreshPlaylistView(playlistSelector, pl), this::showDatabaseError);
             }
         });
 
-        // Create a mood selector for playlist generation
-        ComboBox<String> moodForPlaylist = new ComboBox<>();
-        moodForPlaylist.setPromptText("Select mood for playlist");
-        moodForPlaylist.getItems().addAll("Happy", "Sad", "Energetic", "Calm", "Focus");
-        
-        Button generateMood = new Button("Generate mood playlist");
-        generateMood.setOnAction(e -> {
-            String mood = moodForPlaylist.getValue();
-            if (mood == null) {
-                showAlert("Please select a mood first");
-                return;
-            }
-            
-            // Create a unique name with timestamp
-            String timestamp = String.format("%1$tY%1$tm%1$td_%1$tH%1$tM", new java.util.Date());
-            String newName = mood + "_playlist_" + timestamp;
-            
-            // Create playlist and add songs
-            int pid = db.createPlaylist(newName);
-            List<Integer> ids = db.findSongIdsByMood(mood);
-            
-            if (ids.isEmpty()) {
-                showAlert("No songs found for mood: " + mood);
+        Button smartPlaylist = new Button("Smart Playlist…");
+        smartPlaylist.setOnAction(e -> showSmartPlaylistDialog(playlistSelector));
+
+        // Playlist files: an imported file becomes (or extends) the playlist named after it
+        HBox fileControls = new HBox(8);
+        fileControls.setAlignment(Pos.CENTER_LEFT);
+        Button importPlaylist = new Button("Import…");
+        importPlaylist.setOnAction(e -> {
+            FileChooser chooser = playlistFileChooser("Import Playlist");
+            File file = chooser.showOpenDialog(importPlaylist.getScene().getWindow());
+            if (file == null) return;
+            String name = file.getName().replaceFirst("\\.[^.]*$", "");
+            async.run(db -> new PlaylistIO(db).importPlaylist(file.toPath(), name), result -> {
+                refreshPlaylistView(playlistSelector, name);
+                if (result.getCreated() > 0) refreshSongList();
+                showAlert("Imported \"" + name + "\": " + result);
+            }, this::showDatabaseError);
+        });
+        Button exportPlaylist = new Button("Export…");
+        exportPlaylist.setOnAction(e -> {
+            String pl = playlistSelector.getValue();
+            if (pl == null) {
+                showAlert("Select a playlist to export.");
                 return;
             }
-            
-            // Add all matching songs to playlist
-            for (int id: ids) {
-                db.addSongToPlaylist(pid, id);
-            }
-            
-            // Refresh view and select new playlist
-            refreshPlaylistView(playlistSelector);
-            playlistSelector.setValue(newName);
-            
-            showAlert("Created playlist with " + ids.size() + " " + mood + " songs!");
-            moodForPlaylist.setValue(null); // Reset selection
+            FileChooser chooser = playlistFileChooser("Export Playlist");
+            chooser.setInitialFileName(pl + ".m3u8");
+            File file = chooser.showSaveDialog(exportPlaylist.getScene().getWindow());
+            if (file == null) return;
+            async.run(db -> new PlaylistIO(db).exportPlaylist(pl, file.toPath()),
+                    count -> showAlert("Exported " + count + " songs to " + file.getName()), this::showDatabaseError);
         });
-        
-        // Layout for mood playlist generation
-        HBox moodPlaylistControls = new HBox(8);
-        moodPlaylistControls.setAlignment(Pos.CENTER_LEFT);
-        moodPlaylistControls.getChildren().addAll(moodForPlaylist, generateMood);
+        fileControls.getChildren().addAll(smartPlaylist, importPlaylist, exportPlaylist);
 
-        right.getChildren().addAll(pcontrols, playlistSelector, addToPlaylist, moodPlaylistControls, playlistTable);
+        right.getChildren().addAll(pcontrols, playlistSelector, addToPlaylist, fileControls, playlistTable);
         right.setStyle(makeGlassStyle(14));
         right.setPadding(new Insets(16));
         return right;
     }
 
+    /** Opens the on-disk waveform cache; without it the seek bar is drawn plain. */
+    private WaveformCache openWaveformCache() {
+        try {
+            waveforms = WaveformCache.open(Paths.get(WAVEFORM_CACHE_FILE), WaveformCache.DEFAULT_MAX_BYTES);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return waveforms;
+    }
+
+    /** Starts the caching proxy for http songs; without it they stream straight from the origin. */
+    private HttpMediaCache startStreamCache() {
+        try {
+            streams = HttpMediaCache.start(Paths.get(STREAM_CACHE_DIR), HttpMediaCache.DEFAULT_MAX_BYTES);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return streams;
+    }
+
     private HBox buildNowPlayingBar() {
         HBox bar = new HBox(12);
         bar.setPadding(new Insets(12));
@@ -574,6 +704,18 @@ public class MoodMusicPlayer extends Application {
         
         songInfo.getChildren().addAll(nowPlayingLabel, moodLabel);
 
+        ImageView cover = new ImageView();
+        cover.setFitWidth(BAR_COVER_SIZE);
+        cover.setFitHeight(BAR_COVER_SIZE);
+        cover.setPreserveRatio(true);
+        cover.setSmooth(true);
+        // Hovering the cover shows how the cover cache is doing
+        Label coverBox = new Label(null, cover);
+        coverBox.setMinSize(BAR_COVER_SIZE, BAR_COVER_SIZE);
+        Tooltip coverStats = new Tooltip();
+        coverStats.setOnShowing(e -> coverStats.setText(covers.getStats().toString()));
+        coverBox.setTooltip(coverStats);
+
         // Center section - Playback controls
         HBox controls = new HBox(20);
         controls.setAlignment(Pos.CENTER);
@@ -583,14 +725,13 @@ public class MoodMusicPlayer extends Application {
         Button nextButton = new Button("⏭");
         Button stopButton = new Button("⏹");
         
-        Slider timeSlider = new Slider();
-        timeSlider.setPrefWidth(300);
-        timeSlider.setStyle("-fx-control-inner-background: #415A77;");
+        WaveformSeekBar seekBar = new WaveformSeekBar();
+        seekBar.setPrefSize(300, 36);
         
         Label timeLabel = new Label("0:00 / 0:00");
         timeLabel.setTextFill(Color.web("#E0E1DD"));
         
-        controls.getChildren().addAll(prevButton, playButton, nextButton, stopButton, timeSlider, timeLabel);
+        controls.getChildren().addAll(prevButton, playButton, nextButton, stopButton, seekBar, timeLabel);
 
         // Right section - Volume
         HBox volumeBox = new HBox(8);
@@ -609,39 +750,80 @@ public class MoodMusicPlayer extends Application {
         HBox.setHgrow(spacerLeft, Priority.ALWAYS);
         HBox.setHgrow(spacerRight, Priority.ALWAYS);
         
-        bar.getChildren().addAll(songInfo, spacerLeft, controls, spacerRight, volumeBox);
-
-        // Player controls setup
-        playButton.setOnAction(e -> {
-            if (mediaPlayer != null) {
-                if (mediaPlayer.getStatus() == MediaPlayer.Status.PLAYING) {
-                    mediaPlayer.pause();
-                    playButton.setText("▶");
-                } else {
-                    mediaPlayer.play();
-                    playButton.setText("⏸");
-                }
+        bar.getChildren().addAll(coverBox, songInfo, spacerLeft, controls, spacerRight, volumeBox);
+
+        // Wired once; the controller re-targets the controls whenever the track changes
+        playback = new PlaybackController(new PlaybackEngine(), new PlaybackController.Host() {
+            @Override
+            public void trackStarted(Song s) {
+                history.record(s.getId(), PlayHistory.START, 0);
+                cover.setImage(covers.get(s.getPath(), image -> {
+                    if (playback.getEngine().getCurrent() == s) cover.setImage(image);
+                }));
+            }
+
+            @Override
+            public void playbackStopped() {
+                cover.setImage(null);
             }
-        });
 
-        stopButton.setOnAction(e -> {
-            if (mediaPlayer != null) {
-                mediaPlayer.stop();
-                playButton.setText("▶");
-                nowPlayingLabel.setText("Not playing");
-                moodLabel.setText("");
+            @Override
+            public void trackEnded(Song s, boolean completed, Duration position) {
+                long ms = position.isUnknown() ? -1 : (long) position.toMillis();
+                history.record(s.getId(), completed ? PlayHistory.COMPLETE : PlayHistory.SKIP, ms);
             }
-        });
 
-        volumeSlider.valueProperty().addListener((obs, oldVal, newVal) -> {
-            if (mediaPlayer != null) {
-                mediaPlayer.setVolume(newVal.doubleValue() / 100.0);
+            @Override
+            public void playbackFailed(Song s, String message) {
+                showAlert("Error playing '" + s.getTitle() + "': " + message);
             }
-        });
+
+            @Override
+            public void playRequested() {
+                int selected = songTable.getSelectionModel().getSelectedIndex();
+                if (selected >= 0) playFrom(songTable, selected);
+            }
+        }, MOOD_EMOJIS, nowPlayingLabel, moodLabel, prevButton, playButton, nextButton, stopButton,
+            seekBar, timeLabel, volumeSlider, openWaveformCache());
+        playback.getEngine().setStreamCache(startStreamCache());
 
         return bar;
     }
 
+    /** A column of cover thumbnails; rows only ever show images the cache decoded off the FX thread. */
+    private TableColumn<Song, String> coverColumn() {
+        TableColumn<Song, String> col = new TableColumn<>("");
+        col.setPrefWidth(ROW_COVER_SIZE + 12);
+        col.setSortable(false);
+        col.setCellValueFactory(new PropertyValueFactory<>("path"));
+        col.setCellFactory(c -> new TableCell<Song, String>() {
+            private final ImageView view = new ImageView();
+
+            {
+                view.setFitWidth(ROW_COVER_SIZE);
+                view.setFitHeight(ROW_COVER_SIZE);
+                view.setPreserveRatio(true);
+                view.setSmooth(true);
+            }
+
+            @Override
+            protected void updateItem(String path, boolean empty) {
+                super.updateItem(path, empty);
+                if (empty || path == null) {
+                    view.setImage(null);
+                    setGraphic(null);
+                    return;
+                }
+                setGraphic(view);
+                // A miss leaves the cell blank until the image arrives, if the cell still shows this song
+                view.setImage(covers.get(path, image -> {
+                    if (path.equals(getItem())) view.setImage(image);
+                }));
+            }
+        });
+        return col;
+    }
+
     private String makeGlassStyle(int radius) {
         // Basic glass effect: semi-transparent background, blur and light border
         return String.join("",
@@ -658,46 +840,449 @@ public class MoodMusicPlayer extends Application {
     private void refreshSongList() {
         String mood = moodFilter.getValue();
         if (mood == null) mood = "All";
-        List<Song> songs;
-        if (mood.equals("All")) songs = db.getAllSongs();
-        else songs = db.getSongsByMood(mood);
+        // The play-history views list played songs; a search from them covers the whole library
+        boolean played = mood.equals(MOST_PLAYED) || mood.equals(RECENTLY_PLAYED);
+        String filter = mood.equals("All") || played ? null : mood;
+        String query = searchField.getText().trim();
+
+        if (!query.isEmpty()) {
+            // Ranked search results replace the paged library view; shares the key so either supersedes the other
+            songTable.setPlaceholder(new Label("Searching…"));
+            async.runLatest("songList", db -> db.searchSongs(query, filter, SEARCH_LIMIT), songs -> {
+                songTable.setPlaceholder(new Label("No songs found"));
+                allSongs = FXCollections.observableArrayList(songs);
+                songTable.setItems(allSongs);
+            }, this::showDatabaseError);
+            return;
+        }
+
+        if (played) {
+            boolean most = mood.equals(MOST_PLAYED);
+            songTable.setPlaceholder(new Label("Loading…"));
+            async.runLatest("songList", db -> {
+                // Events still buffered count too
+                history.flush();
+                return most ? db.getMostPlayed(PLAYED_LIMIT) : db.getRecentlyPlayed(PLAYED_LIMIT);
+            }, songs -> {
+                songTable.setPlaceholder(new Label("Nothing played yet"));
+                allSongs = FXCollections.observableArrayList(songs);
+                songTable.setItems(allSongs);
+            }, this::showDatabaseError);
+            return;
+        }
 
-        allSongs = FXCollections.observableArrayList(songs);
-        songTable.setItems(allSongs);
+        // Rows are paged in from the database as the table scrolls; only the count is needed up front.
+        // A newer filter change supersedes a count still in flight.
+        songTable.setPlaceholder(new Label("Loading…"));
+        async.runLatest("songList", db -> db.countSongs(filter), count -> {
+            songTable.setPlaceholder(new Label("No songs found"));
+            allSongs = new LazySongList(async, filter, count);
+            songTable.setItems(allSongs);
+        }, this::showDatabaseError);
     }
 
-    private void refreshPlaylistView(ComboBox<String> playlistSelector) {
-        List<String> names = db.getAllPlaylistNames();
-        if (playlistSelector != null) {
-            // Repopulate selector items
-            playlistSelector.getItems().clear();
-            playlistSelector.getItems().addAll(names);
+    /** Orders the moods in the filter by how often they have been played, most played first. */
+    private void sortMoodsByPlays() {
+        async.run(db -> db.getMoodPlayCounts(), counts -> {
+            List<String> moods = new ArrayList<>(moodFilter.getItems());
+            List<String> fixed = Arrays.asList("All", MOST_PLAYED, RECENTLY_PLAYED);
+            moods.removeAll(fixed);
+            // Stable, so moods never played keep their usual order
+            moods.sort((a, b) -> Long.compare(counts.getOrDefault(b, 0L), counts.getOrDefault(a, 0L)));
+            moods.add(0, "All");
+            moods.add(MOST_PLAYED);
+            moods.add(RECENTLY_PLAYED);
+            moodFilter.getItems().setAll(moods);
+        }, this::showDatabaseError);
+    }
 
-            // Add the listener only once (guard via properties map)
-            if (playlistSelector.getProperties().get("listenerAdded") == null) {
-                playlistSelector.valueProperty().addListener((obs, oldv, newv) -> {
-                    if (newv != null) {
-                        List<Song> songs = db.getSongsForPlaylist(newv);
-                        playlistSongs = FXCollections.observableArrayList(songs);
-                        playlistTable.setItems(playlistSongs);
-                    } else {
-                        playlistTable.setItems(FXCollections.observableArrayList());
-                    }
-                });
-                playlistSelector.getProperties().put("listenerAdded", Boolean.TRUE);
+    /** Replaces the song list with the songs nearest to {@code song}; Refresh goes back to the library. */
+    private void showSimilarSongs(Song song) {
+        songTable.setPlaceholder(new Label("Finding similar songs…"));
+        async.runLatest("songList", db -> db.findSimilarSongs(song.getId(), SIMILAR_LIMIT), songs -> {
+            songTable.setPlaceholder(new Label("No similar songs found"));
+            allSongs = FXCollections.observableArrayList(songs);
+            songTable.setItems(allSongs);
+            scanStatus.setText("Songs like '" + song.getTitle() + "' (Refresh to go back)");
+        }, this::showDatabaseError);
+    }
+
+    /**
+     * Scans the folders in the background, showing progress under the search bar, and
+     * reloads the song list when done.
+     */
+    private void startLibraryScan(List<String> roots) {
+        if (scanner != null) return;
+        LibraryScanner s = new LibraryScanner(db);
+        scanner = s;
+        cancelScan.setVisible(true);
+        scanStatus.setText("Scanning…");
+        async.run(db -> s.scan(roots, progress -> Platform.runLater(() -> scanStatus.setText(progress.toString()))),
+            result -> {
+                scanner = null;
+                cancelScan.setVisible(false);
+                scanStatus.setText((s.isCancelled() ? "Scan cancelled: " : "Scan complete: ") + result);
+                refreshSongList();
+                startContentHashing();
+            }, ex -> {
+                scanner = null;
+                cancelScan.setVisible(false);
+                scanStatus.setText("Scan failed");
+                showDatabaseError(ex);
+            });
+    }
+
+    /**
+     * Watches the library folders for files added, changed or removed while the app runs.
+     * Registering walks every folder, so it happens in the background.
+     */
+    private void startLibraryWatcher() {
+        try {
+            watcher = new LibraryWatcher(db, change -> Platform.runLater(() -> libraryChanged(change)));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        watcher.start();
+        async.run(db -> {
+            for (String root : db.getLibraryRoots()) {
+                watcher.watch(Paths.get(root));
+            }
+            return null;
+        }, ignored -> { }, this::showDatabaseError);
+    }
+
+    /**
+     * Brings the song table up to date after the watcher wrote a batch. The paged view keeps
+     * the pages before the first removed song, so the table does not jump or flash.
+     */
+    private void libraryChanged(LibraryWatcher.Change change) {
+        if (scanner == null) scanStatus.setText("Library updated: " + change);
+        if (change.getAdded() > 0 || change.getChanged() > 0) startContentHashing();
+        // Changed files only get a new size and duration, which the table does not show; moved ones a new path
+        if (change.getAdded() == 0 && change.getMoved() == 0 && change.getRemoved() == 0) return;
+        if (!(allSongs instanceof LazySongList)) {
+            refreshSongList();
+            return;
+        }
+        LazySongList list = (LazySongList) allSongs;
+        async.runLatest("songList", db -> db.countSongs(list.getMood()), count -> {
+            if (allSongs == list) list.update(count, change.getFirstRemovedId());
+        }, this::showDatabaseError);
+    }
+
+    /**
+     * Hashes songs added or changed since the last run, in the background and under
+     * ContentHasher's read cap. Asking while a run is going queues one more run after it.
+     */
+    private void startContentHashing() {
+        if (hasher != null) {
+            rehashRequested = true;
+            return;
+        }
+        ContentHasher h = new ContentHasher(db);
+        hasher = h;
+        rehashRequested = false;
+        async.run(db -> h.hashPending(progress -> Platform.runLater(() -> {
+            if (scanner == null && progress.getFilesHashed() > 0) scanStatus.setText("Hashing: " + progress);
+        })), result -> {
+            hasher = null;
+            if (rehashRequested && !h.isCancelled()) startContentHashing();
+        }, ex -> {
+            hasher = null;
+            ex.printStackTrace();
+        });
+    }
+
+    /**
+     * Lists songs with identical audio and offers to merge each group into its oldest song,
+     * which keeps the playlist entries of the others.
+     */
+    private void showDuplicatesDialog() {
+        async.run(db -> db.getDuplicateGroups(), groups -> {
+            if (groups.isEmpty()) {
+                showAlert(hasher != null ? "No duplicates found yet; the library is still being hashed."
+                        : "No duplicate songs found.");
+                return;
+            }
+            ListView<String> list = new ListView<>();
+            int extra = 0;
+            for (List<Song> group : groups) {
+                for (int i = 0; i < group.size(); i++) {
+                    Song song = group.get(i);
+                    list.getItems().add((i == 0 ? "Keep   " : "   merge ") + song.getTitle() + " — " + song.getArtist()
+                            + "   " + song.getPath());
+                }
+                extra += group.size() - 1;
+            }
+            list.setPrefSize(640, 360);
+
+            Dialog<ButtonType> dialog = new Dialog<>();
+            dialog.setTitle("Duplicate Songs");
+            dialog.setHeaderText(groups.size() + " songs are stored more than once (" + extra + " extra copies)");
+            dialog.getDialogPane().setStyle("-fx-background-color: #1B263B;");
+            ButtonType merge = new ButtonType("Merge Duplicates", ButtonBar.ButtonData.OK_DONE);
+            dialog.getDialogPane().getButtonTypes().addAll(merge, ButtonType.CLOSE);
+            dialog.getDialogPane().setContent(list);
+
+            dialog.showAndWait().filter(b -> b == merge).ifPresent(b -> async.run(db -> {
+                int merged = 0;
+                for (List<Song> group : groups) {
+                    List<Integer> copies = new ArrayList<>();
+                    for (Song song : group.subList(1, group.size())) copies.add(song.getId());
+                    db.mergeDuplicates(group.get(0).getId(), copies);
+                    merged += copies.size();
+                }
+                return merged;
+            }, merged -> {
+                refreshSongList();
+                showAlert("Merged " + merged + " duplicate songs. Their files stay on disk; "
+                        + "rescans skip them until they change.");
+            }, this::showDatabaseError));
+        }, this::showDatabaseError);
+    }
+
+    /**
+     * Analyses the audio of songs not analysed yet, then offers a mood for every song whose
+     * stored features point elsewhere than its current mood.
+     */
+    private void analyzeMoods() {
+        if (analyzer != null) return;
+        MoodAnalyzer a = new MoodAnalyzer(db);
+        analyzer = a;
+        async.run(db -> a.analyzePending(progress -> Platform.runLater(() -> {
+            if (scanner == null) scanStatus.setText("Analysing: " + progress);
+        })), result -> {
+            analyzer = null;
+            if (!a.isCancelled()) showMoodSuggestions();
+        }, ex -> {
+            analyzer = null;
+            showDatabaseError(ex);
+        });
+    }
+
+    private void showMoodSuggestions() {
+        // Suggestions come from the stored features; nothing is decoded again here
+        async.run(db -> {
+            List<Song> songs = new ArrayList<>();
+            Map<Integer, String> suggested = new LinkedHashMap<>();
+            db.forEachAnalyzedSong((song, features) -> {
+                String mood = MoodAnalyzer.suggestMood(features);
+                if (!mood.equalsIgnoreCase(song.getMood())) {
+                    songs.add(song);
+                    suggested.put(song.getId(), mood);
+                }
+            });
+            return new Pair<>(songs, suggested);
+        }, found -> {
+            List<Song> songs = found.getKey();
+            Map<Integer, String> suggested = found.getValue();
+            if (songs.isEmpty()) {
+                showAlert("Every analysed song already has the mood its audio suggests.");
+                return;
             }
+            ListView<String> list = new ListView<>();
+            for (Song song : songs) {
+                list.getItems().add(song.getTitle() + " — " + song.getArtist() + ":   "
+                        + song.getMood() + " → " + suggested.get(song.getId()));
+            }
+            list.setPrefSize(560, 360);
+
+            Dialog<ButtonType> dialog = new Dialog<>();
+            dialog.setTitle("Suggested Moods");
+            dialog.setHeaderText(songs.size() + " songs sound like a different mood (only WAV and AIFF files are analysed)");
+            dialog.getDialogPane().setStyle("-fx-background-color: #1B263B;");
+            ButtonType apply = new ButtonType("Apply All", ButtonBar.ButtonData.OK_DONE);
+            dialog.getDialogPane().getButtonTypes().addAll(apply, ButtonType.CLOSE);
+            dialog.getDialogPane().setContent(list);
+
+            dialog.showAndWait().filter(b -> b == apply).ifPresent(b -> async.run(db -> {
+                db.updateMoods(suggested);
+                return suggested.size();
+            }, updated -> {
+                refreshSongList();
+                showAlert("Updated the mood of " + updated + " songs.");
+            }, this::showDatabaseError));
+        }, this::showDatabaseError);
+    }
+
+    /**
+     * Asks for a mood mix, a length and the other constraints, then generates the playlist
+     * in the background with PlaylistGenerator and selects it.
+     */
+    private void showSmartPlaylistDialog(ComboBox<String> playlistSelector) {
+        Dialog<ButtonType> dialog = new Dialog<>();
+        dialog.setTitle("Smart Playlist");
+        dialog.setHeaderText("Build a playlist from a mix of moods");
+        dialog.getDialogPane().setStyle("-fx-background-color: #1B263B;");
+        ButtonType createType = new ButtonType("Create", ButtonBar.ButtonData.OK_DONE);
+        dialog.getDialogPane().getButtonTypes().addAll(createType, ButtonType.CANCEL);
+
+        GridPane grid = new GridPane();
+        grid.setHgap(10);
+        grid.setVgap(10);
+        grid.setPadding(new Insets(20));
+        grid.setStyle("-fx-background-color: #1B263B;");
+
+        String timestamp = String.format("%1$tY%1$tm%1$td_%1$tH%1$tM", new java.util.Date());
+        TextField name = new TextField("Smart_playlist_" + timestamp);
+        grid.add(new Label("Name:"), 0, 0);
+        grid.add(name, 1, 0);
+
+        // Relative shares; leaving every mood at 0 mixes the whole library
+        String[] moods = {"Happy", "Sad", "Energetic", "Calm", "Focus"};
+        List<Spinner<Integer>> weights = new ArrayList<>();
+        int row = 1;
+        for (String mood : moods) {
+            Spinner<Integer> weight = new Spinner<>(0, 10, 0);
+            weight.setPrefWidth(80);
+            weights.add(weight);
+            grid.add(new Label(MOOD_EMOJIS.getOrDefault(mood, "🎵") + " " + mood + ":"), 0, row);
+            grid.add(weight, 1, row++);
+        }
+
+        ComboBox<String> unit = new ComboBox<>();
+        unit.getItems().addAll("tracks", "minutes");
+        unit.setValue("tracks");
+        Spinner<Integer> length = new Spinner<>(1, 100_000, 50);
+        length.setEditable(true);
+        length.setPrefWidth(100);
+        grid.add(new Label("Length:"), 0, row);
+        grid.add(new HBox(8, length, unit), 1, row++);
+
+        CheckBox distinctArtists = new CheckBox("No artist twice in a row");
+        distinctArtists.setSelected(true);
+        CheckBox skipRecent = new CheckBox("Leave out the last " + RECENT_LIMIT + " songs played");
+        skipRecent.setSelected(true);
+        distinctArtists.setTextFill(Color.WHITE);
+        skipRecent.setTextFill(Color.WHITE);
+        grid.add(distinctArtists, 1, row++);
+        grid.add(skipRecent, 1, row++);
+
+        TextField seed = new TextField();
+        seed.setPromptText("random");
+        grid.add(new Label("Seed:"), 0, row);
+        grid.add(seed, 1, row);
+
+        name.setStyle("-fx-text-fill: white; -fx-background-color: #415A77;");
+        seed.setStyle("-fx-text-fill: white; -fx-background-color: #415A77;");
+        grid.getChildren().filtered(node -> node instanceof Label)
+            .forEach(node -> ((Label) node).setTextFill(Color.WHITE));
+        dialog.getDialogPane().setContent(grid);
+
+        Optional<ButtonType> answer = dialog.showAndWait();
+        if (!answer.isPresent() || answer.get() != createType) return;
+        String playlistName = name.getText().trim();
+        if (playlistName.isEmpty()) {
+            showAlert("Playlist name is required!");
+            return;
+        }
 
-            // If there are playlists, select the first by default so the table shows content
-            if (!names.isEmpty() && playlistSelector.getValue() == null) {
-                playlistSelector.setValue(names.get(0));
+        PlaylistGenerator.Constraints c = new PlaylistGenerator.Constraints();
+        for (int i = 0; i < moods.length; i++) {
+            if (weights.get(i).getValue() > 0) c.setMoodWeight(moods[i], weights.get(i).getValue());
+        }
+        if (unit.getValue().equals("tracks")) {
+            c.setTracks(length.getValue());
+        } else {
+            c.setDurationMs(length.getValue() * 60_000L);
+        }
+        c.setDistinctArtists(distinctArtists.isSelected());
+        boolean leaveOutRecent = skipRecent.isSelected();
+        String seedText = seed.getText().trim();
+        try {
+            c.setSeed(seedText.isEmpty() ? System.nanoTime() : Long.parseLong(seedText));
+        } catch (NumberFormatException ex) {
+            // Any text works as a seed; the same text gives the same playlist
+            c.setSeed(seedText.hashCode());
+        }
+
+        async.run(db -> {
+            if (leaveOutRecent) {
+                history.flush();
+                c.setExcludedIds(db.getRecentlyPlayedIds(RECENT_LIMIT));
+            }
+            PlaylistGenerator.Result result = new PlaylistGenerator(db.loadPlaylistCandidates()).generate(c);
+            if (result.getSongIds().length > 0) db.savePlaylist(playlistName, result.getSongIds());
+            return result;
+        }, result -> {
+            if (result.getSongIds().length == 0) {
+                showAlert("No songs match those constraints");
+                return;
             }
+            refreshPlaylistView(playlistSelector, playlistName);
+            showAlert("Created playlist '" + playlistName + "': " + result);
+        }, ex -> {
+            ex.printStackTrace();
+            showAlert("Error generating playlist: " + ex.getMessage());
+        });
+    }
+
+    private void refreshPlaylistView(ComboBox<String> playlistSelector) {
+        refreshPlaylistView(playlistSelector, null);
+    }
+
+    /**
+     * Reloads playlist names; {@code select} (if non-null) is selected once the names are in.
+     */
+    private void refreshPlaylistView(ComboBox<String> playlistSelector, String select) {
+        if (playlistSelector != null && playlistSelector.getProperties().get("listenerAdded") == null) {
+            // Add the listener only once (guard via properties map)
+            playlistSelector.valueProperty().addListener((obs, oldv, newv) -> {
+                if (newv != null) {
+                    loadPlaylistSongs(newv);
+                } else {
+                    playlistTable.setItems(FXCollections.observableArrayList());
+                }
+            });
+            playlistSelector.getProperties().put("listenerAdded", Boolean.TRUE);
         }
-        // if there's at least one playlist, populate the table with the first one
-        if (!names.isEmpty() && playlistSelector == null) {
-            List<Song> songs = db.getSongsForPlaylist(names.get(0));
+
+        async.run(db -> db.getAllPlaylistNames(), names -> {
+            if (playlistSelector != null) {
+                // Repopulate selector items
+                playlistSelector.getItems().setAll(names);
+
+                if (select != null) {
+                    playlistSelector.setValue(select);
+                    // Re-selecting the current playlist fires no change, so reload explicitly
+                    loadPlaylistSongs(select);
+                } else if (!names.isEmpty() && playlistSelector.getValue() == null) {
+                    // If there are playlists, select the first by default so the table shows content
+                    playlistSelector.setValue(names.get(0));
+                }
+            }
+            // if there's at least one playlist, populate the table with the first one
+            if (!names.isEmpty() && playlistSelector == null) {
+                loadPlaylistSongs(names.get(0));
+            }
+        }, this::showDatabaseError);
+    }
+
+    private void loadPlaylistSongs(String playlistName) {
+        // Rapid selector changes cancel the previous load
+        async.runLatest("playlistSongs", db -> db.getSongsForPlaylist(playlistName), songs -> {
             playlistSongs = FXCollections.observableArrayList(songs);
             playlistTable.setItems(playlistSongs);
-        }
+        }, this::showDatabaseError);
+    }
+
+    /**
+     * Moves the entry at {@code from} to {@code to} in the shown playlist and stores the
+     * move; if storing fails the playlist is reloaded to show what the database has.
+     */
+    private void movePlaylistSong(String playlistName, int from, int to) {
+        Song moved = playlistSongs.remove(from);
+        playlistSongs.add(to, moved);
+        playlistTable.getSelectionModel().clearAndSelect(to);
+        int afterSongId = to == 0 ? 0 : playlistSongs.get(to - 1).getId();
+        async.run(db -> {
+            db.moveSongInPlaylist(playlistName, moved.getId(), afterSongId);
+            return null;
+        }, ignored -> {}, ex -> {
+            showDatabaseError(ex);
+            loadPlaylistSongs(playlistName);
+        });
     }
 
     private void showAddSongDialog() {
@@ -723,6 +1308,9 @@ public class MoodMusicPlayer extends Application {
         mood.getItems().addAll("Happy", "Sad", "Energetic", "Calm", "Focus");
         mood.setValue("Happy");
         
+        Label moodHint = new Label();
+        moodHint.setTextFill(Color.web("#E0E1DD"));
+
         TextField path = new TextField();
         path.setPromptText("Media file path or URL (e.g., http://...)");
         
@@ -731,12 +1319,42 @@ public class MoodMusicPlayer extends Application {
             FileChooser fileChooser = new FileChooser();
             fileChooser.setTitle("Select Media File");
             fileChooser.getExtensionFilters().addAll(
-                new FileChooser.ExtensionFilter("Audio Files", "*.mp3", "*.wav", "*.m4a"),
+                new FileChooser.ExtensionFilter("Audio Files", "*.mp3", "*.wav", "*.m4a", "*.aif", "*.aiff"),
                 new FileChooser.ExtensionFilter("All Files", "*.*")
             );
             File file = fileChooser.showOpenDialog(dialog.getOwner());
             if (file != null) {
                 path.setText(file.getAbsolutePath());
+                // Fill in whatever the file's tags carry, unless the user already typed it
+                CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return new TagReader().read(file.toPath());
+                    } catch (IOException ex) {
+                        return null;
+                    }
+                }).thenAccept(tags -> Platform.runLater(() -> {
+                    if (tags == null) return;
+                    if (tags.getTitle() != null && title.getText().trim().isEmpty()) title.setText(tags.getTitle());
+                    if (tags.getArtist() != null && artist.getText().trim().isEmpty()) artist.setText(tags.getArtist());
+                }));
+                // Propose a mood from the audio itself where it can be decoded
+                if (MoodAnalyzer.canAnalyze(file.getName())) {
+                    moodHint.setText("Listening…");
+                    CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return MoodAnalyzer.suggestMood(MoodAnalyzer.analyze(file.toPath()));
+                        } catch (Exception ex) {
+                            return null;
+                        }
+                    }).thenAccept(suggested -> Platform.runLater(() -> {
+                        if (suggested == null) {
+                            moodHint.setText("");
+                            return;
+                        }
+                        mood.setValue(suggested);
+                        moodHint.setText("suggested from the audio");
+                    }));
+                }
             }
         });
 
@@ -750,7 +1368,7 @@ public class MoodMusicPlayer extends Application {
         grid.add(new Label("Artist:"), 0, 1);
         grid.add(artist, 1, 1);
         grid.add(new Label("Mood:"), 0, 2);
-        grid.add(mood, 1, 2);
+        grid.add(new HBox(8, mood, moodHint), 1, 2);
         grid.add(new Label("Media:"), 0, 3);
         grid.add(pathBox, 1, 3);
 
@@ -789,89 +1407,53 @@ public class MoodMusicPlayer extends Application {
                 return;
             }
             
-            try {
-                int id = db.insertSong(s.getTitle(), s.getArtist(), s.getMood(), s.getPath());
-                if (id != -1) {
-                    refreshSongList();
-                    showAlert("Song '" + s.getTitle() + "' added successfully!");
+            // The same audio already in the library is only added again if the user says so
+            async.run(db -> {
+                File file = new File(s.getPath());
+                if (!file.isFile()) return Collections.<Song>emptyList();
+                return db.findSongsByContentHash(ContentHasher.hash(file.toPath()));
+            }, same -> {
+                if (!same.isEmpty() && !showConfirmDialog("Duplicate Song", "This file has the same audio as '"
+                        + same.get(0).getTitle() + "' by " + same.get(0).getArtist() + ". Add it anyway?")) {
+                    return;
                 }
-            } catch (SQLException e) {
-                showAlert("Database error: " + e.getMessage());
-                e.printStackTrace();
-            } catch (Exception e) {
-                showAlert("Error adding song: " + e.getMessage());
+                insertSong(s);
+            }, e -> {
+                showAlert("Error reading file: " + e.getMessage());
                 e.printStackTrace();
-            }
+            });
         });
     }
 
-    private void playSong(Song s) {
-        if (mediaPlayer != null) {
-            mediaPlayer.stop();
-            mediaPlayer.dispose();
-            mediaPlayer = null;
-        }
-        
-        String path = s.getPath();
-        if (path == null || path.trim().isEmpty()) {
-            showAlert("No media file or URL specified for this song");
-            return;
-        }
-        
-        try {
-            Media media;
-            if (path.toLowerCase().startsWith("http")) {
-                // Ensure URL is properly formatted
-                String encodedUrl = path.replace(" ", "%20");
-                media = new Media(encodedUrl);
+    private void insertSong(Song s) {
+        async.run(db -> db.insertSong(s.getTitle(), s.getArtist(), s.getMood(), s.getPath()), id -> {
+            if (id != -1) {
+                refreshSongList();
+                startContentHashing();
+                showAlert("Song '" + s.getTitle() + "' added successfully!");
+            }
+        }, e -> {
+            if (e instanceof SQLException) {
+                showAlert("Database error: " + e.getMessage());
             } else {
-                File file = new File(path);
-                if (!file.exists()) {
-                    showAlert("File not found: " + path);
-                    return;
-                }
-                media = new Media(file.toURI().toString());
+                showAlert("Error adding song: " + e.getMessage());
             }
-            
-            mediaPlayer = new MediaPlayer(media);
-            mediaPlayer.setOnReady(() -> {
-                mediaPlayer.play();
-                nowPlayingLabel.setText(s.getTitle() + " — " + s.getArtist());
-                
-                // Update mood emoji
-                String emoji = MOOD_EMOJIS.getOrDefault(s.getMood(), "🎵");
-                ((Label)((VBox)((HBox)nowPlayingLabel.getParent().getParent()).getChildren().get(0)).getChildren().get(1)).setText(emoji);
-            });
-            
-            mediaPlayer.setOnEndOfMedia(() -> {
-                mediaPlayer.stop();
-                mediaPlayer.seek(Duration.ZERO);
-            });
-            
-            // Update time slider
-            Slider timeSlider = (Slider)((HBox)((HBox)nowPlayingLabel.getParent().getParent()).getChildren().get(2)).getChildren().get(4);
-            Label timeLabel = (Label)((HBox)((HBox)nowPlayingLabel.getParent().getParent()).getChildren().get(2)).getChildren().get(5);
-            
-            mediaPlayer.currentTimeProperty().addListener((obs, oldVal, newVal) -> {
-                if (!timeSlider.isValueChanging()) {
-                    timeSlider.setValue(newVal.toSeconds() / mediaPlayer.getTotalDuration().toSeconds() * 100.0);
-                    timeLabel.setText(String.format("%d:%02d / %d:%02d",
-                        (int)newVal.toMinutes(), (int)newVal.toSeconds() % 60,
-                        (int)mediaPlayer.getTotalDuration().toMinutes(),
-                        (int)mediaPlayer.getTotalDuration().toSeconds() % 60));
-                }
-            });
-            
-            timeSlider.valueProperty().addListener((obs, oldVal, newVal) -> {
-                if (timeSlider.isValueChanging()) {
-                    mediaPlayer.seek(mediaPlayer.getTotalDuration().multiply(newVal.doubleValue() / 100.0));
-                }
-            });
-            
-        } catch (Exception e) {
-            showAlert("Error playing media: " + e.getMessage());
             e.printStackTrace();
+        });
+    }
+
+    /**
+     * Plays the row at {@code index} of the table; the rows after it, in the table's current
+     * order, play next.
+     */
+    private void playFrom(TableView<Song> table, int index) {
+        Song s = table.getItems().get(index);
+        if (s == null) return;
+        if (s.getPath() == null || s.getPath().trim().isEmpty()) {
+            showAlert("No media file or URL specified for this song");
+            return;
         }
+        playback.play(table.getItems(), index);
     }
 
     private void showAlert(String text) {
@@ -888,17 +1470,31 @@ public class MoodMusicPlayer extends Application {
     }
     
     private void deleteSong(Song song) {
-        try {
-            PreparedStatement ps = db.getConnection().prepareStatement(
-                "DELETE FROM songs WHERE id = ?");
-            ps.setInt(1, song.getId());
-            ps.executeUpdate();
+        async.run(db -> {
+            db.deleteSong(song.getId());
+            return null;
+        }, ignored -> {
             refreshSongList();
             showAlert("Song deleted successfully!");
-        } catch (SQLException e) {
+        }, e -> {
             showAlert("Error deleting song: " + e.getMessage());
             e.printStackTrace();
-        }
+        });
+    }
+
+    private static FileChooser playlistFileChooser(String title) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle(title);
+        chooser.getExtensionFilters().addAll(
+            new FileChooser.ExtensionFilter("Playlists", "*.m3u", "*.m3u8", "*.pls", "*.xspf"),
+            new FileChooser.ExtensionFilter("All Files", "*.*")
+        );
+        return chooser;
+    }
+
+    private void showDatabaseError(Throwable e) {
+        e.printStackTrace();
+        showAlert("Database error: " + e.getMessage());
     }
 
     private void showEditSongDialog(Song song) {
@@ -922,7 +1518,7 @@ public class MoodMusicPlayer extends Application {
             FileChooser fileChooser = new FileChooser();
             fileChooser.setTitle("Select Media File");
             fileChooser.getExtensionFilters().addAll(
-                new FileChooser.ExtensionFilter("Audio Files", "*.mp3", "*.wav", "*.m4a"),
+                new FileChooser.ExtensionFilter("Audio Files", "*.mp3", "*.wav", "*.m4a", "*.aif", "*.aiff"),
                 new FileChooser.ExtensionFilter("All Files", "*.*")
             );
             File file = fileChooser.showOpenDialog(dialog.getOwner());
@@ -948,20 +1544,14 @@ public class MoodMusicPlayer extends Application {
 
         dialog.setResultConverter(dialogButton -> {
             if (dialogButton == ButtonType.OK) {
-                try {
-                    PreparedStatement ps = db.getConnection().prepareStatement(
-                        "UPDATE songs SET title = ?, artist = ?, mood = ?, path = ? WHERE id = ?");
-                    ps.setString(1, title.getText());
-                    ps.setString(2, artist.getText());
-                    ps.setString(3, mood.getValue());
-                    ps.setString(4, path.getText());
-                    ps.setInt(5, song.getId());
-                    ps.executeUpdate();
-                    refreshSongList();
-                } catch (SQLException e) {
+                Song updated = new Song(song.getId(), title.getText(), artist.getText(), mood.getValue(), path.getText());
+                async.run(db -> {
+                    db.updateSong(updated);
+                    return null;
+                }, ignored -> refreshSongList(), e -> {
                     e.printStackTrace();
                     showAlert("Error updating song: " + e.getMessage());
-                }
+                });
             }
             return null;
         });
@@ -972,23 +1562,38 @@ public class MoodMusicPlayer extends Application {
         @Override
     public void stop() throws Exception {
         super.stop();
-        if (mediaPlayer != null) {
-            mediaPlayer.stop();
-            mediaPlayer.dispose();
+        if (playback != null) {
+            // Reports the current track as skipped, so it has to go before the history closes
+            playback.dispose();
+        }
+        if (history != null) {
+            // Writes every event still buffered
+            history.close();
+        }
+        if (waveforms != null) {
+            waveforms.close();
+        }
+        if (streams != null) {
+            streams.close();
+        }
+        if (covers != null) {
+            covers.dispose();
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+        if (hasher != null) {
+            hasher.cancel();
+        }
+        if (analyzer != null) {
+            analyzer.cancel();
+        }
+        if (async != null) {
+            async.shutdown();
         }
         if (db != null) {
-            try {
-                // Ensure any pending transactions are committed
-                if (db.getConnection() != null && !db.getConnection().isClosed()) {
-                    if (!db.getConnection().getAutoCommit()) {
-                        db.getConnection().commit();
-                    }
-                }
-            } catch (SQLException e) {
-                System.err.println("Error committing final transactions: " + e.getMessage());
-            } finally {
-                db.close();
-            }
+            // Every write commits before its lease is released, so closing the pool is enough
+            db.close();
         }
     }    public static void main(String[] args) {
         launch(args);
@@ -1015,36 +1620,90 @@ public class MoodMusicPlayer extends Application {
 
     // -- DB helper --
     public static class DBHelper {
-        private Connection conn;
         private final String dbfile;
         private final Object lock = new Object();
         private static final int MAX_RETRIES = 3;
         private static final int RETRY_DELAY_MS = 1000;
+        // SQLite in WAL mode serves many readers alongside a single writer
+        private static final int READ_CONNECTIONS = 4;
+        // Connections idle for longer than this are probed before being handed out again
+        private static final long IDLE_VALIDATE_NANOS = TimeUnit.SECONDS.toNanos(30);
+        private static final long CHECKOUT_TIMEOUT_MS = 30_000;
+        // Prepared statements kept per connection before the least recently used is closed
+        private static final int STATEMENT_CACHE_SIZE = 32;
+        // Rows per driver fetch for streaming reads
+        private static final int DEFAULT_FETCH_SIZE = 512;
+        // Spacing between consecutive playlist positions after a renumbering; a track moved
+        // between two neighbours takes the midpoint, so about 16 moves into the same spot fit
+        private static final long POSITION_GAP = 65536;
+        // A move that leaves neighbours closer than this schedules a background renumbering
+        private static final long REBALANCE_THRESHOLD = 64;
+        // Minimum spacing between data_version checks of the catalog
+        private static final long VERSION_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+        // Song columns with the artist and mood names resolved, in the labels rowToSong reads.
+        // CROSS JOIN pins the lookups as inner loops: with only a handful of moods the planner
+        // would otherwise start from moods and sort every song to honour ORDER BY s.id
+        private static final String SONG_COLUMNS = "SELECT s.id, s.title, a.name AS artist, m.name AS mood, s.path";
+        private static final String LOOKUP_JOINS =
+                " CROSS JOIN artists a ON a.id = s.artist_id CROSS JOIN moods m ON m.id = s.mood_id";
+        private static final String SONG_SELECT = SONG_COLUMNS + " FROM songs s" + LOOKUP_JOINS;
+        // Walks one playlist's entries already in position order, with their lengths for export.
+        // The index is named because the primary key would match playlist_id as well and then need a sort
+        private static final String PLAYLIST_SONG_SELECT = SONG_COLUMNS + ", s.duration_ms FROM playlist_songs ps " +
+                "INDEXED BY idx_playlist_songs_position CROSS JOIN songs s ON s.id = ps.song_id" + LOOKUP_JOINS +
+                " WHERE ps.playlist_id = (SELECT id FROM playlists WHERE name = ?) ORDER BY ps.position";
+
+        private final BlockingQueue<PooledConnection> readPool = new ArrayBlockingQueue<>(READ_CONNECTIONS);
+        private final BlockingQueue<PooledConnection> writePool = new ArrayBlockingQueue<>(1);
+        private final List<PooledConnection> connections = new ArrayList<>();
+        // Package-private (like the pool types below) so nested classes need no nest-host access checks,
+        // which would load the JavaFX outer class
+        volatile boolean closed;
+
+        // Pool counters
+        private final AtomicLong checkouts = new AtomicLong();
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicLong validations = new AtomicLong();
+        private final AtomicLong opened = new AtomicLong();
+        final AtomicLong statementHits = new AtomicLong();
+        final AtomicLong statementMisses = new AtomicLong();
+
+        // In-memory copy of the songs table, written through on every song write
+        private final SongCatalog catalog = new SongCatalog();
+        private final AtomicBoolean catalogLoading = new AtomicBoolean();
+        // Off for one-shot tools, which would pay for loading the whole table and never reuse it
+        private volatile boolean catalogEnabled = true;
+        // Vectors for "more like this", loaded on the first query and kept in step by the writes below
+        private final SimilarityIndex similarity = new SimilarityIndex();
+        private volatile long lastVersionCheck;
+        // Playlists waiting for a background renumbering of their positions
+        private final Set<Integer> pendingRebalances = ConcurrentHashMap.newKeySet();
+        // Background jobs (catalog reloads, playlist rebalancing) that must not hold up callers
+        private final ExecutorService maintenance = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "db-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+
         public DBHelper(String dbfile) {
             this.dbfile = dbfile;
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                try {
-                    if (conn != null && !conn.isClosed()) {
-                        conn.close();
-                    }
-                } catch (SQLException e) {
-                    System.err.println("Error closing database connection: " + e.getMessage());
-                }
-            }));
+            // Connections are opened lazily on first checkout
+            PooledConnection writer = new PooledConnection(false);
+            connections.add(writer);
+            writePool.add(writer);
+            for (int i = 0; i < READ_CONNECTIONS; i++) {
+                PooledConnection reader = new PooledConnection(true);
+                connections.add(reader);
+                readPool.add(reader);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close));
         }
 
         public void initAndSeed() throws RuntimeException {
             synchronized(lock) {
                 for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
-                    try {
-                        // Ensure parent directory exists
-                        File dbFile = new File(dbfile);
-                        File parentDir = dbFile.getParentFile();
-                        if (parentDir != null && !parentDir.exists()) {
-                            parentDir.mkdirs();
-                        }
-                        
-                        ensureConnection();
+                    try (Lease lease = write()) {
+                        Connection conn = lease.connection();
                         
                         // Configure database settings before starting transaction
                         try (Statement st = conn.createStatement()) {
@@ -1055,72 +1714,11 @@ public class MoodMusicPlayer extends Application {
                             st.execute("PRAGMA foreign_keys=ON");
                         }
 
-                        // Use a transaction for schema creation
                         try {
-                            conn.setAutoCommit(false);
-                            try (Statement st = conn.createStatement()) {
-                        
-                                // Create tables with better indices for performance
-                                st.execute("CREATE TABLE IF NOT EXISTS songs (" +
-                                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                                        "title TEXT NOT NULL, " +
-                                        "artist TEXT NOT NULL, " +
-                                        "mood TEXT NOT NULL, " +
-                                        "path TEXT NOT NULL DEFAULT '');");
-                        
-                                st.execute("CREATE INDEX IF NOT EXISTS idx_songs_mood ON songs(mood);");
-                        
-                                st.execute("CREATE TABLE IF NOT EXISTS playlists (" +
-                                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                                        "name TEXT UNIQUE NOT NULL);");
-                                
-                                st.execute("CREATE TABLE IF NOT EXISTS playlist_songs (" +
-                                        "playlist_id INTEGER NOT NULL, " +
-                                        "song_id INTEGER NOT NULL, " +
-                                        "FOREIGN KEY(playlist_id) REFERENCES playlists(id) ON DELETE CASCADE, " +
-                                        "FOREIGN KEY(song_id) REFERENCES songs(id) ON DELETE CASCADE, " +
-                                        "PRIMARY KEY(playlist_id, song_id));");
-                                
-                                st.execute("CREATE INDEX IF NOT EXISTS idx_playlist_songs_song " +
-                                        "ON playlist_songs(song_id);");
-
-                                // Check for existing songs using prepared statement
-                                try (PreparedStatement ps = conn.prepareStatement(
-                                        "SELECT COUNT(*) AS c FROM songs")) {
-                                    ResultSet rs = ps.executeQuery();
-                                    int count = rs.next() ? rs.getInt("c") : 0;
-                                    
-                                    // Seed sample data if empty
-                                    if (count == 0) {
-                                        String[][] sampleSongs = {
-                                            {"Sunshine Drive", "Neon Roads", "Happy", ""},
-                                            {"Midnight Thought", "Quiet Hour", "Calm", ""},
-                                            {"Run Wild", "Pulse Factory", "Energetic", ""},
-                                            {"Rainy Window", "Soft Echo", "Sad", ""},
-                                            {"Study Focus", "Ambient Labs", "Focus", ""}
-                                        };
-                                        
-                                        try (PreparedStatement insert = conn.prepareStatement(
-                                                "INSERT INTO songs (title, artist, mood, path) VALUES (?, ?, ?, ?)")) {
-                                            for (String[] song : sampleSongs) {
-                                                insert.setString(1, song[0]);
-                                                insert.setString(2, song[1]);
-                                                insert.setString(3, song[2]);
-                                                insert.setString(4, song[3]);
-                                                insert.executeUpdate();
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                            conn.commit();
+                            migrate(conn);
                             break; // Successfully initialized, exit the retry loop
                         } catch (SQLException e) {
-                            try {
-                                conn.rollback();
-                            } catch (SQLException rollbackEx) {
-                                System.err.println("Error during rollback: " + rollbackEx.getMessage());
-                            }
+                            lease.fail();
                             if (attempt == MAX_RETRIES - 1) {
                                 throw new RuntimeException("Failed to initialize database after " + MAX_RETRIES + " attempts", e);
                             }
@@ -1131,12 +1729,6 @@ public class MoodMusicPlayer extends Application {
                                 Thread.currentThread().interrupt();
                                 throw new RuntimeException("Interrupted during database initialization", ie);
                             }
-                        } finally {
-                            try {
-                                conn.setAutoCommit(true);
-                            } catch (SQLException e) {
-                                System.err.println("Error resetting auto-commit: " + e.getMessage());
-                            }
                         }
                     } catch (SQLException e) {
                         if (attempt == MAX_RETRIES - 1) {
@@ -1144,190 +1736,486 @@ public class MoodMusicPlayer extends Application {
                         }
                     }
                 }
-            }
-        }
 
-        private void ensureConnection() throws SQLException {
-            synchronized(lock) {
                 try {
-                    if (conn != null && !conn.isClosed()) {
-                        // Test the connection with a shorter timeout
-                        try (Statement st = conn.createStatement()) {
-                            st.setQueryTimeout(1);
-                            st.execute("SELECT 1");
-                            return; // Connection is valid
-                        } catch (SQLException e) {
-                            // Connection test failed, continue to create new connection
-                            System.err.println("Connection test failed: " + e.getMessage());
-                        }
+                    // Seed sample data if empty
+                    if (countSongs(null) == 0) {
+                        insertSongs(Arrays.asList(
+                            new Song(0, "Sunshine Drive", "Neon Roads", "Happy", ""),
+                            new Song(0, "Midnight Thought", "Quiet Hour", "Calm", ""),
+                            new Song(0, "Run Wild", "Pulse Factory", "Energetic", ""),
+                            new Song(0, "Rainy Window", "Soft Echo", "Sad", ""),
+                            new Song(0, "Study Focus", "Ambient Labs", "Focus", "")
+                        ));
                     }
                 } catch (SQLException e) {
-                    System.err.println("Connection validation error: " + e.getMessage());
+                    throw new RuntimeException("Failed to seed sample songs", e);
                 }
 
-                // Clean up old connection if it exists
-                try {
-                    if (conn != null) {
+                if (Boolean.getBoolean("moodmusic.checkPlans")) {
+                    verifyQueryPlans();
+                }
+            }
+        }
+
+        // -- Schema migrations --
+        //
+        // PRAGMA user_version records the last migration applied. Each migration runs in
+        // its own transaction together with the version bump, so a failure leaves the
+        // database at the previous version; steps are also written to be safe to re-run.
+        // Append new migrations to the end of the list; never edit a released one.
+        private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "base schema", false, DBHelper::createBaseSchema),
+            new Migration(2, "move moods and artists into lookup tables", true, DBHelper::normalizeMoodsAndArtists),
+            new Migration(3, "indexes for the hot query shapes", false, DBHelper::addQueryIndexes),
+            new Migration(4, "ordered playlists", false, DBHelper::addPlaylistPositions),
+            new Migration(5, "file state for library scans", false, DBHelper::addLibraryScanState),
+            new Migration(6, "song durations", false, DBHelper::addDurations),
+            new Migration(7, "content hashes for duplicate detection", false, DBHelper::addContentHashes),
+            new Migration(8, "audio features for mood suggestions", false, DBHelper::addAudioFeatures),
+            new Migration(9, "song vectors for similar-song search", false, DBHelper::addSongVectors),
+            new Migration(10, "play history and play counts", false, DBHelper::addPlayHistory)
+        );
+
+        /** Current schema version (the highest migration applied). */
+        public static int schemaVersion() {
+            return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+        }
+
+        private static void migrate(Connection conn) throws SQLException {
+            int current;
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("PRAGMA user_version")) {
+                current = rs.next() ? rs.getInt(1) : 0;
+            }
+            for (Migration m : MIGRATIONS) {
+                if (m.version <= current) continue;
+                try (Statement st = conn.createStatement()) {
+                    // Table rebuilds must not cascade deletes; the pragma is ignored inside a transaction
+                    if (m.rebuildsTables) st.execute("PRAGMA foreign_keys=OFF");
+                    conn.setAutoCommit(false);
+                    try {
+                        m.step.apply(conn);
+                        if (m.rebuildsTables) {
+                            try (ResultSet rs = st.executeQuery("PRAGMA foreign_key_check")) {
+                                if (rs.next()) {
+                                    throw new SQLException("Foreign key violation in " + rs.getString(1) + " after rebuild");
+                                }
+                            }
+                        }
+                        st.execute("PRAGMA user_version = " + m.version);
+                        conn.commit();
+                    } catch (SQLException | RuntimeException e) {
                         try {
-                            conn.close();
-                        } catch (SQLException ignored) {}
+                            conn.rollback();
+                        } catch (SQLException rollbackEx) {
+                            System.err.println("Error during rollback: " + rollbackEx.getMessage());
+                        }
+                        throw new SQLException("Migration " + m.version + " (" + m.description + ") failed", e);
+                    } finally {
+                        conn.setAutoCommit(true);
+                        if (m.rebuildsTables) st.execute("PRAGMA foreign_keys=ON");
                     }
-                } finally {
-                    conn = null;
                 }
+            }
+        }
 
-                    // Create database directory if it doesn't exist
-                    File f = new File(dbfile);
-                    File parent = f.getAbsoluteFile().getParentFile();
-                    if (parent != null && !parent.exists()) {
-                        parent.mkdirs();
-                    }
+        /** v1: the original schema, so databases created before migrations start from a known point. */
+        private static void createBaseSchema(Connection conn) throws SQLException {
+            try (Statement st = conn.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS songs (" +
+                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        "title TEXT NOT NULL, " +
+                        "artist TEXT NOT NULL, " +
+                        "mood TEXT NOT NULL, " +
+                        "path TEXT NOT NULL DEFAULT '');");
 
-                    // Configure SQLite connection for better concurrency
-                    String url = "jdbc:sqlite:" + dbfile + "?busy_timeout=30000";
-                    conn = DriverManager.getConnection(url);
-                
-                    // Configure connection for better reliability and concurrency
-                    try (Statement stmt = conn.createStatement()) {
-                        // Use WAL mode for better concurrency
-                        stmt.execute("PRAGMA journal_mode=WAL");
-                        // Normal synchronization mode for better performance while maintaining safety
-                        stmt.execute("PRAGMA synchronous=NORMAL");
-                        // Increase cache size for better performance
-                        stmt.execute("PRAGMA cache_size=2000");
-                        // Enable memory-mapped I/O for better performance
-                        stmt.execute("PRAGMA mmap_size=268435456"); // 256MB
-                        // Ensure foreign key support
-                        stmt.execute("PRAGMA foreign_keys=ON");
-                    }
+                st.execute("CREATE TABLE IF NOT EXISTS playlists (" +
+                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        "name TEXT UNIQUE NOT NULL);");
+
+                st.execute("CREATE TABLE IF NOT EXISTS playlist_songs (" +
+                        "playlist_id INTEGER NOT NULL, " +
+                        "song_id INTEGER NOT NULL, " +
+                        "FOREIGN KEY(playlist_id) REFERENCES playlists(id) ON DELETE CASCADE, " +
+                        "FOREIGN KEY(song_id) REFERENCES songs(id) ON DELETE CASCADE, " +
+                        "PRIMARY KEY(playlist_id, song_id));");
+
+                st.execute("CREATE INDEX IF NOT EXISTS idx_playlist_songs_song " +
+                        "ON playlist_songs(song_id);");
+
+                st.execute("CREATE TABLE IF NOT EXISTS users (" +
+                        "username TEXT PRIMARY KEY, " +
+                        "password TEXT NOT NULL, " +
+                        "is_admin INTEGER DEFAULT 0);");
+
+                // Full-text index over title/artist, keyed by song id and kept in step by triggers.
+                // Prefix indexes make type-ahead queries on 2-3 characters cheap.
+                boolean ftsExists;
+                try (ResultSet rs = st.executeQuery(
+                        "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'songs_fts'")) {
+                    ftsExists = rs.next();
+                }
+                st.execute("CREATE VIRTUAL TABLE IF NOT EXISTS songs_fts USING fts5(" +
+                        "title, artist, tokenize = 'unicode61 remove_diacritics 2', prefix = '2 3');");
+                if (!ftsExists && hasColumn(conn, "songs", "artist")) {
+                    // First run with search: index the rows already in the library
+                    st.execute("INSERT INTO songs_fts(rowid, title, artist) SELECT id, title, artist FROM songs;");
+                }
             }
         }
 
-        public List<Song> getAllSongs() {
-            List<Song> out = new ArrayList<>();
+        /**
+         * v2: songs reference integer-keyed moods and artists instead of repeating the
+         * names. Rebuilds the songs table, keeping ids so playlists stay intact.
+         */
+        private static void normalizeMoodsAndArtists(Connection conn) throws SQLException {
             try (Statement st = conn.createStatement()) {
-                ResultSet rs = st.executeQuery("SELECT * FROM songs ORDER BY id");
-                while (rs.next()) out.add(rowToSong(rs));
-            } catch (SQLException e) { e.printStackTrace(); }
-            return out;
+                st.execute("CREATE TABLE IF NOT EXISTS moods (" +
+                        "id INTEGER PRIMARY KEY, " +
+                        "name TEXT NOT NULL UNIQUE COLLATE NOCASE);");
+                st.execute("CREATE TABLE IF NOT EXISTS artists (" +
+                        "id INTEGER PRIMARY KEY, " +
+                        "name TEXT NOT NULL UNIQUE COLLATE NOCASE);");
+                st.execute("INSERT OR IGNORE INTO moods(name) VALUES " +
+                        "('Happy'), ('Sad'), ('Energetic'), ('Calm'), ('Focus');");
+
+                if (hasColumn(conn, "songs", "artist")) {
+                    st.execute("INSERT OR IGNORE INTO moods(name) SELECT DISTINCT mood FROM songs;");
+                    st.execute("INSERT OR IGNORE INTO artists(name) SELECT DISTINCT artist FROM songs;");
+                    st.execute("DROP TABLE IF EXISTS songs_v2;");
+                    st.execute("CREATE TABLE songs_v2 (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "title TEXT NOT NULL, " +
+                            "artist_id INTEGER NOT NULL REFERENCES artists(id), " +
+                            "mood_id INTEGER NOT NULL REFERENCES moods(id), " +
+                            "path TEXT NOT NULL DEFAULT '');");
+                    st.execute("INSERT INTO songs_v2(id, title, artist_id, mood_id, path) " +
+                            "SELECT s.id, s.title, a.id, m.id, s.path FROM songs s " +
+                            "JOIN artists a ON a.name = s.artist JOIN moods m ON m.name = s.mood;");
+                    // Also drops the old mood index and the FTS triggers defined on songs
+                    st.execute("DROP TABLE songs;");
+                    st.execute("ALTER TABLE songs_v2 RENAME TO songs;");
+                }
+
+                // The search index keeps storing the artist name; look it up on the way in
+                st.execute("DROP TRIGGER IF EXISTS songs_fts_insert;");
+                st.execute("DROP TRIGGER IF EXISTS songs_fts_update;");
+                st.execute("CREATE TRIGGER IF NOT EXISTS songs_fts_insert AFTER INSERT ON songs BEGIN " +
+                        "INSERT INTO songs_fts(rowid, title, artist) " +
+                        "VALUES (new.id, new.title, (SELECT name FROM artists WHERE id = new.artist_id)); END;");
+                st.execute("CREATE TRIGGER IF NOT EXISTS songs_fts_delete AFTER DELETE ON songs BEGIN " +
+                        "DELETE FROM songs_fts WHERE rowid = old.id; END;");
+                st.execute("CREATE TRIGGER IF NOT EXISTS songs_fts_update AFTER UPDATE OF title, artist_id ON songs BEGIN " +
+                        "UPDATE songs_fts SET title = new.title, " +
+                        "artist = (SELECT name FROM artists WHERE id = new.artist_id) WHERE rowid = new.id; END;");
+            }
         }
 
-        public List<Song> getSongsByMood(String mood) {
-            List<Song> out = new ArrayList<>();
-            try (PreparedStatement ps = conn.prepareStatement("SELECT * FROM songs WHERE mood = ? ORDER BY id")) {
-                ps.setString(1, mood);
-                ResultSet rs = ps.executeQuery();
-                while (rs.next()) out.add(rowToSong(rs));
-            } catch (SQLException e) { e.printStackTrace(); }
-            return out;
+        /** v3: indexes matching the WHERE/ORDER BY of the queries below, then fresh planner stats. */
+        private static void addQueryIndexes(Connection conn) throws SQLException {
+            try (Statement st = conn.createStatement()) {
+                // Keyset pages and counts per mood: (mood_id, rowid) order
+                st.execute("CREATE INDEX IF NOT EXISTS idx_songs_mood ON songs(mood_id);");
+                // Mood playlists ordered by title; covering, since the rowid rides along
+                st.execute("CREATE INDEX IF NOT EXISTS idx_songs_mood_title ON songs(mood_id, title);");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_songs_artist ON songs(artist_id);");
+                st.execute("ANALYZE;");
+            }
         }
 
-        public int insertSong(String title, String artist, String mood, String path) throws SQLException {
-            if (title == null || title.trim().isEmpty()) {
-                throw new SQLException("Title cannot be empty");
+        /** v4: a sparse position per playlist entry; existing playlists keep their insertion order. */
+        private static void addPlaylistPositions(Connection conn) throws SQLException {
+            try (Statement st = conn.createStatement()) {
+                if (!hasColumn(conn, "playlist_songs", "position")) {
+                    st.execute("ALTER TABLE playlist_songs ADD COLUMN position INTEGER NOT NULL DEFAULT 0;");
+                }
+                st.execute("UPDATE playlist_songs SET position = r.rn * " + POSITION_GAP + " FROM (" +
+                        "SELECT rowid AS rid, ROW_NUMBER() OVER (PARTITION BY playlist_id ORDER BY rowid) AS rn " +
+                        "FROM playlist_songs) r WHERE playlist_songs.rowid = r.rid;");
+                // Ordered reads of one playlist are a range scan of this index
+                st.execute("CREATE INDEX IF NOT EXISTS idx_playlist_songs_position " +
+                        "ON playlist_songs(playlist_id, position);");
             }
-            if (artist == null || artist.trim().isEmpty()) {
-                throw new SQLException("Artist cannot be empty");
+        }
+
+        /** v5: size and mtime per scanned file, a path index for rescans, and the folders to scan. */
+        private static void addLibraryScanState(Connection conn) throws SQLException {
+            try (Statement st = conn.createStatement()) {
+                // NULL for songs added by hand, which rescans leave alone
+                if (!hasColumn(conn, "songs", "size")) st.execute("ALTER TABLE songs ADD COLUMN size INTEGER;");
+                if (!hasColumn(conn, "songs", "mtime")) st.execute("ALTER TABLE songs ADD COLUMN mtime INTEGER;");
+                // A rescan loads the files under one root as a range of this index
+                st.execute("CREATE INDEX IF NOT EXISTS idx_songs_path ON songs(path);");
+                st.execute("CREATE TABLE IF NOT EXISTS library_roots (" +
+                        "id INTEGER PRIMARY KEY, " +
+                        "path TEXT NOT NULL UNIQUE);");
             }
-            if (mood == null || mood.trim().isEmpty()) {
-                throw new SQLException("Mood must be selected");
+        }
+
+        /** v6: duration read from the file's headers by library scans; NULL when unknown. */
+        private static void addDurations(Connection conn) throws SQLException {
+            if (!hasColumn(conn, "songs", "duration_ms")) {
+                try (Statement st = conn.createStatement()) {
+                    st.execute("ALTER TABLE songs ADD COLUMN duration_ms INTEGER;");
+                }
             }
-            
-            try (PreparedStatement ps = conn.prepareStatement(
-                    "INSERT INTO songs(title, artist, mood, path) VALUES(?,?,?,?)", 
-                    Statement.RETURN_GENERATED_KEYS)) {
-                ps.setString(1, title.trim());
-                ps.setString(2, artist.trim());
-                ps.setString(3, mood);
-                ps.setString(4, path != null ? path.trim() : "");
-                
-                int affected = ps.executeUpdate();
-                if (affected > 0) {
-                    ResultSet gk = ps.getGeneratedKeys();
-                    if (gk.next()) {
-                        return gk.getInt(1);
-                    }
+        }
+
+        /**
+         * v7: a hash of each file's audio, filled in by ContentHasher, and the paths of duplicate
+         * files folded into another song so scans do not add them back.
+         */
+        private static void addContentHashes(Connection conn) throws SQLException {
+            try (Statement st = conn.createStatement()) {
+                if (!hasColumn(conn, "songs", "content_hash")) st.execute("ALTER TABLE songs ADD COLUMN content_hash TEXT;");
+                // Serves both duplicate lookups and the NULL range of files still to hash, in id order
+                st.execute("CREATE INDEX IF NOT EXISTS idx_songs_content_hash ON songs(content_hash);");
+                st.execute("CREATE TABLE IF NOT EXISTS merged_paths (" +
+                        "path TEXT PRIMARY KEY, " +
+                        "size INTEGER NOT NULL, " +
+                        "mtime INTEGER NOT NULL, " +
+                        "song_id INTEGER NOT NULL REFERENCES songs(id) ON DELETE CASCADE);");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_merged_paths_song ON merged_paths(song_id);");
+            }
+        }
+
+        /**
+         * v8: features MoodAnalyzer decoded from each file, so moods can be suggested again
+         * without decoding. A row of NULLs marks a file that could not be decoded.
+         */
+        private static void addAudioFeatures(Connection conn) throws SQLException {
+            try (Statement st = conn.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS song_features (" +
+                        "song_id INTEGER PRIMARY KEY REFERENCES songs(id) ON DELETE CASCADE, " +
+                        "rms REAL, " +
+                        "centroid_hz REAL, " +
+                        "zero_crossing_rate REAL, " +
+                        "tempo_bpm REAL, " +
+                        "seconds REAL);");
+            }
+        }
+
+        /**
+         * v9: each song's SimilarityIndex vector, so the index loads without recomputing.
+         * Rows are deleted whenever a song's mood, artist or features change.
+         */
+        private static void addSongVectors(Connection conn) throws SQLException {
+            try (Statement st = conn.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS song_vectors (" +
+                        "song_id INTEGER PRIMARY KEY REFERENCES songs(id) ON DELETE CASCADE, " +
+                        "vector BLOB NOT NULL);");
+            }
+        }
+
+        /**
+         * v10: every play start, skip and completion PlayHistory records, plus per-song and
+         * per-mood totals kept up to date with each batch so the views never read the log.
+         * The log keeps events of songs deleted since; the totals go with the song.
+         */
+        private static void addPlayHistory(Connection conn) throws SQLException {
+            try (Statement st = conn.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS play_events (" +
+                        "id INTEGER PRIMARY KEY, " +
+                        "song_id INTEGER NOT NULL, " +
+                        "event INTEGER NOT NULL, " +
+                        "at INTEGER NOT NULL, " +
+                        "position_ms INTEGER);");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_play_events_song ON play_events(song_id, at);");
+                st.execute("CREATE TABLE IF NOT EXISTS song_play_stats (" +
+                        "song_id INTEGER PRIMARY KEY REFERENCES songs(id) ON DELETE CASCADE, " +
+                        "plays INTEGER NOT NULL DEFAULT 0, " +
+                        "completions INTEGER NOT NULL DEFAULT 0, " +
+                        "skips INTEGER NOT NULL DEFAULT 0, " +
+                        "last_played INTEGER);");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_song_play_stats_plays ON song_play_stats(plays, last_played);");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_song_play_stats_last ON song_play_stats(last_played);");
+                st.execute("CREATE TABLE IF NOT EXISTS mood_play_stats (" +
+                        "mood_id INTEGER PRIMARY KEY REFERENCES moods(id) ON DELETE CASCADE, " +
+                        "plays INTEGER NOT NULL DEFAULT 0, " +
+                        "last_played INTEGER);");
+            }
+        }
+
+        private static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+            try (Statement st = conn.createStatement();
+                 ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")")) {
+                while (rs.next()) {
+                    if (column.equalsIgnoreCase(rs.getString("name"))) return true;
                 }
-                throw new SQLException("Failed to insert song");
             }
+            return false;
         }
 
-        public int createPlaylist(String name) {
-            try (PreparedStatement ps = conn.prepareStatement("INSERT OR IGNORE INTO playlists(name) VALUES(?)", Statement.RETURN_GENERATED_KEYS)) {
-                ps.setString(1, name);
-                ps.executeUpdate();
-                ResultSet gk = ps.getGeneratedKeys();
-                if (gk.next()) return gk.getInt(1);
-                // if ignored (already exists), return existing id
-                try (PreparedStatement ps2 = conn.prepareStatement("SELECT id FROM playlists WHERE name = ?")) {
-                    ps2.setString(1, name);
-                    ResultSet rs = ps2.executeQuery();
-                    if (rs.next()) return rs.getInt("id");
+        /**
+         * Runs EXPLAIN QUERY PLAN over the queries the UI issues on every interaction and
+         * fails if any of them scans a table of at least PLAN_CHECK_MIN_ROWS rows. Smaller
+         * tables are skipped: scanning them is the planner's right call. Enable at startup
+         * with -Dmoodmusic.checkPlans=true; QueryPlanCheck runs it on a seeded library.
+         */
+        public void verifyQueryPlans() {
+            verifyQueryPlans(PLAN_CHECK_MIN_ROWS);
+        }
+
+        /** As verifyQueryPlans(), flagging scans of tables with at least {@code minRows} rows; 0 flags every scan. */
+        public void verifyQueryPlans(long minRows) {
+            Object[][] hotQueries = {
+                {SONG_SELECT + " WHERE s.id > ? ORDER BY s.id LIMIT ?", 0, 200},
+                {SONG_SELECT + " WHERE s.mood_id = (SELECT id FROM moods WHERE name = ?) AND s.id > ? ORDER BY s.id LIMIT ?", "Happy", 0, 200},
+                {"SELECT COUNT(*) FROM songs WHERE mood_id = (SELECT id FROM moods WHERE name = ?)", "Happy"},
+                {"SELECT id FROM songs WHERE mood_id = (SELECT id FROM moods WHERE name = ?) ORDER BY title", "happy"},
+                {PLAYLIST_SONG_SELECT, "x"},
+                {"SELECT position FROM playlist_songs WHERE playlist_id = ? AND position > ? AND song_id <> ? " +
+                        "ORDER BY position LIMIT 1", 1, 0L, 1},
+                {SONG_SELECT + " JOIN songs_fts ON songs_fts.rowid = s.id WHERE songs_fts MATCH ? ORDER BY bm25(songs_fts, 10.0, 5.0) LIMIT ?", "\"a\"*", 50},
+                {"SELECT id FROM artists WHERE name = ?", "x"},
+                {MOST_PLAYED_SELECT, 50},
+                {RECENTLY_PLAYED_SELECT, 50},
+            };
+            List<String> problems = new ArrayList<>();
+            try (Lease lease = read()) {
+                for (Object[] q : hotQueries) {
+                    try (PreparedStatement ps = lease.connection().prepareStatement("EXPLAIN QUERY PLAN " + q[0])) {
+                        for (int i = 1; i < q.length; i++) ps.setObject(i, q[i]);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                String detail = rs.getString("detail");
+                                // FTS5 answers MATCH from its own index but reports it as a scan
+                                if (!detail.startsWith("SCAN") || detail.contains("VIRTUAL TABLE")) continue;
+                                String table = detail.split(" ")[1];
+                                table = PLAN_ALIASES.getOrDefault(table, table);
+                                // On a small table a scan is the planner's right call; flag it once it has grown
+                                if (minRows == 0 || rowCount(lease, table) >= minRows) problems.add(detail + "  <-  " + q[0]);
+                            }
+                        }
+                    }
                 }
-            } catch (SQLException e) { e.printStackTrace(); }
-            return -1;
+            } catch (SQLException e) {
+                throw new IllegalStateException("Could not explain hot queries", e);
+            }
+            if (!problems.isEmpty()) {
+                throw new IllegalStateException("Full scans in hot queries:\n" + String.join("\n", problems));
+            }
         }
 
-        public void addSongToPlaylist(int playlistId, int songId) {
-            try (PreparedStatement ps = conn.prepareStatement("INSERT OR IGNORE INTO playlist_songs(playlist_id, song_id) VALUES(?,?)")) {
-                ps.setInt(1, playlistId);
-                ps.setInt(2, songId);
-                ps.executeUpdate();
-            } catch (SQLException e) { e.printStackTrace(); }
+        private static final int PLAN_CHECK_MIN_ROWS = 1000;
+        private static final Map<String, String> PLAN_ALIASES = new HashMap<>();
+        static {
+            PLAN_ALIASES.put("s", "songs");
+            PLAN_ALIASES.put("a", "artists");
+            PLAN_ALIASES.put("m", "moods");
+            PLAN_ALIASES.put("ps", "playlist_songs");
+            PLAN_ALIASES.put("p", "song_play_stats");
         }
 
-        public void addSongToPlaylistByName(String playlistName, int songId) {
-            int pid = createPlaylist(playlistName);
-            if (pid != -1) addSongToPlaylist(pid, songId);
+        private static long rowCount(Lease lease, String table) throws SQLException {
+            try (Statement st = lease.connection().createStatement();
+                 ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM " + table)) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
         }
 
-        public List<String> getAllPlaylistNames() {
-            List<String> out = new ArrayList<>();
-            try (Statement st = conn.createStatement()) {
-                ResultSet rs = st.executeQuery("SELECT name FROM playlists ORDER BY name");
-                while (rs.next()) out.add(rs.getString("name"));
-            } catch (SQLException e) { e.printStackTrace(); }
-            return out;
+        /** A numbered schema change. */
+        static final class Migration {
+            final int version;
+            final String description;
+            final boolean rebuildsTables;
+            final MigrationStep step;
+
+            Migration(int version, String description, boolean rebuildsTables, MigrationStep step) {
+                this.version = version;
+                this.description = description;
+                this.rebuildsTables = rebuildsTables;
+                this.step = step;
+            }
         }
 
-        public List<Song> getSongsForPlaylist(String playlistName) {
-            List<Song> out = new ArrayList<>();
-            String sql = "SELECT s.* FROM songs s JOIN playlist_songs ps ON s.id = ps.song_id JOIN playlists p ON p.id = ps.playlist_id WHERE p.name = ?";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setString(1, playlistName);
-                ResultSet rs = ps.executeQuery();
-                while (rs.next()) out.add(rowToSong(rs));
-            } catch (SQLException e) { e.printStackTrace(); }
-            return out;
+        interface MigrationStep {
+            void apply(Connection conn) throws SQLException;
         }
 
-        public List<Integer> findSongIdsByMood(String mood) {
-            List<Integer> out = new ArrayList<>();
-            try (PreparedStatement ps = conn.prepareStatement("SELECT id FROM songs WHERE LOWER(mood) = LOWER(?) ORDER BY title")) {
-                ps.setString(1, mood);
-                ResultSet rs = ps.executeQuery();
-                while (rs.next()) out.add(rs.getInt("id"));
-            } catch (SQLException e) { 
-                e.printStackTrace();
-                System.err.println("Error finding songs for mood: " + mood);
+        /** Checks out a read-only connection; close the lease to hand it back. */
+        public Lease read() throws SQLException {
+            return checkout(readPool);
+        }
+
+        /** Checks out the single write connection; close the lease to hand it back. */
+        public Lease write() throws SQLException {
+            return checkout(writePool);
+        }
+
+        /** Checks out the write connection only if it is free right now; null otherwise. */
+        private Lease tryWrite() throws SQLException {
+            if (closed) return null;
+            PooledConnection pc = writePool.poll();
+            if (pc == null) return null;
+            checkouts.incrementAndGet();
+            try {
+                ensureConnection(pc);
+            } catch (SQLException | RuntimeException e) {
+                writePool.offer(pc);
+                throw e;
             }
-            return out;
+            return new Lease(pc, writePool);
         }
 
-        private Song rowToSong(ResultSet rs) throws SQLException {
-            return new Song(rs.getInt("id"), rs.getString("title"), rs.getString("artist"), rs.getString("mood"), rs.getString("path"));
+        private Lease checkout(BlockingQueue<PooledConnection> pool) throws SQLException {
+            if (closed) throw new SQLException("Database is closed");
+            checkouts.incrementAndGet();
+            PooledConnection pc = pool.poll();
+            if (pc == null) {
+                waits.incrementAndGet();
+                try {
+                    pc = pool.poll(CHECKOUT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a connection", ie);
+                }
+                if (pc == null) {
+                    throw new SQLException("Timed out waiting for a database connection");
+                }
+            }
+            try {
+                ensureConnection(pc);
+            } catch (SQLException | RuntimeException e) {
+                pool.offer(pc);
+                throw e;
+            }
+            return new Lease(pc, pool);
         }
 
-        public Connection getConnection() throws SQLException {
-            for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+        /**
+         * Makes sure the pooled connection is open. A live connection is only probed
+         * when it has been idle for a while or its last user reported an error, so the
+         * common checkout costs no round trip at all.
+         */
+        private void ensureConnection(PooledConnection pc) throws SQLException {
+            if (pc.conn != null) {
+                boolean idle = System.nanoTime() - pc.lastUsed > IDLE_VALIDATE_NANOS;
+                if (!pc.suspect && !idle) return;
+
+                validations.incrementAndGet();
                 try {
-                    ensureConnection();
-                    // Test the connection
-                    try (Statement st = conn.createStatement()) {
-                        st.setQueryTimeout(1);
-                        st.execute("SELECT 1");
-                        return conn;
+                    if (!pc.conn.isClosed()) {
+                        try (Statement st = pc.conn.createStatement()) {
+                            st.setQueryTimeout(1);
+                            st.execute("SELECT 1");
+                            pc.suspect = false;
+                            return; // Connection is valid
+                        }
                     }
+                } catch (SQLException e) {
+                    // Connection test failed, continue to create new connection
+                    System.err.println("Connection test failed: " + e.getMessage());
+                }
+                pc.closeQuietly();
+            }
+
+            for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+                try {
+                    pc.conn = openConnection(pc.readOnly);
+                    pc.suspect = false;
+                    opened.incrementAndGet();
+                    return;
                 } catch (SQLException e) {
                     if (attempt == MAX_RETRIES - 1) throw e;
                     try {
@@ -1338,17 +2226,1914 @@ public class MoodMusicPlayer extends Application {
                     }
                 }
             }
-            throw new SQLException("Failed to get valid connection after " + MAX_RETRIES + " attempts");
         }
 
-        public void close() {
-            synchronized(lock) {
-                try {
-                    if (conn != null) {
-                        conn.close();
-                        conn = null;
-                    }
-                } catch (SQLException ignored) {}
+        private Connection openConnection(boolean readOnly) throws SQLException {
+            // Create database directory if it doesn't exist
+            File f = new File(dbfile);
+            File parent = f.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+
+            // Configure SQLite connection for better concurrency
+            String url = "jdbc:sqlite:" + dbfile + "?busy_timeout=30000";
+            Connection conn = DriverManager.getConnection(url);
+
+            // Configure connection for better reliability and concurrency
+            try (Statement stmt = conn.createStatement()) {
+                // Use WAL mode for better concurrency
+                stmt.execute("PRAGMA journal_mode=WAL");
+                // Normal synchronization mode for better performance while maintaining safety
+                stmt.execute("PRAGMA synchronous=NORMAL");
+                // Increase cache size for better performance
+                stmt.execute("PRAGMA cache_size=2000");
+                // Enable memory-mapped I/O for better performance
+                stmt.execute("PRAGMA mmap_size=268435456"); // 256MB
+                // Ensure foreign key support
+                stmt.execute("PRAGMA foreign_keys=ON");
+                // Guard reader connections against accidental writes
+                if (readOnly) stmt.execute("PRAGMA query_only=ON");
+            } catch (SQLException e) {
+                conn.close();
+                throw e;
+            }
+            return conn;
+        }
+
+        public List<Song> getAllSongs() {
+            List<Song> out = new ArrayList<>();
+            try {
+                forEachSong(null, out::add);
+            } catch (SQLException e) { e.printStackTrace(); }
+            return out;
+        }
+
+        public List<Song> getSongsByMood(String mood) {
+            List<Song> out = new ArrayList<>();
+            try {
+                forEachSong(mood, out::add);
+            } catch (SQLException e) { e.printStackTrace(); }
+            return out;
+        }
+
+        /**
+         * Feeds every song (or every song of a mood, when mood is non-null) to the action
+         * in id order, straight off the result set.
+         */
+        public void forEachSong(String mood, Consumer<Song> action) throws SQLException {
+            try (Stream<Song> songs = streamSongs(mood, DEFAULT_FETCH_SIZE)) {
+                songs.forEach(action);
+            } catch (UncheckedSQLException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Returns a lazy stream of songs backed by a live result set. The stream holds a
+         * read connection until it is closed, so always use it in try-with-resources.
+         * Database errors while iterating surface as {@link UncheckedSQLException}.
+         */
+        public Stream<Song> streamSongs(String mood, int fetchSize) throws SQLException {
+            Lease lease = read();
+            try {
+                PreparedStatement ps = lease.prepare(mood == null
+                        ? SONG_SELECT + " ORDER BY s.id"
+                        : SONG_SELECT + " WHERE s.mood_id = (SELECT id FROM moods WHERE name = ?) ORDER BY s.id");
+                if (mood != null) ps.setString(1, mood);
+                ps.setFetchSize(fetchSize);
+                ResultSet rs = ps.executeQuery();
+                Spliterator<Song> rows = new Spliterators.AbstractSpliterator<Song>(
+                        Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                    @Override
+                    public boolean tryAdvance(Consumer<? super Song> action) {
+                        try {
+                            if (!rs.next()) return false;
+                            action.accept(rowToSong(rs));
+                            return true;
+                        } catch (SQLException e) {
+                            lease.fail();
+                            throw new UncheckedSQLException(e);
+                        }
+                    }
+                };
+                return StreamSupport.stream(rows, false).onClose(() -> {
+                    closeResource(rs);
+                    lease.close();
+                });
+            } catch (SQLException | RuntimeException e) {
+                lease.fail();
+                lease.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Scans songs reading only the requested columns into a single reusable
+         * {@link SongRow}; the holder is overwritten for every row, so copy anything the
+         * sink needs to keep. Scanning only {@link Column#ID} allocates nothing per row.
+         */
+        public void scanSongs(String mood, Consumer<SongRow> sink, Column... columns) throws SQLException {
+            StringBuilder sql = new StringBuilder("SELECT ");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) sql.append(", ");
+                sql.append(columns[i].sql);
+            }
+            sql.append(" FROM songs s");
+            // Join the lookup tables only when their names are actually read
+            for (Column c : columns) {
+                if (c == Column.ARTIST) sql.append(" CROSS JOIN artists a ON a.id = s.artist_id");
+                if (c == Column.MOOD) sql.append(" CROSS JOIN moods m ON m.id = s.mood_id");
+            }
+            if (mood != null) sql.append(" WHERE s.mood_id = (SELECT id FROM moods WHERE name = ?)");
+            sql.append(" ORDER BY s.id");
+
+            SongRow row = new SongRow();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(sql.toString());
+                if (mood != null) ps.setString(1, mood);
+                ps.setFetchSize(DEFAULT_FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        for (int i = 0; i < columns.length; i++) {
+                            switch (columns[i]) {
+                                case ID: row.id = rs.getInt(i + 1); break;
+                                case TITLE: row.title = rs.getString(i + 1); break;
+                                case ARTIST: row.artist = rs.getString(i + 1); break;
+                                case MOOD: row.mood = rs.getString(i + 1); break;
+                                case PATH: row.path = rs.getString(i + 1); break;
+                            }
+                        }
+                        sink.accept(row);
+                    }
+                } catch (SQLException e) {
+                    lease.fail();
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Returns up to {@code limit} songs with an id greater than {@code afterId}, in id
+         * order. Keyset pagination: each page is an index range scan no matter how deep
+         * into the library it starts. A null mood means all songs.
+         */
+        public List<Song> getSongsPage(String mood, int afterId, int limit) {
+            if (catalogReady()) {
+                List<Song> cached = catalog.page(mood, afterId, limit);
+                if (cached != null) return cached;
+            }
+            List<Song> out = new ArrayList<>(limit);
+            try (Lease lease = read()) {
+                PreparedStatement ps;
+                if (mood == null) {
+                    ps = lease.prepare(SONG_SELECT + " WHERE s.id > ? ORDER BY s.id LIMIT ?");
+                    ps.setInt(1, afterId);
+                    ps.setInt(2, limit);
+                } else {
+                    ps = lease.prepare(SONG_SELECT + " WHERE s.mood_id = (SELECT id FROM moods WHERE name = ?) AND s.id > ? ORDER BY s.id LIMIT ?");
+                    ps.setString(1, mood);
+                    ps.setInt(2, afterId);
+                    ps.setInt(3, limit);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(rowToSong(rs));
+                }
+            } catch (SQLException e) { e.printStackTrace(); }
+            return out;
+        }
+
+        /**
+         * Returns the id of the song just before row {@code offset} in id order, i.e. the
+         * {@code afterId} that starts a page at that row. Used once to seed a jump into the
+         * middle of the list; subsequent pages continue from the previous page's last id.
+         */
+        public int findPageAnchor(String mood, int offset) {
+            if (offset <= 0) return 0;
+            if (catalogReady()) {
+                int cached = catalog.anchor(mood, offset);
+                if (cached >= 0) return cached;
+            }
+            try (Lease lease = read()) {
+                PreparedStatement ps;
+                if (mood == null) {
+                    ps = lease.prepare("SELECT id FROM songs ORDER BY id LIMIT 1 OFFSET ?");
+                    ps.setInt(1, offset - 1);
+                } else {
+                    ps = lease.prepare("SELECT id FROM songs WHERE mood_id = (SELECT id FROM moods WHERE name = ?) ORDER BY id LIMIT 1 OFFSET ?");
+                    ps.setString(1, mood);
+                    ps.setInt(2, offset - 1);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) return rs.getInt(1);
+                }
+            } catch (SQLException e) { e.printStackTrace(); }
+            return Integer.MAX_VALUE;
+        }
+
+        public int countSongs(String mood) {
+            if (catalogReady()) {
+                int cached = catalog.count(mood);
+                if (cached >= 0) return cached;
+            }
+            try (Lease lease = read()) {
+                PreparedStatement ps;
+                if (mood == null) {
+                    ps = lease.prepare("SELECT COUNT(*) FROM songs");
+                } else {
+                    ps = lease.prepare("SELECT COUNT(*) FROM songs WHERE mood_id = (SELECT id FROM moods WHERE name = ?)");
+                    ps.setString(1, mood);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) return rs.getInt(1);
+                }
+            } catch (SQLException e) { e.printStackTrace(); }
+            return 0;
+        }
+
+        /**
+         * Full-text search over title and artist, best matches first. Every word in the
+         * query must match, and each is treated as a prefix so results update while typing.
+         * A null mood searches the whole library.
+         */
+        public List<Song> searchSongs(String query, String mood, int limit) {
+            List<Song> out = new ArrayList<>();
+            String match = toMatchExpression(query);
+            if (match == null) return out;
+            try (Lease lease = read()) {
+                PreparedStatement ps;
+                // Title hits weigh more than artist hits
+                if (mood == null) {
+                    ps = lease.prepare(SONG_SELECT + " JOIN songs_fts ON songs_fts.rowid = s.id " +
+                            "WHERE songs_fts MATCH ? ORDER BY bm25(songs_fts, 10.0, 5.0) LIMIT ?");
+                    ps.setString(1, match);
+                    ps.setInt(2, limit);
+                } else {
+                    ps = lease.prepare(SONG_SELECT + " JOIN songs_fts ON songs_fts.rowid = s.id " +
+                            "WHERE songs_fts MATCH ? AND s.mood_id = (SELECT id FROM moods WHERE name = ?) ORDER BY bm25(songs_fts, 10.0, 5.0) LIMIT ?");
+                    ps.setString(1, match);
+                    ps.setString(2, mood);
+                    ps.setInt(3, limit);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(rowToSong(rs));
+                }
+            } catch (SQLException e) { e.printStackTrace(); }
+            return out;
+        }
+
+        /**
+         * Turns free text into an FTS5 query: each word quoted (so words like AND or NEAR aren't
+         * read as operators) and marked as a prefix. Returns null if there are no words.
+         */
+        static String toMatchExpression(String query) {
+            if (query == null) return null;
+            StringBuilder match = new StringBuilder();
+            for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+                if (word.isEmpty()) continue;
+                if (match.length() > 0) match.append(' ');
+                match.append('"').append(word).append("\"*");
+            }
+            return match.length() == 0 ? null : match.toString();
+        }
+
+        public int insertSong(String title, String artist, String mood, String path) throws SQLException {
+            if (title == null || title.trim().isEmpty()) {
+                throw new SQLException("Title cannot be empty");
+            }
+            if (artist == null || artist.trim().isEmpty()) {
+                throw new SQLException("Artist cannot be empty");
+            }
+            if (mood == null || mood.trim().isEmpty()) {
+                throw new SQLException("Mood must be selected");
+            }
+            
+            Song inserted = transaction(lease -> {
+                ensureLookups(lease, artist.trim(), mood);
+                PreparedStatement ps = lease.prepareReturningKeys(INSERT_SONG);
+                ps.setString(1, title.trim());
+                ps.setString(2, artist.trim());
+                ps.setString(3, mood);
+                ps.setString(4, path != null ? path.trim() : "");
+                setDuration(ps, 5, -1);
+                
+                int affected = ps.executeUpdate();
+                if (affected > 0) {
+                    try (ResultSet gk = ps.getGeneratedKeys()) {
+                        // Read back the row so the catalog gets the stored spelling of artist and mood
+                        if (gk.next()) return findSong(lease, gk.getInt(1));
+                    }
+                }
+                return null;
+            });
+            if (inserted == null) throw new SQLException("Failed to insert song");
+            catalog.put(inserted);
+            similarity.markDirty(inserted.getId());
+            return inserted.getId();
+        }
+
+        // Artist and mood go in by name; the ids are resolved against the lookup tables
+        private static final String INSERT_SONG = "INSERT INTO songs(title, artist_id, mood_id, path, duration_ms) VALUES(?, " +
+                "(SELECT id FROM artists WHERE name = ?), (SELECT id FROM moods WHERE name = ?), ?, ?)";
+
+        /** Adds the artist and mood names to their lookup tables if they are new. */
+        private static void ensureLookups(Lease lease, String artist, String mood) throws SQLException {
+            PreparedStatement a = lease.prepare("INSERT OR IGNORE INTO artists(name) VALUES(?)");
+            a.setString(1, artist);
+            a.executeUpdate();
+            PreparedStatement m = lease.prepare("INSERT OR IGNORE INTO moods(name) VALUES(?)");
+            m.setString(1, mood);
+            m.executeUpdate();
+        }
+
+        private Song findSong(Lease lease, int id) throws SQLException {
+            PreparedStatement ps = lease.prepare(SONG_SELECT + " WHERE s.id = ?");
+            ps.setInt(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rowToSong(rs) : null;
+            }
+        }
+
+        /**
+         * Inserts many songs in a single transaction using a JDBC batch.
+         * Returns the number of rows inserted.
+         */
+        public int insertSongs(List<Song> songs) throws SQLException {
+            return insertSongs(songs, null, new ArrayList<>(songs.size()));
+        }
+
+        /** Like {@link #insertSongs(List)}, returning the new ids in the order the songs were given. */
+        public int[] insertSongsReturningIds(List<Song> songs) throws SQLException {
+            return insertSongsReturningIds(songs, null);
+        }
+
+        /**
+         * Like {@link #insertSongsReturningIds(List)}, storing each song's length from
+         * {@code durationsMs} (indexed like {@code songs}; negative for unknown, as is null).
+         */
+        public int[] insertSongsReturningIds(List<Song> songs, long[] durationsMs) throws SQLException {
+            List<Song> stored = new ArrayList<>(songs.size());
+            int inserted = insertSongs(songs, durationsMs, stored);
+            if (stored.size() != songs.size()) {
+                throw new SQLException("Inserted " + inserted + " of " + songs.size() + " songs");
+            }
+            int[] ids = new int[stored.size()];
+            for (int i = 0; i < ids.length; i++) ids[i] = stored.get(i).getId();
+            return ids;
+        }
+
+        private int insertSongs(List<Song> songs, long[] durationsMs, List<Song> stored) throws SQLException {
+            if (songs.isEmpty()) return 0;
+            int inserted = transaction(lease -> {
+                Set<String> artistNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+                Set<String> moodNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+                for (Song s : songs) {
+                    artistNames.add(s.getArtist().trim());
+                    moodNames.add(s.getMood());
+                }
+                ensureLookups(lease, artistNames, moodNames);
+
+                PreparedStatement ps = lease.prepare(INSERT_SONG);
+                for (int i = 0; i < songs.size(); i++) {
+                    Song s = songs.get(i);
+                    ps.setString(1, s.getTitle().trim());
+                    ps.setString(2, s.getArtist().trim());
+                    ps.setString(3, s.getMood());
+                    ps.setString(4, s.getPath() != null ? s.getPath().trim() : "");
+                    setDuration(ps, 5, durationsMs != null ? durationsMs[i] : -1);
+                    ps.addBatch();
+                }
+                int count = countUpdates(ps.executeBatch());
+                readBackInserted(lease, count, songs.size(), stored);
+                return count;
+            });
+            if (stored.size() == inserted) {
+                for (Song s : stored) {
+                    catalog.put(s);
+                    similarity.markDirty(s.getId());
+                }
+            } else {
+                catalog.invalidate();
+                similarity.invalidate();
+            }
+            return inserted;
+        }
+
+        /** Adds each distinct name once; the lookup tables compare names case-insensitively too. */
+        private static void ensureLookups(Lease lease, Set<String> artistNames, Set<String> moodNames) throws SQLException {
+            PreparedStatement artists = lease.prepare("INSERT OR IGNORE INTO artists(name) VALUES(?)");
+            for (String name : artistNames) {
+                artists.setString(1, name);
+                artists.addBatch();
+            }
+            artists.executeBatch();
+            PreparedStatement moods = lease.prepare("INSERT OR IGNORE INTO moods(name) VALUES(?)");
+            for (String name : moodNames) {
+                moods.setString(1, name);
+                moods.addBatch();
+            }
+            moods.executeBatch();
+        }
+
+        /**
+         * Reads back the rows of a batch insert just run in this transaction, so the catalog
+         * gets the stored artist and mood names. The write lock is held for the whole batch,
+         * so the new ids are the consecutive run ending at last_insert_rowid().
+         */
+        private void readBackInserted(Lease lease, int inserted, int expected, List<Song> out) throws SQLException {
+            if (inserted != expected || inserted == 0) return;
+            int lastId;
+            try (ResultSet rs = lease.prepare("SELECT last_insert_rowid()").executeQuery()) {
+                lastId = rs.next() ? rs.getInt(1) : 0;
+            }
+            if (lastId < inserted) return;
+            PreparedStatement range = lease.prepare(SONG_SELECT + " WHERE s.id BETWEEN ? AND ? ORDER BY s.id");
+            range.setInt(1, lastId - inserted + 1);
+            range.setInt(2, lastId);
+            try (ResultSet rs = range.executeQuery()) {
+                while (rs.next()) out.add(rowToSong(rs));
+            }
+        }
+
+        /**
+         * Returns the songs stored under a folder, keyed by path. Songs added by hand have no
+         * size or mtime yet and come back with -1 for both, so a scan sees them as changed.
+         */
+        public Map<String, FileRecord> getKnownFiles(String root) throws SQLException {
+            String prefix = root.endsWith(File.separator) ? root : root + File.separator;
+            // Every path starting with the prefix sorts in [prefix, prefix with its last char bumped)
+            String upper = prefix.substring(0, prefix.length() - 1) + (char) (prefix.charAt(prefix.length() - 1) + 1);
+            Map<String, FileRecord> known = new HashMap<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(
+                    "SELECT id, path, COALESCE(size, -1), COALESCE(mtime, -1) FROM songs WHERE path >= ? AND path < ?");
+                ps.setString(1, prefix);
+                ps.setString(2, upper);
+                ps.setFetchSize(DEFAULT_FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        FileRecord f = new FileRecord(rs.getInt(1), rs.getString(2), rs.getLong(3), rs.getLong(4),
+                                null, null, null, -1);
+                        known.put(f.getPath(), f);
+                    }
+                }
+            }
+            return known;
+        }
+
+        /**
+         * Applies one batch of scan results in a single transaction: new files become songs,
+         * changed files get their new size and mtime, moved files get their new path under
+         * the same id, and removed songs are deleted. A new file that was merged into another
+         * song as a duplicate is skipped while it stays unchanged.
+         *
+         * @return the number of songs inserted
+         */
+        public int applyScan(List<FileRecord> added, List<FileRecord> changed, List<FileRecord> moved,
+                             List<Integer> removedIds) throws SQLException {
+            if (added.isEmpty() && changed.isEmpty() && moved.isEmpty() && removedIds.isEmpty()) return 0;
+            List<Song> stored = new ArrayList<>(added.size());
+            List<Song> movedSongs = new ArrayList<>(moved.size());
+            int inserted = transaction(lease -> {
+                int count = 0;
+                if (!added.isEmpty()) {
+                    Set<String> artistNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+                    Set<String> moodNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+                    for (FileRecord f : added) {
+                        artistNames.add(f.getArtist());
+                        moodNames.add(f.getMood());
+                    }
+                    ensureLookups(lease, artistNames, moodNames);
+                    PreparedStatement ins = lease.prepare(
+                        "INSERT INTO songs(title, artist_id, mood_id, path, size, mtime, duration_ms) SELECT ?, " +
+                        "(SELECT id FROM artists WHERE name = ?), (SELECT id FROM moods WHERE name = ?), ?, ?, ?, ? " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM merged_paths WHERE path = ? AND size = ? AND mtime = ?)");
+                    for (FileRecord f : added) {
+                        ins.setString(1, f.getTitle());
+                        ins.setString(2, f.getArtist());
+                        ins.setString(3, f.getMood());
+                        ins.setString(4, f.getPath());
+                        ins.setLong(5, f.getSize());
+                        ins.setLong(6, f.getMtime());
+                        setDuration(ins, 7, f.getDurationMs());
+                        ins.setString(8, f.getPath());
+                        ins.setLong(9, f.getSize());
+                        ins.setLong(10, f.getMtime());
+                        ins.addBatch();
+                    }
+                    count = countUpdates(ins.executeBatch());
+                    readBackInserted(lease, count, added.size(), stored);
+                }
+                if (!changed.isEmpty()) {
+                    // The old content hash no longer describes the file
+                    PreparedStatement upd = lease.prepare(
+                        "UPDATE songs SET size = ?, mtime = ?, duration_ms = ?, content_hash = NULL WHERE id = ?");
+                    for (FileRecord f : changed) {
+                        upd.setLong(1, f.getSize());
+                        upd.setLong(2, f.getMtime());
+                        setDuration(upd, 3, f.getDurationMs());
+                        upd.setInt(4, f.getId());
+                        upd.addBatch();
+                    }
+                    upd.executeBatch();
+                    // Nor do the features decoded from it
+                    PreparedStatement features = lease.prepare("DELETE FROM song_features WHERE song_id = ?");
+                    for (FileRecord f : changed) {
+                        features.setInt(1, f.getId());
+                        features.addBatch();
+                    }
+                    features.executeBatch();
+                    List<Integer> changedIds = new ArrayList<>(changed.size());
+                    for (FileRecord f : changed) changedIds.add(f.getId());
+                    dropVectors(lease, changedIds);
+                }
+                if (!moved.isEmpty()) {
+                    // Same file under a new name: playlists, play stats, edits and hash stay with the id
+                    PreparedStatement mv = lease.prepare("UPDATE songs SET path = ?, size = ?, mtime = ? WHERE id = ?");
+                    for (FileRecord f : moved) {
+                        mv.setString(1, f.getPath());
+                        mv.setLong(2, f.getSize());
+                        mv.setLong(3, f.getMtime());
+                        mv.setInt(4, f.getId());
+                        mv.addBatch();
+                    }
+                    mv.executeBatch();
+                    for (FileRecord f : moved) {
+                        Song s = findSong(lease, f.getId());
+                        if (s != null) movedSongs.add(s);
+                    }
+                }
+                if (!removedIds.isEmpty()) {
+                    PreparedStatement del = lease.prepare("DELETE FROM songs WHERE id = ?");
+                    for (int id : removedIds) {
+                        del.setInt(1, id);
+                        del.addBatch();
+                    }
+                    del.executeBatch();
+                }
+                return count;
+            });
+            if (stored.size() == inserted) {
+                for (Song s : stored) {
+                    catalog.put(s);
+                    similarity.markDirty(s.getId());
+                }
+            } else {
+                catalog.invalidate();
+                similarity.invalidate();
+            }
+            for (FileRecord f : changed) similarity.markDirty(f.getId());
+            for (Song s : movedSongs) catalog.put(s);
+            for (int id : removedIds) {
+                catalog.remove(id);
+                similarity.remove(id);
+            }
+            return inserted;
+        }
+
+        private static void setDuration(PreparedStatement ps, int index, long durationMs) throws SQLException {
+            if (durationMs >= 0) {
+                ps.setLong(index, durationMs);
+            } else {
+                ps.setNull(index, Types.INTEGER);
+            }
+        }
+
+        /**
+         * Up to {@code limit} local files with no content hash yet, in id order after
+         * {@code afterId}. Size and mtime are -1 when unknown, as in {@link #getKnownFiles}.
+         */
+        public List<FileRecord> getUnhashedFiles(int afterId, int limit) throws SQLException {
+            List<FileRecord> out = new ArrayList<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(
+                    "SELECT id, path, COALESCE(size, -1), COALESCE(mtime, -1) FROM songs " +
+                    "WHERE content_hash IS NULL AND id > ? AND path <> '' AND path NOT LIKE '%://%' ORDER BY id LIMIT ?");
+                ps.setInt(1, afterId);
+                ps.setInt(2, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        out.add(new FileRecord(rs.getInt(1), rs.getString(2), rs.getLong(3), rs.getLong(4),
+                                null, null, null, -1));
+                    }
+                }
+            }
+            return out;
+        }
+
+        /**
+         * Stores content hashes in one transaction. A song whose size or mtime changed while
+         * it was being hashed keeps no hash and is picked up again.
+         */
+        public void setContentHashes(List<FileRecord> files, List<String> hashes) throws SQLException {
+            if (files.isEmpty()) return;
+            transaction(lease -> {
+                PreparedStatement ps = lease.prepare(
+                    "UPDATE songs SET content_hash = ? WHERE id = ? AND COALESCE(size, -1) = ? AND COALESCE(mtime, -1) = ?");
+                for (int i = 0; i < files.size(); i++) {
+                    FileRecord f = files.get(i);
+                    ps.setString(1, hashes.get(i));
+                    ps.setInt(2, f.getId());
+                    ps.setLong(3, f.getSize());
+                    ps.setLong(4, f.getMtime());
+                    ps.addBatch();
+                }
+                return ps.executeBatch().length;
+            });
+        }
+
+        /** Songs whose audio hashes to the given value. */
+        public List<Song> findSongsByContentHash(String hash) throws SQLException {
+            List<Song> out = new ArrayList<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(SONG_SELECT + " WHERE s.content_hash = ? ORDER BY s.id");
+                ps.setString(1, hash);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(rowToSong(rs));
+                }
+            }
+            return out;
+        }
+
+        /**
+         * Songs that share their audio with at least one other song, grouped by content and
+         * oldest first within each group.
+         */
+        public List<List<Song>> getDuplicateGroups() throws SQLException {
+            List<List<Song>> groups = new ArrayList<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(SONG_COLUMNS + ", s.content_hash FROM songs s" + LOOKUP_JOINS +
+                    " WHERE s.content_hash IN (SELECT content_hash FROM songs WHERE content_hash IS NOT NULL " +
+                    "GROUP BY content_hash HAVING COUNT(*) > 1) ORDER BY s.content_hash, s.id");
+                String current = null;
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String hash = rs.getString("content_hash");
+                        if (!hash.equals(current)) {
+                            groups.add(new ArrayList<>());
+                            current = hash;
+                        }
+                        groups.get(groups.size() - 1).add(rowToSong(rs));
+                    }
+                }
+            }
+            return groups;
+        }
+
+        /**
+         * Folds duplicate songs into the one kept: their playlist entries move to it (keeping
+         * their places, unless the playlist already has it), their rows are deleted, and their
+         * files are remembered so scans do not add them back while they stay unchanged.
+         */
+        public void mergeDuplicates(int keepId, List<Integer> duplicateIds) throws SQLException {
+            if (duplicateIds.isEmpty()) return;
+            transaction(lease -> {
+                PreparedStatement entries = lease.prepare("UPDATE OR IGNORE playlist_songs SET song_id = ? WHERE song_id = ?");
+                PreparedStatement merged = lease.prepare("UPDATE merged_paths SET song_id = ? WHERE song_id = ?");
+                PreparedStatement remember = lease.prepare(
+                    "INSERT OR REPLACE INTO merged_paths(path, size, mtime, song_id) " +
+                    "SELECT path, size, mtime, ? FROM songs WHERE id = ? AND size IS NOT NULL AND mtime IS NOT NULL");
+                // Entries the playlist already had for the kept song go with the row
+                PreparedStatement del = lease.prepare("DELETE FROM songs WHERE id = ?");
+                for (int id : duplicateIds) {
+                    if (id == keepId) continue;
+                    for (PreparedStatement ps : Arrays.asList(entries, merged, remember)) {
+                        ps.setInt(1, keepId);
+                        ps.setInt(2, id);
+                        ps.addBatch();
+                    }
+                    del.setInt(1, id);
+                    del.addBatch();
+                }
+                entries.executeBatch();
+                merged.executeBatch();
+                remember.executeBatch();
+                return del.executeBatch().length;
+            });
+            for (int id : duplicateIds) {
+                if (id != keepId) {
+                    catalog.remove(id);
+                    similarity.remove(id);
+                }
+            }
+        }
+
+        /**
+         * Up to {@code limit} songs in id order after {@code afterId} whose file has not been
+         * analysed yet and is in a format javax.sound decodes (WAV, AIFF, AU).
+         */
+        public List<FileRecord> getUnanalyzedFiles(int afterId, int limit) throws SQLException {
+            List<FileRecord> out = new ArrayList<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(
+                    "SELECT s.id, s.path FROM songs s WHERE s.id > ? " +
+                    "AND (s.path LIKE '%.wav' OR s.path LIKE '%.aif' OR s.path LIKE '%.aiff' OR s.path LIKE '%.au') " +
+                    "AND NOT EXISTS (SELECT 1 FROM song_features f WHERE f.song_id = s.id) ORDER BY s.id LIMIT ?");
+                ps.setInt(1, afterId);
+                ps.setInt(2, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        out.add(new FileRecord(rs.getInt(1), rs.getString(2), -1, -1, null, null, null, -1));
+                    }
+                }
+            }
+            return out;
+        }
+
+        /** Stores analysed features in one transaction; a null entry marks a file that could not be decoded. */
+        public void setAudioFeatures(List<Integer> songIds, List<AudioFeatures> features) throws SQLException {
+            if (songIds.isEmpty()) return;
+            transaction(lease -> {
+                PreparedStatement ps = lease.prepare(
+                    "INSERT OR REPLACE INTO song_features(song_id, rms, centroid_hz, zero_crossing_rate, tempo_bpm, seconds) " +
+                    "VALUES(?, ?, ?, ?, ?, ?)");
+                for (int i = 0; i < songIds.size(); i++) {
+                    AudioFeatures f = features.get(i);
+                    ps.setInt(1, songIds.get(i));
+                    if (f != null) {
+                        ps.setDouble(2, f.getRms());
+                        ps.setDouble(3, f.getCentroidHz());
+                        ps.setDouble(4, f.getZeroCrossingRate());
+                        ps.setDouble(5, f.getTempoBpm());
+                        ps.setDouble(6, f.getSeconds());
+                    } else {
+                        for (int c = 2; c <= 6; c++) ps.setNull(c, Types.REAL);
+                    }
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                return dropVectors(lease, songIds);
+            });
+            for (int id : songIds) similarity.markDirty(id);
+        }
+
+        /** Calls {@code action} for every song with stored features, in id order. */
+        public void forEachAnalyzedSong(BiConsumer<Song, AudioFeatures> action) throws SQLException {
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(SONG_COLUMNS +
+                    ", f.rms, f.centroid_hz, f.zero_crossing_rate, f.tempo_bpm, f.seconds FROM song_features f " +
+                    "CROSS JOIN songs s ON s.id = f.song_id" + LOOKUP_JOINS + " WHERE f.tempo_bpm IS NOT NULL ORDER BY f.song_id");
+                ps.setFetchSize(DEFAULT_FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        action.accept(rowToSong(rs), new AudioFeatures(rs.getDouble("rms"), rs.getDouble("centroid_hz"),
+                                rs.getDouble("zero_crossing_rate"), rs.getDouble("tempo_bpm"), rs.getDouble("seconds")));
+                    }
+                }
+            }
+        }
+
+        /** Sets the mood of many songs in one transaction. */
+        public void updateMoods(Map<Integer, String> moodsById) throws SQLException {
+            if (moodsById.isEmpty()) return;
+            List<Song> updated = transaction(lease -> {
+                Set<String> moodNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+                moodNames.addAll(moodsById.values());
+                ensureLookups(lease, Collections.emptySet(), moodNames);
+                PreparedStatement ps = lease.prepare(
+                    "UPDATE songs SET mood_id = (SELECT id FROM moods WHERE name = ?) WHERE id = ?");
+                for (Map.Entry<Integer, String> e : moodsById.entrySet()) {
+                    ps.setString(1, e.getValue());
+                    ps.setInt(2, e.getKey());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                dropVectors(lease, moodsById.keySet());
+                List<Song> out = new ArrayList<>(moodsById.size());
+                for (int id : moodsById.keySet()) {
+                    Song song = findSong(lease, id);
+                    if (song != null) out.add(song);
+                }
+                return out;
+            });
+            for (Song song : updated) catalog.put(song);
+            for (int id : moodsById.keySet()) similarity.markDirty(id);
+        }
+
+        /**
+         * The {@code k} songs most like the given one by SimilarityIndex distance, nearest first.
+         * The first call loads the index; later calls only recompute songs written since.
+         */
+        public List<Song> findSimilarSongs(int songId, int k) throws SQLException {
+            // Also notices commits from other processes, which drop the index along with the catalog
+            catalogReady();
+            synchronized (similarity) {
+                if (!similarity.isLoaded()) buildSimilarityIndex();
+                refreshSimilarityIndex();
+            }
+            int[] ids = similarity.nearest(songId, k);
+            List<Song> out = new ArrayList<>(ids.length);
+            try (Lease lease = read()) {
+                for (int id : ids) {
+                    Song song = findSong(lease, id);
+                    if (song != null) out.add(song);
+                }
+            }
+            return out;
+        }
+
+        // Everything a song's vector is computed from; the caller adds the WHERE clause
+        private static final String VECTOR_INPUT_SELECT = "SELECT s.id, a.name AS artist, m.name AS mood, " +
+                "f.rms, f.centroid_hz, f.zero_crossing_rate, f.tempo_bpm, f.seconds FROM songs s" + LOOKUP_JOINS +
+                " LEFT JOIN song_features f ON f.song_id = s.id";
+
+        /**
+         * Loads every stored vector, then computes and stores the vectors of songs that have none
+         * (new songs, or songs whose mood, artist or features changed since).
+         */
+        private void buildSimilarityIndex() throws SQLException {
+            long generation = similarity.beginBuild();
+            int[] ids = new int[1024];
+            List<byte[]> blobs = new ArrayList<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare("SELECT song_id, vector FROM song_vectors ORDER BY song_id");
+                ps.setFetchSize(DEFAULT_FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        if (blobs.size() == ids.length) ids = Arrays.copyOf(ids, ids.length * 2);
+                        ids[blobs.size()] = rs.getInt(1);
+                        blobs.add(rs.getBytes(2));
+                    }
+                }
+            }
+            List<Integer> missingIds = new ArrayList<>();
+            List<float[]> missing = computeVectors(VECTOR_INPUT_SELECT +
+                    " WHERE NOT EXISTS (SELECT 1 FROM song_vectors v WHERE v.song_id = s.id) ORDER BY s.id", null, missingIds);
+            storeVectors(missingIds, missing);
+
+            int stored = blobs.size();
+            int n = stored + missingIds.size();
+            ids = Arrays.copyOf(ids, n);
+            float[] packed = new float[n * SimilarityIndex.DIM];
+            boolean[] valid = new boolean[n];
+            IntStream.range(0, stored).parallel().forEach(i ->
+                    valid[i] = SimilarityIndex.fromBytes(blobs.get(i), packed, i * SimilarityIndex.DIM));
+            for (int i = 0; i < missingIds.size(); i++) {
+                ids[stored + i] = missingIds.get(i);
+                System.arraycopy(missing.get(i), 0, packed, (stored + i) * SimilarityIndex.DIM, SimilarityIndex.DIM);
+                valid[stored + i] = true;
+            }
+            // A vector of the wrong length (say from an older layout) is recomputed on the next query
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                if (!valid[i]) {
+                    similarity.markDirty(ids[i]);
+                    continue;
+                }
+                if (kept != i) {
+                    ids[kept] = ids[i];
+                    System.arraycopy(packed, i * SimilarityIndex.DIM, packed, kept * SimilarityIndex.DIM, SimilarityIndex.DIM);
+                }
+                kept++;
+            }
+            similarity.install(generation, ids, packed, kept);
+        }
+
+        /** Recomputes the vectors of songs written since the last query. */
+        private void refreshSimilarityIndex() throws SQLException {
+            int[] dirty = similarity.drainDirty();
+            if (dirty.length == 0) return;
+            List<Integer> foundIds = new ArrayList<>(dirty.length);
+            List<float[]> vectors = computeVectors(VECTOR_INPUT_SELECT + " WHERE s.id = ?", dirty, foundIds);
+            storeVectors(foundIds, vectors);
+            Set<Integer> found = new HashSet<>(foundIds);
+            for (int i = 0; i < foundIds.size(); i++) similarity.put(foundIds.get(i), vectors.get(i));
+            // Deleted by another process in the meantime
+            for (int id : dirty) {
+                if (!found.contains(id)) similarity.remove(id);
+            }
+        }
+
+        /**
+         * Runs a VECTOR_INPUT_SELECT query, once per id when {@code ids} is given, and computes a
+         * vector per row on the common pool. The song ids go to {@code idsOut} in row order.
+         */
+        private List<float[]> computeVectors(String sql, int[] ids, List<Integer> idsOut) throws SQLException {
+            List<String[]> names = new ArrayList<>();
+            List<AudioFeatures> features = new ArrayList<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(sql);
+                ps.setFetchSize(DEFAULT_FETCH_SIZE);
+                for (int i = 0; i < (ids == null ? 1 : ids.length); i++) {
+                    if (ids != null) ps.setInt(1, ids[i]);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            idsOut.add(rs.getInt("id"));
+                            names.add(new String[] {rs.getString("mood"), rs.getString("artist")});
+                            double tempo = rs.getDouble("tempo_bpm");
+                            // No row, or a file that could not be decoded
+                            features.add(rs.wasNull() ? null : new AudioFeatures(rs.getDouble("rms"),
+                                    rs.getDouble("centroid_hz"), rs.getDouble("zero_crossing_rate"), tempo, rs.getDouble("seconds")));
+                        }
+                    }
+                }
+            }
+            float[][] out = new float[idsOut.size()][];
+            IntStream.range(0, out.length).parallel().forEach(i ->
+                    out[i] = SimilarityIndex.vectorFor(names.get(i)[0], names.get(i)[1], features.get(i)));
+            return Arrays.asList(out);
+        }
+
+        private void storeVectors(List<Integer> songIds, List<float[]> vectors) throws SQLException {
+            if (songIds.isEmpty()) return;
+            transaction(lease -> {
+                PreparedStatement ps = lease.prepare("INSERT OR REPLACE INTO song_vectors(song_id, vector) VALUES(?, ?)");
+                for (int i = 0; i < songIds.size(); i++) {
+                    ps.setInt(1, songIds.get(i));
+                    ps.setBytes(2, SimilarityIndex.toBytes(vectors.get(i)));
+                    ps.addBatch();
+                }
+                return countUpdates(ps.executeBatch());
+            });
+        }
+
+        /** Deletes stored vectors whose inputs just changed; the caller marks the songs dirty after commit. */
+        private static int dropVectors(Lease lease, Collection<Integer> songIds) throws SQLException {
+            PreparedStatement ps = lease.prepare("DELETE FROM song_vectors WHERE song_id = ?");
+            for (int id : songIds) {
+                ps.setInt(1, id);
+                ps.addBatch();
+            }
+            return ps.executeBatch().length;
+        }
+
+        public List<String> getLibraryRoots() throws SQLException {
+            List<String> out = new ArrayList<>();
+            try (Lease lease = read()) {
+                try (ResultSet rs = lease.prepare("SELECT path FROM library_roots ORDER BY path").executeQuery()) {
+                    while (rs.next()) out.add(rs.getString(1));
+                }
+            }
+            return out;
+        }
+
+        public void addLibraryRoot(String path) throws SQLException {
+            try (Lease lease = write()) {
+                PreparedStatement ps = lease.prepare("INSERT OR IGNORE INTO library_roots(path) VALUES(?)");
+                ps.setString(1, path);
+                ps.executeUpdate();
+            }
+        }
+
+        public void updateSong(Song song) throws SQLException {
+            Song updated = transaction(lease -> {
+                ensureLookups(lease, song.getArtist(), song.getMood());
+                PreparedStatement ps = lease.prepare(
+                    "UPDATE songs SET title = ?, artist_id = (SELECT id FROM artists WHERE name = ?), " +
+                    "mood_id = (SELECT id FROM moods WHERE name = ?), path = ?, " +
+                    "content_hash = CASE WHEN path = ? THEN content_hash END WHERE id = ?");
+                ps.setString(1, song.getTitle());
+                ps.setString(2, song.getArtist());
+                ps.setString(3, song.getMood());
+                ps.setString(4, song.getPath());
+                ps.setString(5, song.getPath());
+                ps.setInt(6, song.getId());
+                ps.executeUpdate();
+                dropVectors(lease, Collections.singletonList(song.getId()));
+                return findSong(lease, song.getId());
+            });
+            if (updated != null) catalog.put(updated);
+            similarity.markDirty(song.getId());
+        }
+
+        public void deleteSong(int songId) throws SQLException {
+            try (Lease lease = write()) {
+                PreparedStatement ps = lease.prepare("DELETE FROM songs WHERE id = ?");
+                ps.setInt(1, songId);
+                ps.executeUpdate();
+            }
+            catalog.remove(songId);
+            similarity.remove(songId);
+        }
+
+        public int createPlaylist(String name) {
+            try (Lease lease = write()) {
+                PreparedStatement ps = lease.prepareReturningKeys("INSERT OR IGNORE INTO playlists(name) VALUES(?)");
+                ps.setString(1, name);
+                // if ignored (already exists), return existing id
+                if (ps.executeUpdate() > 0) {
+                    try (ResultSet gk = ps.getGeneratedKeys()) {
+                        if (gk.next()) return gk.getInt(1);
+                    }
+                }
+                PreparedStatement ps2 = lease.prepare("SELECT id FROM playlists WHERE name = ?");
+                ps2.setString(1, name);
+                try (ResultSet rs = ps2.executeQuery()) {
+                    if (rs.next()) return rs.getInt("id");
+                }
+            } catch (SQLException e) { e.printStackTrace(); }
+            return -1;
+        }
+
+        // Appends after the playlist's last entry; MAX(position) is one step down the position index
+        private static final String APPEND_TO_PLAYLIST =
+                "INSERT OR IGNORE INTO playlist_songs(playlist_id, song_id, position) VALUES(?, ?, " +
+                "(SELECT COALESCE(MAX(position), 0) FROM playlist_songs WHERE playlist_id = ?) + " + POSITION_GAP + ")";
+
+        public void addSongToPlaylist(int playlistId, int songId) {
+            try (Lease lease = write()) {
+                PreparedStatement ps = lease.prepare(APPEND_TO_PLAYLIST);
+                ps.setInt(1, playlistId);
+                ps.setInt(2, songId);
+                ps.setInt(3, playlistId);
+                ps.executeUpdate();
+            } catch (SQLException e) { e.printStackTrace(); }
+        }
+
+        /**
+         * Adds several songs to the end of a playlist in one transaction, skipping songs
+         * already in it. Returns the number of rows inserted.
+         */
+        public int addSongsToPlaylist(int playlistId, int[] songIds) throws SQLException {
+            if (songIds.length == 0) return 0;
+            return transaction(lease -> {
+                PreparedStatement ps = lease.prepare(APPEND_TO_PLAYLIST);
+                for (int songId : songIds) {
+                    ps.setInt(1, playlistId);
+                    ps.setInt(2, songId);
+                    ps.setInt(3, playlistId);
+                    ps.addBatch();
+                }
+                return countUpdates(ps.executeBatch());
+            });
+        }
+
+        /** The whole library as PlaylistGenerator's parallel arrays, in id order. */
+        public PlaylistGenerator.Candidates loadPlaylistCandidates() throws SQLException {
+            try (Lease lease = read()) {
+                List<String> names = new ArrayList<>();
+                try (ResultSet rs = lease.prepare("SELECT id, name FROM moods ORDER BY id").executeQuery()) {
+                    while (rs.next()) {
+                        int id = rs.getInt(1);
+                        while (names.size() <= id) names.add(null);
+                        names.set(id, rs.getString(2));
+                    }
+                }
+                int n;
+                try (ResultSet rs = lease.prepare("SELECT COUNT(*) FROM songs").executeQuery()) {
+                    n = rs.next() ? rs.getInt(1) : 0;
+                }
+                int[] ids = new int[n];
+                int[] artists = new int[n];
+                int[] moods = new int[n];
+                int[] durations = new int[n];
+                PreparedStatement ps = lease.prepare("SELECT id, artist_id, mood_id, duration_ms FROM songs ORDER BY id");
+                ps.setFetchSize(DEFAULT_FETCH_SIZE);
+                int i = 0;
+                try (ResultSet rs = ps.executeQuery()) {
+                    // Songs added since the count was taken wait for the next load
+                    while (i < n && rs.next()) {
+                        ids[i] = rs.getInt(1);
+                        artists[i] = rs.getInt(2);
+                        moods[i] = rs.getInt(3);
+                        long ms = rs.getLong(4);
+                        durations[i] = rs.wasNull() ? -1 : (int) Math.min(ms, Integer.MAX_VALUE);
+                        i++;
+                    }
+                }
+                if (i < n) {
+                    ids = Arrays.copyOf(ids, i);
+                    artists = Arrays.copyOf(artists, i);
+                    moods = Arrays.copyOf(moods, i);
+                    durations = Arrays.copyOf(durations, i);
+                }
+                return new PlaylistGenerator.Candidates(ids, artists, moods, durations, names.toArray(new String[0]));
+            }
+        }
+
+        /**
+         * Creates (or reuses) the named playlist and appends the songs in the given order, in
+         * one transaction. Returns the number of songs added.
+         */
+        public int savePlaylist(String playlistName, int[] songIds) throws SQLException {
+            return transaction(lease -> {
+                PreparedStatement create = lease.prepare("INSERT OR IGNORE INTO playlists(name) VALUES(?)");
+                create.setString(1, playlistName);
+                create.executeUpdate();
+                int playlistId;
+                PreparedStatement find = lease.prepare("SELECT id FROM playlists WHERE name = ?");
+                find.setString(1, playlistName);
+                try (ResultSet rs = find.executeQuery()) {
+                    if (!rs.next()) throw new SQLException("Playlist not found: " + playlistName);
+                    playlistId = rs.getInt(1);
+                }
+                PreparedStatement ps = lease.prepare(APPEND_TO_PLAYLIST);
+                for (int songId : songIds) {
+                    ps.setInt(1, playlistId);
+                    ps.setInt(2, songId);
+                    ps.setInt(3, playlistId);
+                    ps.addBatch();
+                }
+                return countUpdates(ps.executeBatch());
+            });
+        }
+
+        // Folds one batch's counts for a song into its totals; songs deleted meanwhile match no row
+        private static final String ADD_SONG_PLAYS = "INSERT INTO song_play_stats(song_id, plays, completions, skips, last_played) " +
+                "SELECT id, ?, ?, ?, ? FROM songs WHERE id = ? ON CONFLICT(song_id) DO UPDATE SET " +
+                "plays = plays + excluded.plays, completions = completions + excluded.completions, " +
+                "skips = skips + excluded.skips, last_played = MAX(IFNULL(last_played, 0), IFNULL(excluded.last_played, 0))";
+        // The song's mood at the time of the batch gets the plays
+        private static final String ADD_MOOD_PLAYS = "INSERT INTO mood_play_stats(mood_id, plays, last_played) " +
+                "SELECT mood_id, ?, ? FROM songs WHERE id = ? ON CONFLICT(mood_id) DO UPDATE SET " +
+                "plays = plays + excluded.plays, last_played = MAX(IFNULL(last_played, 0), IFNULL(excluded.last_played, 0))";
+        private static final String MOST_PLAYED_SELECT = SONG_COLUMNS + " FROM song_play_stats p " +
+                "INDEXED BY idx_song_play_stats_plays CROSS JOIN songs s ON s.id = p.song_id" + LOOKUP_JOINS +
+                " WHERE p.plays > 0 ORDER BY p.plays DESC, p.last_played DESC LIMIT ?";
+        private static final String RECENTLY_PLAYED_SELECT = SONG_COLUMNS + " FROM song_play_stats p " +
+                "INDEXED BY idx_song_play_stats_last CROSS JOIN songs s ON s.id = p.song_id" + LOOKUP_JOINS +
+                " WHERE p.last_played IS NOT NULL ORDER BY p.last_played DESC LIMIT ?";
+
+        /**
+         * Writes the first {@code n} events PlayHistory buffered (see its event codes) to
+         * play_events and adds them to the per-song and per-mood totals, in one transaction.
+         * Each song's counts are summed first, so a batch costs one update per song played.
+         */
+        public void recordPlayEvents(int[] songIds, byte[] events, long[] at, long[] positionsMs, int n) throws SQLException {
+            if (n == 0) return;
+            // Per song: plays, completions, skips, last start
+            Map<Integer, long[]> totals = new LinkedHashMap<>();
+            for (int i = 0; i < n; i++) {
+                long[] t = totals.computeIfAbsent(songIds[i], id -> new long[] {0, 0, 0, -1});
+                if (events[i] == PlayHistory.START) {
+                    t[0]++;
+                    t[3] = Math.max(t[3], at[i]);
+                } else if (events[i] == PlayHistory.COMPLETE) {
+                    t[1]++;
+                } else if (events[i] == PlayHistory.SKIP) {
+                    t[2]++;
+                }
+            }
+            transaction(lease -> {
+                PreparedStatement log = lease.prepare("INSERT INTO play_events(song_id, event, at, position_ms) VALUES(?, ?, ?, ?)");
+                for (int i = 0; i < n; i++) {
+                    log.setInt(1, songIds[i]);
+                    log.setInt(2, events[i]);
+                    log.setLong(3, at[i]);
+                    if (positionsMs[i] >= 0) {
+                        log.setLong(4, positionsMs[i]);
+                    } else {
+                        log.setNull(4, Types.INTEGER);
+                    }
+                    log.addBatch();
+                }
+                log.executeBatch();
+                PreparedStatement songs = lease.prepare(ADD_SONG_PLAYS);
+                PreparedStatement moods = lease.prepare(ADD_MOOD_PLAYS);
+                boolean anyPlays = false;
+                for (Map.Entry<Integer, long[]> e : totals.entrySet()) {
+                    long[] t = e.getValue();
+                    songs.setLong(1, t[0]);
+                    songs.setLong(2, t[1]);
+                    songs.setLong(3, t[2]);
+                    if (t[3] >= 0) {
+                        songs.setLong(4, t[3]);
+                    } else {
+                        songs.setNull(4, Types.INTEGER);
+                    }
+                    songs.setInt(5, e.getKey());
+                    songs.addBatch();
+                    if (t[0] > 0) {
+                        moods.setLong(1, t[0]);
+                        moods.setLong(2, t[3]);
+                        moods.setInt(3, e.getKey());
+                        moods.addBatch();
+                        anyPlays = true;
+                    }
+                }
+                songs.executeBatch();
+                if (anyPlays) moods.executeBatch();
+                return null;
+            });
+        }
+
+        /** The songs started most often, most played first; ties go to the one played last. */
+        public List<Song> getMostPlayed(int limit) throws SQLException {
+            return playedSongs(MOST_PLAYED_SELECT, limit);
+        }
+
+        /** The songs started most recently, latest first, each once. */
+        public List<Song> getRecentlyPlayed(int limit) throws SQLException {
+            return playedSongs(RECENTLY_PLAYED_SELECT, limit);
+        }
+
+        private List<Song> playedSongs(String sql, int limit) throws SQLException {
+            List<Song> out = new ArrayList<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(sql);
+                ps.setInt(1, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(rowToSong(rs));
+                }
+            }
+            return out;
+        }
+
+        /** Ids of the songs started most recently, latest first. */
+        public int[] getRecentlyPlayedIds(int limit) throws SQLException {
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare("SELECT song_id FROM song_play_stats INDEXED BY idx_song_play_stats_last " +
+                        "WHERE last_played IS NOT NULL ORDER BY last_played DESC LIMIT ?");
+                ps.setInt(1, limit);
+                int[] ids = new int[limit];
+                int n = 0;
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) ids[n++] = rs.getInt(1);
+                }
+                return Arrays.copyOf(ids, n);
+            }
+        }
+
+        /** Play counts by mood name, most played first; moods never played are left out. */
+        public Map<String, Long> getMoodPlayCounts() throws SQLException {
+            Map<String, Long> out = new LinkedHashMap<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare("SELECT m.name, p.plays FROM mood_play_stats p " +
+                        "JOIN moods m ON m.id = p.mood_id WHERE p.plays > 0 ORDER BY p.plays DESC, p.last_played DESC");
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+            return out;
+        }
+
+        /**
+         * Moves a song within a playlist so it directly follows {@code afterSongId}, or to the
+         * top when {@code afterSongId} is 0. The song takes the midpoint of its new
+         * neighbours' positions, so only its own row is written. When the neighbours are
+         * already adjacent the playlist is renumbered first; when they are merely close, a
+         * renumbering is scheduled in the background.
+         */
+        public void moveSongInPlaylist(String playlistName, int songId, int afterSongId) throws SQLException {
+            Integer playlistId = transaction(lease -> {
+                PreparedStatement find = lease.prepare("SELECT id FROM playlists WHERE name = ?");
+                find.setString(1, playlistName);
+                int pid;
+                try (ResultSet rs = find.executeQuery()) {
+                    if (!rs.next()) throw new SQLException("No playlist named " + playlistName);
+                    pid = rs.getInt(1);
+                }
+                long[] gap = neighbourPositions(lease, pid, songId, afterSongId);
+                if (gap == null) return null;
+                if (gap[1] - gap[0] < 2) {
+                    renumberPlaylist(lease, pid);
+                    gap = neighbourPositions(lease, pid, songId, afterSongId);
+                }
+                long position = gap[0] + (gap[1] - gap[0]) / 2;
+                PreparedStatement move = lease.prepare(
+                    "UPDATE playlist_songs SET position = ? WHERE playlist_id = ? AND song_id = ?");
+                move.setLong(1, position);
+                move.setInt(2, pid);
+                move.setInt(3, songId);
+                move.executeUpdate();
+                boolean crowded = position - gap[0] < REBALANCE_THRESHOLD || gap[1] - position < REBALANCE_THRESHOLD;
+                return crowded ? pid : null;
+            });
+            if (playlistId != null) scheduleRebalance(playlistId);
+        }
+
+        /**
+         * Returns the positions the moved song must fall strictly between: that of
+         * {@code afterSongId} (or one gap before the first entry) and that of the entry
+         * following it (or one gap past the last). Null if the anchor is not in the playlist.
+         */
+        private static long[] neighbourPositions(Lease lease, int playlistId, int songId, int afterSongId) throws SQLException {
+            Long low = null;
+            if (afterSongId != 0) {
+                PreparedStatement anchor = lease.prepare(
+                    "SELECT position FROM playlist_songs WHERE playlist_id = ? AND song_id = ?");
+                anchor.setInt(1, playlistId);
+                anchor.setInt(2, afterSongId);
+                try (ResultSet rs = anchor.executeQuery()) {
+                    if (!rs.next()) return null;
+                    low = rs.getLong(1);
+                }
+            }
+            // Next entry after the anchor (the first entry when moving to the top), skipping the song itself
+            PreparedStatement next = lease.prepare(
+                "SELECT position FROM playlist_songs WHERE playlist_id = ? AND position > ? AND song_id <> ? " +
+                "ORDER BY position LIMIT 1");
+            next.setInt(1, playlistId);
+            next.setLong(2, low != null ? low : Long.MIN_VALUE);
+            next.setInt(3, songId);
+            Long high = null;
+            try (ResultSet rs = next.executeQuery()) {
+                if (rs.next()) high = rs.getLong(1);
+            }
+            if (low == null && high == null) return null;
+            if (low == null) low = high - POSITION_GAP;
+            if (high == null) high = low + POSITION_GAP;
+            return new long[] { low, high };
+        }
+
+        /** Respaces a playlist's positions POSITION_GAP apart, keeping the current order. */
+        private static void renumberPlaylist(Lease lease, int playlistId) throws SQLException {
+            PreparedStatement ps = lease.prepare(
+                "UPDATE playlist_songs SET position = r.rn * " + POSITION_GAP + " FROM (" +
+                "SELECT rowid AS rid, ROW_NUMBER() OVER (ORDER BY position, rowid) AS rn " +
+                "FROM playlist_songs WHERE playlist_id = ?) r WHERE playlist_songs.rowid = r.rid");
+            ps.setInt(1, playlistId);
+            ps.executeUpdate();
+        }
+
+        private void scheduleRebalance(int playlistId) {
+            if (closed || !pendingRebalances.add(playlistId)) return;
+            maintenance.execute(() -> {
+                pendingRebalances.remove(playlistId);
+                try {
+                    transaction(lease -> {
+                        renumberPlaylist(lease, playlistId);
+                        return null;
+                    });
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        public void addSongToPlaylistByName(String playlistName, int songId) {
+            int pid = createPlaylist(playlistName);
+            if (pid != -1) addSongToPlaylist(pid, songId);
+        }
+
+        public List<String> getAllPlaylistNames() {
+            List<String> out = new ArrayList<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare("SELECT name FROM playlists ORDER BY name");
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(rs.getString("name"));
+                }
+            } catch (SQLException e) { e.printStackTrace(); }
+            return out;
+        }
+
+        public List<Song> getSongsForPlaylist(String playlistName) {
+            List<Song> out = new ArrayList<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(PLAYLIST_SONG_SELECT);
+                ps.setString(1, playlistName);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(rowToSong(rs));
+                }
+            } catch (SQLException e) { e.printStackTrace(); }
+            return out;
+        }
+
+        /**
+         * Feeds a playlist's songs to the action in playlist order, each with its length in
+         * milliseconds (-1 when unknown), straight off the result set, so a long playlist is
+         * never held in memory.
+         */
+        public void forEachPlaylistSong(String playlistName, ObjLongConsumer<Song> action) throws SQLException {
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(PLAYLIST_SONG_SELECT);
+                ps.setString(1, playlistName);
+                ps.setFetchSize(DEFAULT_FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        long durationMs = rs.getLong("duration_ms");
+                        if (rs.wasNull()) durationMs = -1;
+                        action.accept(rowToSong(rs), durationMs);
+                    }
+                } catch (SQLException e) {
+                    lease.fail();
+                    throw e;
+                }
+            }
+        }
+
+        public List<Integer> findSongIdsByMood(String mood) {
+            List<Integer> out = new ArrayList<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare("SELECT id FROM songs WHERE mood_id = (SELECT id FROM moods WHERE name = ?) ORDER BY title");
+                ps.setString(1, mood);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(rs.getInt("id"));
+                }
+            } catch (SQLException e) { 
+                e.printStackTrace();
+                System.err.println("Error finding songs for mood: " + mood);
+            }
+            return out;
+        }
+
+        /**
+         * Creates the default admin account on first run.
+         */
+        public void ensureDefaultAdmin() throws SQLException {
+            try (Lease lease = write()) {
+                PreparedStatement ps = lease.prepare(
+                    "INSERT OR IGNORE INTO users (username, password, is_admin) VALUES (?, ?, 1)");
+                ps.setString(1, "admin");
+                ps.setString(2, "admin");
+                ps.executeUpdate();
+            }
+        }
+
+        /**
+         * Checks the given credentials. Returns the user's admin flag, or empty if
+         * the username/password pair is unknown.
+         */
+        public Optional<Boolean> authenticate(String username, String password) throws SQLException {
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare(
+                    "SELECT is_admin FROM users WHERE username = ? AND password = ?");
+                ps.setString(1, username);
+                ps.setString(2, password);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? Optional.of(rs.getBoolean("is_admin")) : Optional.empty();
+                }
+            }
+        }
+
+        public SongCatalog getCatalog() {
+            return catalog;
+        }
+
+        /** Turns the in-memory catalog off, so reads go to SQLite and no background load starts. */
+        public void disableCatalog() {
+            catalogEnabled = false;
+        }
+
+        /**
+         * Loads the whole songs table into the catalog. Normally triggered in the
+         * background by the first read that misses.
+         */
+        public void warmCatalog() throws SQLException {
+            long modCount = catalog.getModCount();
+            long version;
+            try (Lease lease = write()) {
+                version = dataVersion(lease);
+            }
+            List<Song> songs = new ArrayList<>();
+            forEachSong(null, songs::add);
+            // Lost a race with a write-through; a later miss reloads
+            catalog.install(songs, version, modCount);
+        }
+
+        /**
+         * True when the catalog can answer reads: loaded, and no other process has
+         * committed since it was. Another connection's commit changes the writer's
+         * PRAGMA data_version; our own writes don't, and they are written through anyway.
+         */
+        private boolean catalogReady() {
+            if (!catalogEnabled) return false;
+            if (!catalog.isLoaded()) {
+                catalog.recordMiss();
+                scheduleCatalogLoad();
+                return false;
+            }
+            long now = System.nanoTime();
+            if (now - lastVersionCheck < VERSION_CHECK_NANOS) return true;
+            lastVersionCheck = now;
+            try {
+                Lease lease = tryWrite();
+                // Writer busy with one of our own writes: nothing external to detect yet
+                if (lease == null) return true;
+                try (lease) {
+                    if (dataVersion(lease) == catalog.getDataVersion()) return true;
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            catalog.invalidate();
+            catalog.recordMiss();
+            scheduleCatalogLoad();
+            return false;
+        }
+
+        private void scheduleCatalogLoad() {
+            if (closed || !catalogLoading.compareAndSet(false, true)) return;
+            maintenance.execute(() -> {
+                try {
+                    warmCatalog();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                } finally {
+                    catalogLoading.set(false);
+                }
+            });
+        }
+
+        private static long dataVersion(Lease lease) throws SQLException {
+            try (ResultSet rs = lease.prepare("PRAGMA data_version").executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1;
+            }
+        }
+
+        /**
+         * Runs the work on the write connection inside one transaction, committing on
+         * success and rolling back if it throws.
+         */
+        public <T> T transaction(SqlWork<T> work) throws SQLException {
+            try (Lease lease = write()) {
+                Connection conn = lease.connection();
+                conn.setAutoCommit(false);
+                try {
+                    T result = work.run(lease);
+                    conn.commit();
+                    return result;
+                } catch (SQLException | RuntimeException e) {
+                    lease.fail();
+                    try {
+                        conn.rollback();
+                    } catch (SQLException rollbackEx) {
+                        System.err.println("Error during rollback: " + rollbackEx.getMessage());
+                    }
+                    throw e;
+                } finally {
+                    try {
+                        conn.setAutoCommit(true);
+                    } catch (SQLException e) {
+                        System.err.println("Error resetting auto-commit: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private static int countUpdates(int[] counts) {
+            int total = 0;
+            for (int c : counts) {
+                // SUCCESS_NO_INFO (-2) still means the row was written
+                if (c > 0) total += c;
+                else if (c == Statement.SUCCESS_NO_INFO) total++;
+            }
+            return total;
+        }
+
+        Song rowToSong(ResultSet rs) throws SQLException {
+            return new Song(rs.getInt("id"), rs.getString("title"), rs.getString("artist"), rs.getString("mood"), rs.getString("path"));
+        }
+
+        // -- Maintenance --
+
+        /** Row counts and sizes for a look at the library, in display order; sizes in bytes. */
+        public Map<String, Long> getLibraryStats() throws SQLException {
+            Map<String, Long> out = new LinkedHashMap<>();
+            try (Lease lease = read()) {
+                PreparedStatement ps = lease.prepare("SELECT (SELECT user_version FROM pragma_user_version()), " +
+                        "(SELECT COUNT(*) FROM songs), (SELECT COUNT(*) FROM artists), (SELECT COUNT(*) FROM moods), " +
+                        "(SELECT COUNT(*) FROM playlists), (SELECT COUNT(*) FROM playlist_songs), " +
+                        "(SELECT COUNT(*) FROM songs WHERE content_hash IS NOT NULL), (SELECT COUNT(*) FROM song_features), " +
+                        "(SELECT COUNT(*) FROM play_events), (SELECT COALESCE(SUM(plays), 0) FROM song_play_stats), " +
+                        "(SELECT page_count * page_size FROM pragma_page_count(), pragma_page_size()), " +
+                        "(SELECT freelist_count * page_size FROM pragma_freelist_count(), pragma_page_size())");
+                String[] names = {"schema_version", "songs", "artists", "moods", "playlists", "playlist_entries",
+                        "hashed_songs", "analyzed_songs", "play_events", "plays", "file_bytes", "free_bytes"};
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    for (int i = 0; i < names.length; i++) out.put(names[i], rs.getLong(i + 1));
+                }
+            }
+            out.put("wal_bytes", new File(dbfile + "-wal").length());
+            return out;
+        }
+
+        /** Rewrites the database file without its free pages; returns how many bytes that gave back. */
+        public long vacuum() throws SQLException {
+            try (Lease lease = write(); Statement st = lease.connection().createStatement()) {
+                try {
+                    long before = fileBytes(st);
+                    st.execute("VACUUM");
+                    return before - fileBytes(st);
+                } catch (SQLException e) {
+                    lease.fail();
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Copies the WAL into the database file and truncates it. Returns SQLite's
+         * {busy, frames in the WAL, frames copied}; busy is 1 when a reader kept it from finishing.
+         */
+        public int[] checkpoint() throws SQLException {
+            try (Lease lease = write(); Statement st = lease.connection().createStatement();
+                 ResultSet rs = st.executeQuery("PRAGMA wal_checkpoint(TRUNCATE)")) {
+                rs.next();
+                return new int[] {rs.getInt(1), rs.getInt(2), rs.getInt(3)};
+            }
+        }
+
+        /** Runs SQLite's integrity and foreign key checks; returns the problems found, none when healthy. */
+        public List<String> checkIntegrity() throws SQLException {
+            List<String> problems = new ArrayList<>();
+            try (Lease lease = read(); Statement st = lease.connection().createStatement()) {
+                try (ResultSet rs = st.executeQuery("PRAGMA integrity_check")) {
+                    while (rs.next()) {
+                        if (!"ok".equals(rs.getString(1))) problems.add(rs.getString(1));
+                    }
+                }
+                try (ResultSet rs = st.executeQuery("PRAGMA foreign_key_check")) {
+                    while (rs.next()) {
+                        problems.add("row " + rs.getLong(2) + " of " + rs.getString(1) + " references a missing row of " + rs.getString(3));
+                    }
+                }
+            }
+            return problems;
+        }
+
+        private static long fileBytes(Statement st) throws SQLException {
+            try (ResultSet rs = st.executeQuery("SELECT page_count * page_size FROM pragma_page_count(), pragma_page_size()")) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+
+        public PoolStats getPoolStats() {
+            return new PoolStats(checkouts.get(), waits.get(), validations.get(), opened.get(),
+                    readPool.size(), writePool.size(), statementHits.get(), statementMisses.get());
+        }
+
+        static void closeResource(AutoCloseable resource) {
+            try {
+                resource.close();
+            } catch (Exception ignored) {}
+        }
+
+        public void close() {
+            synchronized(lock) {
+                closed = true;
+                maintenance.shutdownNow();
+                // Connections out on lease are closed by Lease.close() when they come back,
+                // so a background load still reading finishes instead of failing mid-row
+                for (PooledConnection pc : connections) {
+                    if (writePool.remove(pc)) {
+                        // Refresh planner statistics the migrations' ANALYZE took on a smaller library
+                        if (pc.conn != null) {
+                            try (Statement st = pc.conn.createStatement()) {
+                                st.execute("PRAGMA optimize");
+                            } catch (SQLException ignored) {}
+                        }
+                        pc.closeQuietly();
+                    } else if (readPool.remove(pc)) {
+                        pc.closeQuietly();
+                    }
+                }
+            }
+        }
+
+        final class PooledConnection {
+            final boolean readOnly;
+            Connection conn;
+            long lastUsed = System.nanoTime();
+            // Set when a caller hit an error; forces a probe on the next checkout
+            volatile boolean suspect;
+            // Statements prepared on this connection, keyed by SQL text in LRU order
+            final Map<String, PreparedStatement> statements =
+                    new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= STATEMENT_CACHE_SIZE) return false;
+                    closeResource(eldest.getValue());
+                    return true;
+                }
+            };
+
+            PooledConnection(boolean readOnly) {
+                this.readOnly = readOnly;
+            }
+
+            PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+                // Key on the flag too: a statement prepared without RETURN_GENERATED_KEYS can't serve keys
+                String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+                PreparedStatement ps = statements.get(key);
+                if (ps != null) {
+                    statementHits.incrementAndGet();
+                    ps.clearParameters();
+                    return ps;
+                }
+                statementMisses.incrementAndGet();
+                ps = conn.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(key, ps);
+                return ps;
+            }
+
+            void discardStatements() {
+                for (PreparedStatement ps : statements.values()) {
+                    closeResource(ps);
+                }
+                statements.clear();
+            }
+
+            void closeQuietly() {
+                // Cached statements die with the connection they were prepared on
+                discardStatements();
+                if (conn != null) {
+                    try {
+                        conn.close();
+                    } catch (SQLException ignored) {}
+                    conn = null;
+                }
+            }
+        }
+
+        /** Song columns that can be projected by {@link #scanSongs}. */
+        public enum Column {
+            ID("s.id"), TITLE("s.title"), ARTIST("a.name"), MOOD("m.name"), PATH("s.path");
+
+            final String sql;
+
+            Column(String sql) {
+                this.sql = sql;
+            }
+        }
+
+        /** Mutable holder reused for every row of a scan; unrequested columns keep stale values. */
+        public static final class SongRow {
+            int id;
+            String title;
+            String artist;
+            String mood;
+            String path;
+
+            public int getId() { return id; }
+            public String getTitle() { return title; }
+            public String getArtist() { return artist; }
+            public String getMood() { return mood; }
+            public String getPath() { return path; }
+
+            public Song toSong() {
+                return new Song(id, title, artist, mood, path);
+            }
+        }
+
+        /**
+         * A file found by a library scan: its size, mtime and duration (milliseconds, -1 if
+         * unknown) and, for new files, the song fields to insert. Records loaded from the
+         * database carry the id.
+         */
+        public static final class FileRecord {
+            private final int id;
+            private final String path;
+            private final long size;
+            private final long mtime;
+            private final String title;
+            private final String artist;
+            private final String mood;
+            private final long durationMs;
+
+            public FileRecord(int id, String path, long size, long mtime, String title, String artist, String mood,
+                              long durationMs) {
+                this.id = id;
+                this.path = path;
+                this.size = size;
+                this.mtime = mtime;
+                this.title = title;
+                this.artist = artist;
+                this.mood = mood;
+                this.durationMs = durationMs;
+            }
+
+            public int getId() { return id; }
+            public String getPath() { return path; }
+            public long getSize() { return size; }
+            public long getMtime() { return mtime; }
+            public String getTitle() { return title; }
+            public String getArtist() { return artist; }
+            public String getMood() { return mood; }
+            public long getDurationMs() { return durationMs; }
+        }
+
+        /** What MoodAnalyzer measured in one file; stored in song_features. */
+        public static final class AudioFeatures {
+            private final double rms;
+            private final double centroidHz;
+            private final double zeroCrossingRate;
+            private final double tempoBpm;
+            private final double seconds;
+
+            public AudioFeatures(double rms, double centroidHz, double zeroCrossingRate, double tempoBpm, double seconds) {
+                this.rms = rms;
+                this.centroidHz = centroidHz;
+                this.zeroCrossingRate = zeroCrossingRate;
+                this.tempoBpm = tempoBpm;
+                this.seconds = seconds;
+            }
+
+            /** Root mean square of the samples, 0 to 1 of full scale. */
+            public double getRms() { return rms; }
+            /** Energy-weighted mean spectral centroid. */
+            public double getCentroidHz() { return centroidHz; }
+            /** Sign changes per sample, 0 to 1. */
+            public double getZeroCrossingRate() { return zeroCrossingRate; }
+            public double getTempoBpm() { return tempoBpm; }
+            /** Length of audio analysed. */
+            public double getSeconds() { return seconds; }
+
+            @Override
+            public String toString() {
+                return String.format("%.1f dBFS, centroid %.0f Hz, zcr %.3f, %.0f BPM over %.1fs",
+                        20 * Math.log10(Math.max(rms, 1e-9)), centroidHz, zeroCrossingRate, tempoBpm, seconds);
+            }
+        }
+
+        /** Wraps a database error raised while a song stream is being consumed. */
+        public static final class UncheckedSQLException extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            public UncheckedSQLException(SQLException cause) {
+                super(cause);
+            }
+
+            @Override
+            public synchronized SQLException getCause() {
+                return (SQLException) super.getCause();
+            }
+        }
+
+        /** Unit of work run against a leased connection. */
+        public interface SqlWork<T> {
+            T run(Lease lease) throws SQLException;
+        }
+
+        /** A checked-out pooled connection. Closing the lease returns it to the pool. */
+        public final class Lease implements AutoCloseable {
+            private final PooledConnection pc;
+            private final BlockingQueue<PooledConnection> home;
+            private boolean released;
+
+            Lease(PooledConnection pc, BlockingQueue<PooledConnection> home) {
+                this.pc = pc;
+                this.home = home;
+            }
+
+            public Connection connection() {
+                return pc.conn;
+            }
+
+            /**
+             * Returns a cached prepared statement for the SQL text, preparing it on a miss.
+             * The statement belongs to the connection: callers close result sets, not the statement.
+             */
+            public PreparedStatement prepare(String sql) throws SQLException {
+                return pc.prepare(sql, Statement.NO_GENERATED_KEYS);
+            }
+
+            /** Like {@link #prepare(String)}, for inserts whose generated keys are read back. */
+            public PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+                return pc.prepare(sql, Statement.RETURN_GENERATED_KEYS);
+            }
+
+            /**
+             * Flags the connection so it is validated before its next use, and drops its
+             * cached statements in case one was left with a half-built batch.
+             */
+            public void fail() {
+                pc.suspect = true;
+                pc.discardStatements();
+            }
+
+            @Override
+            public void close() {
+                if (released) return;
+                released = true;
+                pc.lastUsed = System.nanoTime();
+                if (closed) {
+                    pc.closeQuietly();
+                    return;
+                }
+                home.offer(pc);
+                // close() may have swept the pool between the check and the offer
+                if (closed && home.remove(pc)) pc.closeQuietly();
+            }
+        }
+
+        public static final class PoolStats {
+            private final long checkouts;
+            private final long waits;
+            private final long validations;
+            private final long opened;
+            private final int idleReaders;
+            private final int idleWriters;
+            private final long statementHits;
+            private final long statementMisses;
+
+            PoolStats(long checkouts, long waits, long validations, long opened, int idleReaders, int idleWriters,
+                      long statementHits, long statementMisses) {
+                this.checkouts = checkouts;
+                this.waits = waits;
+                this.validations = validations;
+                this.opened = opened;
+                this.idleReaders = idleReaders;
+                this.idleWriters = idleWriters;
+                this.statementHits = statementHits;
+                this.statementMisses = statementMisses;
+            }
+
+            public long getCheckouts() { return checkouts; }
+            public long getWaits() { return waits; }
+            public long getValidations() { return validations; }
+            public long getOpened() { return opened; }
+            public int getIdleReaders() { return idleReaders; }
+            public int getIdleWriters() { return idleWriters; }
+            public long getStatementHits() { return statementHits; }
+            public long getStatementMisses() { return statementMisses; }
+
+            @Override
+            public String toString() {
+                return "checkouts=" + checkouts + ", waits=" + waits + ", validations=" + validations +
+                        ", opened=" + opened + ", idle=" + idleReaders + "r/" + idleWriters + "w" +
+                        ", statements=" + statementHits + " hits/" + statementMisses + " misses";
             }
         }
     }
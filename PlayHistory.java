@@ -0,0 +1,207 @@
+/*
+ * PlayHistory.java
+ * Records what was played: every track start, skip and completion. Recording only
+ * appends to an in-memory ring of primitive arrays, so the playback path never
+ * waits on SQLite. A background writer drains the ring into play_events in
+ * batched transactions, and DBHelper folds each batch into the per-song and
+ * per-mood totals that the most-played and recently-played views read.
+ *
+ * Nothing recorded is dropped: a full ring grows instead of overwriting, a batch
+ * that fails to write goes back into the ring and is retried with a growing
+ * delay, and close() stops the writer and flushes whatever is left.
+ *
+ * No JavaFX here; record() may be called from any thread.
+ */
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+public class PlayHistory implements Closeable {
+
+    /** Event codes as stored in play_events.event. */
+    public static final byte START = 0;
+    public static final byte SKIP = 1;
+    public static final byte COMPLETE = 2;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // The writer wakes when this many events are waiting, or after the interval
+    private static final int BATCH_SIZE = 256;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // After a failed write the writer waits this long, doubling per failure up to the cap
+    private static final long MAX_RETRY_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final MoodMusicPlayer.DBHelper db;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // The ring: events [head, head + count) modulo capacity, guarded by this
+    private int[] songIds = new int[INITIAL_CAPACITY];
+    private byte[] events = new byte[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private long[] positions = new long[INITIAL_CAPACITY];
+    private int head;
+    private int count;
+    // Held while a batch is written, so close() and flush() cannot interleave with the writer
+    private final Object flushLock = new Object();
+
+    public PlayHistory(MoodMusicPlayer.DBHelper db) {
+        this.db = db;
+        this.writer = new Thread(this::run, "play-history");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Appends one event; never blocks on the database.
+     *
+     * @param positionMs how far into the track it happened, or -1 if unknown
+     */
+    public void record(int songId, byte event, long positionMs) {
+        synchronized (this) {
+            if (count == songIds.length) grow();
+            int slot = (head + count) % songIds.length;
+            songIds[slot] = songId;
+            events[slot] = event;
+            times[slot] = System.currentTimeMillis();
+            positions[slot] = positionMs;
+            count++;
+            if (count >= BATCH_SIZE) notifyAll();
+        }
+    }
+
+    /** Events recorded but not written yet. */
+    public synchronized int getPending() {
+        return count;
+    }
+
+    /** Writes everything recorded so far before returning; call off the UI thread. */
+    public void flush() throws SQLException {
+        synchronized (flushLock) {
+            writeBatch();
+        }
+    }
+
+    /** Stops the writer and writes every event still in the ring. */
+    @Override
+    public void close() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run() {
+        // Consecutive failed writes; while any, the writer waits out the backoff even with a full batch
+        int failures = 0;
+        while (running) {
+            try {
+                synchronized (this) {
+                    long interval = failures == 0 ? FLUSH_INTERVAL_NANOS
+                            : Math.min(MAX_RETRY_INTERVAL_NANOS, FLUSH_INTERVAL_NANOS << Math.min(failures - 1, 10));
+                    long deadline = System.nanoTime() + interval;
+                    long left;
+                    while (running && (failures > 0 || count < BATCH_SIZE) && (left = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                }
+                flush();
+                failures = 0;
+            } catch (InterruptedException e) {
+                return;
+            } catch (SQLException e) {
+                // The batch went back into the ring; a locked or full database is retried less and less often
+                if (failures++ == 0) {
+                    e.printStackTrace();
+                } else {
+                    System.err.println("play-history: write failed again (" + failures + " in a row): " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Takes everything in the ring and writes it in one transaction; puts it back on failure. */
+    private void writeBatch() throws SQLException {
+        int n;
+        int[] ids;
+        byte[] kinds;
+        long[] at;
+        long[] pos;
+        synchronized (this) {
+            n = count;
+            if (n == 0) return;
+            ids = new int[n];
+            kinds = new byte[n];
+            at = new long[n];
+            pos = new long[n];
+            copyOut(ids, kinds, at, pos, n);
+            head = (head + n) % songIds.length;
+            count = 0;
+        }
+        try {
+            db.recordPlayEvents(ids, kinds, at, pos, n);
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                putBack(ids, kinds, at, pos, n);
+            }
+            throw e;
+        }
+    }
+
+    private void copyOut(int[] ids, byte[] kinds, long[] at, long[] pos, int n) {
+        for (int i = 0; i < n; i++) {
+            int slot = (head + i) % songIds.length;
+            ids[i] = songIds[slot];
+            kinds[i] = events[slot];
+            at[i] = times[slot];
+            pos[i] = positions[slot];
+        }
+    }
+
+    /** Returns a failed batch to the front of the ring, ahead of anything recorded since. */
+    private void putBack(int[] ids, byte[] kinds, long[] at, long[] pos, int n) {
+        while (count + n > songIds.length) grow();
+        for (int i = n - 1; i >= 0; i--) {
+            head = (head - 1 + songIds.length) % songIds.length;
+            songIds[head] = ids[i];
+            events[head] = kinds[i];
+            times[head] = at[i];
+            positions[head] = pos[i];
+        }
+        count += n;
+    }
+
+    /** Doubles the ring, unrolling it so head is 0 again. */
+    private void grow() {
+        int capacity = songIds.length * 2;
+        int[] ids = new int[capacity];
+        byte[] kinds = new byte[capacity];
+        long[] at = new long[capacity];
+        long[] pos = new long[capacity];
+        copyOut(ids, kinds, at, pos, count);
+        songIds = ids;
+        events = kinds;
+        times = at;
+        positions = pos;
+        head = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayHistory[pending=" + getPending() + "]";
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * PlaybackController.java
+ * Drives the now-playing bar: title, mood emoji, transport buttons, waveform seek
+ * bar, time label and volume. Every control is wired once, here, when the bar is
+ * built; when the engine moves to another track nothing is added to the controls,
+ * they just read the engine's current player. PlaybackControllerCheck holds it to
+ * that over a thousand track changes.
+ *
+ * Progress is not pushed by a listener on each player's currentTime (which fires
+ * far more often than the bar can show). An AnimationTimer samples the current
+ * player at most PROGRESS_FPS times a second while something plays, and the time
+ * label is only reformatted when the displayed second changes.
+ *
+ * Each track's waveform comes from the WaveformCache: at once when cached, else once
+ * the file has been decoded; the seek bar stays plain until then.
+ */
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
+import javafx.scene.control.Tooltip;
+import javafx.scene.media.MediaPlayer;
+import javafx.util.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class PlaybackController implements PlaybackEngine.Listener {
+
+    /** What the rest of the application hears about playback, on the FX thread. */
+    public interface Host {
+        void trackStarted(MoodMusicPlayer.Song song);
+
+        /** Nothing plays any more: stopped, or the queue ran out. */
+        void playbackStopped();
+
+        /** The song played to its end ({@code completed}) or was left at {@code position}. */
+        void trackEnded(MoodMusicPlayer.Song song, boolean completed, Duration position);
+
+        void playbackFailed(MoodMusicPlayer.Song song, String message);
+
+        /** Play was pressed with nothing loaded; start something if there is a selection. */
+        void playRequested();
+    }
+
+    // Ceiling on progress refreshes; the slider cannot show finer steps anyway
+    private static final int PROGRESS_FPS = 10;
+    private static final long PROGRESS_INTERVAL_NANOS = 1_000_000_000L / PROGRESS_FPS;
+
+    private final PlaybackEngine engine;
+    private final Host host;
+    private final Map<String, String> moodEmojis;
+    private final Label nowPlaying;
+    private final Label moodLabel;
+    private final Button playButton;
+    private final WaveformSeekBar seekBar;
+    private final Label timeLabel;
+    // Null when the cache file could not be opened; the seek bar then stays plain
+    private final WaveformCache waveforms;
+    private CompletableFuture<WaveformCache.Waveform> pendingWaveform;
+    private final Tooltip switchStats = new Tooltip();
+
+    private final AnimationTimer progress = new AnimationTimer() {
+        private long last;
+
+        @Override
+        public void handle(long now) {
+            if (now - last < PROGRESS_INTERVAL_NANOS) return;
+            last = now;
+            refreshProgress();
+        }
+    };
+    // What the time label shows, so it is only rebuilt when a whole second changes
+    private int shownSecond = -1;
+    private int shownTotal = -1;
+    private long shownSwitches = -1;
+
+    public PlaybackController(PlaybackEngine engine, Host host, Map<String, String> moodEmojis, Label nowPlaying, Label moodLabel,
+                              Button prevButton, Button playButton, Button nextButton, Button stopButton,
+                              WaveformSeekBar seekBar, Label timeLabel, Slider volumeSlider, WaveformCache waveforms) {
+        this.engine = engine;
+        this.host = host;
+        this.moodEmojis = moodEmojis;
+        this.nowPlaying = nowPlaying;
+        this.moodLabel = moodLabel;
+        this.playButton = playButton;
+        this.seekBar = seekBar;
+        this.timeLabel = timeLabel;
+        this.waveforms = waveforms;
+        engine.setListener(this);
+
+        nowPlaying.setTooltip(switchStats);
+        playButton.setOnAction(e -> {
+            if (engine.getPlayer() == null) {
+                host.playRequested();
+                return;
+            }
+            boolean playing = engine.togglePause();
+            playButton.setText(playing ? "⏸" : "▶");
+            if (playing) {
+                progress.start();
+            } else {
+                progress.stop();
+            }
+        });
+        prevButton.setOnAction(e -> engine.previous());
+        nextButton.setOnAction(e -> engine.next());
+        stopButton.setOnAction(e -> engine.stop());
+
+        // Seeks on press, while dragging, and once more where the drag ends
+        seekBar.setOnSeek(engine::seek);
+        volumeSlider.valueProperty().addListener((obs, oldVal, newVal) ->
+            engine.setVolume(newVal.doubleValue() / 100.0));
+        engine.setVolume(volumeSlider.getValue() / 100.0);
+    }
+
+    /** Plays the song at {@code index}; the songs after it in {@code queue} follow. */
+    public void play(List<MoodMusicPlayer.Song> queue, int index) {
+        engine.play(queue, index);
+    }
+
+    public PlaybackEngine getEngine() {
+        return engine;
+    }
+
+    public void dispose() {
+        progress.stop();
+        if (pendingWaveform != null) pendingWaveform.cancel(false);
+        engine.dispose();
+    }
+
+    @Override
+    public void trackStarted(MoodMusicPlayer.Song song, MediaPlayer player) {
+        nowPlaying.setText(song.getTitle() + " — " + song.getArtist());
+        moodLabel.setText(moodEmojis.getOrDefault(song.getMood(), "🎵"));
+        playButton.setText("⏸");
+        shownSecond = -1;
+        shownTotal = -1;
+        progress.start();
+        showWaveform(song);
+        host.trackStarted(song);
+    }
+
+    @Override
+    public void trackEnded(MoodMusicPlayer.Song song, boolean completed, Duration position) {
+        host.trackEnded(song, completed, position);
+    }
+
+    @Override
+    public void playbackStopped() {
+        progress.stop();
+        playButton.setText("▶");
+        nowPlaying.setText("Not playing");
+        moodLabel.setText("");
+        if (pendingWaveform != null) pendingWaveform.cancel(false);
+        seekBar.setWaveform(null);
+        seekBar.setProgress(0);
+        timeLabel.setText("0:00 / 0:00");
+        shownSecond = -1;
+        shownTotal = -1;
+        host.playbackStopped();
+    }
+
+    @Override
+    public void playbackFailed(MoodMusicPlayer.Song song, String message) {
+        host.playbackFailed(song, message);
+    }
+
+    private void refreshProgress() {
+        MediaPlayer player = engine.getPlayer();
+        if (player == null) return;
+        Duration total = player.getTotalDuration();
+        Duration current = player.getCurrentTime();
+        // Unknown until the media has been probed, and for live streams
+        boolean known = total != null && !total.isUnknown() && !total.isIndefinite() && total.toMillis() > 0;
+        if (known) seekBar.setProgress(current.toMillis() / total.toMillis());
+        int second = (int) current.toSeconds();
+        int totalSeconds = known ? (int) total.toSeconds() : -1;
+        if (second != shownSecond || totalSeconds != shownTotal) {
+            shownSecond = second;
+            shownTotal = totalSeconds;
+            timeLabel.setText(known ? formatTime(second) + " / " + formatTime(totalSeconds) : formatTime(second));
+        }
+        PlaybackEngine.SwitchStats stats = engine.getSwitchStats();
+        if (stats.getSwitches() != shownSwitches) {
+            shownSwitches = stats.getSwitches();
+            switchStats.setText(stats.toString());
+        }
+    }
+
+    /** Plain bar until the song's waveform is ready; a decode for the track before is dropped. */
+    private void showWaveform(MoodMusicPlayer.Song song) {
+        if (pendingWaveform != null) pendingWaveform.cancel(false);
+        if (waveforms == null) {
+            seekBar.setWaveform(null);
+            return;
+        }
+        CompletableFuture<WaveformCache.Waveform> request = waveforms.request(song.getPath());
+        pendingWaveform = request;
+        WaveformCache.Waveform cached = request.getNow(null);
+        seekBar.setWaveform(cached);
+        if (cached != null || request.isDone()) return;
+        request.thenAccept(w -> Platform.runLater(() -> {
+            if (request == pendingWaveform && w != null) seekBar.setWaveform(w);
+        }));
+    }
+
+    private static String formatTime(int seconds) {
+        int s = seconds % 60;
+        return (seconds / 60) + (s < 10 ? ":0" : ":") + s;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * PlaybackControllerCheck.java
+ * Checks that the now-playing bar's controls are wired once and stay that way: after
+ * a thousand track changes every button, the seek bar and the volume slider must
+ * still hold the handlers they got when the bar was built, and one click (or drag, or
+ * slider move) must reach the engine exactly once. A handler added per track would
+ * show up here as a changed handler or as repeated engine calls.
+ *
+ * The controller runs against a stand-in engine that plays nothing and only counts
+ * the calls it gets, so no media files are needed. The JavaFX toolkit is, as for any
+ * control: run it where the player itself runs.
+ *
+ *   java --module-path ... --add-modules javafx.controls,javafx.media -cp out PlaybackControllerCheck
+ *
+ * Exits with status 1 if any check fails.
+ */
+
+import javafx.application.Platform;
+import javafx.event.ActionEvent;
+import javafx.event.Event;
+import javafx.event.EventHandler;
+import javafx.event.EventType;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.media.MediaPlayer;
+import javafx.util.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+
+public class PlaybackControllerCheck {
+
+    private static final int TRACK_CHANGES = 1000;
+
+    private final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        PlaybackControllerCheck check = new PlaybackControllerCheck();
+        CountDownLatch done = new CountDownLatch(1);
+        Platform.startup(() -> {
+            try {
+                check.run();
+            } catch (RuntimeException | Error e) {
+                e.printStackTrace();
+                check.failures.add("threw " + e);
+            } finally {
+                done.countDown();
+            }
+        });
+        done.await();
+        Platform.exit();
+        for (String f : check.failures) System.out.println("FAIL " + f);
+        System.out.println(check.failures.isEmpty() ? "Controls unchanged after " + TRACK_CHANGES + " track changes"
+                : check.failures.size() + " checks failed");
+        System.exit(check.failures.isEmpty() ? 0 : 1);
+    }
+
+    private void run() {
+        CountingEngine engine = new CountingEngine();
+        CountingHost host = new CountingHost();
+        Button prev = new Button("⏮");
+        Button play = new Button("▶");
+        Button next = new Button("⏭");
+        Button stop = new Button("⏹");
+        WaveformSeekBar seekBar = new WaveformSeekBar();
+        Slider volume = new Slider(0, 100, 80);
+        PlaybackController controller = new PlaybackController(engine, host, Collections.emptyMap(),
+                new Label(), new Label(), prev, play, next, stop, seekBar, new Label(), volume, null);
+
+        Map<String, EventHandler<ActionEvent>> buttons = new LinkedHashMap<>();
+        buttons.put("previous", prev.getOnAction());
+        buttons.put("play", play.getOnAction());
+        buttons.put("next", next.getOnAction());
+        buttons.put("stop", stop.getOnAction());
+        Map<String, Integer> before = engine.snapshot(host);
+
+        for (int i = 0; i < TRACK_CHANGES; i++) {
+            MoodMusicPlayer.Song song = new MoodMusicPlayer.Song(i + 1, "Song " + i, "Artist", "Calm", "/music/" + i + ".mp3");
+            controller.trackStarted(song, null);
+            controller.trackEnded(song, i % 2 == 0, Duration.seconds(i % 300));
+        }
+        controller.playbackStopped();
+
+        check("engine calls during track changes", before, engine.snapshot(host));
+        check("previous handler", buttons.get("previous"), prev.getOnAction());
+        check("play handler", buttons.get("play"), play.getOnAction());
+        check("next handler", buttons.get("next"), next.getOnAction());
+        check("stop handler", buttons.get("stop"), stop.getOnAction());
+
+        // Each control once more: the engine (or host) must hear about it exactly once
+        prev.fire();
+        play.fire();
+        next.fire();
+        stop.fire();
+        volume.setValue(20);
+        seekBar.resize(300, 36);
+        seekBar.layout();
+        Event.fireEvent(seekBar, mouse(MouseEvent.MOUSE_PRESSED, 150));
+        Event.fireEvent(seekBar, mouse(MouseEvent.MOUSE_RELEASED, 150));
+        Map<String, Integer> expected = new LinkedHashMap<>(before);
+        expected.merge("previous", 1, Integer::sum);
+        expected.merge("playRequested", 1, Integer::sum);   // nothing loaded: play asks the host
+        expected.merge("next", 1, Integer::sum);
+        expected.merge("stop", 1, Integer::sum);
+        expected.merge("setVolume", 1, Integer::sum);
+        expected.merge("seek", 2, Integer::sum);             // press and release each seek once
+        check("engine calls for one use of each control", expected, engine.snapshot(host));
+        check("host tracks started", TRACK_CHANGES, host.started);
+        check("host tracks ended", TRACK_CHANGES, host.ended);
+        controller.dispose();
+    }
+
+    private void check(String what, Object expected, Object actual) {
+        if (!Objects.equals(expected, actual)) failures.add(what + ": expected " + expected + ", got " + actual);
+    }
+
+    private static MouseEvent mouse(EventType<MouseEvent> type, double x) {
+        return new MouseEvent(type, x, 10, x, 10, MouseButton.PRIMARY, 1,
+                false, false, false, false, true, false, false, false, false, false, null);
+    }
+
+    /** Plays nothing; counts what the controller asks of it. */
+    private static final class CountingEngine extends PlaybackEngine {
+        private final Map<String, Integer> calls = new LinkedHashMap<>();
+
+        @Override
+        public boolean next() {
+            count("next");
+            return true;
+        }
+
+        @Override
+        public void previous() {
+            count("previous");
+        }
+
+        @Override
+        public boolean togglePause() {
+            count("togglePause");
+            return true;
+        }
+
+        @Override
+        public void stop() {
+            count("stop");
+        }
+
+        @Override
+        public void seek(double fraction) {
+            count("seek");
+        }
+
+        @Override
+        public void setVolume(double volume) {
+            count("setVolume");
+        }
+
+        @Override
+        public MediaPlayer getPlayer() {
+            return null;
+        }
+
+        private void count(String call) {
+            calls.merge(call, 1, Integer::sum);
+        }
+
+        Map<String, Integer> snapshot(CountingHost host) {
+            Map<String, Integer> all = new LinkedHashMap<>(calls);
+            if (host.playRequested > 0) all.put("playRequested", host.playRequested);
+            return all;
+        }
+    }
+
+    private static final class CountingHost implements PlaybackController.Host {
+        int started;
+        int ended;
+        int playRequested;
+
+        @Override
+        public void trackStarted(MoodMusicPlayer.Song song) {
+            started++;
+        }
+
+        @Override
+        public void playbackStopped() {
+        }
+
+        @Override
+        public void trackEnded(MoodMusicPlayer.Song song, boolean completed, Duration position) {
+            ended++;
+        }
+
+        @Override
+        public void playbackFailed(MoodMusicPlayer.Song song, String message) {
+        }
+
+        @Override
+        public void playRequested() {
+            playRequested++;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * PlaybackEngine.java
+ * Plays a queue of songs (the selected playlist, or the song table in its current
+ * order) and switches between them without a gap.
+ *
+ * While a track plays, the next one's Media and MediaPlayer are built on a
+ * background thread (opening an http URL blocks) and left to preroll to READY.
+ * With a stream cache set, http songs are opened through its loopback proxy, so a
+ * track played before starts from disk.
+ * At end-of-media the prepared player only has to be started, so the switch costs
+ * one play() call rather than opening, probing and buffering a file. Each switch
+ * is timed from the moment it was asked for (end-of-media or a button) until the
+ * new player reports PLAYING; see getSwitchStats().
+ *
+ * Every method must be called on the FX thread, where MediaPlayer delivers its
+ * callbacks too.
+ */
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.scene.media.Media;
+import javafx.scene.media.MediaPlayer;
+import javafx.util.Duration;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class PlaybackEngine {
+
+    /** Receives playback changes on the FX thread. */
+    public interface Listener {
+        /** A new track began; {@code player} is the one now playing it. */
+        void trackStarted(MoodMusicPlayer.Song song, MediaPlayer player);
+
+        /**
+         * The track that last started is over: it played to the end ({@code completed}), or was
+         * left at {@code position} by a skip, a stop or another song being played.
+         */
+        void trackEnded(MoodMusicPlayer.Song song, boolean completed, Duration position);
+
+        /** Playback ended: stopped, or the queue ran out. */
+        void playbackStopped();
+
+        /** A track the user asked for could not be opened. */
+        void playbackFailed(MoodMusicPlayer.Song song, String message);
+    }
+
+    // "Previous" restarts the track instead once it has played this long
+    private static final Duration RESTART_THRESHOLD = Duration.seconds(3);
+    // Unplayable songs skipped while looking for the next track to prepare
+    private static final int MAX_SKIPPED = 5;
+    // How soon to look again for a next row that a paged list has not loaded yet
+    private static final Duration PAGE_RETRY = Duration.millis(200);
+
+    private Listener listener;
+    // Media is opened here: an http Media blocks its constructor on the connection
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "media-loader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private List<MoodMusicPlayer.Song> queue = Collections.emptyList();
+    private int index = -1;
+    private MoodMusicPlayer.Song current;
+    private MediaPlayer player;
+    // The song trackStarted() was last sent for, until its trackEnded() is sent
+    private MoodMusicPlayer.Song started;
+    // The track after the current one, prerolling or ready
+    private MoodMusicPlayer.Song nextSong;
+    private int nextIndex = -1;
+    private MediaPlayer nextPlayer;
+    // Bumped on every switch, so a load finishing late is thrown away
+    private long generation;
+    private double volume = 1.0;
+    // Proxy that caches http songs on disk; null plays them straight from the origin
+    private HttpMediaCache streamCache;
+    // When the switch in progress was asked for; 0 when none is
+    private long switchStartNanos;
+    private boolean switchPreloaded;
+
+    private long switches;
+    private long preloadedSwitches;
+    private long totalSwitchNanos;
+    private long maxSwitchNanos;
+    private long lastSwitchNanos;
+
+    /** Sends playback changes to {@code listener}; set once, before anything is played. */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Routes http songs opened from now on through {@code cache}; null plays them directly. */
+    public void setStreamCache(HttpMediaCache cache) {
+        this.streamCache = cache;
+    }
+
+    /**
+     * Starts the song at {@code index} of {@code queue}; later tracks follow from the same list.
+     * The list is read, not copied, so it may be a paged list whose rows arrive later.
+     */
+    public void play(List<MoodMusicPlayer.Song> queue, int index) {
+        this.queue = queue;
+        jumpTo(index);
+    }
+
+    /** Skips to the next track in the queue. Returns false at the end of the queue. */
+    public boolean next() {
+        if (nextPlayer != null) {
+            swapToNext(System.nanoTime());
+            return true;
+        }
+        for (int i = index + 1; i < queue.size() && i <= index + MAX_SKIPPED; i++) {
+            if (playable(queue.get(i))) {
+                jumpTo(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Restarts the current track if it is past its first seconds, else goes back one. */
+    public void previous() {
+        if (player != null && player.getCurrentTime().greaterThan(RESTART_THRESHOLD)) {
+            player.seek(Duration.ZERO);
+            return;
+        }
+        for (int i = index - 1; i >= 0 && i >= index - MAX_SKIPPED; i--) {
+            if (playable(queue.get(i))) {
+                jumpTo(i);
+                return;
+            }
+        }
+        if (player != null) player.seek(Duration.ZERO);
+    }
+
+    /** Pauses or resumes. Returns true if now playing. */
+    public boolean togglePause() {
+        if (player == null) return false;
+        if (player.getStatus() == MediaPlayer.Status.PLAYING) {
+            player.pause();
+            return false;
+        }
+        player.play();
+        return true;
+    }
+
+    public void stop() {
+        endTrack(false);
+        generation++;
+        release();
+        current = null;
+        index = -1;
+        switchStartNanos = 0;
+        listener.playbackStopped();
+    }
+
+    /** Jumps to {@code fraction} (0..1) of the current track, once its length is known. */
+    public void seek(double fraction) {
+        if (player == null) return;
+        Duration total = player.getTotalDuration();
+        if (total == null || total.isUnknown() || total.isIndefinite()) return;
+        player.seek(total.multiply(fraction));
+    }
+
+    public void setVolume(double volume) {
+        this.volume = volume;
+        if (player != null) player.setVolume(volume);
+        if (nextPlayer != null) nextPlayer.setVolume(volume);
+    }
+
+    public MediaPlayer getPlayer() {
+        return player;
+    }
+
+    public MoodMusicPlayer.Song getCurrent() {
+        return current;
+    }
+
+    /** The track prepared to follow, or null if there is none (yet). */
+    public MoodMusicPlayer.Song getPreparedNext() {
+        return nextSong;
+    }
+
+    public SwitchStats getSwitchStats() {
+        return new SwitchStats(switches, preloadedSwitches, lastSwitchNanos,
+                switches == 0 ? 0 : totalSwitchNanos / switches, maxSwitchNanos);
+    }
+
+    /** Releases both players and the loader thread; the engine is unusable afterwards. */
+    public void dispose() {
+        endTrack(false);
+        generation++;
+        release();
+        loader.shutdownNow();
+    }
+
+    /** Cold start: nothing is prepared for this index, so it is opened now. */
+    private void jumpTo(int newIndex) {
+        long requested = System.nanoTime();
+        long gen = ++generation;
+        endTrack(false);
+        release();
+        index = newIndex;
+        current = newIndex >= 0 && newIndex < queue.size() ? queue.get(newIndex) : null;
+        if (current == null) {
+            listener.playbackStopped();
+            return;
+        }
+        MoodMusicPlayer.Song song = current;
+        switchStartNanos = requested;
+        switchPreloaded = false;
+        open(song).whenComplete((p, err) -> Platform.runLater(() -> {
+            if (gen != generation) {
+                if (p != null) p.dispose();
+                return;
+            }
+            if (err != null) {
+                Throwable cause = err.getCause() != null ? err.getCause() : err;
+                listener.playbackFailed(song, cause.getMessage());
+                return;
+            }
+            start(p, song);
+            // MediaPlayer queues play() until it is READY
+            p.play();
+        }));
+    }
+
+    /** Starts the prepared next player in place of the current one. */
+    private void swapToNext(long requested) {
+        endTrack(false);
+        MediaPlayer old = player;
+        MediaPlayer p = nextPlayer;
+        MoodMusicPlayer.Song song = nextSong;
+        index = nextIndex;
+        nextPlayer = null;
+        nextSong = null;
+        nextIndex = -1;
+        generation++;
+        switchStartNanos = requested;
+        switchPreloaded = p.getStatus() == MediaPlayer.Status.READY;
+        // Start the new player before tearing down the old one, so nothing waits on dispose()
+        p.play();
+        if (old != null) {
+            old.setOnEndOfMedia(null);
+            old.stop();
+            old.dispose();
+        }
+        start(p, song);
+    }
+
+    /** Makes {@code p} the current player and begins preparing the track after it. */
+    private void start(MediaPlayer p, MoodMusicPlayer.Song song) {
+        player = p;
+        current = song;
+        p.setVolume(volume);
+        p.statusProperty().addListener((obs, was, status) -> {
+            if (status == MediaPlayer.Status.PLAYING && p == player && switchStartNanos != 0) {
+                recordSwitch(System.nanoTime() - switchStartNanos);
+                switchStartNanos = 0;
+            }
+        });
+        p.setOnEndOfMedia(() -> {
+            if (p != player) return;
+            endTrack(true);
+            if (nextPlayer != null) {
+                swapToNext(System.nanoTime());
+            } else if (!next()) {
+                stop();
+            }
+        });
+        p.setOnError(() -> {
+            if (p == player) listener.playbackFailed(song, String.valueOf(p.getError()));
+        });
+        started = song;
+        listener.trackStarted(song, p);
+        prepareNext(generation);
+    }
+
+    /**
+     * Opens the first playable song after the current one in the background. A row of a
+     * paged list that has not arrived yet is retried shortly, once its page is in.
+     */
+    private void prepareNext(long gen) {
+        int i = index + 1;
+        int skipped = 0;
+        while (i < queue.size() && skipped < MAX_SKIPPED) {
+            MoodMusicPlayer.Song song = queue.get(i);
+            if (song == null) {
+                PauseTransition retry = new PauseTransition(PAGE_RETRY);
+                retry.setOnFinished(e -> {
+                    if (gen == generation && nextPlayer == null) prepareNext(gen);
+                });
+                retry.play();
+                return;
+            }
+            if (playable(song)) {
+                int at = i;
+                open(song).whenComplete((p, err) -> Platform.runLater(() -> {
+                    if (gen != generation || err != null) {
+                        if (p != null) p.dispose();
+                        return;
+                    }
+                    p.setVolume(volume);
+                    // A track that fails while prerolling is opened again, cold, when its turn comes
+                    p.setOnError(() -> {
+                        if (p != nextPlayer) return;
+                        nextPlayer = null;
+                        nextSong = null;
+                        nextIndex = -1;
+                        p.dispose();
+                    });
+                    nextPlayer = p;
+                    nextSong = song;
+                    nextIndex = at;
+                }));
+                return;
+            }
+            i++;
+            skipped++;
+        }
+    }
+
+    /** Builds the song's Media and MediaPlayer on the loader thread; the player prerolls on its own. */
+    private CompletableFuture<MediaPlayer> open(MoodMusicPlayer.Song song) {
+        String path = song.getPath();
+        HttpMediaCache cache = streamCache;
+        return CompletableFuture.supplyAsync(() -> {
+            String uri = cache != null && isRemote(path) ? cache.proxyUrl(toUri(path)) : toUri(path);
+            return new MediaPlayer(new Media(uri));
+        }, loader);
+    }
+
+    private static boolean playable(MoodMusicPlayer.Song song) {
+        if (song == null || song.getPath() == null || song.getPath().trim().isEmpty()) return false;
+        return isRemote(song.getPath()) || new File(song.getPath()).exists();
+    }
+
+    private static boolean isRemote(String path) {
+        return path.toLowerCase(Locale.ROOT).startsWith("http");
+    }
+
+    /** The Media source for a stored path, which is either a URL or a local file. */
+    static String toUri(String path) {
+        if (path == null || path.trim().isEmpty()) {
+            throw new IllegalArgumentException("No media file or URL specified for this song");
+        }
+        if (isRemote(path)) return path.replace(" ", "%20");
+        File file = new File(path);
+        if (!file.exists()) throw new IllegalArgumentException("File not found: " + path);
+        return file.toURI().toString();
+    }
+
+    /** Reports the end of the started track, once; a no-op when it was already reported. */
+    private void endTrack(boolean completed) {
+        if (started == null) return;
+        MoodMusicPlayer.Song song = started;
+        started = null;
+        listener.trackEnded(song, completed, player != null ? player.getCurrentTime() : Duration.UNKNOWN);
+    }
+
+    private void release() {
+        if (player != null) {
+            player.setOnEndOfMedia(null);
+            player.stop();
+            player.dispose();
+            player = null;
+        }
+        if (nextPlayer != null) {
+            nextPlayer.dispose();
+            nextPlayer = null;
+        }
+        nextSong = null;
+        nextIndex = -1;
+    }
+
+    private void recordSwitch(long nanos) {
+        switches++;
+        if (switchPreloaded) preloadedSwitches++;
+        totalSwitchNanos += nanos;
+        maxSwitchNanos = Math.max(maxSwitchNanos, nanos);
+        lastSwitchNanos = nanos;
+    }
+
+    /** How long track switches took, from being asked for to the new track playing. */
+    public static final class SwitchStats {
+        private final long switches;
+        private final long preloaded;
+        private final long lastNanos;
+        private final long meanNanos;
+        private final long maxNanos;
+
+        SwitchStats(long switches, long preloaded, long lastNanos, long meanNanos, long maxNanos) {
+            this.switches = switches;
+            this.preloaded = preloaded;
+            this.lastNanos = lastNanos;
+            this.meanNanos = meanNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getSwitches() { return switches; }
+        public long getPreloaded() { return preloaded; }
+        public double getLastMillis() { return lastNanos / 1e6; }
+        public double getMeanMillis() { return meanNanos / 1e6; }
+        public double getMaxMillis() { return maxNanos / 1e6; }
+
+        @Override
+        public String toString() {
+            return String.format("Track switch: %.0f ms (mean %.0f ms, max %.0f ms over %d, %d preloaded)",
+                    getLastMillis(), getMeanMillis(), getMaxMillis(), switches, preloaded);
+        }
+    }
+}
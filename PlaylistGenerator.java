@@ -0,0 +1,295 @@
+/*
+ * PlaylistGenerator.java
+ * Builds playlists under constraints: a track count or a running time, a weighted mix
+ * of moods, no artist twice in a row, no recently played songs, and a seed so the same
+ * request gives the same playlist.
+ *
+ * The library is loaded once as parallel primitive arrays (id, artist id, mood id,
+ * duration), grouped by mood once, and generate() works on indexes into them. Each
+ * mood's pool is shuffled only as far as it is drawn from, so a playlist costs about
+ * as much as the tracks it picks, whatever the size of the library. Run main() for a
+ * benchmark across library sizes.
+ *
+ * No JavaFX here: the dialog in MoodMusicPlayer collects the constraints and saves
+ * the result with DBHelper.savePlaylist().
+ */
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+public class PlaylistGenerator {
+
+    /** Counted for songs whose duration was never read from their tags. */
+    public static final long DEFAULT_DURATION_MS = 210_000;
+
+    // A duration target counts as met within this much either way
+    private static final long DURATION_SLACK_MS = 30_000;
+    // How far down a shuffled mood pool to look for a song that keeps the constraints
+    private static final int LOOKAHEAD = 256;
+
+    private final Candidates candidates;
+
+    public PlaylistGenerator(Candidates candidates) {
+        this.candidates = candidates;
+    }
+
+    public Candidates getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Picks songs for one playlist. Moods are interleaved in proportion to their weights,
+     * each drawing from its own seeded shuffle. When the mood due next has no song that
+     * keeps the constraints the other moods are tried; generation stops when none has.
+     */
+    public Result generate(Constraints c) {
+        Candidates lib = candidates;
+        // Mood ids in the mix and their weights, in a fixed order so the seed fully decides the result
+        int moods = lib.moodNames.length;
+        double[] weight = new double[moods];
+        boolean anyWeight = false;
+        for (Map.Entry<String, Double> e : c.moodWeights.entrySet()) {
+            int m = lib.moodId(e.getKey());
+            if (m >= 0 && e.getValue() > 0) {
+                weight[m] = e.getValue();
+                anyWeight = true;
+            }
+        }
+        // No mix given: every mood counts, weighted by how many songs it has
+        if (!anyWeight) Arrays.fill(weight, -1);
+
+        // Checked as songs are drawn, so the pools can be copied straight from the candidates
+        BitSet excluded = new BitSet();
+        for (int id : c.excludedIds) {
+            if (id >= 0) excluded.set(id);
+        }
+        int[][] byMood = lib.indexesByMood();
+        int[][] pools = new int[moods][];
+        for (int m = 0; m < moods; m++) {
+            pools[m] = weight[m] != 0 ? byMood[m].clone() : new int[0];
+            if (weight[m] < 0) weight[m] = pools[m].length;
+        }
+        SplittableRandom random = new SplittableRandom(c.seed);
+
+        int maxTracks = c.tracks > 0 ? c.tracks : Integer.MAX_VALUE;
+        long maxMs = c.durationMs > 0 ? c.durationMs + DURATION_SLACK_MS : Long.MAX_VALUE;
+        long enoughMs = c.durationMs > 0 ? c.durationMs - DURATION_SLACK_MS : Long.MAX_VALUE;
+        int capacity = 0;
+        for (int[] pool : pools) capacity += pool.length;
+        int[] picked = new int[Math.min(capacity, maxTracks)];
+        int n = picked.length;
+        int[] cursor = new int[moods];
+        // Each pool is shuffled lazily: positions before shuffled[m] are already in random order
+        int[] shuffled = new int[moods];
+        int[] taken = new int[moods];
+        double totalWeight = 0;
+        for (double w : weight) totalWeight += w;
+        int count = 0;
+        long totalMs = 0;
+        int lastArtist = -1;
+
+        while (count < n && totalMs < enoughMs) {
+            // Smooth weighted round robin: the mood furthest behind its share goes next
+            int chosen = -1;
+            double bestLag = Double.NEGATIVE_INFINITY;
+            for (int m = 0; m < moods; m++) {
+                if (cursor[m] == pools[m].length || weight[m] <= 0) continue;
+                double lag = weight[m] / totalWeight * (count + 1) - taken[m];
+                if (lag > bestLag) {
+                    bestLag = lag;
+                    chosen = m;
+                }
+            }
+            if (chosen < 0) break;
+            int index = take(pools[chosen], cursor, shuffled, chosen, random, lib, excluded,
+                    c.distinctArtists ? lastArtist : -1, maxMs - totalMs);
+            if (index < 0) {
+                // The mood due next cannot continue; give the turn to whichever mood can
+                for (int m = 0; m < moods && index < 0; m++) {
+                    if (m == chosen || cursor[m] == pools[m].length || weight[m] <= 0) continue;
+                    index = take(pools[m], cursor, shuffled, m, random, lib, excluded,
+                            c.distinctArtists ? lastArtist : -1, maxMs - totalMs);
+                    if (index >= 0) chosen = m;
+                }
+                if (index < 0) break;
+            }
+            picked[count++] = lib.ids[index];
+            taken[chosen]++;
+            totalMs += lib.durationOf(index);
+            lastArtist = lib.artistIds[index];
+        }
+        return new Result(Arrays.copyOf(picked, count), totalMs);
+    }
+
+    /**
+     * Moves the first song in the pool's lookahead window that is not excluded, not by
+     * {@code avoidArtist} and fits in {@code remainingMs} to the cursor and takes it. Excluded
+     * songs met on the way are dropped from the pool. Returns the song's candidate index, or
+     * -1 if the window has none.
+     */
+    private static int take(int[] pool, int[] cursor, int[] shuffled, int m, SplittableRandom random,
+                            Candidates lib, BitSet excluded, int avoidArtist, long remainingMs) {
+        int from = cursor[m];
+        for (int j = from; j < Math.min(pool.length, from + LOOKAHEAD); j++) {
+            if (j == shuffled[m]) {
+                // One more Fisher-Yates step, so only the part of the pool looked at is shuffled
+                int r = j + random.nextInt(pool.length - j);
+                int t = pool[j];
+                pool[j] = pool[r];
+                pool[r] = t;
+                shuffled[m] = j + 1;
+            }
+            int index = pool[j];
+            if (excluded.get(lib.ids[index])) {
+                pool[j] = pool[from];
+                pool[from] = index;
+                cursor[m] = ++from;
+                continue;
+            }
+            if (avoidArtist >= 0 && lib.artistIds[index] == avoidArtist) continue;
+            if (lib.durationOf(index) > remainingMs) continue;
+            pool[j] = pool[from];
+            pool[from] = index;
+            cursor[m] = from + 1;
+            return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Benchmark: generates a 10,000-track playlist with every constraint switched on over
+     * synthetic libraries of growing size. Usage: java PlaylistGenerator [largest size].
+     */
+    public static void main(String[] args) {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String[] moodNames = {"Happy", "Sad", "Energetic", "Calm", "Focus"};
+        System.out.println("songs\tpicked\tbest ms\tmedian ms");
+        for (int n = 10_000; n <= largest; n *= 10) {
+            SplittableRandom random = new SplittableRandom(n);
+            int[] ids = new int[n];
+            int[] artists = new int[n];
+            int[] moods = new int[n];
+            int[] durations = new int[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = i + 1;
+                artists[i] = random.nextInt(Math.max(1, n / 10));
+                moods[i] = random.nextInt(moodNames.length);
+                durations[i] = random.nextInt(8) == 0 ? -1 : 120_000 + random.nextInt(240_000);
+            }
+            PlaylistGenerator generator = new PlaylistGenerator(new Candidates(ids, artists, moods, durations, moodNames));
+            Constraints c = new Constraints();
+            c.setTracks(10_000);
+            c.setMoodWeight("Happy", 3);
+            c.setMoodWeight("Energetic", 2);
+            c.setMoodWeight("Calm", 1);
+            int[] recent = new int[500];
+            for (int i = 0; i < recent.length; i++) recent[i] = 1 + random.nextInt(n);
+            c.setExcludedIds(recent);
+            long[] times = new long[15];
+            int picked = 0;
+            for (int run = 0; run < times.length; run++) {
+                c.setSeed(run);
+                long start = System.nanoTime();
+                picked = generator.generate(c).getSongIds().length;
+                times[run] = System.nanoTime() - start;
+            }
+            Arrays.sort(times);
+            System.out.printf("%d\t%d\t%.2f\t%.2f%n", n, picked, times[0] / 1e6, times[times.length / 2] / 1e6);
+        }
+    }
+
+    /**
+     * The library as parallel arrays, indexed alike. Mood ids index moodNames; artist ids
+     * are only compared. A negative duration means unknown.
+     */
+    public static final class Candidates {
+        final int[] ids;
+        final int[] artistIds;
+        final int[] moodIds;
+        final int[] durationsMs;
+        final String[] moodNames;
+        // Candidate indexes grouped by mood id, built on first use
+        private int[][] byMood;
+
+        public Candidates(int[] ids, int[] artistIds, int[] moodIds, int[] durationsMs, String[] moodNames) {
+            this.ids = ids;
+            this.artistIds = artistIds;
+            this.moodIds = moodIds;
+            this.durationsMs = durationsMs;
+            this.moodNames = moodNames;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        synchronized int[][] indexesByMood() {
+            if (byMood == null) {
+                int[] counts = new int[moodNames.length];
+                for (int m : moodIds) counts[m]++;
+                byMood = new int[moodNames.length][];
+                for (int m = 0; m < byMood.length; m++) byMood[m] = new int[counts[m]];
+                Arrays.fill(counts, 0);
+                for (int i = 0; i < moodIds.length; i++) byMood[moodIds[i]][counts[moodIds[i]]++] = i;
+            }
+            return byMood;
+        }
+
+        long durationOf(int index) {
+            return durationsMs[index] >= 0 ? durationsMs[index] : DEFAULT_DURATION_MS;
+        }
+
+        int moodId(String name) {
+            for (int m = 0; m < moodNames.length; m++) {
+                if (moodNames[m] != null && moodNames[m].equalsIgnoreCase(name)) return m;
+            }
+            return -1;
+        }
+    }
+
+    /** What the playlist must satisfy. Without a track count or duration every eligible song is used. */
+    public static final class Constraints {
+        private int tracks;
+        private long durationMs;
+        private final Map<String, Double> moodWeights = new LinkedHashMap<>();
+        private boolean distinctArtists = true;
+        private int[] excludedIds = new int[0];
+        private long seed;
+
+        public void setTracks(int tracks) { this.tracks = tracks; }
+        public void setDurationMs(long durationMs) { this.durationMs = durationMs; }
+        /** Relative share of a mood; moods never given a weight are left out, unless none is given. */
+        public void setMoodWeight(String mood, double weight) { moodWeights.put(mood, weight); }
+        public void setDistinctArtists(boolean distinctArtists) { this.distinctArtists = distinctArtists; }
+        /** Songs to leave out, such as the ones played recently. */
+        public void setExcludedIds(int[] excludedIds) { this.excludedIds = excludedIds; }
+        public void setSeed(long seed) { this.seed = seed; }
+
+        public int getTracks() { return tracks; }
+        public long getDurationMs() { return durationMs; }
+        public long getSeed() { return seed; }
+    }
+
+    /** The chosen song ids in play order and their running time. */
+    public static final class Result {
+        private final int[] songIds;
+        private final long totalMs;
+
+        Result(int[] songIds, long totalMs) {
+            this.songIds = songIds;
+            this.totalMs = totalMs;
+        }
+
+        public int[] getSongIds() { return songIds; }
+        public long getTotalMs() { return totalMs; }
+
+        @Override
+        public String toString() {
+            long minutes = totalMs / 60_000;
+            return String.format("%,d songs, %d:%02d", songIds.length, minutes / 60, minutes % 60);
+        }
+    }
+}
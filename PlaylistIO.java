@@ -0,0 +1,601 @@
+/*
+ * PlaylistIO.java
+ * Imports and exports playlists as M3U/M3U8, PLS and XSPF, so they can be shared
+ * with other players.
+ *
+ * Files are read as a stream: M3U and PLS line by line, XSPF with a StAX reader, never
+ * as a whole document. Entries are matched to songs by path through an in-memory
+ * index of songs.path, and are written in batches. Each batch's unknown tracks are
+ * added as new songs in one insert, and the batch is then appended to the playlist.
+ * Memory therefore grows with the library, not the playlist.
+ *
+ * Export writes from a cursor over the playlist's rows.
+ *
+ * No JavaFX here; run main() for a benchmark with a 100k-entry playlist. It checks
+ * that each export imports back to the same entries and lengths, and exits with
+ * status 1 if not.
+ */
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class PlaylistIO {
+
+    public enum Format {
+        M3U, PLS, XSPF;
+
+        /** The format a file name's extension stands for; .m3u8 is M3U in UTF-8. */
+        public static Format of(Path file) throws IOException {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".m3u") || name.endsWith(".m3u8")) return M3U;
+            if (name.endsWith(".pls")) return PLS;
+            if (name.endsWith(".xspf")) return XSPF;
+            throw new IOException("Not a playlist file (.m3u, .m3u8, .pls or .xspf): " + file);
+        }
+    }
+
+    // Entries resolved and written per transaction
+    private static final int BATCH_SIZE = 2000;
+    // PLS entries waiting for their Title/Length lines before they are passed on
+    private static final int PLS_WINDOW = 1024;
+
+    private final MoodMusicPlayer.DBHelper db;
+
+    public PlaylistIO(MoodMusicPlayer.DBHelper db) {
+        this.db = db;
+    }
+
+    // ---- import ----
+
+    /**
+     * Reads the playlist file into the named playlist, appending if it exists already.
+     * Tracks not in the library are added as songs of LibraryScanner's default artist
+     * and mood, titled from the playlist or else the file name. A track listed twice is
+     * kept once, as playlists hold each song once.
+     */
+    public ImportResult importPlaylist(Path file, String playlistName) throws IOException, SQLException {
+        long start = System.nanoTime();
+        Path base = file.toAbsolutePath().getParent();
+        Importer importer = new Importer(playlistName, base);
+        try (InputStream in = Files.newInputStream(file)) {
+            switch (Format.of(file)) {
+                case M3U: readM3u(in, importer); break;
+                case PLS: readPls(in, importer); break;
+                case XSPF: readXspf(in, base, importer); break;
+            }
+        }
+        importer.flush();
+        return new ImportResult(importer.entries, importer.matched, importer.created, importer.added,
+                System.nanoTime() - start);
+    }
+
+    /** Receives each playlist entry as it is read; title and artist may be null, durationMs -1. */
+    private interface EntrySink {
+        void entry(String location, String title, String artist, long durationMs) throws SQLException;
+    }
+
+    private static void readM3u(InputStream in, EntrySink sink) throws IOException, SQLException {
+        // UTF-8 for .m3u as well: what current players write, and a superset of plain ASCII
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        // The name and length from the #EXTINF line before an entry, if there was one
+        String name = null;
+        long durationMs = -1;
+        for (String line; (line = reader.readLine()) != null; ) {
+            line = stripBom(line).trim();
+            if (line.isEmpty()) continue;
+            if (line.startsWith("#")) {
+                // #EXTINF:<seconds>[ attributes],<artist> - <title>
+                if (line.regionMatches(true, 0, "#EXTINF:", 0, 8)) {
+                    int comma = line.indexOf(',');
+                    name = comma < 0 ? null : line.substring(comma + 1).trim();
+                    String info = comma < 0 ? line.substring(8) : line.substring(8, comma);
+                    int space = info.indexOf(' ');
+                    durationMs = secondsToMs(space < 0 ? info : info.substring(0, space));
+                }
+                continue;
+            }
+            entry(sink, line, name, durationMs);
+            name = null;
+            durationMs = -1;
+        }
+    }
+
+    private static void readPls(InputStream in, EntrySink sink) throws IOException, SQLException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        // Entry number to {location, title, length}; passed on lowest number first
+        TreeMap<Integer, String[]> waiting = new TreeMap<>();
+        for (String line; (line = reader.readLine()) != null; ) {
+            line = stripBom(line).trim();
+            int eq = line.indexOf('=');
+            if (eq < 0) continue;
+            String key = line.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(eq + 1).trim();
+            int field = key.startsWith("file") ? 0 : key.startsWith("title") ? 1 : key.startsWith("length") ? 2 : -1;
+            if (field < 0) continue;
+            int number;
+            try {
+                number = Integer.parseInt(key.substring(field == 0 ? 4 : field == 1 ? 5 : 6));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            waiting.computeIfAbsent(number, n -> new String[3])[field] = value;
+            // Writers that list every File before any Title lose the titles past the window
+            if (waiting.size() > PLS_WINDOW) passOn(waiting.pollFirstEntry().getValue(), sink);
+        }
+        while (!waiting.isEmpty()) passOn(waiting.pollFirstEntry().getValue(), sink);
+    }
+
+    private static void passOn(String[] pls, EntrySink sink) throws SQLException {
+        if (pls[0] != null && !pls[0].isEmpty()) entry(sink, pls[0], pls[1], pls[2] != null ? secondsToMs(pls[2]) : -1);
+    }
+
+    /** Passes on an entry whose display name may be "artist - title", as M3U and PLS write it. */
+    private static void entry(EntrySink sink, String location, String name, long durationMs) throws SQLException {
+        int dash = name == null ? -1 : name.indexOf(" - ");
+        if (dash > 0) {
+            sink.entry(location, emptyToNull(name.substring(dash + 3).trim()), name.substring(0, dash).trim(), durationMs);
+        } else {
+            sink.entry(location, emptyToNull(name), null, durationMs);
+        }
+    }
+
+    /** M3U and PLS lengths: whole (sometimes fractional) seconds, with -1 or 0 for unknown. */
+    private static long secondsToMs(String seconds) {
+        try {
+            double s = Double.parseDouble(seconds.trim());
+            return s > 0 && s < Long.MAX_VALUE / 1000 ? Math.round(s * 1000) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void readXspf(InputStream in, Path base, EntrySink sink) throws IOException, SQLException {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        // A playlist has no business pulling in other files
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            XMLStreamReader xml = factory.createXMLStreamReader(in);
+            try {
+                String location = null;
+                String title = null;
+                String creator = null;
+                long durationMs = -1;
+                boolean inTrack = false;
+                while (xml.hasNext()) {
+                    int event = xml.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = xml.getLocalName();
+                        if (name.equals("track")) {
+                            inTrack = true;
+                            location = title = creator = null;
+                            durationMs = -1;
+                        } else if (inTrack && isTrackField(name)) {
+                            String text = xml.getElementText().trim();
+                            switch (name) {
+                                // A track may list several locations; the first is the preferred one
+                                case "location": if (location == null) location = text; break;
+                                case "title": title = text; break;
+                                case "creator": creator = text; break;
+                                case "duration": durationMs = parseMillis(text); break;
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("track")) {
+                        inTrack = false;
+                        if (location != null && !location.isEmpty()) {
+                            sink.entry(fromUri(location, base), emptyToNull(title), emptyToNull(creator), durationMs);
+                        }
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Not a valid XSPF playlist: " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean isTrackField(String name) {
+        return name.equals("location") || name.equals("title") || name.equals("creator") || name.equals("duration");
+    }
+
+    /** XSPF lengths: whole milliseconds. */
+    private static long parseMillis(String ms) {
+        try {
+            long v = Long.parseLong(ms);
+            return v > 0 ? v : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** A local path for a file: URI, resolved against the playlist's folder if relative; other URLs as they are. */
+    private static String fromUri(String location, Path base) {
+        try {
+            URI uri = new URI(location);
+            if (uri.getScheme() == null) {
+                if (base == null) return location;
+                uri = base.toUri().resolve(uri);
+            }
+            if ("file".equalsIgnoreCase(uri.getScheme())) return Paths.get(uri).toString();
+            return location;
+        } catch (Exception e) {
+            // Not a well-formed URI; treat it as a plain path
+            return location;
+        }
+    }
+
+    /**
+     * Matches entries against the library and writes them in batches: each batch's new
+     * songs in one insert, then its entries appended to the playlist in one transaction.
+     */
+    private final class Importer implements EntrySink {
+        private final String playlistName;
+        private final Path base;
+        // songs.path to id for the whole library, and every song this import adds
+        private final Map<String, Integer> byPath = new HashMap<>();
+        // Song ids in playlist order; a slot waiting for new song i holds -(i + 1)
+        private final int[] batch = new int[BATCH_SIZE];
+        private int size;
+        // Songs to add before this batch is written, their lengths from the playlist, and their index by path
+        private final List<MoodMusicPlayer.Song> newSongs = new ArrayList<>();
+        private final long[] newDurations = new long[BATCH_SIZE];
+        private final Map<String, Integer> newByPath = new HashMap<>();
+
+        long entries;
+        long matched;
+        long created;
+        long added;
+
+        Importer(String playlistName, Path base) throws SQLException {
+            this.playlistName = playlistName;
+            this.base = base;
+            db.scanSongs(null, row -> {
+                if (row.getPath() != null && !row.getPath().isEmpty()) byPath.put(row.getPath(), row.getId());
+            }, MoodMusicPlayer.DBHelper.Column.ID, MoodMusicPlayer.DBHelper.Column.PATH);
+        }
+
+        @Override
+        public void entry(String location, String title, String artist, long durationMs) throws SQLException {
+            entries++;
+            String path = resolve(location);
+            Integer id = byPath.get(path);
+            if (id == null && !path.equals(location)) id = byPath.get(location);
+            if (id != null) {
+                matched++;
+                batch[size++] = id;
+            } else {
+                Integer pending = newByPath.get(path);
+                if (pending == null) {
+                    pending = newSongs.size();
+                    newByPath.put(path, pending);
+                    newDurations[pending] = durationMs;
+                    newSongs.add(new MoodMusicPlayer.Song(0, title != null ? title : titleFromPath(path),
+                            artist != null ? artist : LibraryScanner.DEFAULT_ARTIST, LibraryScanner.DEFAULT_MOOD, path));
+                }
+                batch[size++] = -(pending + 1);
+            }
+            if (size == batch.length) flush();
+        }
+
+        void flush() throws SQLException {
+            if (size == 0) return;
+            if (!newSongs.isEmpty()) {
+                int[] ids = db.insertSongsReturningIds(newSongs, newDurations);
+                for (int i = 0; i < size; i++) {
+                    if (batch[i] < 0) batch[i] = ids[-batch[i] - 1];
+                }
+                for (int i = 0; i < ids.length; i++) byPath.put(newSongs.get(i).getPath(), ids[i]);
+                created += ids.length;
+                newSongs.clear();
+                newByPath.clear();
+            }
+            added += db.savePlaylist(playlistName, Arrays.copyOf(batch, size));
+            size = 0;
+        }
+
+        /** The entry as songs.path would hold it: URLs as they are, files absolute and normalised. */
+        private String resolve(String location) {
+            if (isUrl(location)) return location;
+            String local = location;
+            if (local.regionMatches(true, 0, "file:", 0, 5)) return fromUri(local, base);
+            // Playlists written on Windows, read elsewhere
+            if (File.separatorChar == '/' && local.indexOf('\\') >= 0 && local.indexOf('/') < 0) {
+                local = local.replace('\\', '/');
+            }
+            try {
+                Path p = Paths.get(local);
+                if (!p.isAbsolute() && base != null) p = base.resolve(p);
+                return p.normalize().toString();
+            } catch (InvalidPathException e) {
+                return location;
+            }
+        }
+    }
+
+    // ---- export ----
+
+    /** Writes the playlist to {@code file} in the format its extension names; returns the number of entries. */
+    public int exportPlaylist(String playlistName, Path file) throws IOException, SQLException {
+        Format format = Format.of(file);
+        int[] count = {0};
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            if (format == Format.XSPF) {
+                writeXspf(playlistName, out, count);
+            } else {
+                Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                if (format == Format.M3U) {
+                    writeM3u(playlistName, w, count);
+                } else {
+                    writePls(playlistName, w, count);
+                }
+                w.flush();
+            }
+        }
+        return count[0];
+    }
+
+    private void writeM3u(String playlistName, Writer w, int[] count) throws IOException, SQLException {
+        w.write("#EXTM3U\n");
+        eachSong(playlistName, (s, durationMs) -> {
+            w.write("#EXTINF:" + seconds(durationMs) + "," + oneLine(s.getArtist()) + " - " + oneLine(s.getTitle()) + "\n");
+            w.write(oneLine(s.getPath()) + "\n");
+            count[0]++;
+        });
+    }
+
+    private void writePls(String playlistName, Writer w, int[] count) throws IOException, SQLException {
+        w.write("[playlist]\n");
+        eachSong(playlistName, (s, durationMs) -> {
+            int n = ++count[0];
+            w.write("File" + n + "=" + oneLine(s.getPath()) + "\n");
+            w.write("Title" + n + "=" + oneLine(s.getArtist()) + " - " + oneLine(s.getTitle()) + "\n");
+            w.write("Length" + n + "=" + seconds(durationMs) + "\n");
+        });
+        // Known only at the end, which is where PLS readers accept it too
+        w.write("NumberOfEntries=" + count[0] + "\nVersion=2\n");
+    }
+
+    private void writeXspf(String playlistName, OutputStream out, int[] count) throws IOException, SQLException {
+        try {
+            XMLStreamWriter xml = XMLOutputFactory.newFactory().createXMLStreamWriter(out, "UTF-8");
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeCharacters("\n");
+            xml.writeStartElement("playlist");
+            xml.writeDefaultNamespace("http://xspf.org/ns/0/");
+            xml.writeAttribute("version", "1");
+            xml.writeCharacters("\n  ");
+            textElement(xml, "title", playlistName);
+            xml.writeCharacters("\n  ");
+            xml.writeStartElement("trackList");
+            eachSong(playlistName, (s, durationMs) -> {
+                try {
+                    xml.writeCharacters("\n    ");
+                    xml.writeStartElement("track");
+                    textElement(xml, "location", toUri(s.getPath()));
+                    textElement(xml, "title", s.getTitle());
+                    textElement(xml, "creator", s.getArtist());
+                    if (durationMs >= 0) textElement(xml, "duration", Long.toString(durationMs));
+                    xml.writeEndElement();
+                    count[0]++;
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                }
+            });
+            xml.writeCharacters("\n  ");
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+            xml.writeEndDocument();
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not write XSPF: " + e.getMessage(), e);
+        }
+    }
+
+    private static void textElement(XMLStreamWriter xml, String name, String text) throws XMLStreamException {
+        if (text == null || text.isEmpty()) return;
+        xml.writeStartElement(name);
+        xml.writeCharacters(text);
+        xml.writeEndElement();
+    }
+
+    /** M3U and PLS lengths: whole seconds, -1 for unknown. */
+    private static long seconds(long durationMs) {
+        return durationMs < 0 ? -1 : (durationMs + 500) / 1000;
+    }
+
+    /** A song row as the cursor passes it, with its length in ms (-1 unknown); may write. */
+    private interface SongWriter {
+        void write(MoodMusicPlayer.Song song, long durationMs) throws IOException;
+    }
+
+    private void eachSong(String playlistName, SongWriter writer) throws IOException, SQLException {
+        try {
+            db.forEachPlaylistSong(playlistName, (s, durationMs) -> {
+                try {
+                    writer.write(s, durationMs);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Benchmark: a library of 50k songs and a 100k-entry M3U, half of it songs not in the
+     * library yet. Imports it, exports it in each format and imports every export again,
+     * which must match every entry and create nothing. Run with a small -Xmx to see that
+     * the playlist is never held whole.
+     */
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Path dir = Files.createTempDirectory("playlist-io");
+        MoodMusicPlayer.DBHelper db = new MoodMusicPlayer.DBHelper(dir.resolve("bench.db").toString());
+        boolean ok;
+        try {
+            db.disableCatalog();
+            db.initAndSeed();
+            List<MoodMusicPlayer.Song> library = new ArrayList<>();
+            for (int i = 0; i < entries / 2; i++) {
+                library.add(new MoodMusicPlayer.Song(0, "Song " + i, "Artist " + i % 2000, "Calm",
+                        dir.resolve("music").resolve("a" + i + ".mp3").toString()));
+                if (library.size() == 10_000) {
+                    db.insertSongs(library);
+                    library.clear();
+                }
+            }
+            db.insertSongs(library);
+
+            Path m3u = dir.resolve("big.m3u");
+            try (BufferedWriter w = Files.newBufferedWriter(m3u, StandardCharsets.UTF_8)) {
+                w.write("#EXTM3U\n");
+                for (int i = 0; i < entries; i++) {
+                    // Even entries are in the library by absolute path, odd ones are new and relative
+                    w.write("#EXTINF:200,Artist " + i % 2000 + " - Track " + i + "\n");
+                    w.write(i % 2 == 0 ? dir.resolve("music").resolve("a" + i / 2 + ".mp3") + "\n" : "new/n" + i + ".mp3\n");
+                }
+            }
+            PlaylistIO io = new PlaylistIO(db);
+            System.out.println("import big.m3u: " + io.importPlaylist(m3u, "Big") + heapUsed());
+            // The odd entries became songs with the #EXTINF length; the library ones have none
+            long[] lengths = new long[2];
+            db.forEachPlaylistSong("Big", (s, durationMs) -> {
+                if (durationMs == 200_000) lengths[0]++;
+                else if (durationMs < 0) lengths[1]++;
+            });
+            ok = lengths[0] == entries / 2 && lengths[1] == entries - entries / 2;
+            String[] known = {"#EXTINF:200,.*", "Length\\d+=200", ".*<duration>200000</duration>.*"};
+            String[] exts = {"m3u8", "pls", "xspf"};
+            for (int e = 0; e < exts.length; e++) {
+                String ext = exts[e];
+                Path out = dir.resolve("export." + ext);
+                long start = System.nanoTime();
+                int written = io.exportPlaylist("Big", out);
+                System.out.printf("export %s: %,d entries, %,d KB in %.1f s%n", ext, written,
+                        Files.size(out) / 1024, (System.nanoTime() - start) / 1e9);
+                ImportResult again = io.importPlaylist(out, "Big " + ext);
+                System.out.println("import export." + ext + ": " + again + heapUsed());
+                ok &= written == entries && again.getEntries() == entries && again.getCreated() == 0 && again.getAdded() == entries;
+                String marker = known[e];
+                try (java.util.stream.Stream<String> lines = Files.lines(out, StandardCharsets.UTF_8)) {
+                    ok &= lines.filter(l -> l.matches(marker)).count() == entries / 2;
+                }
+            }
+            System.out.println(ok ? "round trips match" : "ROUND TRIP MISMATCH");
+        } finally {
+            db.close();
+            try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+                files.sorted(java.util.Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+            }
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static String heapUsed() {
+        Runtime rt = Runtime.getRuntime();
+        return String.format(" (heap %d MB used of %d MB max)", (rt.totalMemory() - rt.freeMemory()) >> 20, rt.maxMemory() >> 20);
+    }
+
+    // ---- helpers ----
+
+    private static boolean isUrl(String location) {
+        String lower = location.toLowerCase(Locale.ROOT);
+        return lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    private static String toUri(String path) {
+        if (path == null || path.isEmpty() || isUrl(path)) return path;
+        try {
+            return Paths.get(path).toUri().toString();
+        } catch (InvalidPathException e) {
+            return path;
+        }
+    }
+
+    private static String titleFromPath(String path) {
+        String name = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+        int q = isUrl(path) ? name.indexOf('?') : -1;
+        if (q >= 0) name = name.substring(0, q);
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        return name.isEmpty() ? path : name;
+    }
+
+    private static String oneLine(String s) {
+        return s == null ? "" : s.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String stripBom(String line) {
+        return !line.isEmpty() && line.charAt(0) == '\uFEFF' ? line.substring(1) : line;
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    /** What an import did. */
+    public static final class ImportResult {
+        private final long entries;
+        private final long matched;
+        private final long created;
+        private final long added;
+        private final long nanos;
+
+        ImportResult(long entries, long matched, long created, long added, long nanos) {
+            this.entries = entries;
+            this.matched = matched;
+            this.created = created;
+            this.added = added;
+            this.nanos = nanos;
+        }
+
+        /** Entries read from the file. */
+        public long getEntries() { return entries; }
+        /** Entries found in the library. */
+        public long getMatched() { return matched; }
+        /** Songs added to the library for entries that were not. */
+        public long getCreated() { return created; }
+        /** Rows added to the playlist; repeats of a song already in it are not. */
+        public long getAdded() { return added; }
+        public long getNanos() { return nanos; }
+
+        @Override
+        public String toString() {
+            return String.format("%,d entries, %,d in the library, %,d songs added, %,d playlist rows in %.1f s",
+                    entries, matched, created, added, nanos / 1e9);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * QueryPlanCheck.java
+ * Checks that the queries the UI runs on every interaction are answered from indexes.
+ *
+ * On an empty or small database SQLite may pick a scan, and verifyQueryPlans() leaves
+ * small tables alone, so checking the player's own database proves little. This builds
+ * a throwaway library large enough for every table the hot queries touch: songs,
+ * artists, a playlist and play totals. It then runs ANALYZE so the planner works from
+ * real statistics, and flags every SCAN in the plans whatever the table's size.
+ *
+ *   java -cp out:lib/sqlite-jdbc-3.46.0.0.jar QueryPlanCheck [SONGS]
+ *
+ * Exits with status 1 and lists the offending plan lines if any query scans. No JavaFX
+ * is needed.
+ */
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+public class QueryPlanCheck {
+
+    private static final String[] MOODS = {"Happy", "Sad", "Energetic", "Calm", "Focus"};
+
+    public static void main(String[] args) throws Exception {
+        int songs = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        Path dir = Files.createTempDirectory("query-plans");
+        MoodMusicPlayer.DBHelper db = new MoodMusicPlayer.DBHelper(dir.resolve("plans.db").toString());
+        int status = 0;
+        try {
+            db.disableCatalog();
+            db.initAndSeed();
+            seed(db, songs);
+            try {
+                db.verifyQueryPlans(0);
+                System.out.println("No scans in the hot queries over " + songs + " songs");
+            } catch (IllegalStateException e) {
+                System.out.println(e.getMessage());
+                status = 1;
+            }
+        } finally {
+            db.close();
+        }
+        System.exit(status);
+    }
+
+    /** Songs over many artists and every mood, half of them in a playlist, a third of them played. */
+    private static void seed(MoodMusicPlayer.DBHelper db, int songs) throws SQLException {
+        List<MoodMusicPlayer.Song> batch = new ArrayList<>();
+        for (int i = 0; i < songs; i++) {
+            batch.add(new MoodMusicPlayer.Song(0, "Song " + i, "Artist " + i % (songs / 10 + 1),
+                    MOODS[i % MOODS.length], "/music/s" + i + ".mp3"));
+        }
+        int[] ids = db.insertSongsReturningIds(batch);
+
+        int[] listed = new int[ids.length / 2];
+        for (int i = 0; i < listed.length; i++) listed[i] = ids[i * 2];
+        db.savePlaylist("x", listed);
+
+        int played = ids.length / 3;
+        int[] songIds = new int[played];
+        byte[] events = new byte[played];
+        long[] at = new long[played];
+        long[] positions = new long[played];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < played; i++) {
+            songIds[i] = ids[i * 3];
+            events[i] = PlayHistory.START;
+            at[i] = now - i * 60_000L;
+        }
+        db.recordPlayEvents(songIds, events, at, positions, played);
+
+        try (MoodMusicPlayer.DBHelper.Lease lease = db.write();
+             Statement st = lease.connection().createStatement()) {
+            st.execute("ANALYZE");
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * SimilarityIndex.java
+ * Answers "more like this" for the song table: the K songs whose feature vectors
+ * lie nearest to a given song's. Each song is a small float vector built from its
+ * mood, its artist and (when MoodAnalyzer has decoded it) its audio features; the
+ * vectors are persisted as BLOBs in song_vectors and held here in packed float[]
+ * arrays, one per mood, so a query is a linear pass over primitive memory.
+ *
+ * The search is exact. Songs of one mood share their mood dimensions, so the
+ * query's own mood is scanned first and every other mood is skipped outright once
+ * the mood difference alone is further than the current K-th best. Within a mood
+ * a candidate is dropped as soon as its partial distance passes that bound. Large
+ * moods are searched in slices on the common fork-join pool.
+ *
+ * Changes are applied in place: put() overwrites or appends a slot, remove()
+ * moves the last slot of the mood into the hole. DBHelper marks songs dirty as
+ * they are written and recomputes their vectors before the next query.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+public class SimilarityIndex {
+
+    /** Floats per vector: one per suggested mood, four audio features, two for the artist. */
+    public static final int DIM = 11;
+
+    private static final int MOODS = 5;
+    private static final int AUDIO = 5;
+    private static final int ARTIST = 9;
+    // A different mood costs 2 (squared); a different artist about 0.7 on average
+    private static final float MOOD_WEIGHT = 1f;
+    private static final float ARTIST_WEIGHT = 0.6f;
+    // Songs whose mood is none of the suggested ones
+    private static final int OTHER = MOODS;
+    // Below this many songs a single thread is faster than splitting the scan
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ReadWriteLock rw = new ReentrantReadWriteLock();
+    // One packed group per mood: within a group the mood dimensions are all equal, so a query
+    // skips them, and skips a whole group once the mood difference alone exceeds its K-th best
+    private final Group[] groups = new Group[MOODS + 1];
+    // Group and slot of each song id, or -1; song ids are dense, so plain arrays beat a map
+    private byte[] groupById = new byte[INITIAL_CAPACITY];
+    private int[] slotById = newSlotTable(INITIAL_CAPACITY);
+    private int size;
+    private volatile boolean loaded;
+    // Set while a build reads the database, so writes during it are not lost
+    private volatile boolean building;
+    // Bumped by invalidate(), so a build that overlapped one does not install stale contents
+    private long generation;
+    // Songs whose vector must be recomputed before the next query
+    private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+
+    public SimilarityIndex() {
+        for (int g = 0; g < groups.length; g++) groups[g] = new Group(INITIAL_CAPACITY);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public int size() {
+        rw.readLock().lock();
+        try {
+            return size;
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    /** Called before a build starts reading, so writes from then on are tracked. */
+    long beginBuild() {
+        rw.writeLock().lock();
+        try {
+            building = true;
+            return generation;
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the contents with a freshly built index: the first n entries of newIds, with
+     * their vectors packed in the same order. Ignored if the index was invalidated meanwhile.
+     */
+    void install(long buildGeneration, int[] newIds, float[] packed, int n) {
+        rw.writeLock().lock();
+        try {
+            if (buildGeneration != generation) return;
+            int maxId = 0;
+            int[] counts = new int[groups.length];
+            for (int i = 0; i < n; i++) {
+                maxId = Math.max(maxId, newIds[i]);
+                counts[groupOf(packed, i * DIM)]++;
+            }
+            for (int g = 0; g < groups.length; g++) groups[g] = new Group(Math.max(counts[g], INITIAL_CAPACITY));
+            groupById = new byte[maxId + 1];
+            slotById = newSlotTable(maxId + 1);
+            for (int i = 0; i < n; i++) {
+                int g = groupOf(packed, i * DIM);
+                groupById[newIds[i]] = (byte) g;
+                slotById[newIds[i]] = groups[g].append(newIds[i], packed, i * DIM);
+            }
+            size = n;
+            loaded = true;
+            building = false;
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Drops everything; the next query rebuilds from the database. */
+    public void invalidate() {
+        rw.writeLock().lock();
+        try {
+            generation++;
+            loaded = false;
+            building = false;
+            dirty.clear();
+            size = 0;
+            for (int g = 0; g < groups.length; g++) groups[g] = new Group(INITIAL_CAPACITY);
+            groupById = new byte[INITIAL_CAPACITY];
+            slotById = newSlotTable(INITIAL_CAPACITY);
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Notes that a song's inputs changed. Ignored while nothing is loaded: a build reads everything. */
+    public void markDirty(int id) {
+        if (loaded || building) dirty.add(id);
+    }
+
+    int[] drainDirty() {
+        int[] out = new int[dirty.size()];
+        int n = 0;
+        for (Integer id : dirty) {
+            if (n == out.length) break;
+            if (dirty.remove(id)) out[n++] = id;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    public void put(int id, float[] vector) {
+        rw.writeLock().lock();
+        try {
+            if (id >= slotById.length) {
+                int old = slotById.length;
+                int length = Math.max(id + 1, old * 2);
+                slotById = Arrays.copyOf(slotById, length);
+                Arrays.fill(slotById, old, length, -1);
+                groupById = Arrays.copyOf(groupById, length);
+            }
+            int g = groupOf(vector, 0);
+            if (slotById[id] >= 0 && groupById[id] == g) {
+                System.arraycopy(vector, 0, groups[g].vectors, slotById[id] * DIM, DIM);
+                return;
+            }
+            // New, or its mood changed
+            if (slotById[id] >= 0) {
+                removeSlot(id);
+            } else {
+                size++;
+            }
+            groupById[id] = (byte) g;
+            slotById[id] = groups[g].append(id, vector, 0);
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    public void remove(int id) {
+        dirty.remove(id);
+        rw.writeLock().lock();
+        try {
+            if (id >= slotById.length || slotById[id] < 0) return;
+            removeSlot(id);
+            slotById[id] = -1;
+            size--;
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Fills the song's slot with its group's last vector so the group stays packed. */
+    private void removeSlot(int id) {
+        Group group = groups[groupById[id]];
+        int slot = slotById[id];
+        int last = --group.size;
+        if (slot != last) {
+            int moved = group.ids[last];
+            group.ids[slot] = moved;
+            System.arraycopy(group.vectors, last * DIM, group.vectors, slot * DIM, DIM);
+            slotById[moved] = slot;
+        }
+    }
+
+    /** A copy of the song's vector, or null if it is not indexed. */
+    public float[] vectorOf(int id) {
+        rw.readLock().lock();
+        try {
+            if (id >= slotById.length || slotById[id] < 0) return null;
+            int base = slotById[id] * DIM;
+            return Arrays.copyOfRange(groups[groupById[id]].vectors, base, base + DIM);
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    /** Ids of the k songs nearest to the given one, nearest first; empty if it is not indexed. */
+    public int[] nearest(int id, int k) {
+        float[] query = vectorOf(id);
+        return query == null ? new int[0] : nearest(query, k, id);
+    }
+
+    /** Ids of the k songs nearest to the query vector, nearest first, leaving out {@code exclude}. */
+    public int[] nearest(float[] query, int k, int exclude) {
+        // TopK needs room for one entry to have a bound to compare against
+        if (k <= 0) return new int[0];
+        rw.readLock().lock();
+        try {
+            int own = groupOf(query, 0);
+            // The query's own group first, so the bound is tight before the other groups are tried
+            Integer[] order = new Integer[groups.length];
+            float[] moodDistance = new float[groups.length];
+            for (int g = 0; g < groups.length; g++) {
+                order[g] = g;
+                moodDistance[g] = moodDistance(query, g);
+            }
+            Arrays.sort(order, (a, b) -> Float.compare(moodDistance[a], moodDistance[b]));
+            TopK top = new TopK(k);
+            for (int g : order) {
+                // Every song in the group is at least this far away
+                if (moodDistance[g] >= top.bound()) continue;
+                Group group = groups[g];
+                int n = group.size;
+                int parts = Math.min(Runtime.getRuntime().availableProcessors(), n / PARALLEL_THRESHOLD);
+                if (parts <= 1) {
+                    scan(group, query, moodDistance[g], exclude, 0, n, top);
+                    continue;
+                }
+                // Each slice keeps its own top k; the caller's read lock covers the workers too
+                TopK[] slices = IntStream.range(0, parts).parallel().mapToObj(p -> {
+                    TopK slice = new TopK(k);
+                    scan(group, query, moodDistance[g], exclude, (int) ((long) n * p / parts), (int) ((long) n * (p + 1) / parts), slice);
+                    return slice;
+                }).toArray(TopK[]::new);
+                for (TopK slice : slices) top.merge(slice);
+            }
+            return top.ids();
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    /**
+     * Offers the group's songs in [from, to) to {@code top}. The mood part of the distance is
+     * the same for the whole group; the rest is summed a block at a time and the candidate
+     * dropped as soon as it can no longer make the top k.
+     */
+    private static void scan(Group group, float[] query, float moodDistance, int exclude, int from, int to, TopK top) {
+        float[] v = group.vectors;
+        int[] ids = group.ids;
+        float q5 = query[AUDIO], q6 = query[AUDIO + 1], q7 = query[AUDIO + 2], q8 = query[AUDIO + 3];
+        float q9 = query[ARTIST], q10 = query[ARTIST + 1];
+        float bound = top.bound();
+        for (int slot = from, base = from * DIM; slot < to; slot++, base += DIM) {
+            float d5 = v[base + AUDIO] - q5, d6 = v[base + AUDIO + 1] - q6;
+            float d7 = v[base + AUDIO + 2] - q7, d8 = v[base + AUDIO + 3] - q8;
+            float d = moodDistance + d5 * d5 + d6 * d6 + d7 * d7 + d8 * d8;
+            if (d >= bound) continue;
+            float d9 = v[base + ARTIST] - q9, d10 = v[base + ARTIST + 1] - q10;
+            d += d9 * d9 + d10 * d10;
+            if (d < bound && ids[slot] != exclude) {
+                top.offer(ids[slot], d);
+                bound = top.bound();
+            }
+        }
+    }
+
+    /** Squared distance between the query's mood dimensions and those shared by group g. */
+    private static float moodDistance(float[] query, int g) {
+        float d = 0;
+        for (int m = 0; m < MOODS; m++) {
+            float diff = query[m] - (m == g ? MOOD_WEIGHT : 0);
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    /** Which group a vector belongs in: the mood dimension that is set, or OTHER. */
+    private static int groupOf(float[] v, int base) {
+        for (int m = 0; m < MOODS; m++) {
+            if (v[base + m] == MOOD_WEIGHT) return m;
+        }
+        return OTHER;
+    }
+
+    /**
+     * The vector for a song. Without decoded audio the mood's prototype stands in for the
+     * audio features, so undecoded songs still sit near analysed songs of the same mood.
+     */
+    public static float[] vectorFor(String mood, String artist, MoodMusicPlayer.DBHelper.AudioFeatures features) {
+        float[] v = new float[DIM];
+        for (int m = 0; m < MOODS; m++) {
+            if (MoodAnalyzer.MOODS.get(m).equalsIgnoreCase(mood)) v[m] = MOOD_WEIGHT;
+        }
+        MoodMusicPlayer.DBHelper.AudioFeatures f = features != null ? features : MoodAnalyzer.prototype(mood);
+        if (f != null) {
+            // Centred and scaled so one unit is a clearly audible difference
+            v[AUDIO] = f.getTempoBpm() > 0 ? (float) ((f.getTempoBpm() - 110) / 30) : 0;
+            v[AUDIO + 1] = (float) ((20 * Math.log10(Math.max(f.getRms(), 1e-6)) + 18) / 8);
+            v[AUDIO + 2] = (float) (Math.log(Math.max(f.getCentroidHz(), 1)) / Math.log(2) - 11);
+            v[AUDIO + 3] = (float) ((f.getZeroCrossingRate() - 0.05) / 0.03);
+        }
+        if (artist != null) {
+            // A fixed direction per artist: same artist adds nothing, a different one a little
+            double angle = (artist.toLowerCase(Locale.ROOT).hashCode() & 0xffff) / 65536.0 * 2 * Math.PI;
+            v[ARTIST] = (float) Math.cos(angle) * ARTIST_WEIGHT;
+            v[ARTIST + 1] = (float) Math.sin(angle) * ARTIST_WEIGHT;
+        }
+        return v;
+    }
+
+    /** Little-endian float32s, as stored in song_vectors.vector. */
+    public static byte[] toBytes(float[] vector) {
+        ByteBuffer b = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        b.asFloatBuffer().put(vector);
+        return b.array();
+    }
+
+    /** Reads a stored vector into {@code out} at {@code offset}; false if it has the wrong length. */
+    public static boolean fromBytes(byte[] bytes, float[] out, int offset) {
+        if (bytes == null || bytes.length != DIM * Float.BYTES) return false;
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(out, offset, DIM);
+        return true;
+    }
+
+    private static int[] newSlotTable(int length) {
+        int[] t = new int[length];
+        Arrays.fill(t, -1);
+        return t;
+    }
+
+    /** The songs of one mood, their vectors back to back. */
+    private static final class Group {
+        float[] vectors;
+        int[] ids;
+        int size;
+
+        Group(int capacity) {
+            vectors = new float[capacity * DIM];
+            ids = new int[capacity];
+        }
+
+        /** Adds a vector copied from {@code from} at {@code offset}; returns its slot. */
+        int append(int id, float[] from, int offset) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                vectors = Arrays.copyOf(vectors, ids.length * DIM);
+            }
+            ids[size] = id;
+            System.arraycopy(from, offset, vectors, size * DIM, DIM);
+            return size++;
+        }
+    }
+
+    /** The k smallest distances seen, kept sorted in two small arrays. */
+    private static final class TopK {
+        final int[] ids;
+        final float[] dist;
+        int count;
+
+        TopK(int k) {
+            ids = new int[k];
+            dist = new float[k];
+        }
+
+        /** Distance a candidate has to beat to get in. */
+        float bound() {
+            return count < ids.length ? Float.MAX_VALUE : dist[count - 1];
+        }
+
+        void offer(int id, float d) {
+            if (ids.length == 0 || count == ids.length && d >= dist[count - 1]) return;
+            int i = count < ids.length ? count++ : count - 1;
+            while (i > 0 && dist[i - 1] > d) {
+                ids[i] = ids[i - 1];
+                dist[i] = dist[i - 1];
+                i--;
+            }
+            ids[i] = id;
+            dist[i] = d;
+        }
+
+        TopK merge(TopK other) {
+            for (int i = 0; i < other.count; i++) offer(other.ids[i], other.dist[i]);
+            return this;
+        }
+
+        int[] ids() {
+            return Arrays.copyOf(ids, count);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * SongCatalog.java
+ * In-memory copy of the songs table kept next to DBHelper: songs by id plus a
+ * sorted posting list of ids per mood, so the "All" and per-mood views can be
+ * served without touching SQLite. DBHelper writes through to it and checks it
+ * against PRAGMA data_version to notice writes made by other processes.
+ *
+ * No JavaFX here: the catalog is usable from headless tools.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class SongCatalog {
+
+    private final ReadWriteLock rw = new ReentrantReadWriteLock();
+    private Map<Integer, MoodMusicPlayer.Song> byId = new HashMap<>();
+    private IdList all = new IdList();
+    private Map<String, IdList> byMood = new HashMap<>();
+    private boolean loaded;
+    private long dataVersion;
+    private long estimatedBytes;
+    // Bumped by every write-through; a load that raced with a write is discarded
+    private long modCount;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public boolean isLoaded() {
+        rw.readLock().lock();
+        try {
+            return loaded;
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    long getDataVersion() {
+        rw.readLock().lock();
+        try {
+            return dataVersion;
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    long getModCount() {
+        rw.readLock().lock();
+        try {
+            return modCount;
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the contents with a full snapshot of the table. Returns false (and keeps
+     * the catalog unloaded) if a write-through happened since {@code expectedModCount}.
+     */
+    boolean install(List<MoodMusicPlayer.Song> songs, long version, long expectedModCount) {
+        Map<Integer, MoodMusicPlayer.Song> ids = new HashMap<>(songs.size() * 4 / 3 + 1);
+        IdList allIds = new IdList();
+        Map<String, IdList> moods = new HashMap<>();
+        long bytes = 0;
+        for (MoodMusicPlayer.Song s : songs) {
+            ids.put(s.getId(), s);
+            // Snapshot rows arrive in id order, so every add is an append
+            allIds.add(s.getId());
+            moods.computeIfAbsent(moodKey(s.getMood()), m -> new IdList()).add(s.getId());
+            bytes += footprint(s);
+        }
+
+        rw.writeLock().lock();
+        try {
+            if (modCount != expectedModCount) return false;
+            byId = ids;
+            all = allIds;
+            byMood = moods;
+            estimatedBytes = bytes;
+            dataVersion = version;
+            loaded = true;
+            return true;
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Drops the contents; the next lookups miss until the catalog is reloaded. */
+    public void invalidate() {
+        rw.writeLock().lock();
+        try {
+            modCount++;
+            loaded = false;
+            byId = new HashMap<>();
+            all = new IdList();
+            byMood = new HashMap<>();
+            estimatedBytes = 0;
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Write-through for an inserted or updated song. */
+    public void put(MoodMusicPlayer.Song song) {
+        rw.writeLock().lock();
+        try {
+            modCount++;
+            if (!loaded) return;
+            MoodMusicPlayer.Song old = byId.put(song.getId(), song);
+            if (old != null) {
+                estimatedBytes -= footprint(old);
+                if (!old.getMood().equalsIgnoreCase(song.getMood())) {
+                    removeFromMood(old.getMood(), old.getId());
+                    byMood.computeIfAbsent(moodKey(song.getMood()), m -> new IdList()).add(song.getId());
+                }
+            } else {
+                all.add(song.getId());
+                byMood.computeIfAbsent(moodKey(song.getMood()), m -> new IdList()).add(song.getId());
+            }
+            estimatedBytes += footprint(song);
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Write-through for a deleted song. */
+    public void remove(int id) {
+        rw.writeLock().lock();
+        try {
+            modCount++;
+            if (!loaded) return;
+            MoodMusicPlayer.Song old = byId.remove(id);
+            if (old != null) {
+                all.remove(id);
+                removeFromMood(old.getMood(), id);
+                estimatedBytes -= footprint(old);
+            }
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Same contract as {@link MoodMusicPlayer.DBHelper#getSongsPage}; returns null on a
+     * miss (catalog not loaded).
+     */
+    List<MoodMusicPlayer.Song> page(String mood, int afterId, int limit) {
+        rw.readLock().lock();
+        try {
+            if (!loaded) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            IdList ids = ids(mood);
+            List<MoodMusicPlayer.Song> out = new ArrayList<>(Math.min(limit, ids.size));
+            for (int i = ids.firstAfter(afterId); i < ids.size && out.size() < limit; i++) {
+                out.add(byId.get(ids.values[i]));
+            }
+            return out;
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    /** Row count for the filter, or -1 on a miss. */
+    int count(String mood) {
+        rw.readLock().lock();
+        try {
+            if (!loaded) {
+                misses.incrementAndGet();
+                return -1;
+            }
+            hits.incrementAndGet();
+            return ids(mood).size;
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    /** Id just before row {@code offset} (0 for the first row), or -1 on a miss. */
+    int anchor(String mood, int offset) {
+        rw.readLock().lock();
+        try {
+            if (!loaded) {
+                misses.incrementAndGet();
+                return -1;
+            }
+            hits.incrementAndGet();
+            IdList ids = ids(mood);
+            if (offset <= 0) return 0;
+            return offset <= ids.size ? ids.values[offset - 1] : Integer.MAX_VALUE;
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public Stats getStats() {
+        rw.readLock().lock();
+        try {
+            // Posting lists: one int per song in "all" plus one in its mood list
+            long bytes = estimatedBytes + 8L * byId.size();
+            return new Stats(hits.get(), misses.get(), byId.size(), bytes, loaded);
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    private IdList ids(String mood) {
+        if (mood == null) return all;
+        IdList ids = byMood.get(moodKey(mood));
+        return ids != null ? ids : IdList.EMPTY;
+    }
+
+    private void removeFromMood(String mood, int id) {
+        IdList ids = byMood.get(moodKey(mood));
+        if (ids != null) ids.remove(id);
+    }
+
+    // Moods compare case-insensitively, like the NOCASE names in the moods table
+    private static String moodKey(String mood) {
+        return mood.toLowerCase(Locale.ROOT);
+    }
+
+    // Rough retained size of a cached song: Song object, its HashMap entry and boxed key,
+    // and the four strings (compact Latin-1 storage assumed)
+    private static long footprint(MoodMusicPlayer.Song s) {
+        return 32 + 32 + 16
+                + stringBytes(s.getTitle()) + stringBytes(s.getArtist())
+                + stringBytes(s.getMood()) + stringBytes(s.getPath());
+    }
+
+    private static long stringBytes(String s) {
+        return s == null ? 0 : 24 + ((16 + s.length() + 7) & ~7);
+    }
+
+    /** Sorted, growable int array of song ids. */
+    static final class IdList {
+        static final IdList EMPTY = new IdList();
+
+        int[] values = new int[16];
+        int size;
+
+        void add(int id) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            if (size == 0 || values[size - 1] < id) {
+                values[size++] = id;
+                return;
+            }
+            int pos = Arrays.binarySearch(values, 0, size, id);
+            if (pos >= 0) return;
+            pos = -pos - 1;
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+            values[pos] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int pos = Arrays.binarySearch(values, 0, size, id);
+            if (pos < 0) return;
+            System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+            size--;
+        }
+
+        /** Index of the first id greater than {@code id}. */
+        int firstAfter(int id) {
+            int pos = Arrays.binarySearch(values, 0, size, id);
+            return pos >= 0 ? pos + 1 : -pos - 1;
+        }
+    }
+
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final int songs;
+        private final long estimatedBytes;
+        private final boolean loaded;
+
+        Stats(long hits, long misses, int songs, long estimatedBytes, boolean loaded) {
+            this.hits = hits;
+            this.misses = misses;
+            this.songs = songs;
+            this.estimatedBytes = estimatedBytes;
+            this.loaded = loaded;
+        }
+
+        public long getHits() { return hits; }
+        public long getMisses() { return misses; }
+        public int getSongs() { return songs; }
+        public long getEstimatedBytes() { return estimatedBytes; }
+        public boolean isLoaded() { return loaded; }
+
+        public double getHitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("songs=%d, hit rate=%.1f%% (%d/%d), heap~%.1f MB%s",
+                    songs, getHitRate() * 100, hits, hits + misses, estimatedBytes / 1048576.0,
+                    loaded ? "" : " (not loaded)");
+        }
+    }
+}
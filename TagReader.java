@@ -0,0 +1,519 @@
+/*
+ * TagReader.java
+ * Reads title, artist, album and duration from audio file headers: ID3v2 and
+ * ID3v1 tags plus the first MPEG frame for MP3, RIFF INFO and fmt/data chunks
+ * for WAV, and the moov/mvhd and ilst atoms for MP4/M4A.
+ *
+ * Only headers are read, through positional FileChannel reads into one reused
+ * window; the audio data (and large blocks such as embedded cover art) is
+ * skipped, so a file costs a few small reads whatever its size. findCover()
+ * walks the same headers to report where embedded cover art lies, without
+ * reading the image itself. A reader keeps its buffer between files and is not
+ * thread-safe: use one per thread.
+ *
+ * No JavaFX here: the scanner uses it on its worker threads. TagReaderCheck runs
+ * it over a generated corpus of tag layouts.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public final class TagReader {
+
+    // Bytes fetched per read; also the largest single field (a text frame, an INFO chunk) parsed
+    private static final int WINDOW_SIZE = 64 * 1024;
+    // How far past the ID3v2 tag to look for the first MPEG frame
+    private static final int FRAME_SEARCH_LIMIT = 64 * 1024;
+    // Longest MIME type plus description accepted before a picture's image data
+    private static final int PICTURE_HEADER_LIMIT = 1024;
+    // ID3 picture type of the front cover, preferred over other pictures
+    private static final int FRONT_COVER = 3;
+
+    private static final int[][] MPEG_BITRATES = {
+        // MPEG-1 layer I, II, III
+        {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+        {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+        // MPEG-2/2.5 layer I, then II and III
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+        {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+    };
+    private static final int[][] MPEG_SAMPLE_RATES = {
+        {44100, 48000, 32000}, // MPEG-1
+        {22050, 24000, 16000}, // MPEG-2
+        {11025, 12000, 8000},  // MPEG-2.5
+    };
+
+    private final ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+    private FileChannel channel;
+    private long fileSize;
+    // File offset of window[0]; the window holds [windowStart, windowStart + window.limit())
+    private long windowStart;
+    // Set while findCover() runs: where the best picture found so far lies, and how good it is
+    private boolean findingCover;
+    private long[] cover;
+    private int coverRank;
+
+    /** What was found in a file; fields the file does not carry are null (duration -1). */
+    public static final class Tags {
+        private String title;
+        private String artist;
+        private String album;
+        private long durationMs = -1;
+
+        Tags() {
+        }
+
+        public String getTitle() { return title; }
+        public String getArtist() { return artist; }
+        public String getAlbum() { return album; }
+        public long getDurationMs() { return durationMs; }
+
+        public boolean hasTitleAndArtist() {
+            return title != null && artist != null;
+        }
+
+        // Earlier sources win: ID3v2 is read before ID3v1
+        void title(String value) { if (title == null) title = value; }
+        void artist(String value) { if (artist == null) artist = value; }
+        void album(String value) { if (album == null) album = value; }
+
+        @Override
+        public String toString() {
+            return "Tags[title=" + title + ", artist=" + artist + ", album=" + album + ", durationMs=" + durationMs + "]";
+        }
+    }
+
+    /**
+     * Reads the tags of one file. The format is told by its first bytes, not its name;
+     * unrecognised files give empty tags rather than an error.
+     */
+    public Tags read(Path file) throws IOException {
+        Tags tags = new Tags();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel = ch;
+            fileSize = ch.size();
+            windowStart = 0;
+            window.clear().limit(0);
+            if (!ensure(0, 12)) return tags;
+            if (matches(0, "RIFF") && matches(8, "WAVE")) {
+                readWav(tags);
+            } else if (matches(4, "ftyp")) {
+                readMp4(tags);
+            } else if (matches(0, "ID3") || isMpegFrame(0) || matches(fileSize - 128, "TAG")) {
+                readMp3(tags);
+            }
+        } finally {
+            channel = null;
+        }
+        return tags;
+    }
+
+    /**
+     * Where the file's embedded cover image lies, as {offset, length}: an ID3v2 APIC (PIC)
+     * frame, preferring the front cover, or the MP4 covr item. Null if there is none.
+     */
+    public long[] findCover(Path file) throws IOException {
+        findingCover = true;
+        cover = null;
+        coverRank = 0;
+        try {
+            read(file);
+            return cover;
+        } finally {
+            findingCover = false;
+            cover = null;
+        }
+    }
+
+    // ---- MP3 ----
+
+    private void readMp3(Tags tags) throws IOException {
+        long audioStart = 0;
+        if (matches(0, "ID3")) audioStart = readId3v2(tags);
+        boolean hasId3v1 = fileSize >= 128 && matches(fileSize - 128, "TAG");
+        if (hasId3v1 && !tags.hasTitleAndArtist()) readId3v1(tags);
+        long audioEnd = hasId3v1 ? fileSize - 128 : fileSize;
+        if (tags.durationMs < 0) tags.durationMs = mpegDuration(audioStart, audioEnd);
+    }
+
+    /** Parses an ID3v2.2/2.3/2.4 tag at the start of the file; returns the offset just past it. */
+    private long readId3v2(Tags tags) throws IOException {
+        if (!ensure(0, 10)) return 0;
+        int major = u8(3);
+        int flags = u8(5);
+        long tagEnd = 10 + synchsafe(6) + ((flags & 0x10) != 0 ? 10 : 0);
+        if (major < 2 || major > 4) return tagEnd;
+        long pos = 10;
+        if ((flags & 0x40) != 0 && major >= 3 && ensure(pos, 4)) {
+            // Extended header: v2.4 counts its own size field, v2.3 does not
+            pos += major == 4 ? synchsafe(pos) : u32(pos) + 4;
+        }
+        int headerSize = major == 2 ? 6 : 10;
+        int idSize = major == 2 ? 3 : 4;
+        while (pos + headerSize <= tagEnd && ensure(pos, headerSize)) {
+            if (u8(pos) == 0) break; // padding
+            String id = ascii(pos, idSize);
+            long size = major == 2 ? u24(pos + 3) : major == 4 ? synchsafe(pos + 4) : u32(pos + 4);
+            int frameFlags = major == 2 ? 0 : u16(pos + 8);
+            long body = pos + headerSize;
+            if (size <= 0 || body + size > tagEnd) break;
+            // Compressed or encrypted frames are skipped (v2.3: 0x0080/0x0040, v2.4: 0x0008/0x0004)
+            boolean plain = major == 3 ? (frameFlags & 0x00C0) == 0 : (frameFlags & 0x000C) == 0;
+            // Unsynchronised pictures (v2.3 whole tag, v2.4 per frame) would need unescaping first
+            boolean raw = major == 4 ? (frameFlags & 0x0003) == 0 : (flags & 0x80) == 0;
+            if (findingCover && plain && raw && ("APIC".equals(id) || "PIC".equals(id))) {
+                pictureFrame(body, size, major == 2);
+            }
+            if (plain && size <= WINDOW_SIZE) {
+                switch (id) {
+                    case "TIT2": case "TT2": tags.title(textFrame(body, (int) size)); break;
+                    case "TPE1": case "TP1": tags.artist(textFrame(body, (int) size)); break;
+                    case "TALB": case "TAL": tags.album(textFrame(body, (int) size)); break;
+                    case "TLEN": case "TLE":
+                        String ms = textFrame(body, (int) size);
+                        if (ms != null && ms.matches("\\d{1,12}")) tags.durationMs = Long.parseLong(ms);
+                        break;
+                    default:
+                        // Cover art and the like are stepped over without being read
+                }
+            }
+            pos = body + size;
+        }
+        return tagEnd;
+    }
+
+    /**
+     * Notes where a picture frame's image data starts: after the encoding byte, the MIME
+     * type (v2.2: a 3-letter format), the picture type and the description.
+     */
+    private void pictureFrame(long body, long size, boolean v22) throws IOException {
+        long headerEnd = body + Math.min(size, PICTURE_HEADER_LIMIT);
+        if (!ensure(body, (int) (headerEnd - body))) return;
+        int encoding = u8(body);
+        long p = body + 1;
+        if (v22) {
+            p += 3;
+        } else {
+            while (p < headerEnd && u8(p) != 0) p++;
+            p++;
+        }
+        if (p >= headerEnd) return;
+        int type = u8(p++);
+        if (encoding == 1 || encoding == 2) {
+            while (p + 1 < headerEnd && !(u8(p) == 0 && u8(p + 1) == 0)) p += 2;
+            p += 2;
+        } else {
+            while (p < headerEnd && u8(p) != 0) p++;
+            p++;
+        }
+        long end = body + size;
+        if (p > headerEnd || p >= end) return;
+        int rank = type == FRONT_COVER ? 2 : 1;
+        if (rank > coverRank) {
+            cover = new long[] {p, end - p};
+            coverRank = rank;
+        }
+    }
+
+    /** Decodes a text frame body: an encoding byte, then text; only the first of several values is kept. */
+    private String textFrame(long pos, int size) throws IOException {
+        if (size < 2 || !ensure(pos, size)) return null;
+        int encoding = u8(pos);
+        Charset cs;
+        switch (encoding) {
+            case 1: cs = StandardCharsets.UTF_16; break;
+            case 2: cs = StandardCharsets.UTF_16BE; break;
+            case 3: cs = StandardCharsets.UTF_8; break;
+            default: cs = StandardCharsets.ISO_8859_1;
+        }
+        int start = (int) (pos + 1 - windowStart);
+        int len = size - 1;
+        // Cut at the first terminator: one zero byte, or a zero pair on a 2-byte boundary for UTF-16
+        int end = start;
+        if (encoding == 1 || encoding == 2) {
+            while (end + 1 < start + len && !(window.get(end) == 0 && window.get(end + 1) == 0)) end += 2;
+        } else {
+            while (end < start + len && window.get(end) != 0) end++;
+        }
+        return clean(new String(window.array(), start, end - start, cs));
+    }
+
+    private void readId3v1(Tags tags) throws IOException {
+        long base = fileSize - 128;
+        if (!ensure(base, 128)) return;
+        tags.title(latin1Field(base + 3, 30));
+        tags.artist(latin1Field(base + 33, 30));
+        tags.album(latin1Field(base + 63, 30));
+    }
+
+    private String latin1Field(long pos, int len) {
+        int start = (int) (pos - windowStart);
+        int end = start;
+        while (end < start + len && window.get(end) != 0) end++;
+        return clean(new String(window.array(), start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Duration from the first MPEG audio frame: exact from a Xing/Info or VBRI frame count
+     * when the encoder wrote one, otherwise estimated from the bitrate as for CBR files.
+     */
+    private long mpegDuration(long audioStart, long audioEnd) throws IOException {
+        long limit = Math.min(audioEnd - 4, audioStart + FRAME_SEARCH_LIMIT);
+        for (long pos = audioStart; pos <= limit; pos++) {
+            if (!ensure(pos, 4)) return -1;
+            if (!isMpegFrame(pos)) continue;
+            int header = (int) u32(pos);
+            int versionBits = (header >>> 19) & 3;      // 0: 2.5, 2: 2, 3: 1
+            int layer = 4 - ((header >>> 17) & 3);      // 1..3
+            int bitrateIndex = (header >>> 12) & 15;
+            int rateIndex = (header >>> 10) & 3;
+            boolean mono = ((header >>> 6) & 3) == 3;
+            boolean mpeg1 = versionBits == 3;
+            int kbps = MPEG_BITRATES[mpeg1 ? layer - 1 : layer == 1 ? 3 : 4][bitrateIndex];
+            int sampleRate = MPEG_SAMPLE_RATES[mpeg1 ? 0 : versionBits == 2 ? 1 : 2][rateIndex];
+            int samplesPerFrame = layer == 1 ? 384 : layer == 2 || mpeg1 ? 1152 : 576;
+            int padding = (header >>> 9) & 1;
+            int frameLength = layer == 1 ? (12000 * kbps / sampleRate + padding) * 4
+                    : samplesPerFrame / 8 * 1000 * kbps / sampleRate + padding;
+            // A lone sync pattern inside junk is common; a real frame is followed by another
+            if (pos + frameLength + 4 <= audioEnd && !isMpegFrame(pos + frameLength)) continue;
+
+            long frames = -1;
+            if (layer == 3) {
+                // Xing/Info sits right after the side information
+                long xing = pos + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+                if (ensure(xing, 12) && (matches(xing, "Xing") || matches(xing, "Info")) && (u32(xing + 4) & 1) != 0) {
+                    frames = u32(xing + 8);
+                } else if (ensure(pos + 36, 18) && matches(pos + 36, "VBRI")) {
+                    frames = u32(pos + 36 + 14);
+                }
+            }
+            if (frames > 0) return frames * samplesPerFrame * 1000L / sampleRate;
+            return (audioEnd - pos) * 8 / kbps;
+        }
+        return -1;
+    }
+
+    /** True if a plausible MPEG audio frame header starts at pos (sync, and no reserved field values). */
+    private boolean isMpegFrame(long pos) throws IOException {
+        if (!ensure(pos, 4)) return false;
+        int b1 = u8(pos + 1);
+        int b2 = u8(pos + 2);
+        return u8(pos) == 0xFF && (b1 & 0xE0) == 0xE0
+                && ((b1 >>> 3) & 3) != 1        // version
+                && ((b1 >>> 1) & 3) != 0        // layer
+                && (b2 >>> 4) != 0 && (b2 >>> 4) != 15  // bitrate: no free format, no bad index
+                && ((b2 >>> 2) & 3) != 3;       // sample rate
+    }
+
+    // ---- WAV ----
+
+    /** Walks the RIFF chunks: fmt gives the byte rate, data its length, LIST/INFO the text fields. */
+    private void readWav(Tags tags) throws IOException {
+        long byteRate = -1;
+        long dataSize = -1;
+        long pos = 12;
+        while (pos + 8 <= fileSize && ensure(pos, 8)) {
+            String id = ascii(pos, 4);
+            long size = u32le(pos + 4);
+            long body = pos + 8;
+            if ("fmt ".equals(id) && size >= 16 && ensure(body, 16)) {
+                byteRate = u32le(body + 8);
+            } else if ("data".equals(id)) {
+                // Streaming writers leave the size at 0 or 0xFFFFFFFF; the rest of the file is data then
+                dataSize = size == 0 || size == 0xFFFFFFFFL || body + size > fileSize ? fileSize - body : size;
+            } else if ("LIST".equals(id) && size >= 4 && size <= WINDOW_SIZE && ensure(body, (int) size)
+                    && matches(body, "INFO")) {
+                readInfo(tags, body + 4, body + size);
+            }
+            // Chunks are padded to an even length
+            pos = body + size + (size & 1);
+        }
+        if (byteRate > 0 && dataSize >= 0) tags.durationMs = dataSize * 1000 / byteRate;
+    }
+
+    private void readInfo(Tags tags, long pos, long end) throws IOException {
+        while (pos + 8 <= end && ensure(pos, 8)) {
+            String id = ascii(pos, 4);
+            int size = (int) u32le(pos + 4);
+            long body = pos + 8;
+            if (size < 0 || body + size > end) break;
+            if (ensure(body, size)) {
+                switch (id) {
+                    case "INAM": tags.title(latin1Field(body, size)); break;
+                    case "IART": tags.artist(latin1Field(body, size)); break;
+                    case "IPRD": tags.album(latin1Field(body, size)); break;
+                    default:
+                }
+            }
+            pos = body + size + (size & 1);
+        }
+    }
+
+    // ---- MP4 / M4A ----
+
+    /**
+     * Walks the atom tree down to moov/mvhd for the duration and moov/udta/meta/ilst for
+     * the text fields. Track atoms and mdat are skipped by their headers, so a file with
+     * moov at the end costs the same as one with it at the front.
+     */
+    private void readMp4(Tags tags) throws IOException {
+        long[] moov = findAtom(0, fileSize, "moov");
+        if (moov == null) return;
+        long[] mvhd = findAtom(moov[0], moov[1], "mvhd");
+        if (mvhd != null && ensure(mvhd[0], 32)) {
+            int version = u8(mvhd[0]);
+            long timescale;
+            long duration;
+            if (version == 1) {
+                timescale = u32(mvhd[0] + 20);
+                duration = u64(mvhd[0] + 24);
+            } else {
+                timescale = u32(mvhd[0] + 12);
+                duration = u32(mvhd[0] + 16);
+            }
+            if (timescale > 0) tags.durationMs = duration * 1000 / timescale;
+        }
+        long[] udta = findAtom(moov[0], moov[1], "udta");
+        long[] meta = udta == null ? null : findAtom(udta[0], udta[1], "meta");
+        if (meta == null || !ensure(meta[0], 8)) return;
+        // iTunes writes meta as a full atom (4 bytes of version/flags); QuickTime does not
+        long metaChildren = matches(meta[0] + 4, "hdlr") ? meta[0] : meta[0] + 4;
+        long[] ilst = findAtom(metaChildren, meta[1], "ilst");
+        if (ilst == null) return;
+        long pos = ilst[0];
+        while (pos + 8 <= ilst[1] && ensure(pos, 8)) {
+            long size = u32(pos);
+            if (size < 8 || pos + size > ilst[1]) break;
+            String field = null;
+            // Item names start with the copyright sign (0xA9) in MacRoman
+            if (u8(pos + 4) == 0xA9) {
+                String name = ascii(pos + 5, 3);
+                if ("nam".equals(name) || "ART".equals(name) || "alb".equals(name)) field = name;
+            }
+            if (field != null) {
+                String value = dataAtomText(pos + 8, pos + size);
+                if ("nam".equals(field)) tags.title(value);
+                else if ("ART".equals(field)) tags.artist(value);
+                else tags.album(value);
+            }
+            if (findingCover && coverRank == 0 && matches(pos + 4, "covr")) {
+                // A data atom: 4 bytes of type (13 JPEG, 14 PNG) and 4 of locale, then the image
+                long[] data = findAtom(pos + 8, pos + size, "data");
+                if (data != null && data[1] - data[0] > 8) {
+                    cover = new long[] {data[0] + 8, data[1] - data[0] - 8};
+                    coverRank = 2;
+                }
+            }
+            pos += size;
+        }
+    }
+
+    /** Text of the first 'data' atom in [pos, end): 8-byte header, 4-byte type, 4-byte locale, UTF-8. */
+    private String dataAtomText(long pos, long end) throws IOException {
+        long[] data = findAtom(pos, end, "data");
+        if (data == null) return null;
+        int len = (int) (data[1] - data[0] - 8);
+        if (len <= 0 || len > WINDOW_SIZE || !ensure(data[0], len + 8)) return null;
+        int start = (int) (data[0] + 8 - windowStart);
+        return clean(new String(window.array(), start, len, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Finds the first child atom of the given type in [pos, end) and returns the range of its
+     * payload as {start, end}, or null. Handles 64-bit sizes and the size-0 "to end" form.
+     */
+    private long[] findAtom(long pos, long end, String type) throws IOException {
+        while (pos + 8 <= end && ensure(pos, 8)) {
+            long size = u32(pos);
+            int header = 8;
+            if (size == 1) {
+                if (!ensure(pos, 16)) return null;
+                size = u64(pos + 8);
+                header = 16;
+            } else if (size == 0) {
+                size = end - pos;
+            }
+            if (size < header || pos + size > end) return null;
+            if (matches(pos + 4, type)) return new long[] { pos + header, pos + size };
+            pos += size;
+        }
+        return null;
+    }
+
+    // ---- windowed positional reads ----
+
+    /**
+     * Makes [pos, pos + len) available in the window, refilling it from pos with one
+     * positional read if needed. Returns false if the range runs past the end of the file.
+     */
+    private boolean ensure(long pos, int len) throws IOException {
+        if (pos < 0 || len > WINDOW_SIZE || pos + len > fileSize) return false;
+        if (pos >= windowStart && pos + len <= windowStart + window.limit()) return true;
+        window.clear();
+        long at = pos;
+        while (window.hasRemaining() && at < fileSize) {
+            int n = channel.read(window, at);
+            if (n < 0) break;
+            at += n;
+        }
+        window.flip();
+        windowStart = pos;
+        return window.limit() >= len;
+    }
+
+    private boolean matches(long pos, String ascii) throws IOException {
+        if (!ensure(pos, ascii.length())) return false;
+        int off = (int) (pos - windowStart);
+        for (int i = 0; i < ascii.length(); i++) {
+            if (window.get(off + i) != (byte) ascii.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // The accessors below assume ensure() has covered the bytes
+    private int u8(long pos) {
+        return window.get((int) (pos - windowStart)) & 0xFF;
+    }
+
+    private int u16(long pos) {
+        return (u8(pos) << 8) | u8(pos + 1);
+    }
+
+    private long u24(long pos) {
+        return ((long) u8(pos) << 16) | (u8(pos + 1) << 8) | u8(pos + 2);
+    }
+
+    private long u32(long pos) {
+        return ((long) u8(pos) << 24) | (u8(pos + 1) << 16) | (u8(pos + 2) << 8) | u8(pos + 3);
+    }
+
+    private long u64(long pos) throws IOException {
+        ensure(pos, 8);
+        return (u32(pos) << 32) | u32(pos + 4);
+    }
+
+    private long u32le(long pos) {
+        return u8(pos) | (u8(pos + 1) << 8) | (u8(pos + 2) << 16) | ((long) u8(pos + 3) << 24);
+    }
+
+    /** ID3v2 sizes: four bytes of seven bits each. */
+    private long synchsafe(long pos) {
+        return ((long) (u8(pos) & 0x7F) << 21) | ((u8(pos + 1) & 0x7F) << 14) | ((u8(pos + 2) & 0x7F) << 7) | (u8(pos + 3) & 0x7F);
+    }
+
+    private String ascii(long pos, int len) {
+        return new String(window.array(), (int) (pos - windowStart), len, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String clean(String s) {
+        String t = s.replace("\u0000", "").trim();
+        return t.isEmpty() ? null : t;
+    }
+}
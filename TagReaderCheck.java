@@ -0,0 +1,376 @@
+/*
+ * TagReaderCheck.java
+ * Runs TagReader over a corpus of small generated files and checks the title, artist,
+ * album and duration it reports for each.
+ *
+ * The corpus covers the layouts the scanner meets in real libraries. For MP3 that is:
+ * ID3v2.2, v2.3 and v2.4 tags in Latin-1, UTF-16 and UTF-8, v2.4 with an extended
+ * header and frames over 127 bytes (so synchsafe sizes matter), files carrying only
+ * ID3v1 with a false frame sync before the audio, and Xing and VBRI headers. For WAV it
+ * is INFO before and after the data chunk, and a streamed data size. For M4A it is moov
+ * before and after mdat, a 64-bit mdat size, and a version 1 mvhd. Empty, junk and
+ * truncated files must give empty tags without an exception. Files are built byte by
+ * byte here, so the check needs no fixtures and no encoder.
+ *
+ *   java -cp out TagReaderCheck
+ *
+ * Prints one line per file and exits with status 1 if any check fails.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+
+public class TagReaderCheck {
+
+    // MPEG-1 layer III, 128 kbps, 44.1 kHz, stereo, no padding: 417-byte frames of 1152 samples
+    private static final byte[] FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+    private static final int FRAME_LENGTH = 417;
+    // The Xing and VBRI headers both sit 36 bytes into the first frame of a stereo MPEG-1 file
+    private static final int VBR_HEADER_OFFSET = 36;
+
+    private final TagReader reader = new TagReader();
+    private Path dir;
+    private int failures;
+
+    public static void main(String[] args) throws IOException {
+        TagReaderCheck check = new TagReaderCheck();
+        check.dir = Files.createTempDirectory("tag-corpus");
+        check.run();
+        System.out.println(check.failures == 0 ? "All files read as expected" : check.failures + " checks failed");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+
+    private void run() throws IOException {
+        // ---- MP3 ----
+        String longAlbum = repeat("Long Album Name ", 12).trim();   // over 127 bytes: synchsafe size differs from plain
+        expect("id3v22-latin1-cbr.mp3", concat(
+                id3v2(2, 0, frame22("TT2", text(0, "Café", StandardCharsets.ISO_8859_1)),
+                        frame22("TP1", text(0, "Les Amis", StandardCharsets.ISO_8859_1)),
+                        frame22("TAL", text(0, "Été", StandardCharsets.ISO_8859_1)),
+                        frame22("PIC", picture22())),
+                frames(100)),
+                "Café", "Les Amis", "Été", cbrMs(100));
+        expect("id3v23-utf16-tlen.mp3", concat(
+                id3v2(3, 0, frame23("TIT2", text(1, "Nocturne №2", StandardCharsets.UTF_16LE)),
+                        frame23("TPE1", text(1, "Ёлка", StandardCharsets.UTF_16LE)),
+                        frame23("TALB", text(1, "Ночь", StandardCharsets.UTF_16LE)),
+                        frame23("TLEN", text(0, "183000", StandardCharsets.ISO_8859_1))),
+                frames(10)),
+                "Nocturne №2", "Ёлка", "Ночь", 183000);
+        expect("id3v23-utf16-multi.mp3", concat(
+                id3v2(3, 0, frame23("TIT2", text(1, "First", StandardCharsets.UTF_16LE, "Second")),
+                        frame23("TPE1", text(1, "Solo", StandardCharsets.UTF_16LE))),
+                frames(20)),
+                "First", "Solo", null, cbrMs(20));
+        expect("id3v24-utf8-xing.mp3", concat(
+                id3v2(4, 0x40, frame24("TIT2", text(3, "日本の歌", StandardCharsets.UTF_8)),
+                        frame24("TPE1", text(3, "アーティスト", StandardCharsets.UTF_8)),
+                        frame24("TALB", text(3, longAlbum, StandardCharsets.UTF_8))),
+                xingFrame(1000), frames(50)),
+                "日本の歌", "アーティスト", longAlbum, 1000L * 1152 * 1000 / 44100);
+        expect("id3v24-utf16be.mp3", concat(
+                id3v2(4, 0, frame24("TIT2", text(2, "Big Endian", StandardCharsets.UTF_16BE)),
+                        frame24("TPE1", text(2, "Ωmega", StandardCharsets.UTF_16BE))),
+                frames(30)),
+                "Big Endian", "Ωmega", null, cbrMs(30));
+        expect("vbri.mp3", concat(
+                id3v2(3, 0, frame23("TIT2", text(0, "Fraunhofer", StandardCharsets.ISO_8859_1))),
+                vbriFrame(500), frames(20)),
+                "Fraunhofer", null, null, 500L * 1152 * 1000 / 44100);
+        // A sync pattern in the junk before the audio, not followed by a second frame
+        byte[] junk = new byte[50];
+        System.arraycopy(FRAME_HEADER, 0, junk, 10, 4);
+        expect("id3v1-false-sync.mp3", concat(junk, frames(100),
+                id3v1("Old Tag Title", "Old Tag Artist", "Old Tag Album")),
+                "Old Tag Title", "Old Tag Artist", "Old Tag Album", cbrMs(100));
+        expect("id3v2-over-id3v1.mp3", concat(
+                id3v2(3, 0, frame23("TIT2", text(0, "New Title", StandardCharsets.ISO_8859_1))),
+                frames(10), id3v1("Old Title", "Old Artist", "Old Album")),
+                "New Title", "Old Artist", "Old Album", cbrMs(10));
+        expect("frames-only.mp3", frames(40), null, null, null, cbrMs(40));
+
+        // ---- WAV ----
+        byte[] info = info("Rain Study", "Field Recorder", "Tapes");
+        expect("info-after-data.wav", riff(fmt(44100, 2, 16), chunk("data", new byte[176400 * 2]), info),
+                "Rain Study", "Field Recorder", "Tapes", 2000);
+        expect("info-before-data.wav", riff(info, fmt(22050, 1, 16), chunk("data", new byte[44100 * 3])),
+                "Rain Study", "Field Recorder", "Tapes", 3000);
+        byte[] streamed = chunk("data", new byte[48000 * 4]);
+        putLe(streamed, 4, 0xFFFFFFFFL);
+        expect("streamed-size.wav", riff(fmt(48000, 2, 16), streamed), null, null, null, 1000);
+
+        // ---- MP4 / M4A ----
+        byte[] ilst = atom("ilst", item("nam", "Harbour Lights"), item("ART", "The Quays"), item("alb", "Piers"));
+        byte[] moov = atom("moov", mvhd0(44100, 44100L * 185), udta(ilst));
+        expect("moov-first.m4a", concat(ftyp(), moov, atom("mdat", new byte[4096])),
+                "Harbour Lights", "The Quays", "Piers", 185000);
+        expect("moov-last-64bit-mdat.m4a", concat(ftyp(), atom64("mdat", new byte[70_000]), moov),
+                "Harbour Lights", "The Quays", "Piers", 185000);
+        expect("mvhd-v1.m4a", concat(ftyp(), atom("moov", mvhd1(1000, 5_000_000_000L), udta(ilst))),
+                "Harbour Lights", "The Quays", "Piers", 5_000_000_000L);
+        expect("no-tags.m4a", concat(ftyp(), atom("moov", mvhd0(600, 600L * 42))), null, null, null, 42000);
+
+        // ---- broken ----
+        expect("empty.mp3", new byte[0], null, null, null, -1);
+        expect("junk.mp3", repeat("this is not audio at all ", 200).getBytes(StandardCharsets.US_ASCII),
+                null, null, null, -1);
+        expect("truncated-id3.mp3", Arrays.copyOf(id3v2(3, 0, frame23("TIT2", text(0, "Cut Off", StandardCharsets.ISO_8859_1))), 14),
+                null, null, null, -1);
+        expect("truncated.wav", Arrays.copyOf(riff(fmt(44100, 2, 16), chunk("data", new byte[1000])), 30),
+                null, null, null, -1);
+        byte[] cutMoov = concat(ftyp(), moov);
+        expect("truncated-moov.m4a", Arrays.copyOf(cutMoov, cutMoov.length - 20), null, null, null, -1);
+    }
+
+    private void expect(String name, byte[] content, String title, String artist, String album, long durationMs)
+            throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, content);
+        TagReader.Tags tags;
+        try {
+            tags = reader.read(file);
+        } catch (IOException | RuntimeException e) {
+            failures++;
+            System.out.println("FAIL " + name + ": " + e);
+            return;
+        }
+        boolean ok = Objects.equals(tags.getTitle(), title) && Objects.equals(tags.getArtist(), artist)
+                && Objects.equals(tags.getAlbum(), album) && tags.getDurationMs() == durationMs;
+        if (!ok) failures++;
+        System.out.println((ok ? "ok   " : "FAIL ") + name + ": " + tags
+                + (ok ? "" : "\n     expected title=" + title + ", artist=" + artist + ", album=" + album
+                        + ", durationMs=" + durationMs));
+    }
+
+    // ---- MP3 building blocks ----
+
+    private static long cbrMs(int frames) {
+        return (long) frames * FRAME_LENGTH * 8 / 128;
+    }
+
+    private static byte[] frames(int n) {
+        byte[] out = new byte[n * FRAME_LENGTH];
+        for (int i = 0; i < n; i++) System.arraycopy(FRAME_HEADER, 0, out, i * FRAME_LENGTH, 4);
+        return out;
+    }
+
+    private static byte[] xingFrame(int frameCount) {
+        byte[] f = frames(1);
+        byte[] xing = "Xing".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(xing, 0, f, VBR_HEADER_OFFSET, 4);
+        putBe(f, VBR_HEADER_OFFSET + 4, 1);   // flags: frame count present
+        putBe(f, VBR_HEADER_OFFSET + 8, frameCount);
+        return f;
+    }
+
+    private static byte[] vbriFrame(int frameCount) {
+        byte[] f = frames(1);
+        System.arraycopy("VBRI".getBytes(StandardCharsets.US_ASCII), 0, f, VBR_HEADER_OFFSET, 4);
+        putBe(f, VBR_HEADER_OFFSET + 14, frameCount);
+        return f;
+    }
+
+    /** A tag header and frames; flag 0x40 adds a six-byte v2.4 extended header. */
+    private static byte[] id3v2(int major, int flags, byte[]... frames) {
+        byte[] ext = (flags & 0x40) != 0 ? new byte[] {0, 0, 0, 6, 1, 0} : new byte[0];
+        byte[] body = concat(ext, concat(frames), new byte[64]);   // trailing padding
+        byte[] header = {'I', 'D', '3', (byte) major, 0, (byte) flags, 0, 0, 0, 0};
+        putSynchsafe(header, 6, body.length);
+        return concat(header, body);
+    }
+
+    private static byte[] frame22(String id, byte[] body) {
+        byte[] header = new byte[6];
+        ascii(header, 0, id);
+        header[3] = (byte) (body.length >>> 16);
+        header[4] = (byte) (body.length >>> 8);
+        header[5] = (byte) body.length;
+        return concat(header, body);
+    }
+
+    private static byte[] frame23(String id, byte[] body) {
+        byte[] header = new byte[10];
+        ascii(header, 0, id);
+        putBe(header, 4, body.length);
+        return concat(header, body);
+    }
+
+    private static byte[] frame24(String id, byte[] body) {
+        byte[] header = new byte[10];
+        ascii(header, 0, id);
+        putSynchsafe(header, 4, body.length);
+        return concat(header, body);
+    }
+
+    /** A text frame body: encoding byte, then the values, each terminated; UTF-16 with a BOM. */
+    private static byte[] text(int encoding, String value, Charset cs, String... more) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(encoding);
+        int terminator = encoding == 1 || encoding == 2 ? 2 : 1;
+        for (String v : concat(value, more)) {
+            if (encoding == 1) out.write(new byte[] {(byte) 0xFF, (byte) 0xFE}, 0, 2);
+            byte[] b = v.getBytes(cs);
+            out.write(b, 0, b.length);
+            out.write(new byte[terminator], 0, terminator);
+        }
+        return out.toByteArray();
+    }
+
+    /** A v2.2 PIC frame body: Latin-1, JPG, front cover, empty description, then "image" bytes. */
+    private static byte[] picture22() {
+        byte[] image = new byte[2000];
+        Arrays.fill(image, (byte) 0xFF);   // sync-like bytes that must be stepped over
+        return concat(new byte[] {0, 'J', 'P', 'G', 3, 0}, image);
+    }
+
+    private static byte[] id3v1(String title, String artist, String album) {
+        byte[] tag = new byte[128];
+        ascii(tag, 0, "TAG");
+        ascii(tag, 3, title);
+        ascii(tag, 33, artist);
+        ascii(tag, 63, album);
+        return tag;
+    }
+
+    // ---- WAV building blocks ----
+
+    private static byte[] riff(byte[]... chunks) {
+        byte[] body = concat("WAVE".getBytes(StandardCharsets.US_ASCII), concat(chunks));
+        byte[] header = new byte[8];
+        ascii(header, 0, "RIFF");
+        putLe(header, 4, body.length);
+        return concat(header, body);
+    }
+
+    private static byte[] fmt(int sampleRate, int channels, int bits) {
+        byte[] body = new byte[16];
+        body[0] = 1;   // PCM
+        body[2] = (byte) channels;
+        putLe(body, 4, sampleRate);
+        putLe(body, 8, (long) sampleRate * channels * bits / 8);
+        body[12] = (byte) (channels * bits / 8);
+        body[14] = (byte) bits;
+        return chunk("fmt ", body);
+    }
+
+    /** LIST/INFO with odd-length values, so the pad bytes are exercised. */
+    private static byte[] info(String title, String artist, String album) {
+        return chunk("LIST", concat("INFO".getBytes(StandardCharsets.US_ASCII),
+                chunk("INAM", zeroTerminated(title)), chunk("IART", zeroTerminated(artist)),
+                chunk("IPRD", zeroTerminated(album))));
+    }
+
+    private static byte[] zeroTerminated(String s) {
+        return concat(s.getBytes(StandardCharsets.ISO_8859_1), new byte[1]);
+    }
+
+    /** A RIFF chunk, padded to an even length. */
+    private static byte[] chunk(String id, byte[] body) {
+        byte[] header = new byte[8];
+        ascii(header, 0, id);
+        putLe(header, 4, body.length);
+        return concat(header, body, new byte[body.length & 1]);
+    }
+
+    // ---- MP4 building blocks ----
+
+    private static byte[] ftyp() {
+        return atom("ftyp", concat("M4A ".getBytes(StandardCharsets.US_ASCII), new byte[4],
+                "isomM4A ".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static byte[] mvhd0(long timescale, long duration) {
+        byte[] body = new byte[100];
+        putBe(body, 12, timescale);
+        putBe(body, 16, duration);
+        return atom("mvhd", body);
+    }
+
+    private static byte[] mvhd1(long timescale, long duration) {
+        byte[] body = new byte[112];
+        body[0] = 1;
+        putBe(body, 20, timescale);
+        putBe(body, 24, duration >>> 32);
+        putBe(body, 28, duration);
+        return atom("mvhd", body);
+    }
+
+    /** udta/meta as iTunes writes it: meta is a full atom and starts with an hdlr. */
+    private static byte[] udta(byte[] ilst) {
+        byte[] hdlr = atom("hdlr", concat(new byte[8], "mdirappl".getBytes(StandardCharsets.US_ASCII), new byte[10]));
+        return atom("udta", atom("meta", concat(new byte[4], hdlr, ilst)));
+    }
+
+    private static byte[] item(String name, String value) {
+        byte[] type = new byte[4];
+        type[0] = (byte) 0xA9;
+        ascii(type, 1, name);
+        byte[] data = atom("data", concat(new byte[] {0, 0, 0, 1, 0, 0, 0, 0}, value.getBytes(StandardCharsets.UTF_8)));
+        byte[] header = new byte[4];
+        putBe(header, 0, 8 + data.length);
+        return concat(header, type, data);
+    }
+
+    private static byte[] atom(String type, byte[]... children) {
+        byte[] body = concat(children);
+        byte[] header = new byte[8];
+        putBe(header, 0, 8 + body.length);
+        ascii(header, 4, type);
+        return concat(header, body);
+    }
+
+    /** An atom with size 1 and the real size in a 64-bit field after the type. */
+    private static byte[] atom64(String type, byte[] body) {
+        byte[] header = new byte[16];
+        putBe(header, 0, 1);
+        ascii(header, 4, type);
+        long size = 16L + body.length;
+        putBe(header, 8, size >>> 32);
+        putBe(header, 12, size);
+        return concat(header, body);
+    }
+
+    // ---- bytes ----
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) out.write(p, 0, p.length);
+        return out.toByteArray();
+    }
+
+    private static String[] concat(String first, String[] more) {
+        String[] all = new String[more.length + 1];
+        all[0] = first;
+        System.arraycopy(more, 0, all, 1, more.length);
+        return all;
+    }
+
+    private static void putBe(byte[] b, int at, long v) {
+        for (int i = 0; i < 4; i++) b[at + i] = (byte) (v >>> (24 - 8 * i));
+    }
+
+    private static void putLe(byte[] b, int at, long v) {
+        for (int i = 0; i < 4; i++) b[at + i] = (byte) (v >>> (8 * i));
+    }
+
+    private static void putSynchsafe(byte[] b, int at, int v) {
+        for (int i = 0; i < 4; i++) b[at + i] = (byte) ((v >>> (21 - 7 * i)) & 0x7F);
+    }
+
+    private static void ascii(byte[] b, int at, String s) {
+        byte[] a = s.getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(a, 0, b, at, a.length);
+    }
+
+    private static String repeat(String s, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) sb.append(s);
+        return sb.toString();
+    }
+}
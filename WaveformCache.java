@@ -0,0 +1,421 @@
+/*
+ * WaveformCache.java
+ * Min/max peaks for drawing a track's waveform, computed once per file and kept in
+ * one cache file on disk.
+ *
+ * A file is decoded in the background (WAV, AIFF and AU, through MoodAnalyzer's PCM
+ * reader) in a single streaming pass, reducing it to PEAKS min/max pairs of the mono
+ * mix. The cache file is a fixed number of fixed-size slots, memory-mapped, so looking
+ * a track up again is a hash lookup and a 4 KB copy with no decoding and no read
+ * calls. A slot is keyed by the path and only used while the file's size and
+ * modification time still match; a CRC over its peaks catches slots torn by a crash.
+ * When every slot is taken the least recently used one is overwritten.
+ *
+ * No JavaFX here: WaveformSeekBar draws the result.
+ */
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+public class WaveformCache implements Closeable {
+
+    /** Min/max pairs per track, whatever its length; about one per pixel of a wide seek bar. */
+    public static final int PEAKS = 2048;
+    /** Cache file size used by the player, about 4,000 tracks. */
+    public static final long DEFAULT_MAX_BYTES = 16L << 20;
+
+    private static final int MAGIC = 0x4D4D5746; // "MMWF"
+    private static final int VERSION = 1;
+    // Header: magic, version, peaks per slot, slot count, use clock
+    private static final int HEADER = 64;
+    // Slot: path hash, size, mtime, last use, CRC of the peaks, then the peaks
+    private static final int SLOT_HEADER = 40;
+    private static final int SLOT = SLOT_HEADER + 2 * PEAKS;
+    private static final int READ_BUFFER = 64 * 1024;
+    // Frames reduced to one min/max pair while decoding a stream of unknown length
+    private static final int UNKNOWN_LENGTH_BLOCK = 4096;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int slots;
+    // Path hash to slot, least recently used first
+    private final LinkedHashMap<Long, Integer> index = new LinkedHashMap<>(16, 0.75f, true);
+    private final Deque<Integer> free = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long clock;
+    // Decodes one file at a time, in the background
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "waveform-decoder");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private long hits;
+    private long misses;
+    private long decoded;
+    private long failed;
+    private long evictions;
+    private long decodeNanos;
+
+    private WaveformCache(FileChannel channel, MappedByteBuffer map, int slots) {
+        this.channel = channel;
+        this.map = map;
+        this.slots = slots;
+    }
+
+    /**
+     * Opens the cache file, creating it if needed, sized to hold as many tracks as fit in
+     * {@code maxBytes}. A file written with another layout is started over.
+     */
+    public static WaveformCache open(Path file, long maxBytes) throws IOException {
+        int slots = (int) Math.max(1, Math.min(Integer.MAX_VALUE / SLOT - 1, (maxBytes - HEADER) / SLOT));
+        long length = HEADER + (long) slots * SLOT;
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // The header is checked with a plain read: Windows refuses to truncate a file
+            // while any part of it is mapped, so nothing is mapped until the file is settled
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // Read until the header is complete or the file ends
+            }
+            boolean valid = !header.hasRemaining() && header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+                    && header.getInt(8) == PEAKS && header.getInt(12) == slots;
+            if (!valid) {
+                // Fresh file, or a layout from another version or size: start over from an
+                // empty file, which maps as zeros, so every slot starts free
+                channel.truncate(0);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (!valid) {
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                map.putInt(8, PEAKS);
+                map.putInt(12, slots);
+            }
+            WaveformCache cache = new WaveformCache(channel, map, slots);
+            cache.load();
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Rebuilds the in-memory index from the slot headers, oldest use first. */
+    private void load() {
+        clock = map.getLong(16);
+        List<long[]> used = new ArrayList<>();
+        for (int s = 0; s < slots; s++) {
+            int at = offset(s);
+            long hash = map.getLong(at);
+            if (hash == 0) {
+                free.add(s);
+            } else {
+                used.add(new long[] {map.getLong(at + 24), hash, s});
+            }
+        }
+        used.sort((a, b) -> Long.compare(a[0], b[0]));
+        for (long[] u : used) {
+            // Two slots for one path can only be left by a crash mid-write; keep the newer
+            Integer older = index.put(u[1], (int) u[2]);
+            if (older != null) {
+                map.putLong(offset(older), 0);
+                free.add(older);
+            }
+        }
+    }
+
+    /**
+     * The waveform for a file: completed at once when the cache has it, otherwise once the
+     * file has been decoded in the background. Completes with null for files that cannot
+     * be decoded (compressed formats, missing files). Cancelling the future before its
+     * turn skips the decode.
+     */
+    public CompletableFuture<Waveform> request(String path) {
+        if (path == null || !MoodAnalyzer.canAnalyze(path)) return CompletableFuture.completedFuture(null);
+        Path file = Paths.get(path);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        long hash = hash(path);
+        Waveform cached = get(hash, size, mtime);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        CompletableFuture<Waveform> result = new CompletableFuture<>();
+        decoder.execute(() -> {
+            if (result.isDone()) return;
+            long start = System.nanoTime();
+            try {
+                byte[] peaks = decode(file);
+                put(hash, size, mtime, peaks);
+                countDecode(System.nanoTime() - start);
+                result.complete(new Waveform(peaks));
+            } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+                countFailure();
+                result.complete(null);
+            }
+        });
+        return result;
+    }
+
+    /** Looks a file up; null when it is not cached or has changed since. */
+    private synchronized Waveform get(long hash, long size, long mtime) {
+        Integer slot = index.get(hash);
+        if (slot != null) {
+            int at = offset(slot);
+            if (map.getLong(at + 8) == size && map.getLong(at + 16) == mtime) {
+                byte[] peaks = new byte[2 * PEAKS];
+                map.get(at + SLOT_HEADER, peaks);
+                crc.reset();
+                crc.update(peaks);
+                if ((int) crc.getValue() == map.getInt(at + 32)) {
+                    map.putLong(at + 24, ++clock);
+                    map.putLong(16, clock);
+                    hits++;
+                    return new Waveform(peaks);
+                }
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /** Stores peaks in the path's slot, a free one, or the least recently used one. */
+    private synchronized void put(long hash, long size, long mtime, byte[] peaks) {
+        Integer slot = index.get(hash);
+        if (slot == null) {
+            slot = free.poll();
+            if (slot == null) {
+                Long eldest = index.keySet().iterator().next();
+                slot = index.remove(eldest);
+                evictions++;
+            }
+            index.put(hash, slot);
+        }
+        int at = offset(slot);
+        // The hash goes in last, so a slot only counts once everything else is written
+        map.putLong(at, 0);
+        map.put(at + SLOT_HEADER, peaks);
+        crc.reset();
+        crc.update(peaks);
+        map.putLong(at + 8, size);
+        map.putLong(at + 16, mtime);
+        map.putLong(at + 24, ++clock);
+        map.putInt(at + 32, (int) crc.getValue());
+        map.putLong(at, hash);
+        map.putLong(16, clock);
+    }
+
+    /**
+     * Reduces the file to PEAKS min/max pairs of the mono mix, scaled to -127..127. The
+     * stream is first reduced to blocks of frames, then the blocks to peaks, so files of
+     * unknown length need no second pass.
+     */
+    static byte[] decode(Path file) throws IOException, UnsupportedAudioFileException {
+        try (AudioInputStream in = MoodAnalyzer.openPcm(file)) {
+            AudioFormat f = in.getFormat();
+            int channels = f.getChannels();
+            int frameSize = f.getFrameSize();
+            int sampleBytes = f.getSampleSizeInBits() / 8;
+            boolean bigEndian = f.isBigEndian();
+            boolean isFloat = f.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT);
+            boolean unsigned = f.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED);
+            long frames = in.getFrameLength();
+            int block = frames == AudioSystem.NOT_SPECIFIED || frames <= 0
+                    ? UNKNOWN_LENGTH_BLOCK : (int) Math.max(1, (frames + PEAKS - 1) / PEAKS);
+
+            float[] mins = new float[PEAKS];
+            float[] maxs = new float[PEAKS];
+            int blocks = 0;
+            float lo = Float.POSITIVE_INFINITY;
+            float hi = Float.NEGATIVE_INFINITY;
+            int inBlock = 0;
+            byte[] bytes = new byte[READ_BUFFER];
+            int usable = bytes.length - bytes.length % frameSize;
+            int carry = 0;
+            while (true) {
+                int n = in.read(bytes, carry, usable - carry);
+                if (n < 0) break;
+                int total = carry + n;
+                int end = total - total % frameSize;
+                for (int off = 0; off < end; off += frameSize) {
+                    float mono = 0;
+                    for (int c = 0; c < channels; c++) {
+                        mono += MoodAnalyzer.sample(bytes, off + c * sampleBytes, sampleBytes, bigEndian, unsigned, isFloat);
+                    }
+                    mono /= channels;
+                    if (mono < lo) lo = mono;
+                    if (mono > hi) hi = mono;
+                    if (++inBlock == block) {
+                        if (blocks == mins.length) {
+                            mins = Arrays.copyOf(mins, blocks * 2);
+                            maxs = Arrays.copyOf(maxs, blocks * 2);
+                        }
+                        mins[blocks] = lo;
+                        maxs[blocks++] = hi;
+                        lo = Float.POSITIVE_INFINITY;
+                        hi = Float.NEGATIVE_INFINITY;
+                        inBlock = 0;
+                    }
+                }
+                carry = total - end;
+                System.arraycopy(bytes, end, bytes, 0, carry);
+            }
+            if (inBlock > 0) {
+                if (blocks == mins.length) {
+                    mins = Arrays.copyOf(mins, blocks + 1);
+                    maxs = Arrays.copyOf(maxs, blocks + 1);
+                }
+                mins[blocks] = lo;
+                maxs[blocks++] = hi;
+            }
+
+            byte[] peaks = new byte[2 * PEAKS];
+            if (blocks == 0) return peaks;
+            for (int p = 0; p < PEAKS; p++) {
+                // Blocks falling in this peak; with fewer blocks than peaks a block repeats
+                int from = (int) ((long) p * blocks / PEAKS);
+                int to = Math.max(from + 1, (int) ((long) (p + 1) * blocks / PEAKS));
+                float min = mins[from];
+                float max = maxs[from];
+                for (int b = from + 1; b < to; b++) {
+                    min = Math.min(min, mins[b]);
+                    max = Math.max(max, maxs[b]);
+                }
+                peaks[2 * p] = quantize(min);
+                peaks[2 * p + 1] = quantize(max);
+            }
+            return peaks;
+        }
+    }
+
+    private static byte quantize(float v) {
+        return (byte) Math.max(-127, Math.min(127, Math.round(v * 127)));
+    }
+
+    /** 64-bit FNV-1a of the path; 0 is kept to mark a free slot. */
+    private static long hash(String path) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            h ^= path.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    private static int offset(int slot) {
+        return HEADER + slot * SLOT;
+    }
+
+    private synchronized void countDecode(long nanos) {
+        decoded++;
+        decodeNanos += nanos;
+    }
+
+    private synchronized void countFailure() {
+        failed++;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(index.size(), slots, hits, misses, decoded, failed, evictions,
+                decoded == 0 ? 0 : decodeNanos / decoded);
+    }
+
+    /** Stops decoding and writes the mapped slots back to the file. */
+    @Override
+    public void close() throws IOException {
+        decoder.shutdownNow();
+        synchronized (this) {
+            map.force();
+            channel.close();
+        }
+    }
+
+    /** A track's peaks: PEAKS min/max pairs scaled to -1..1. */
+    public static final class Waveform {
+        private final byte[] peaks;
+
+        Waveform(byte[] peaks) {
+            this.peaks = peaks;
+        }
+
+        public int size() {
+            return PEAKS;
+        }
+
+        public float min(int i) {
+            return peaks[2 * i] / 127f;
+        }
+
+        public float max(int i) {
+            return peaks[2 * i + 1] / 127f;
+        }
+    }
+
+    /** How the cache has been doing since it was opened. */
+    public static final class Stats {
+        private final int entries;
+        private final int capacity;
+        private final long hits;
+        private final long misses;
+        private final long decoded;
+        private final long failed;
+        private final long evictions;
+        private final long meanDecodeNanos;
+
+        Stats(int entries, int capacity, long hits, long misses, long decoded, long failed, long evictions, long meanDecodeNanos) {
+            this.entries = entries;
+            this.capacity = capacity;
+            this.hits = hits;
+            this.misses = misses;
+            this.decoded = decoded;
+            this.failed = failed;
+            this.evictions = evictions;
+            this.meanDecodeNanos = meanDecodeNanos;
+        }
+
+        public int getEntries() { return entries; }
+        public int getCapacity() { return capacity; }
+        public long getHits() { return hits; }
+        public long getMisses() { return misses; }
+        public long getDecoded() { return decoded; }
+        public long getFailed() { return failed; }
+        public long getEvictions() { return evictions; }
+        public double getMeanDecodeMillis() { return meanDecodeNanos / 1e6; }
+
+        @Override
+        public String toString() {
+            return String.format("Waveforms: %d/%d cached, %d hits, %d misses, %d decoded (mean %.0f ms), %d failed, %d evicted",
+                    entries, capacity, hits, misses, decoded, getMeanDecodeMillis(), failed, evictions);
+        }
+    }
+}
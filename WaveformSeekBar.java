@@ -0,0 +1,159 @@
+/*
+ * WaveformSeekBar.java
+ * The now-playing bar's seek control: the track's waveform drawn on a Canvas, the
+ * part already played in a brighter colour. Click or drag to seek. Without a
+ * waveform (compressed formats, or while one is being decoded) it is a plain bar.
+ *
+ * The peaks are reduced to one min/max column per pixel only when the waveform or the
+ * width changes, into arrays kept for the next time. A progress update redraws only
+ * when the played edge moves to another pixel, and drawing allocates nothing.
+ */
+
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import java.util.function.DoubleConsumer;
+
+public class WaveformSeekBar extends Region {
+
+    private static final Color PLAYED = Color.web("#E0E1DD");
+    private static final Color UNPLAYED = Color.web("#415A77");
+    // Height of the plain bar drawn when there is no waveform
+    private static final double BAR_HEIGHT = 4;
+
+    private final Canvas canvas = new Canvas();
+    private WaveformCache.Waveform waveform;
+    private double progress;
+    private DoubleConsumer onSeek = fraction -> { };
+    private boolean seeking;
+
+    // One column per pixel: the lowest and highest peak it covers, in -1..1
+    private float[] columnMin = new float[0];
+    private float[] columnMax = new float[0];
+    private int columns;
+    // The played edge last drawn, in pixels
+    private int drawnEdge = -1;
+
+    public WaveformSeekBar() {
+        getChildren().add(canvas);
+        setMinSize(60, 16);
+        setPrefSize(300, 36);
+        addEventHandler(MouseEvent.MOUSE_PRESSED, e -> {
+            seeking = true;
+            seek(e.getX());
+        });
+        addEventHandler(MouseEvent.MOUSE_DRAGGED, e -> seek(e.getX()));
+        addEventHandler(MouseEvent.MOUSE_RELEASED, e -> {
+            seek(e.getX());
+            seeking = false;
+        });
+    }
+
+    /** Shows a track's peaks, or the plain bar for null. */
+    public void setWaveform(WaveformCache.Waveform waveform) {
+        this.waveform = waveform;
+        reduce();
+        redraw();
+    }
+
+    /** Moves the played edge; ignored while the user is dragging it. */
+    public void setProgress(double fraction) {
+        if (seeking) return;
+        progress = Math.max(0, Math.min(1, fraction));
+        if (edge() != drawnEdge) redraw();
+    }
+
+    public double getProgress() {
+        return progress;
+    }
+
+    /** Called with the fraction of the track to seek to, while pressed and dragged. */
+    public void setOnSeek(DoubleConsumer onSeek) {
+        this.onSeek = onSeek;
+    }
+
+    /** True while the mouse is down on the bar, so playback does not fight the drag. */
+    public boolean isSeeking() {
+        return seeking;
+    }
+
+    @Override
+    protected void layoutChildren() {
+        double w = snapSizeX(getWidth());
+        double h = snapSizeY(getHeight());
+        if (w != canvas.getWidth() || h != canvas.getHeight()) {
+            canvas.setWidth(w);
+            canvas.setHeight(h);
+            reduce();
+            redraw();
+        }
+    }
+
+    private void seek(double x) {
+        double width = canvas.getWidth();
+        if (width <= 0) return;
+        progress = Math.max(0, Math.min(1, x / width));
+        redraw();
+        onSeek.accept(progress);
+    }
+
+    /** Downsamples the peaks to the canvas width; arrays only grow, so a resize back reuses them. */
+    private void reduce() {
+        columns = (int) canvas.getWidth();
+        if (waveform == null || columns <= 0) return;
+        if (columnMin.length < columns) {
+            columnMin = new float[columns];
+            columnMax = new float[columns];
+        }
+        int peaks = waveform.size();
+        for (int x = 0; x < columns; x++) {
+            int from = (int) ((long) x * peaks / columns);
+            int to = Math.max(from + 1, (int) ((long) (x + 1) * peaks / columns));
+            float min = waveform.min(from);
+            float max = waveform.max(from);
+            for (int i = from + 1; i < to; i++) {
+                min = Math.min(min, waveform.min(i));
+                max = Math.max(max, waveform.max(i));
+            }
+            columnMin[x] = min;
+            columnMax[x] = max;
+        }
+    }
+
+    private int edge() {
+        return (int) Math.round(progress * columns);
+    }
+
+    private void redraw() {
+        GraphicsContext g = canvas.getGraphicsContext2D();
+        double w = canvas.getWidth();
+        double h = canvas.getHeight();
+        int edge = edge();
+        drawnEdge = edge;
+        g.clearRect(0, 0, w, h);
+        if (waveform == null) {
+            double y = (h - BAR_HEIGHT) / 2;
+            g.setFill(UNPLAYED);
+            g.fillRect(edge, y, w - edge, BAR_HEIGHT);
+            g.setFill(PLAYED);
+            g.fillRect(0, y, edge, BAR_HEIGHT);
+            return;
+        }
+        double mid = h / 2;
+        double half = h / 2;
+        // Played columns first, then the rest, so the fill changes only once
+        g.setFill(PLAYED);
+        for (int x = 0; x < edge; x++) column(g, x, mid, half);
+        g.setFill(UNPLAYED);
+        for (int x = edge; x < columns; x++) column(g, x, mid, half);
+    }
+
+    private void column(GraphicsContext g, int x, double mid, double half) {
+        double top = mid - columnMax[x] * half;
+        double bottom = mid - columnMin[x] * half;
+        // Silence still shows as a one-pixel line
+        g.fillRect(x, top, 1, Math.max(1, bottom - top));
+    }
+}